@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.externalstorage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded content store blocks, shared between content stores.
+ *
+ * Blocks are identified by the content store they belong to, the data file id
+ * and the byte offset of the block in the data file. The size of the cache is bounded
+ * by the total number of characters in the cached blocks; when it is full, the
+ * least recently used blocks are evicted.
+ *
+ * Keeps track of hits, misses and evictions so the cache size can be tuned.
+ *
+ * All methods are thread-safe.
+ */
+public class BlockCache {
+
+	/** Default maximum size of the shared cache (in characters) */
+	private static final long DEFAULT_MAX_SIZE_CHARS = 16 * 1024 * 1024; // 32MB
+
+	/** The cache shared by all content stores (unless they're given their own) */
+	private static BlockCache sharedInstance = new BlockCache(DEFAULT_MAX_SIZE_CHARS);
+
+	/** Identifies a block in a content store. */
+	static class BlockKey {
+		private Object store;
+
+		private int fileId;
+
+		private long offset;
+
+		BlockKey(Object store, int fileId, long offset) {
+			this.store = store;
+			this.fileId = fileId;
+			this.offset = offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(store) * 31 + fileId) * 31 + (int) (offset ^ (offset >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof BlockKey))
+				return false;
+			BlockKey o = (BlockKey) obj;
+			return store == o.store && fileId == o.fileId && offset == o.offset;
+		}
+	}
+
+	/** The cached blocks, in least recently used order */
+	private Map<BlockKey, String> blocks = new LinkedHashMap<BlockKey, String>(16, 0.75f, true);
+
+	/** Maximum total size of the cached blocks (in characters) */
+	private long maxSizeChars;
+
+	/** Current total size of the cached blocks (in characters) */
+	private long sizeChars = 0;
+
+	/** Number of times a block was found in the cache */
+	private long hits = 0;
+
+	/** Number of times a block was not found in the cache */
+	private long misses = 0;
+
+	/** Number of blocks evicted to make room for other blocks */
+	private long evictions = 0;
+
+	/**
+	 * Create a block cache.
+	 *
+	 * @param maxSizeChars maximum total size of the cached blocks (in characters)
+	 */
+	public BlockCache(long maxSizeChars) {
+		this.maxSizeChars = maxSizeChars;
+	}
+
+	/**
+	 * Get the cache shared by all content stores.
+	 * @return the shared cache
+	 */
+	public static BlockCache getSharedInstance() {
+		return sharedInstance;
+	}
+
+	/**
+	 * Get a block from the cache.
+	 *
+	 * @param store the content store the block belongs to
+	 * @param fileId data file id
+	 * @param offset byte offset of the block in the data file
+	 * @return the decoded block, or null if not in the cache
+	 */
+	public synchronized String get(Object store, int fileId, long offset) {
+		String block = blocks.get(new BlockKey(store, fileId, offset));
+		if (block == null)
+			misses++;
+		else
+			hits++;
+		return block;
+	}
+
+	/**
+	 * Add a block to the cache, evicting the least recently used blocks if necessary.
+	 *
+	 * @param store the content store the block belongs to
+	 * @param fileId data file id
+	 * @param offset byte offset of the block in the data file
+	 * @param block the decoded block
+	 */
+	public synchronized void put(Object store, int fileId, long offset, String block) {
+		if (block.length() > maxSizeChars)
+			return; // would never fit
+		String old = blocks.put(new BlockKey(store, fileId, offset), block);
+		if (old != null)
+			sizeChars -= old.length();
+		sizeChars += block.length();
+		Iterator<String> it = blocks.values().iterator();
+		while (sizeChars > maxSizeChars && it.hasNext()) {
+			sizeChars -= it.next().length();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Remove all blocks belonging to a content store.
+	 *
+	 * Used when the content store is cleared or closed.
+	 *
+	 * @param store the content store
+	 */
+	public synchronized void removeAll(Object store) {
+		Iterator<Map.Entry<BlockKey, String>> it = blocks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<BlockKey, String> e = it.next();
+			if (e.getKey().store == store) {
+				sizeChars -= e.getValue().length();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove all blocks from the cache. Doesn't reset the statistics.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		sizeChars = 0;
+	}
+
+	/**
+	 * Change the maximum size of the cache, evicting blocks if necessary.
+	 * @param maxSizeChars maximum total size of the cached blocks (in characters)
+	 */
+	public synchronized void setMaxSizeChars(long maxSizeChars) {
+		this.maxSizeChars = maxSizeChars;
+		Iterator<String> it = blocks.values().iterator();
+		while (sizeChars > maxSizeChars && it.hasNext()) {
+			sizeChars -= it.next().length();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/** @return maximum total size of the cached blocks (in characters) */
+	public synchronized long getMaxSizeChars() {
+		return maxSizeChars;
+	}
+
+	/** @return current total size of the cached blocks (in characters) */
+	public synchronized long getSizeChars() {
+		return sizeChars;
+	}
+
+	/** @return number of blocks in the cache */
+	public synchronized int getNumberOfBlocks() {
+		return blocks.size();
+	}
+
+	/** @return number of times a block was found in the cache */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** @return number of times a block was not found in the cache */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return number of blocks evicted to make room for other blocks */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BlockCache(" + blocks.size() + " blocks, " + sizeChars + "/" + maxSizeChars
+				+ " chars, " + hits + " hits, " + misses + " misses, " + evictions + " evictions)";
+	}
+
+}
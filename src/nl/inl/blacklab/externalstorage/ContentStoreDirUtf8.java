@@ -17,7 +17,6 @@ package nl.inl.blacklab.externalstorage;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
@@ -33,6 +32,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import nl.inl.util.ExUtil;
 
@@ -45,35 +47,41 @@ import nl.inl.util.ExUtil;
  * the start of (fixed char size) blocks. Block size in bytes can be slightly larger than char size
  * because some UTF-8 characters take up more than 1 byte. If the block size is 1000 chars, block
  * offsets might be [0, 1011, 2015, 3020].
+ *
+ * Retrieving content doesn't lock anything, so multiple threads can retrieve at the
+ * same time: TOC entries are immutable and are replaced when changed (copy-on-write), and
+ * blocks are read from shared file channels using positional reads. Storing and deleting
+ * content is serialized.
  */
 public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 	private static final String CHAR_ENCODING = "UTF-8";
 
-	/** Table of contents entry */
+	/** Table of contents entry. Immutable, so it may be read from multiple threads;
+	 *  changes are made by replacing the entry in the TOC. */
 	static class TocEntry {
 		/** id of the string */
-		public int id;
+		public final int id;
 
 		/** id of the file the string was stored in */
-		public int fileId;
+		public final int fileId;
 
 		/** byte offset into the file of the string */
-		public int entryOffsetBytes;
+		public final int entryOffsetBytes;
 
 		/** length of the string in bytes */
-		public int entryLengthBytes;
+		public final int entryLengthBytes;
 
 		/** length of the string in characters */
-		public int entryLengthCharacters;
+		public final int entryLengthCharacters;
 
 		/** fixed block size in characters (note that byte size differs per block) */
-		public int blockSizeCharacters;
+		public final int blockSizeCharacters;
 
 		/** relative block start offsets in bytes */
-		public int[] blockOffsetBytes;
+		public final int[] blockOffsetBytes;
 
 		/** was this entry deleted? (can be removed in next compacting run) */
-		public boolean deleted;
+		public final boolean deleted;
 
 		public TocEntry(int id, int fileId, int offset, int length, int charLength, int blockSize,
 				boolean deleted, int[] blockOffset) {
@@ -170,7 +178,8 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 	}
 
 	/**
-	 * The TOC entries
+	 * The TOC entries. Entries are never modified, only replaced, so readers
+	 * don't need to lock.
 	 */
 	private Map<Integer, TocEntry> toc;
 
@@ -269,6 +278,18 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 
 	private boolean tocModified = false;
 
+	/**
+	 * Cache of decoded blocks (shared with other content stores by default), or null
+	 * if we don't want to cache blocks.
+	 */
+	private BlockCache blockCache = BlockCache.getSharedInstance();
+
+	/**
+	 * Data files we've opened for reading, by file id. We keep these open until
+	 * the content store is closed, so we don't have to open a file for each retrieval.
+	 */
+	private ConcurrentMap<Integer, RandomAccessFile> openDataFiles = new ConcurrentHashMap<Integer, RandomAccessFile>();
+
 	StringBuilder currentBlockContents = new StringBuilder(newEntryBlockSizeCharacters);
 
 	/**
@@ -281,6 +302,28 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 		newEntryBlockSizeCharacters = size;
 	}
 
+	/**
+	 * Set the cache to use for decoded blocks.
+	 *
+	 * By default, the cache shared by all content stores is used.
+	 *
+	 * @param blockCache the cache to use, or null to disable caching
+	 */
+	public void setBlockCache(BlockCache blockCache) {
+		if (this.blockCache != null)
+			this.blockCache.removeAll(this);
+		this.blockCache = blockCache;
+	}
+
+	/**
+	 * Get the cache used for decoded blocks.
+	 *
+	 * @return the cache, or null if caching is disabled
+	 */
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+
 	/**
 	 * @param dir content store dir
 	 */
@@ -311,7 +354,7 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 				f.delete();
 			}
 		}
-		toc = new HashMap<Integer, TocEntry>();
+		toc = new ConcurrentHashMap<Integer, TocEntry>();
 		if (tocFile.exists())
 			readToc();
 		tocModified = false;
@@ -336,8 +379,11 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 	 * Delete all content in the document store
 	 */
 	@Override
-	public void clear() {
+	public synchronized void clear() {
 		closeCurrentStoreFile();
+		closeDataFiles();
+		if (blockCache != null)
+			blockCache.removeAll(this);
 
 		// delete all data files and empty TOC
 		for (Map.Entry<Integer, TocEntry> me : toc.entrySet()) {
@@ -449,6 +495,9 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 	@Override
 	public void close() {
 		closeCurrentStoreFile();
+		closeDataFiles();
+		if (blockCache != null)
+			blockCache.removeAll(this);
 		if (tocModified) {
 			writeToc();
 		}
@@ -663,6 +712,45 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 		}
 	}
 
+	/**
+	 * Get a channel for reading from a data file.
+	 *
+	 * The file is kept open until the content store is closed.
+	 *
+	 * The channel is shared between threads, so only use positional reads on it.
+	 *
+	 * @param fileId the data file id
+	 * @return the channel
+	 * @throws IOException on error
+	 */
+	private FileChannel getDataFileChannel(int fileId) throws IOException {
+		RandomAccessFile raf = openDataFiles.get(fileId);
+		if (raf == null) {
+			raf = new RandomAccessFile(getContentFile(fileId), "r");
+			RandomAccessFile existing = openDataFiles.putIfAbsent(fileId, raf);
+			if (existing != null) {
+				// Another thread opened it at the same time; use that one
+				raf.close();
+				raf = existing;
+			}
+		}
+		return raf.getChannel();
+	}
+
+	/**
+	 * Close the data files we've opened for reading.
+	 */
+	private synchronized void closeDataFiles() {
+		try {
+			for (RandomAccessFile raf: openDataFiles.values()) {
+				raf.close();
+			}
+			openDataFiles.clear();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Get a data File object, given the data file id.
 	 *
@@ -707,7 +795,7 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 	 * @return the parts
 	 */
 	@Override
-	public synchronized String[] retrieveParts(int contentId, int[] start, int[] end) {
+	public String[] retrieveParts(int contentId, int[] start, int[] end) {
 		try {
 			// Find the correct TOC entry
 			TocEntry e = toc.get(contentId);
@@ -722,43 +810,47 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 			// Create array for results
 			String[] result = new String[n];
 
-			// Open the correct file
-			FileInputStream fileInputStream = new FileInputStream(getContentFile(e.fileId));
-			try {
-				FileChannel fileChannel = fileInputStream.getChannel();
-
-				// Retrieve the strings requested
-				for (int i = 0; i < n; i++) {
-					int a = start[i];
-					int b = end[i];
-					if (a == -1 && b == -1) {
-						// This means "retrieve whole content"
-						a = 0;
-						b = e.entryLengthCharacters;
-					}
-
-					// Check values
-					if (a < 0 || b < 0) {
-						throw new RuntimeException("Illegal values, start = " + a + ", end = " + b);
-					}
-					if (a > e.entryLengthCharacters || b > e.entryLengthCharacters) {
-						throw new RuntimeException("Value(s) out of range, start = " + a
-								+ ", end = " + b + ", content length = " + e.entryLengthCharacters);
-					}
-					if (b <= a) {
-						throw new RuntimeException(
-								"Tried to read empty or negative length snippet (from " + a
-										+ " to " + b + ")");
-					}
+			// File to read from (only opened if we need a block that's not cached)
+			FileChannel fileChannel = null;
+
+			// Retrieve the strings requested
+			for (int i = 0; i < n; i++) {
+				int a = start[i];
+				int b = end[i];
+				if (a == -1 && b == -1) {
+					// This means "retrieve whole content"
+					a = 0;
+					b = e.entryLengthCharacters;
+				}
 
-					// 1 - determine what blocks to read
-					int firstBlock = a / e.blockSizeCharacters;
-					int lastBlock = (b - 1) / e.blockSizeCharacters;
+				// Check values
+				if (a < 0 || b < 0) {
+					throw new RuntimeException("Illegal values, start = " + a + ", end = " + b);
+				}
+				if (a > e.entryLengthCharacters || b > e.entryLengthCharacters) {
+					throw new RuntimeException("Value(s) out of range, start = " + a
+							+ ", end = " + b + ", content length = " + e.entryLengthCharacters);
+				}
+				if (b <= a) {
+					throw new RuntimeException(
+							"Tried to read empty or negative length snippet (from " + a
+									+ " to " + b + ")");
+				}
 
-					// 2 - read and decode blocks
-					StringBuilder decoded = new StringBuilder();
-					for (int j = firstBlock; j <= lastBlock; j++) {
-						long readStartOffset = e.getBlockStartOffset(j);
+				// 1 - determine what blocks to read
+				int firstBlock = a / e.blockSizeCharacters;
+				int lastBlock = (b - 1) / e.blockSizeCharacters;
+
+				// 2 - read and decode blocks
+				StringBuilder decoded = new StringBuilder();
+				for (int j = firstBlock; j <= lastBlock; j++) {
+					long readStartOffset = e.getBlockStartOffset(j);
+					String block = blockCache == null ? null : blockCache.get(this, e.fileId,
+							readStartOffset);
+					if (block == null) {
+						// Not cached; read and decode the block
+						if (fileChannel == null)
+							fileChannel = getDataFileChannel(e.fileId);
 						int bytesToRead = (int) (e.getBlockEndOffset(j) - readStartOffset);
 						ByteBuffer buffer = ByteBuffer.allocate(bytesToRead);
 						int bytesRead = fileChannel.read(buffer, readStartOffset);
@@ -767,15 +859,16 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 							throw new RuntimeException("Not enough bytes read, " + bytesRead
 									+ " < " + bytesToRead);
 						}
-						decoded.append(decodeBlock(buffer.array(), 0, bytesRead));
+						block = decodeBlock(buffer.array(), 0, bytesRead);
+						if (blockCache != null)
+							blockCache.put(this, e.fileId, readStartOffset, block);
 					}
-
-					// 3 - take just what we need
-					int firstChar = a % e.blockSizeCharacters;
-					result[i] = decoded.toString().substring(firstChar, firstChar + b - a);
+					decoded.append(block);
 				}
-			} finally {
-				fileInputStream.close();
+
+				// 3 - take just what we need
+				int firstChar = a % e.blockSizeCharacters;
+				result[i] = decoded.substring(firstChar, firstChar + b - a);
 			}
 			return result;
 		} catch (Exception e) {
@@ -786,10 +879,135 @@ public class ContentStoreDirUtf8 extends ContentStoreDirAbstract {
 	@Override
 	public synchronized void delete(int id) {
 		TocEntry e = toc.get(id);
-		e.deleted = true;
+		// Replace the entry instead of modifying it, so readers don't need to lock
+		toc.put(id, new TocEntry(e.id, e.fileId, e.entryOffsetBytes, e.entryLengthBytes,
+				e.entryLengthCharacters, e.blockSizeCharacters, true, e.blockOffsetBytes));
 		tocModified = true;
 	}
 
+	/** Number of bytes to copy at once while compacting */
+	private static final int COMPACT_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Remove the space taken up by deleted documents and store the documents in the
+	 * specified order, so they can be read sequentially in that order.
+	 *
+	 * Content store ids don't change, so the ids stored in the Lucene index stay valid.
+	 * Don't retrieve content while compacting.
+	 *
+	 * The entries are copied to new data files, numbered after the existing ones. Only when
+	 * those are on disk, the TOC is updated to refer to them, and then the old data files are
+	 * deleted. If compacting is interrupted before the TOC is written, the content store is
+	 * unchanged (the new data files are deleted when new data files are started).
+	 *
+	 * @param idOrder the desired order of the documents (usually Lucene document order);
+	 *   documents not in this array are stored after these, in order of their ids
+	 * @return number of bytes freed
+	 */
+	public synchronized long compact(int[] idOrder) {
+		closeCurrentStoreFile();
+		currentStoreFileStream = null;
+		if (blockCache != null)
+			blockCache.removeAll(this);
+
+		// Determine the order to store the entries in
+		List<TocEntry> entries = new ArrayList<TocEntry>(toc.size());
+		Set<Integer> remaining = new TreeSet<Integer>(toc.keySet());
+		for (int id: idOrder) {
+			if (remaining.remove(id))
+				entries.add(toc.get(id));
+		}
+		for (Integer id: remaining) {
+			entries.add(toc.get(id));
+		}
+
+		File[] oldFiles = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir_, String name) {
+				return name.matches("data\\d+.dat");
+			}
+		});
+		long oldBytes = 0;
+		int firstNewFileId = currentFileId + 1;
+		for (File f: oldFiles) {
+			oldBytes += f.length();
+			int fileId = Integer.parseInt(f.getName().substring(4, f.getName().length() - 4));
+			if (fileId >= firstNewFileId)
+				firstNewFileId = fileId + 1; // (left over from an interrupted compaction)
+		}
+
+		// Copy the (still encoded) entries to new data files, without gaps
+		Map<Integer, TocEntry> newToc = new HashMap<Integer, TocEntry>();
+		int newFileId = firstNewFileId;
+		int newFileLength = 0;
+		long newBytes = 0;
+		try {
+			FileOutputStream fos = null;
+			OutputStream out = null;
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(COMPACT_BUFFER_SIZE);
+				for (TocEntry e: entries) {
+					if (e.deleted) {
+						// Keep the entry so the id isn't re-used, but without content
+						newToc.put(e.id, new TocEntry(e.id, firstNewFileId, 0, 0, e.entryLengthCharacters,
+								e.blockSizeCharacters, true, new int[0]));
+						continue;
+					}
+					if (out != null && newFileLength > dataFileSizeHint) {
+						// Current file is full
+						out.flush();
+						fos.getFD().sync();
+						out.close();
+						out = null;
+						newFileId++;
+						newFileLength = 0;
+					}
+					if (out == null) {
+						fos = new FileOutputStream(getContentFile(newFileId));
+						out = new BufferedOutputStream(fos);
+					}
+					FileChannel in = getDataFileChannel(e.fileId);
+					long position = e.entryOffsetBytes;
+					long end = position + e.entryLengthBytes;
+					while (position < end) {
+						buffer.clear();
+						buffer.limit((int) Math.min(buffer.capacity(), end - position));
+						int bytesRead = in.read(buffer, position);
+						if (bytesRead <= 0)
+							throw new RuntimeException("Could not read entry " + e.id + " from " + getContentFile(e.fileId));
+						out.write(buffer.array(), 0, bytesRead);
+						position += bytesRead;
+					}
+					newToc.put(e.id, new TocEntry(e.id, newFileId, newFileLength, e.entryLengthBytes,
+							e.entryLengthCharacters, e.blockSizeCharacters, false, e.blockOffsetBytes));
+					newFileLength += e.entryLengthBytes;
+					newBytes += e.entryLengthBytes;
+				}
+				if (out != null) {
+					out.flush();
+					fos.getFD().sync();
+				}
+			} finally {
+				if (out != null)
+					out.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Switch to the new data files, then delete the old ones
+		toc.putAll(newToc);
+		currentFileId = newFileId;
+		currentFileLength = newFileLength;
+		writeToc();
+		closeDataFiles();
+		for (File f: oldFiles) {
+			if (!f.delete())
+				throw new RuntimeException("Could not delete " + f);
+		}
+		return oldBytes - newBytes;
+	}
+
 	@Override
 	public Set<Integer> getDocIds() {
 		return toc.keySet();
@@ -0,0 +1,561 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import nl.inl.blacklab.index.complex.ComplexFieldUtil;
+import nl.inl.util.ExUtil;
+import nl.inl.util.LargeMappedIntFile;
+import nl.inl.util.VersionFile;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Stores the character offsets of each token in a complex field, so we can quickly
+ * answer the question "where in the original content do the words at positions X and Y
+ * of doc Z start and end?"
+ *
+ * This replaces looking up character offsets in the term vector of the main property,
+ * which means reading the whole term vector and scanning all its terms and positions.
+ * Here, the offsets of a position are found directly: for each document, we store the
+ * start and end offset of each token, one after the other, in offsets.dat. The table of
+ * contents (docs.dat) has the same format as that of the forward index.
+ *
+ * Documents are always added at the end of the offsets file; the space used by deleted
+ * documents is not reused, but may be removed by compacting (see compact()).
+ *
+ * In search mode, the offsets file is memory-mapped and reading doesn't lock anything.
+ * In index mode, reads and writes are serialized.
+ */
+public class CharOffsetsIndex {
+
+	/*
+	 * File format version history:
+	 * 1. Initial version.
+	 */
+
+	private static final String THIS_VERSION = "1";
+
+	/** Size of a long in bytes. */
+	private static final int SIZEOF_LONG = Long.SIZE / Byte.SIZE;
+
+	/** Size of an int in bytes. */
+	private static final int SIZEOF_INT = Integer.SIZE / Byte.SIZE;
+
+	/** Number of ints stored per token (start and end offset) */
+	private static final int INTS_PER_TOKEN = 2;
+
+	/** The table of contents (where documents start in the offsets file (in tokens) and
+	 *  how many tokens they have). In search mode, this is never modified after the
+	 *  constructor finishes, so it may be read from multiple threads without locking. */
+	private final List<TocEntry> toc = new ArrayList<TocEntry>();
+
+	/** The table of contents (TOC) file, docs.dat */
+	private File tocFile;
+
+	/** The offsets file (start and end offset of each token) */
+	private File offsetsFile;
+
+	/** Handle for the offsets file */
+	private RandomAccessFile offsetsFp;
+
+	/** File channel for the offsets file */
+	private FileChannel offsetsFileChannel;
+
+	/** Mapping of the offsets file */
+	private LargeMappedIntFile offsets;
+
+	/** Has the table of contents been modified? */
+	private boolean tocModified = false;
+
+	/** The position (in tokens) in the offsets file after the last document written. */
+	private long endPosition = 0;
+
+	/** Index reader (for translating from Lucene doc id to our id) */
+	private IndexReader reader;
+
+	/** Id field name in the Lucene index (for translating from Lucene doc id to our id) */
+	private String idFieldName;
+
+	/** Cached id field */
+	private int[] cachedIds;
+
+	/** Documents that have a value in cachedIds (0 may be a real id or mean "no value") */
+	private Bits cachedIdsPresent;
+
+	/** Are we in index mode (i.e. writing) or not? */
+	private boolean indexMode;
+
+	/**
+	 * Open or create a character offsets index.
+	 *
+	 * @param dir the directory
+	 * @param indexMode if true, we may add and delete documents
+	 * @param create if true, create a new (empty) index, deleting any existing one
+	 */
+	public CharOffsetsIndex(File dir, boolean indexMode, boolean create) {
+		this.indexMode = indexMode;
+		if (!dir.exists()) {
+			if (!indexMode)
+				throw new RuntimeException("Character offsets index doesn't exist: " + dir);
+			dir.mkdir();
+			create = true;
+		}
+
+		// Version check
+		if (!create) {
+			if (!VersionFile.isTypeVersion(dir, "co", THIS_VERSION)) {
+				throw new RuntimeException("Not a character offsets index or wrong version: "
+						+ VersionFile.report(dir) + " (co " + THIS_VERSION + " expected)");
+			}
+		} else {
+			if (!indexMode)
+				throw new RuntimeException("Cannot create character offsets index, not in index mode");
+			VersionFile.write(dir, "co", THIS_VERSION);
+		}
+
+		tocFile = new File(dir, "docs.dat");
+		offsetsFile = new File(dir, "offsets.dat");
+		recoverCompaction();
+		try {
+			if (create) {
+				if (tocFile.exists())
+					tocFile.delete();
+				if (offsetsFile.exists())
+					offsetsFile.delete();
+				tocModified = true;
+			} else if (tocFile.exists()) {
+				readToc();
+			}
+			if (!offsetsFile.exists())
+				offsetsFile.createNewFile();
+			offsetsFp = new RandomAccessFile(offsetsFile, indexMode ? "rw" : "r");
+			offsetsFileChannel = offsetsFp.getChannel();
+			offsets = new LargeMappedIntFile(offsetsFileChannel, indexMode, endPosition * INTS_PER_TOKEN);
+		} catch (IOException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Indicate how to translate Lucene document ids to our ids
+	 * (by looking them up in the index).
+	 *
+	 * Caches the id field.
+	 *
+	 * @param reader the index
+	 * @param fieldName the complex field name
+	 */
+	public void setIdTranslateInfo(IndexReader reader, String fieldName) {
+		this.reader = reader;
+		this.idFieldName = ComplexFieldUtil.charOffsetsIdField(fieldName);
+		try {
+			cachedIds = FieldCache.DEFAULT.getInts(reader, idFieldName);
+			cachedIdsPresent = FieldCache.DEFAULT.getDocsWithField(reader, idFieldName);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Convert a Lucene document id to the corresponding id in this index.
+	 * @param docId the Lucene doc id
+	 * @return our id, or -1 if the document has none
+	 */
+	public int luceneDocIdToCoid(int docId) {
+		if (cachedIds != null && docId < cachedIds.length)
+			return cachedIdsPresent.get(docId) ? cachedIds[docId] : -1;
+
+		// Not cached; find id by reading stored value from Document now
+		try {
+			String value = reader.document(docId).get(idFieldName);
+			return value == null ? -1 : Integer.parseInt(value);
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the table of contents from the file
+	 */
+	private void readToc() {
+		toc.clear();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tocFile, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				try {
+					MappedByteBuffer buf = fc.map(MapMode.READ_ONLY, 0, tocFile.length());
+					int n = buf.getInt();
+					long[] offset = new long[n];
+					int[] length = new int[n];
+					byte[] deleted = new byte[n];
+					LongBuffer lb = buf.asLongBuffer();
+					lb.get(offset);
+					buf.position(buf.position() + SIZEOF_LONG * n);
+					IntBuffer ib = buf.asIntBuffer();
+					ib.get(length);
+					buf.position(buf.position() + SIZEOF_INT * n);
+					buf.get(deleted);
+					for (int i = 0; i < n; i++) {
+						toc.add(new TocEntry(offset[i], length[i], deleted[i] != 0));
+						long end = offset[i] + length[i];
+						if (end > endPosition)
+							endPosition = end;
+					}
+				} finally {
+					fc.close();
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write the table of contents to the file
+	 */
+	private void writeToc() {
+		writeToc(tocFile, toc);
+		tocModified = false;
+	}
+
+	/**
+	 * Write the table of contents to a file, and make sure it's on disk.
+	 *
+	 * The file isn't memory-mapped, so it can be renamed afterwards (see compact()).
+	 *
+	 * @param file the file to write to
+	 * @param entries the TOC entries to write
+	 */
+	private static void writeToc(File file, List<TocEntry> entries) {
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(entries.size());
+				for (TocEntry e: entries) {
+					out.writeLong(e.offset);
+				}
+				for (TocEntry e: entries) {
+					out.writeInt(e.length);
+				}
+				for (TocEntry e: entries) {
+					out.writeByte(e.deleted ? 1 : 0);
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Close the index.
+	 * Writes the table of contents to disk if modified.
+	 */
+	public synchronized void close() {
+		try {
+			if (tocModified)
+				writeToc();
+			offsetsFileChannel.close();
+			offsetsFp.close();
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Store the character offsets of the tokens in a document and assign an id to them.
+	 *
+	 * @param startChars the start offset of each token
+	 * @param endChars the end offset of each token
+	 * @return the id assigned to the document
+	 */
+	public synchronized int addDocument(List<Integer> startChars, List<Integer> endChars) {
+		if (!indexMode)
+			throw new RuntimeException("Cannot add document, not in index mode");
+		int numberOfTokens = startChars.size();
+		if (endChars.size() != numberOfTokens)
+			throw new RuntimeException("Number of start and end offsets differ (" + numberOfTokens
+					+ " != " + endChars.size() + ")");
+
+		int[] buffer = new int[numberOfTokens * INTS_PER_TOKEN];
+		Iterator<Integer> startIt = startChars.iterator();
+		Iterator<Integer> endIt = endChars.iterator();
+		for (int i = 0; i < buffer.length; i += INTS_PER_TOKEN) {
+			buffer[i] = startIt.next();
+			buffer[i + 1] = endIt.next();
+		}
+		offsets.put(endPosition * INTS_PER_TOKEN, buffer, 0, buffer.length);
+		toc.add(new TocEntry(endPosition, numberOfTokens, false));
+		endPosition += numberOfTokens;
+		tocModified = true;
+		return toc.size() - 1;
+	}
+
+	/**
+	 * Delete a document
+	 *
+	 * @param coid id of the document to delete
+	 */
+	public synchronized void deleteDocument(int coid) {
+		if (!indexMode)
+			throw new RuntimeException("Cannot delete document, not in index mode");
+		toc.get(coid).deleted = true;
+		tocModified = true;
+	}
+
+	/** Number of ints to copy at once while compacting */
+	private static final int COMPACT_BUFFER_SIZE = 1 << 16;
+
+	/** @return the new offsets file while compacting */
+	private File getCompactedOffsetsFile() {
+		return new File(offsetsFile.getParentFile(), "offsets.dat.new");
+	}
+
+	/** @return the new table of contents file while compacting (exists once the
+	 *    compacted files are complete; see compact()) */
+	private File getCompactedTocFile() {
+		return new File(tocFile.getParentFile(), "docs.dat.new");
+	}
+
+	/**
+	 * Remove the space left by deleted documents and store the documents in the
+	 * specified order, so they can be read sequentially in that order.
+	 *
+	 * Ids don't change, so the ids stored in the Lucene index stay valid.
+	 * Only allowed in index mode.
+	 *
+	 * The files are replaced in the same order as ForwardIndexImplV3.compact() does,
+	 * so an interrupted compaction is completed or undone when the index is opened again.
+	 *
+	 * @param coidOrder the desired order of the documents (usually Lucene document order);
+	 *   documents not in this array are stored after these, in order of their ids
+	 * @return number of tokens of free space removed from the offsets file
+	 */
+	public synchronized long compact(int[] coidOrder) {
+		if (!indexMode)
+			throw new RuntimeException("Cannot compact, not in index mode");
+
+		// Copy the documents to a new offsets file, without gaps, in the requested order
+		File newOffsetsFile = getCompactedOffsetsFile();
+		long[] newOffset = new long[toc.size()];
+		boolean[] copied = new boolean[toc.size()];
+		long newEndPosition = 0;
+		try {
+			FileOutputStream fos = new FileOutputStream(newOffsetsFile);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				int[] buffer = new int[COMPACT_BUFFER_SIZE];
+				for (int i = 0; i < coidOrder.length + toc.size(); i++) {
+					int coid = i < coidOrder.length ? coidOrder[i] : i - coidOrder.length;
+					if (coid < 0 || coid >= toc.size() || copied[coid])
+						continue;
+					copied[coid] = true;
+					TocEntry e = toc.get(coid);
+					if (e.deleted)
+						continue;
+					newOffset[coid] = newEndPosition;
+					long length = (long) e.length * INTS_PER_TOKEN;
+					for (long done = 0; done < length; done += buffer.length) {
+						int n = (int) Math.min(buffer.length, length - done);
+						offsets.get(e.offset * INTS_PER_TOKEN + done, buffer, 0, n);
+						for (int j = 0; j < n; j++) {
+							out.writeInt(buffer[j]);
+						}
+					}
+					newEndPosition += e.length;
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Write the new TOC, and mark the compacted files as complete.
+		// Deleted documents keep their (empty) entry, so ids stay the same.
+		List<TocEntry> newToc = new ArrayList<TocEntry>(toc.size());
+		for (int coid = 0; coid < toc.size(); coid++) {
+			TocEntry e = toc.get(coid);
+			if (e.deleted)
+				newToc.add(new TocEntry(newEndPosition, 0, true));
+			else
+				newToc.add(new TocEntry(newOffset[coid], e.length, false));
+		}
+		File tmpTocFile = new File(tocFile.getParentFile(), "docs.dat.tmp");
+		writeToc(tmpTocFile, newToc);
+		if (!tmpTocFile.renameTo(getCompactedTocFile()))
+			throw new RuntimeException("Could not rename " + tmpTocFile + " to " + getCompactedTocFile());
+		toc.clear();
+		toc.addAll(newToc);
+		long freed = endPosition - newEndPosition;
+		endPosition = newEndPosition;
+
+		// Replace the files
+		offsets = null; // don't access the old mappings after truncating
+		try {
+			finishCompaction(offsetsFileChannel);
+			offsets = new LargeMappedIntFile(offsetsFileChannel, true, endPosition * INTS_PER_TOKEN);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return freed;
+	}
+
+	/**
+	 * Replace the offsets file and TOC with the compacted ones (see compact()).
+	 *
+	 * May be called again if it was interrupted.
+	 *
+	 * @param channel channel for the offsets file
+	 * @throws IOException on error
+	 */
+	private void finishCompaction(FileChannel channel) throws IOException {
+		File newOffsetsFile = getCompactedOffsetsFile();
+		File newTocFile = getCompactedTocFile();
+		LargeMappedIntFile.replaceContents(channel, newOffsetsFile);
+		channel.force(false);
+		if (tocFile.exists() && !tocFile.delete())
+			throw new RuntimeException("Could not delete " + tocFile);
+		if (!newTocFile.renameTo(tocFile))
+			throw new RuntimeException("Could not rename " + newTocFile + " to " + tocFile);
+		if (!newOffsetsFile.delete())
+			throw new RuntimeException("Could not delete " + newOffsetsFile);
+	}
+
+	/**
+	 * Complete or undo a compaction that was interrupted (e.g. because the process was killed).
+	 */
+	private void recoverCompaction() {
+		File newOffsetsFile = getCompactedOffsetsFile();
+		File tmpTocFile = new File(tocFile.getParentFile(), "docs.dat.tmp");
+		if (getCompactedTocFile().exists()) {
+			try {
+				RandomAccessFile raf = new RandomAccessFile(offsetsFile, "rw");
+				try {
+					finishCompaction(raf.getChannel());
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			if (newOffsetsFile.exists() && !newOffsetsFile.delete())
+				throw new RuntimeException("Could not delete " + newOffsetsFile);
+		}
+		if (tmpTocFile.exists() && !tmpTocFile.delete())
+			throw new RuntimeException("Could not delete " + tmpTocFile);
+	}
+
+	/**
+	 * Get character positions from word positions.
+	 *
+	 * Places character positions in the same arrays as the word positions were specified in.
+	 *
+	 * @param coid
+	 *            id of the document
+	 * @param startsOfWords
+	 *            word positions for which we want starting character positions
+	 * @param endsOfWords
+	 *            word positions for which we want ending character positions
+	 * @param fillInDefaultsIfNotFound
+	 *            if true, word positions outside the document get the first character of
+	 *            the first word (for starts) or the last character of the last word (for
+	 *            ends). Otherwise, throws an exception.
+	 */
+	public void getCharacterOffsets(int coid, int[] startsOfWords, int[] endsOfWords,
+			boolean fillInDefaultsIfNotFound) {
+		if (indexMode) {
+			// The TOC and the offsets file may change while we're reading;
+			// serialize access with addDocument() and deleteDocument().
+			synchronized (this) {
+				getCharacterOffsetsInternal(coid, startsOfWords, endsOfWords, fillInDefaultsIfNotFound);
+			}
+			return;
+		}
+		getCharacterOffsetsInternal(coid, startsOfWords, endsOfWords, fillInDefaultsIfNotFound);
+	}
+
+	private void getCharacterOffsetsInternal(int coid, int[] startsOfWords, int[] endsOfWords,
+			boolean fillInDefaultsIfNotFound) {
+		TocEntry e = toc.get(coid);
+		if (e.deleted)
+			throw new RuntimeException("Document " + coid + " was deleted");
+		long base = e.offset * INTS_PER_TOKEN;
+		int length = e.length;
+		for (int i = 0; i < startsOfWords.length; i++) {
+			int p = startsOfWords[i];
+			if (p < 0 || p >= length) {
+				if (!fillInDefaultsIfNotFound || length == 0)
+					throw new RuntimeException("Could not find character offset for position " + p);
+				p = 0;
+			}
+			startsOfWords[i] = offsets.get(base + (long) p * INTS_PER_TOKEN);
+		}
+		for (int i = 0; i < endsOfWords.length; i++) {
+			int p = endsOfWords[i];
+			if (p < 0 || p >= length) {
+				if (!fillInDefaultsIfNotFound || length == 0)
+					throw new RuntimeException("Could not find character offset for position " + p);
+				p = length - 1;
+			}
+			endsOfWords[i] = offsets.get(base + (long) p * INTS_PER_TOKEN + 1);
+		}
+	}
+
+	/**
+	 * @return the number of documents in the index (including deleted ones)
+	 */
+	public int getNumDocs() {
+		return toc.size();
+	}
+
+	/**
+	 * Gets the length (in tokens) of a document
+	 * @param coid id of a document
+	 * @return length of the document
+	 */
+	public int getDocLength(int coid) {
+		return toc.get(coid).length;
+	}
+
+}
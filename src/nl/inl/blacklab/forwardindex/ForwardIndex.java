@@ -18,6 +18,7 @@ public abstract class ForwardIndex {
 	 * 1. Initial version.
 	 * 2. Added sort index to terms file.
 	 * 3. New terms and docs file format; added reverse sort index and case-insensitive index to terms file.
+	 * 4. Bit-packed tokens file, for searching only (created from version 3 using convertToVersion4()).
 	 */
 
 	/**
@@ -185,6 +186,38 @@ public abstract class ForwardIndex {
 	 */
 	public abstract int getDocLength(int fiid);
 
+	/**
+	 * Load a document into memory, because it will be read soon.
+	 *
+	 * Called from a background thread while reading many documents in a row
+	 * (see Hits.findContext()). The default implementation does nothing.
+	 *
+	 * @param fiid forward index id of the document
+	 */
+	public void prefetch(int fiid) {
+		// May be implemented by child class
+	}
+
+	/**
+	 * Remove the space left by deleted documents and store the documents in the
+	 * specified order, so they can be read sequentially in that order.
+	 *
+	 * Forward index ids don't change, so the ids stored in the Lucene index stay valid.
+	 * Only call this if canCompact() returns true.
+	 *
+	 * @param fiidOrder the desired order of the documents (usually Lucene document order);
+	 *   documents not in this array are stored after these, in order of their ids
+	 * @return number of tokens of free space removed from the tokens file
+	 */
+	public abstract long compact(int[] fiidOrder);
+
+	/**
+	 * Can this forward index be compacted? (see compact())
+	 *
+	 * @return true iff this forward index is opened in index mode and its format supports compacting
+	 */
+	public abstract boolean canCompact();
+
 	/**
 	 * Current forward index format version
 	 */
@@ -241,12 +274,14 @@ public abstract class ForwardIndex {
 		}
 
 		// Version check
-		boolean isVersion2 = false;
+		boolean isVersion2 = false, isVersion4 = false;
 		if (!indexMode || !create) {
 			// We're opening an existing forward index. Check version.
 			if (!VersionFile.isTypeVersion(dir, "fi", CURRENT_VERSION)) {
 				if (VersionFile.isTypeVersion(dir, "fi", "2")) {
 					isVersion2 = true;
+				} else if (VersionFile.isTypeVersion(dir, "fi", ForwardIndexImplV4.THIS_VERSION)) {
+					isVersion4 = true;
 				} else {
 					throw new RuntimeException("Not a forward index or wrong version: "
 							+ VersionFile.report(dir) + " (fi " + CURRENT_VERSION + " expected)");
@@ -259,9 +294,28 @@ public abstract class ForwardIndex {
 
 		if (isVersion2)
 			return new ForwardIndexImplV2(dir, indexMode, collator, create);
+		if (isVersion4)
+			return new ForwardIndexImplV4(dir, indexMode, collator, create);
 		return new ForwardIndexImplV3(dir, indexMode, collator, create);
 	}
 
+	/**
+	 * Convert a forward index to the compact, read-only version 4 format.
+	 *
+	 * Version 4 stores each token in as few bits as the number of terms allows,
+	 * which can make the forward index several times smaller. The Lucene index doesn't
+	 * need to change. Documents cannot be added to or deleted from a version 4 forward
+	 * index.
+	 *
+	 * @param srcDir the forward index to convert (must be version 3)
+	 * @param destDir where to create the version 4 forward index
+	 */
+	public static void convertToVersion4(File srcDir, File destDir) {
+		if (srcDir.getAbsoluteFile().equals(destDir.getAbsoluteFile()))
+			throw new RuntimeException("Cannot convert forward index in place: " + srcDir);
+		ForwardIndexImplV4.convert(srcDir, destDir);
+	}
+
 	/**
 	 * @param b true iff we want to keep FI in memory
 	 * @deprecated keeping forward index in memory is 'never' a good idea (better to use OS caching)
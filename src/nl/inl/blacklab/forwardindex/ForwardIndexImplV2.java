@@ -692,6 +692,16 @@ class ForwardIndexImplV2 extends ForwardIndex {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public long compact(int[] fiidOrder) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean canCompact() {
+		return false;
+	}
+
 	@Override
 	public long getFreeSpace() {
 		return 0;
@@ -15,8 +15,10 @@
  *******************************************************************************/
 package nl.inl.blacklab.forwardindex;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -35,6 +37,7 @@ import java.util.List;
 
 import nl.inl.blacklab.index.complex.ComplexFieldUtil;
 import nl.inl.util.ExUtil;
+import nl.inl.util.LargeMappedIntFile;
 import nl.inl.util.VersionFile;
 
 import org.apache.log4j.Logger;
@@ -44,6 +47,10 @@ import org.apache.lucene.search.FieldCache;
 /**
  * Keeps a forward index of documents, to quickly answer the question
  * "what word occurs in doc X at position Y"?
+ *
+ * In search mode, reading from the forward index doesn't lock anything, so
+ * multiple threads can retrieve parts at the same time. In index mode, reads
+ * and writes are serialized.
  */
 class ForwardIndexImplV3 extends ForwardIndex {
 
@@ -55,19 +62,12 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	 */
 	private static final boolean TESTING_IO_IMPACT = false;
 
-	/** Java has as limit of 2GB for MappedByteBuffer.
-	 *  But this could be worked around using arrays of MappedByteBuffers, see:
-	 *  http://stackoverflow.com/questions/5675748/java-memorymapping-big-files
+	/** Desired segment size for mapping the tokens file. Java has a limit of 2GB
+	 *  for MappedByteBuffer, so we map the file in segments (see LargeMappedIntFile).
+	 *  Usually 1GB, but can be set to be smaller (for easier testing). Should be a
+	 *  power of two.
 	 */
-	private static final int MAX_DIRECT_BUFFER_SIZE = Integer.MAX_VALUE;
-
-	/** Desired chunk size. Usually just MAX_DIRECT_BUFFER_SIZE, but can be
-	 *  set to be smaller (for easier testing).
-	 *
-	 *  NOTE: using MAX_DIRECT_BUFFER_SIZE (2GB) failed on Linux 64 bit, so
-	 *  we're using 1GB for now.
-	 */
-	static int preferredChunkSizeBytes = MAX_DIRECT_BUFFER_SIZE / 2;
+	static int preferredChunkSizeBytes = 1 << 30;
 
 	/**
 	 * Use memory mapping to access the file.
@@ -81,20 +81,12 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	/** Size of an int in bytes. This will always be 4, according to the standard. */
 	private static final int SIZEOF_INT = Integer.SIZE / Byte.SIZE;
 
-	/** The number of integer positions to reserve when mapping the file for writing. */
-	final static int WRITE_MAP_RESERVE = 250000; // 250K integers = 1M bytes
-
 	private static final String THIS_VERSION = "3";
 
-	/** The memory mapped write buffer */
-	private IntBuffer writeBuffer;
-
-	/** Buffer offset (position in file of start of writeBuffer) in integer positions
-	 * (so we don't count bytes, we count ints) */
-	private long writeBufOffset;
-
-	/** The table of contents (where documents start in the tokens file and how long they are) */
-	private List<TocEntry> toc;
+	/** The table of contents (where documents start in the tokens file and how long they are).
+	 *  In search mode, this is never modified after the constructor finishes, so it may be
+	 *  read from multiple threads without locking. */
+	private final List<TocEntry> toc;
 
 	/** Deleted TOC entries. Always sorted by size. */
 	private List<TocEntry> deletedTocEntries;
@@ -114,11 +106,9 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	/** Handle for the tokens file */
 	private RandomAccessFile tokensFp;
 
-	/** Mapping into the tokens file */
-	private List<ByteBuffer> tokensFileChunks = null;
-
-	/** Offsets of the mappings into the token file */
-	private List<Long> tokensFileChunkOffsetBytes = null;
+	/** Mapping of the tokens file (always in index mode; in search mode, only
+	 *  if useMemoryMapping is true). Null if the file isn't mapped. */
+	private LargeMappedIntFile tokens = null;
 
 	/** File channel for the tokens file */
 	private FileChannel tokensFileChannel;
@@ -142,6 +132,9 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	/** Are we in index mode (i.e. writing to forward index) or not? */
 	private boolean indexMode;
 
+	/** Result of reading the prefetched pages (not used, but keeps the reads from being optimized away) */
+	private int prefetchResult;
+
 	@Override
 	public void setIdTranslateInfo(IndexReader reader, String lucenePropFieldName) {
 		this.reader = reader;
@@ -203,6 +196,7 @@ class ForwardIndexImplV3 extends ForwardIndex {
 		termsFile = new File(dir, "terms.dat");
 		tocFile = new File(dir, "docs.dat");
 		tokensFile = new File(dir, "tokens.dat");
+		recoverCompaction();
 		if (create) {
 			if (tokensFile.exists())
 				tokensFile.delete();
@@ -217,13 +211,17 @@ class ForwardIndexImplV3 extends ForwardIndex {
 			boolean existing = false;
 			if (tocFile.exists()) {
 				readToc();
-				terms = new TermsImplV3(indexMode, collator, termsFile);
+				if (!indexMode && useMemoryMapping && termsFile.exists()) {
+					// Search mode: read terms directly from the mapped file
+					terms = new TermsImplV3Mapped(termsFile);
+				} else {
+					terms = new TermsImplV3(indexMode, collator, termsFile);
+				}
 				existing = true;
 				tocModified = false;
 			} else {
 				terms = new TermsImplV3(indexMode, collator);
 				tokensFile.createNewFile();
-				tokensFileChunks = null;
 				tocModified = true;
 			}
 			openTokensFile();
@@ -233,9 +231,9 @@ class ForwardIndexImplV3 extends ForwardIndex {
 				if (!indexMode && useMemoryMapping) {
 
 					// Memory-map the file
-					// NOTE: We only use this in search mode right now.
-					// @@@ add support for mapped write (need to re-map as the file grows in size)
-					memoryMapTokensFile(false);
+					// (in index mode, openTokensFile() has already done this)
+					tokens = new LargeMappedIntFile(tokensFileChannel, false, tokenFileEndPosition,
+							preferredChunkSizeBytes / SIZEOF_INT);
 
 				} else {
 					// Don't use memory mapping. Just read from file channel.
@@ -274,67 +272,13 @@ class ForwardIndexImplV3 extends ForwardIndex {
 		}
 	}
 
-	private void openTokensFile() throws FileNotFoundException {
+	private void openTokensFile() throws IOException {
 		tokensFp = new RandomAccessFile(tokensFile, indexMode ? "rw" : "r");
 		tokensFileChannel = tokensFp.getChannel();
-	}
-
-	private void memoryMapTokensFile(boolean keepInMemory) throws IOException {
-
-		// Map the tokens file in chunks of 2GB each. When retrieving documents, we always
-		// read it from just one chunk, not multiple, but because each chunk begins at a
-		// document start, documents of up to 2G tokens can be processed. We could get around
-		// this limitation by reading from multiple chunks, but this would make the code
-		// more complex.
-		tokensFileChunks = new ArrayList<ByteBuffer>();
-		tokensFileChunkOffsetBytes = new ArrayList<Long>();
-		long mappedBytes = 0;
-		long tokenFileEndBytes = tokenFileEndPosition * SIZEOF_INT;
-		while (mappedBytes < tokenFileEndBytes) {
-			// Find the last TOC entry start point that's also in the previous mapping
-			// (or right the first byte after the previous mapping).
-			long startOfNextMappingBytes = 0;
-
-			// Look for the largest entryOffset that's no larger than mappedBytes.
-			TocEntry mapNextChunkFrom = null;
-			for (TocEntry e: toc) {
-				if (e.offset <= mappedBytes && (mapNextChunkFrom == null || e.offset > mapNextChunkFrom.offset))
-					mapNextChunkFrom = e;
-			}
-
-			// Uses binary search.
-			int min = 0, max = toc.size();
-			while (max - min > 1) {
-				int middle = (min + max) / 2;
-				long middleVal = toc.get(middle).offset * SIZEOF_INT;
-				if (middleVal <= mappedBytes) {
-					min = middle;
-				} else {
-					max = middle;
-				}
-			}
-			startOfNextMappingBytes = toc.get(min).offset * SIZEOF_INT;
-
-			// Map this chunk
-			long sizeBytes = tokenFileEndBytes - startOfNextMappingBytes;
-			if (sizeBytes > preferredChunkSizeBytes)
-				sizeBytes = preferredChunkSizeBytes;
-
-			ByteBuffer mapping;
-			if (keepInMemory) {
-				mapping = ByteBuffer.allocate((int) sizeBytes);
-				tokensFileChannel.position(startOfNextMappingBytes);
-				int bytesRead = tokensFileChannel.read(mapping);
-				if (bytesRead != mapping.capacity()) {
-					throw new RuntimeException("Could not read tokens file chunk into memory!");
-				}
-			} else {
-				mapping = tokensFileChannel.map(FileChannel.MapMode.READ_ONLY,
-						startOfNextMappingBytes, sizeBytes);
-			}
-			tokensFileChunks.add(mapping);
-			tokensFileChunkOffsetBytes.add(startOfNextMappingBytes);
-			mappedBytes = startOfNextMappingBytes + sizeBytes;
+		if (indexMode) {
+			// We write (and read) through a mapping that grows as needed
+			tokens = new LargeMappedIntFile(tokensFileChannel, true, tokenFileEndPosition,
+					preferredChunkSizeBytes / SIZEOF_INT);
 		}
 	}
 
@@ -349,7 +293,11 @@ class ForwardIndexImplV3 extends ForwardIndex {
 		try {
 			if (tokensFp == null)
 				openTokensFile();
+			tokens = null; // don't access the old mappings after truncating
 			tokensFp.setLength(0);
+			tokenFileEndPosition = 0;
+			tokens = new LargeMappedIntFile(tokensFileChannel, true, 0,
+					preferredChunkSizeBytes / SIZEOF_INT);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -420,47 +368,43 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	 * Write the table of contents to the file
 	 */
 	private void writeToc() {
-
 		if (!indexMode)
 			throw new RuntimeException("Cannot write ToC, not in index mode");
+		writeToc(tocFile, toc);
+		tocModified = false;
+	}
 
+	/**
+	 * Write the table of contents to a file, and make sure it's on disk.
+	 *
+	 * The file isn't memory-mapped, so it can be renamed afterwards (see compact()).
+	 *
+	 * @param file the file to write to
+	 * @param entries the TOC entries to write
+	 */
+	private static void writeToc(File file, List<TocEntry> entries) {
 		try {
-			int n = toc.size();
-			long[] offset = new long[n];
-			int[] length = new int[n];
-			byte[] deleted = new byte[n];
-			int i = 0;
-			for (TocEntry e: toc) {
-				offset[i] = e.offset;
-				length[i] = e.length;
-				deleted[i] = (byte) (e.deleted ? 1 : 0);
-				i++;
-			}
-			RandomAccessFile raf = new RandomAccessFile(tocFile, "rw");
+			FileOutputStream fos = new FileOutputStream(file);
 			try {
-				FileChannel fc = raf.getChannel();
-				long fileSize = SIZEOF_INT + (SIZEOF_LONG + SIZEOF_INT + 1) * n;
-				fc.truncate(fileSize);
-				try {
-					MappedByteBuffer buf = fc.map(MapMode.READ_WRITE, 0, fileSize);
-					buf.putInt(n);
-					LongBuffer lb = buf.asLongBuffer();
-					lb.put(offset);
-					buf.position(buf.position() + SIZEOF_LONG * n);
-					IntBuffer ib = buf.asIntBuffer();
-					ib.put(length);
-					buf.position(buf.position() + SIZEOF_INT * n);
-					buf.put(deleted);
-				} finally {
-					fc.close();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(entries.size());
+				for (TocEntry e: entries) {
+					out.writeLong(e.offset);
+				}
+				for (TocEntry e: entries) {
+					out.writeInt(e.length);
+				}
+				for (TocEntry e: entries) {
+					out.writeByte(e.deleted ? 1 : 0);
 				}
+				out.flush();
+				fos.getFD().sync();
 			} finally {
-				raf.close();
+				fos.close();
 			}
 		} catch (Exception e) {
 			throw ExUtil.wrapRuntimeException(e);
 		}
-		tocModified = false;
 	}
 
 	@Override
@@ -514,7 +458,7 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	}
 
 	@Override
-	public synchronized int addDocument(List<String> content, List<Integer> posIncr) {
+	public int addDocument(List<String> content, List<Integer> posIncr) {
 		if (!indexMode)
 			throw new RuntimeException("Cannot add document, not in index mode");
 
@@ -533,23 +477,59 @@ class ForwardIndexImplV3 extends ForwardIndex {
 			}
 		}
 
+		// Look up the token ids
+		// (Terms is thread-safe, so we don't need to lock the forward index for this;
+		//  other indexing threads can store their documents in the meantime)
+		int [] tokenIds = new int[numberOfTokens];
+		int tokenIdsIndex = 0;
+		Iterator<String> contentIt = content.iterator();
+		Iterator<Integer> posIncrIt = posIncr == null ? null : posIncr.iterator();
+		int emptyStringTokenId = posIncrIt != null ? terms.indexOf("") : -1;
+		while (contentIt.hasNext()) {
+			String token = contentIt.next();
+			int pi = posIncrIt == null ? 1 : posIncrIt.next();
+			if (pi == 0)
+				continue; // we only store the first token at any position
+			if (pi > 1) {
+				// Skipped a few tokens; add empty tokens for these positions
+				for (int i = 0; i < pi - 1; i++) {
+					tokenIds[tokenIdsIndex] = emptyStringTokenId;
+					tokenIdsIndex++;
+				}
+			}
+
+			tokenIds[tokenIdsIndex] = terms.indexOf(token);
+			tokenIdsIndex++;
+		}
+		if (tokenIdsIndex != numberOfTokens)
+			throw new RuntimeException("tokenIdsIndex != numberOfTokens (" + tokenIdsIndex + " != " + numberOfTokens + ")");
+
+		return storeTokenIds(tokenIds);
+	}
+
+	/**
+	 * Store the token ids of a new document.
+	 *
+	 * @param tokenIds the token ids
+	 * @return the new document's fiid
+	 */
+	private synchronized int storeTokenIds(int[] tokenIds) {
+		int numberOfTokens = tokenIds.length;
+
 		// Decide where we're going to store this document,
 		// and update ToC
 		TocEntry gap = findBestFittingGap(numberOfTokens);
 		long newDocumentOffset;
-		int mapReserve;
 		tocModified = true;
 		boolean addNewEntry = true;
 		int newDocumentFiid = -1;
 		if (gap == null) {
 			// No fitting gap; just write it at the end
 			newDocumentOffset = tokenFileEndPosition;
-			mapReserve = WRITE_MAP_RESERVE; // if writing at end, reserve more space
 		}
 		else {
 			// Found a fitting gap; write it there
 			newDocumentOffset = gap.offset;
-			mapReserve = 0; // don't reserve extra write space, not needed
 			if (gap.length == numberOfTokens) {
 				// Exact fit; delete from free list and re-use entry
 				deletedTocEntries.remove(gap);
@@ -582,67 +562,25 @@ class ForwardIndexImplV3 extends ForwardIndex {
 			}
 		}
 
-		try {
-			// Can we use the current write buffer for this write?
-			long writeBufEnd = writeBuffer == null ? 0 : writeBufOffset + writeBuffer.limit();
-			if (writeBuffer == null || writeBufOffset > newDocumentOffset || writeBufEnd < newDocumentOffset + numberOfTokens) {
-				// No, remap it
-				writeBufOffset = newDocumentOffset;
-				MappedByteBuffer byteBuffer = tokensFileChannel.map(FileChannel.MapMode.READ_WRITE,
-						writeBufOffset * SIZEOF_INT, (numberOfTokens + mapReserve)
-								* SIZEOF_INT);
-				writeBuffer = byteBuffer.asIntBuffer();
-			}
+		// Did we increase the length of the tokens file?
+		long end = newDocumentOffset + numberOfTokens;
+		if (end > tokenFileEndPosition)
+			tokenFileEndPosition = end;
 
-			// Set the correct start position
-			writeBuffer.position((int)(newDocumentOffset - writeBufOffset));
-
-			// Did we increase the length of the tokens file?
-			long end = newDocumentOffset + numberOfTokens;
-			if (end > tokenFileEndPosition)
-				tokenFileEndPosition = end;
-
-			// Write the token ids
-			// (first fill the buffer, then write the buffer in 1 call)
-			int [] tokenIds = new int[numberOfTokens];
-			int tokenIdsIndex = 0;
-			Iterator<String> contentIt = content.iterator();
-			Iterator<Integer> posIncrIt = posIncr == null ? null : posIncr.iterator();
-			int emptyStringTokenId = posIncrIt != null ? terms.indexOf("") : -1;
-			while (contentIt.hasNext()) {
-				String token = contentIt.next();
-				int pi = posIncrIt == null ? 1 : posIncrIt.next();
-				if (pi == 0)
-					continue; // we only store the first token at any position
-				if (pi > 1) {
-					// Skipped a few tokens; add empty tokens for these positions
-					for (int i = 0; i < pi - 1; i++) {
-						tokenIds[tokenIdsIndex] = emptyStringTokenId;
-						tokenIdsIndex++;
-					}
-				}
+		// Write the token ids
+		tokens.put(newDocumentOffset, tokenIds, 0, numberOfTokens);
 
-				tokenIds[tokenIdsIndex] = terms.indexOf(token);
-				tokenIdsIndex++;
-			}
-			if (tokenIdsIndex != numberOfTokens)
-				throw new RuntimeException("tokenIdsIndex != numberOfTokens (" + tokenIdsIndex + " != " + numberOfTokens + ")");
-			writeBuffer.put(tokenIds);
-
-			return newDocumentFiid;
-		} catch (IOException e1) {
-			throw new RuntimeException(e1);
-		}
+		return newDocumentFiid;
 	}
 
 	@Override
-	public synchronized int addDocument(List<String> content) {
+	public int addDocument(List<String> content) {
 		return addDocument(content, null);
 	}
 
 	@Deprecated
 	@Override
-	public synchronized List<String[]> retrieveParts(int fiid, int[] start, int[] end) {
+	public List<String[]> retrieveParts(int fiid, int[] start, int[] end) {
 
 		// First, retrieve the token ids
 		List<int[]> resultInt = retrievePartsInt(fiid, start, end);
@@ -661,7 +599,7 @@ class ForwardIndexImplV3 extends ForwardIndex {
 
 	@Deprecated
 	@Override
-	public synchronized List<int[]> retrievePartsSortOrder(int fiid, int[] start, int[] end,
+	public List<int[]> retrievePartsSortOrder(int fiid, int[] start, int[] end,
 			boolean sensitive) {
 
 		// First, retrieve the token ids
@@ -675,7 +613,42 @@ class ForwardIndexImplV3 extends ForwardIndex {
 	}
 
 	@Override
-	public synchronized List<int[]> retrievePartsInt(int fiid, int[] start, int[] end) {
+	public List<int[]> retrievePartsInt(int fiid, int[] start, int[] end) {
+		if (indexMode) {
+			// The TOC and the tokens file may change while we're reading;
+			// serialize access with addDocument() and deleteDocument().
+			synchronized (this) {
+				return retrievePartsIntInternal(fiid, start, end);
+			}
+		}
+
+		// Search mode: the TOC and the file mappings are never modified,
+		// so multiple threads may read at the same time without locking.
+		return retrievePartsIntInternal(fiid, start, end);
+	}
+
+	@Override
+	public void prefetch(int fiid) {
+		// Only in search mode, where the whole file is mapped and may be read without locking
+		if (indexMode || tokens == null)
+			return;
+		TocEntry e = toc.get(fiid);
+		if (!e.deleted)
+			prefetchResult += tokens.load(e.offset, e.length);
+	}
+
+	/**
+	 * Retrieve one or more parts from the specified content, in the form of token ids.
+	 *
+	 * Doesn't lock anything; the caller is responsible for making sure the TOC and
+	 * tokens file aren't modified during the call (which is guaranteed in search mode).
+	 *
+	 * @param fiid forward index document id
+	 * @param start the starting points of the parts to retrieve (in words)
+	 * @param end the end points (i.e. first token beyond) of the parts to retrieve (in words)
+	 * @return the parts
+	 */
+	private List<int[]> retrievePartsIntInternal(int fiid, int[] start, int[] end) {
 		try {
 			TocEntry e = toc.get(fiid);
 			if (e == null || e.deleted)
@@ -709,35 +682,6 @@ class ForwardIndexImplV3 extends ForwardIndex {
 									+ " to " + end[i] + ")");
 				}
 
-				// Get an IntBuffer to read the desired content
-				IntBuffer ib = null;
-				boolean inMem = false;
-				if (tokensFileChunks != null) {
-					// Yes, the tokens file has either been fully loaded into memory or
-					// is mapped into memory. Get an int buffer into the file.
-					inMem = true;
-
-					// Figure out which chunk to access.
-					ByteBuffer whichChunk = null;
-					long chunkOffsetBytes = -1;
-					long entryOffsetBytes = e.offset * SIZEOF_INT;
-					for (int j = 0; j < tokensFileChunkOffsetBytes.size(); j++) {
-						long offsetBytes = tokensFileChunkOffsetBytes.get(j);
-						ByteBuffer buffer = tokensFileChunks.get(j);
-						if (offsetBytes <= entryOffsetBytes + start[i] * SIZEOF_INT
-								&& offsetBytes + buffer.capacity() >= entryOffsetBytes + end[i]
-										* SIZEOF_INT) {
-							// This one!
-							whichChunk = buffer;
-							chunkOffsetBytes = offsetBytes;
-							break;
-						}
-					}
-
-					whichChunk.position((int) (e.offset * SIZEOF_INT - chunkOffsetBytes));
-					ib = whichChunk.asIntBuffer();
-				}
-
 				int snippetLength = end[i] - start[i];
 				int[] snippet = new int[snippetLength];
 				if (TESTING_IO_IMPACT) {
@@ -750,10 +694,10 @@ class ForwardIndexImplV3 extends ForwardIndex {
 						snippet[j] = randomTermId;
 					}
 				} else {
-					if (inMem) {
-						// The file is mem-mapped.
-						// Position us at the correct place in the file.
-						ib.position(start[i]);
+					if (tokens != null) {
+						// The file is mem-mapped. Copy the snippet directly from the
+						// mapping (even if it spans more than one segment).
+						tokens.get(e.offset + start[i], snippet, 0, snippetLength);
 					} else {
 						// Not mapped. Explicitly read the part we require from disk into an int
 						// buffer.
@@ -767,9 +711,8 @@ class ForwardIndexImplV3 extends ForwardIndex {
 									+ " < " + bytesToRead);
 						}
 						buffer.position(0);
-						ib = buffer.asIntBuffer();
+						buffer.asIntBuffer().get(snippet);
 					}
-					ib.get(snippet);
 				}
 				result.add(snippet);
 			}
@@ -810,8 +753,17 @@ class ForwardIndexImplV3 extends ForwardIndex {
 		return toc.get(fiid).length;
 	}
 
+	/**
+	 * Was the specified document deleted?
+	 * @param fiid forward index id of a document
+	 * @return true iff the document was deleted
+	 */
+	synchronized boolean isDeleted(int fiid) {
+		return toc.get(fiid).deleted;
+	}
+
 	@Override
-	public void deleteDocument(int fiid) {
+	public synchronized void deleteDocument(int fiid) {
 		if (!indexMode)
 			throw new RuntimeException("Cannot delete document, not in index mode");
 		TocEntry tocEntry = toc.get(fiid);
@@ -861,6 +813,165 @@ class ForwardIndexImplV3 extends ForwardIndex {
 		sortDeletedTocEntries();
 	}
 
+	/** Number of ints to copy at once while compacting */
+	private static final int COMPACT_BUFFER_SIZE = 1 << 16;
+
+	/** @return the new tokens file while compacting */
+	private File getCompactedTokensFile() {
+		return new File(tokensFile.getParentFile(), "tokens.dat.new");
+	}
+
+	/** @return the new table of contents file while compacting (exists once the
+	 *    compacted files are complete; see compact()) */
+	private File getCompactedTocFile() {
+		return new File(tocFile.getParentFile(), "docs.dat.new");
+	}
+
+	@Override
+	public boolean canCompact() {
+		return indexMode;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The files are replaced in a fixed order, so an interrupted compaction can be
+	 * completed or undone when the forward index is opened again (see recoverCompaction()):
+	 * first the new tokens file and TOC are written to temporary files; renaming the TOC to
+	 * docs.dat.new marks them complete. Then the new tokens are copied into tokens.dat (which
+	 * may still be mapped, so it can't be replaced by renaming), docs.dat.new replaces
+	 * docs.dat, and tokens.dat.new is deleted.
+	 */
+	@Override
+	public synchronized long compact(int[] fiidOrder) {
+		if (!indexMode)
+			throw new RuntimeException("Cannot compact, not in index mode");
+
+		// Copy the documents to a new tokens file, without gaps, in the requested order
+		// (and any documents not mentioned in fiidOrder after that, in fiid order)
+		File newTokensFile = getCompactedTokensFile();
+		long[] newOffset = new long[toc.size()];
+		boolean[] copied = new boolean[toc.size()];
+		long newEndPosition = 0;
+		try {
+			FileOutputStream fos = new FileOutputStream(newTokensFile);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				int[] buffer = new int[COMPACT_BUFFER_SIZE];
+				for (int i = 0; i < fiidOrder.length + toc.size(); i++) {
+					int fiid = i < fiidOrder.length ? fiidOrder[i] : i - fiidOrder.length;
+					if (fiid < 0 || fiid >= toc.size() || copied[fiid])
+						continue;
+					copied[fiid] = true;
+					TocEntry e = toc.get(fiid);
+					if (e.deleted)
+						continue;
+					newOffset[fiid] = newEndPosition;
+					for (int done = 0; done < e.length; done += buffer.length) {
+						int n = Math.min(buffer.length, e.length - done);
+						tokens.get(e.offset + done, buffer, 0, n);
+						for (int j = 0; j < n; j++) {
+							out.writeInt(buffer[j]);
+						}
+					}
+					newEndPosition += e.length;
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Write the new TOC, and mark the compacted files as complete. Deleted entries become
+		// unused entries (length 0), which are re-used when adding documents; their fiids
+		// must stay the same.
+		List<TocEntry> newToc = new ArrayList<TocEntry>(toc.size());
+		for (int fiid = 0; fiid < toc.size(); fiid++) {
+			TocEntry e = toc.get(fiid);
+			if (e.deleted)
+				newToc.add(new TocEntry(newEndPosition, 0, true));
+			else
+				newToc.add(new TocEntry(newOffset[fiid], e.length, false));
+		}
+		File tmpTocFile = new File(tocFile.getParentFile(), "docs.dat.tmp");
+		writeToc(tmpTocFile, newToc);
+		if (!tmpTocFile.renameTo(getCompactedTocFile()))
+			throw new RuntimeException("Could not rename " + tmpTocFile + " to " + getCompactedTocFile());
+
+		// Use the new TOC (updating the entries, as deletedTocEntries refers to them too)
+		for (int fiid = 0; fiid < toc.size(); fiid++) {
+			toc.get(fiid).offset = newToc.get(fiid).offset;
+			toc.get(fiid).length = newToc.get(fiid).length;
+		}
+		sortDeletedTocEntries();
+		long freed = tokenFileEndPosition - newEndPosition;
+		tokenFileEndPosition = newEndPosition;
+
+		// Replace the files
+		tokens = null; // don't access the old mappings after truncating
+		try {
+			finishCompaction(tokensFileChannel);
+			tokens = new LargeMappedIntFile(tokensFileChannel, true, tokenFileEndPosition,
+					preferredChunkSizeBytes / SIZEOF_INT);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return freed;
+	}
+
+	/**
+	 * Replace the tokens file and TOC with the compacted ones (see compact()).
+	 *
+	 * May be called again if it was interrupted.
+	 *
+	 * @param channel channel for the tokens file
+	 * @throws IOException on error
+	 */
+	private void finishCompaction(FileChannel channel) throws IOException {
+		File newTokensFile = getCompactedTokensFile();
+		File newTocFile = getCompactedTocFile();
+		LargeMappedIntFile.replaceContents(channel, newTokensFile);
+		channel.force(false);
+		if (tocFile.exists() && !tocFile.delete())
+			throw new RuntimeException("Could not delete " + tocFile);
+		if (!newTocFile.renameTo(tocFile))
+			throw new RuntimeException("Could not rename " + newTocFile + " to " + tocFile);
+		if (!newTokensFile.delete())
+			throw new RuntimeException("Could not delete " + newTokensFile);
+	}
+
+	/**
+	 * Complete or undo a compaction that was interrupted (e.g. because the process was killed).
+	 *
+	 * If the compacted files were complete, the compaction is completed; otherwise, the
+	 * partially written files are deleted, leaving the forward index as it was before.
+	 */
+	private void recoverCompaction() {
+		File newTokensFile = getCompactedTokensFile();
+		File tmpTocFile = new File(tocFile.getParentFile(), "docs.dat.tmp");
+		if (getCompactedTocFile().exists()) {
+			logger.warn("Completing interrupted compaction of " + tokensFile.getParentFile());
+			try {
+				RandomAccessFile raf = new RandomAccessFile(tokensFile, "rw");
+				try {
+					finishCompaction(raf.getChannel());
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			if (newTokensFile.exists() && !newTokensFile.delete())
+				throw new RuntimeException("Could not delete " + newTokensFile);
+		}
+		if (tmpTocFile.exists() && !tmpTocFile.delete())
+			throw new RuntimeException("Could not delete " + tmpTocFile);
+	}
+
 	@Override
 	public long getFreeSpace() {
 		long freeSpace = 0;
@@ -872,7 +983,13 @@ class ForwardIndexImplV3 extends ForwardIndex {
 
 	@Override
 	public int getFreeBlocks() {
-		return deletedTocEntries.size();
+		// Entries of length 0 are unused TOC entries, not free space
+		int freeBlocks = 0;
+		for (TocEntry e: deletedTocEntries) {
+			if (e.length > 0)
+				freeBlocks++;
+		}
+		return freeBlocks;
 	}
 
 	@Override
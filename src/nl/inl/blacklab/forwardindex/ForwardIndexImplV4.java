@@ -0,0 +1,576 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.inl.blacklab.index.complex.ComplexFieldUtil;
+import nl.inl.util.ExUtil;
+import nl.inl.util.LargeMappedIntFile;
+import nl.inl.util.VersionFile;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+
+/**
+ * A read-only forward index that stores each token id in as few bits as
+ * the number of terms allows.
+ *
+ * A property like part of speech with 50 different values needs only 6 bits
+ * per token instead of the 32 bits version 3 uses, so the tokens file becomes
+ * much smaller and is more likely to stay in the OS disk cache completely.
+ *
+ * The tokens file is one big bit stream (most significant bit first, stored as
+ * big-endian ints), with the documents stored one after another. The table of
+ * contents gives the token offset and length of each document, so a snippet
+ * can be unpacked without reading the rest of the document.
+ *
+ * This format is only for searching. It is created from a version 3 forward
+ * index using convert() (see also ForwardIndex.convertToVersion4()).
+ */
+class ForwardIndexImplV4 extends ForwardIndex {
+
+	protected static final Logger logger = Logger.getLogger(ForwardIndexImplV4.class);
+
+	/** Desired segment size for mapping the tokens file (see ForwardIndexImplV3) */
+	static int preferredChunkSizeBytes = 1 << 30;
+
+	/**
+	 * Use memory mapping to access the file.
+	 * Turn this off for testing.
+	 */
+	static boolean useMemoryMapping = true;
+
+	/** Size of a long in bytes. */
+	private static final int SIZEOF_LONG = Long.SIZE / Byte.SIZE;
+
+	/** Size of an int in bytes. This will always be 4, according to the standard. */
+	private static final int SIZEOF_INT = Integer.SIZE / Byte.SIZE;
+
+	static final String THIS_VERSION = "4";
+
+	/** The table of contents (where documents start in the tokens file and how long they are).
+	 *  Never modified after the constructor finishes, so it may be read from multiple threads
+	 *  without locking. */
+	private final List<TocEntry> toc;
+
+	/** Number of bits used to store each token id */
+	private int bitsPerToken;
+
+	/** Mask for the lowest bitsPerToken bits */
+	private long tokenMask;
+
+	/** The unique terms in our index */
+	private Terms terms;
+
+	/** Handle for the tokens file */
+	private RandomAccessFile tokensFp;
+
+	/** Mapping of the tokens file (only if useMemoryMapping is true). Null if the file isn't mapped. */
+	private LargeMappedIntFile tokens = null;
+
+	/** File channel for the tokens file */
+	private FileChannel tokensFileChannel;
+
+	/** Total number of tokens stored */
+	private long totalTokens = 0;
+
+	/** Result of reading the prefetched pages (not used, but keeps the reads from being optimized away) */
+	private int prefetchResult;
+
+	/** Index reader, for getting documents (for translating from Lucene doc id to fiid) */
+	private IndexReader reader;
+
+	/** fiid field name in the Lucene index (for translating from Lucene doc id to fiid) */
+	private String fiidFieldName;
+
+	/** Cached fiid field */
+	private int[] cachedFiids;
+
+	@Override
+	public void setIdTranslateInfo(IndexReader reader, String lucenePropFieldName) {
+		this.reader = reader;
+		this.fiidFieldName = ComplexFieldUtil.forwardIndexIdField(lucenePropFieldName);
+		try {
+			cachedFiids = FieldCache.DEFAULT.getInts(reader, fiidFieldName);
+
+			// Check if the cache was retrieved OK
+			boolean allZeroes = true;
+			for (int i = 0; i < 1000 && i < cachedFiids.length; i++) {
+				if (cachedFiids[i] != 0) {
+					allZeroes = false;
+					break;
+				}
+			}
+			if (allZeroes) {
+				// Tokens lengths weren't saved in the index, skip cache
+				cachedFiids = null;
+			}
+
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int luceneDocIdToFiid(int docId) {
+		if (cachedFiids != null)
+			return cachedFiids[docId];
+
+		// Not cached; find fiid by reading stored value from Document now
+		try {
+			return Integer.parseInt(reader.document(docId).get(fiidFieldName));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public ForwardIndexImplV4(File dir, boolean indexMode, Collator collator, boolean create) {
+		if (indexMode || create) {
+			throw new RuntimeException("Forward index version " + THIS_VERSION
+					+ " is read-only; cannot add documents to " + dir);
+		}
+		if (!dir.exists())
+			throw new RuntimeException("ForwardIndex doesn't exist: " + dir);
+		if (!VersionFile.isTypeVersion(dir, "fi", THIS_VERSION)) {
+			throw new RuntimeException("Not a forward index or wrong version: "
+					+ VersionFile.report(dir) + " (fi " + THIS_VERSION + " expected)");
+		}
+
+		File termsFile = new File(dir, "terms.dat");
+		File tokensFile = new File(dir, "tokens.dat");
+		toc = new ArrayList<TocEntry>();
+		readToc(new File(dir, "docs.dat"));
+		if (useMemoryMapping) {
+			// Read terms directly from the mapped file
+			terms = new TermsImplV3Mapped(termsFile);
+		} else {
+			terms = new TermsImplV3(false, collator, termsFile);
+		}
+		try {
+			tokensFp = new RandomAccessFile(tokensFile, "r");
+			tokensFileChannel = tokensFp.getChannel();
+			if (useMemoryMapping) {
+				tokens = new LargeMappedIntFile(tokensFileChannel, false, tokensFile.length() / SIZEOF_INT,
+						preferredChunkSizeBytes / SIZEOF_INT);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Number of bits needed to store token ids for the specified number of terms.
+	 *
+	 * @param numberOfTerms number of different terms
+	 * @return the number of bits per token (1-32)
+	 */
+	static int bitsPerToken(int numberOfTerms) {
+		if (numberOfTerms <= 1)
+			return 1;
+		return Integer.SIZE - Integer.numberOfLeadingZeros(numberOfTerms - 1);
+	}
+
+	/**
+	 * Read the table of contents from the file
+	 *
+	 * @param tocFile the TOC file
+	 */
+	private void readToc(File tocFile) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tocFile, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				try {
+					MappedByteBuffer buf = fc.map(MapMode.READ_ONLY, 0, tocFile.length());
+					int n = buf.getInt();
+					bitsPerToken = buf.getInt();
+					tokenMask = (1L << bitsPerToken) - 1;
+					long[] offset = new long[n];
+					int[] length = new int[n];
+					byte[] deleted = new byte[n];
+					LongBuffer lb = buf.asLongBuffer();
+					lb.get(offset);
+					buf.position(buf.position() + SIZEOF_LONG * n);
+					IntBuffer ib = buf.asIntBuffer();
+					ib.get(length);
+					buf.position(buf.position() + SIZEOF_INT * n);
+					buf.get(deleted);
+					for (int i = 0; i < n; i++) {
+						TocEntry e = new TocEntry(offset[i], length[i], deleted[i] != 0);
+						toc.add(e);
+						if (!e.deleted)
+							totalTokens += e.length;
+					}
+				} finally {
+					fc.close();
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Convert a version 3 forward index to version 4.
+	 *
+	 * Deleted documents and the free space they leave are not copied, but their
+	 * fiids remain reserved, so the fiids stored in the Lucene index stay valid.
+	 *
+	 * @param srcDir the version 3 forward index
+	 * @param destDir where to create the version 4 forward index
+	 *   (must not be the same as srcDir)
+	 */
+	static void convert(File srcDir, File destDir) {
+		if (!VersionFile.isTypeVersion(srcDir, "fi", "3")) {
+			throw new RuntimeException("Can only convert from forward index version 3: "
+					+ VersionFile.report(srcDir));
+		}
+		if (!destDir.exists() && !destDir.mkdir())
+			throw new RuntimeException("Could not create directory " + destDir);
+		ForwardIndexImplV3 src = new ForwardIndexImplV3(srcDir, false, null, false);
+		try {
+			int n = src.getNumDocs();
+			int bits = bitsPerToken(src.getTerms().numberOfTerms());
+			long[] offset = new long[n];
+			int[] length = new int[n];
+			byte[] deleted = new byte[n];
+
+			// Write the tokens as one bit stream
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(destDir, "tokens.dat"))));
+			try {
+				long tokensWritten = 0;
+				long buffer = 0; // bits not yet written, in the lowest bufferBits bits
+				int bufferBits = 0;
+				for (int fiid = 0; fiid < n; fiid++) {
+					offset[fiid] = tokensWritten;
+					if (src.isDeleted(fiid)) {
+						deleted[fiid] = 1;
+						continue;
+					}
+					length[fiid] = src.getDocLength(fiid);
+					if (length[fiid] == 0)
+						continue;
+					int[] tokenIds = src.retrievePartsInt(fiid, new int[] { -1 }, new int[] { -1 }).get(0);
+					for (int tokenId: tokenIds) {
+						buffer = (buffer << bits) | tokenId;
+						bufferBits += bits;
+						if (bufferBits >= Integer.SIZE) {
+							bufferBits -= Integer.SIZE;
+							out.writeInt((int) (buffer >>> bufferBits));
+						}
+					}
+					tokensWritten += tokenIds.length;
+				}
+				if (bufferBits > 0)
+					out.writeInt((int) (buffer << (Integer.SIZE - bufferBits)));
+				// Padding, so we can always read two ints when unpacking a token
+				out.writeInt(0);
+			} finally {
+				out.close();
+			}
+
+			// Write the table of contents
+			DataOutputStream tocOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(destDir, "docs.dat"))));
+			try {
+				tocOut.writeInt(n);
+				tocOut.writeInt(bits);
+				for (int i = 0; i < n; i++)
+					tocOut.writeLong(offset[i]);
+				for (int i = 0; i < n; i++)
+					tocOut.writeInt(length[i]);
+				tocOut.write(deleted);
+			} finally {
+				tocOut.close();
+			}
+
+			// The terms file doesn't change
+			copyFile(new File(srcDir, "terms.dat"), new File(destDir, "terms.dat"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			src.close();
+		}
+		VersionFile.write(destDir, "fi", THIS_VERSION);
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		FileChannel in = new FileInputStream(from).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(to).getChannel();
+			try {
+				long size = in.size(), position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void warmUp() throws InterruptedException {
+		int fiid = 0;
+		int oneReadPerHowManyChars = 4000;
+		for (TocEntry e: toc) {
+			int n = e.deleted ? 0 : e.length / oneReadPerHowManyChars;
+
+			int[] starts = new int[n];
+			int[] ends = new int[n];
+			for (int i = 0; i < n; i++) {
+				starts[i] = i * oneReadPerHowManyChars;
+				ends[i] = starts[i] + 10;
+			}
+			retrievePartsInt(fiid, starts, ends);
+			fiid++;
+			if (fiid % 100 == 0) {
+				// Allow a little bit of other processing to go on,
+				// and check for thread interruption
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (tokensFileChannel != null)
+				tokensFileChannel.close();
+			if (tokensFp != null)
+				tokensFp.close();
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	@Override
+	public int addDocument(List<String> content, List<Integer> posIncr) {
+		throw new UnsupportedOperationException("Forward index version " + THIS_VERSION + " is read-only");
+	}
+
+	@Override
+	public int addDocument(List<String> content) {
+		return addDocument(content, null);
+	}
+
+	@Deprecated
+	@Override
+	public List<String[]> retrieveParts(int fiid, int[] start, int[] end) {
+
+		// First, retrieve the token ids
+		List<int[]> resultInt = retrievePartsInt(fiid, start, end);
+
+		// Translate them to strings using the terms index
+		List<String[]> result = new ArrayList<String[]>(resultInt.size());
+		for (int[] snippetInt: resultInt) {
+			String[] snippet = new String[snippetInt.length];
+			for (int j = 0; j < snippetInt.length; j++) {
+				snippet[j] = terms.get(snippetInt[j]);
+			}
+			result.add(snippet);
+		}
+		return result;
+	}
+
+	@Deprecated
+	@Override
+	public List<int[]> retrievePartsSortOrder(int fiid, int[] start, int[] end,
+			boolean sensitive) {
+
+		// First, retrieve the token ids
+		List<int[]> resultInt = retrievePartsInt(fiid, start, end);
+
+		// Translate them to sort orders
+		for (int[] snippetInt: resultInt) {
+			terms.toSortOrder(snippetInt, snippetInt, sensitive);
+		}
+		return resultInt;
+	}
+
+	@Override
+	public void prefetch(int fiid) {
+		TocEntry e = toc.get(fiid);
+		if (tokens == null || e.deleted)
+			return;
+		long firstInt = e.offset * bitsPerToken / Integer.SIZE;
+		long endInt = ((e.offset + e.length) * bitsPerToken + Integer.SIZE - 1) / Integer.SIZE;
+		prefetchResult += tokens.load(firstInt, endInt - firstInt);
+	}
+
+	/**
+	 * Retrieve one or more parts from the specified content, in the form of token ids.
+	 *
+	 * Doesn't lock anything; the TOC and the file mapping are never modified,
+	 * so multiple threads may read at the same time.
+	 *
+	 * @param fiid forward index document id
+	 * @param start the starting points of the parts to retrieve (in words)
+	 * @param end the end points (i.e. first token beyond) of the parts to retrieve (in words)
+	 * @return the parts
+	 */
+	@Override
+	public List<int[]> retrievePartsInt(int fiid, int[] start, int[] end) {
+		try {
+			TocEntry e = toc.get(fiid);
+			if (e == null || e.deleted)
+				return null;
+
+			int n = start.length;
+			if (n != end.length)
+				throw new RuntimeException("start and end must be of equal length");
+			List<int[]> result = new ArrayList<int[]>(n);
+
+			for (int i = 0; i < n; i++) {
+				if (start[i] == -1 && end[i] == -1) {
+					// whole content
+					start[i] = 0;
+					end[i] = e.length;
+				}
+				if (start[i] < 0 || end[i] < 0) {
+					throw new RuntimeException("Illegal values, start = " + start[i] + ", end = "
+							+ end[i]);
+				}
+				if (end[i] > e.length) // Can happen while making KWICs because we don't know the
+										// doc length until here
+					end[i] = e.length;
+				if (start[i] > e.length || end[i] > e.length) {
+					throw new RuntimeException("Value(s) out of range, start = " + start[i]
+							+ ", end = " + end[i] + ", content length = " + e.length);
+				}
+				if (end[i] <= start[i]) {
+					throw new RuntimeException(
+							"Tried to read empty or negative length snippet (from " + start[i]
+									+ " to " + end[i] + ")");
+				}
+
+				int snippetLength = end[i] - start[i];
+				int[] snippet = new int[snippetLength];
+
+				// Read the ints containing the snippet's bits, plus one extra (so we
+				// can always unpack a token from two consecutive ints)
+				long firstBit = (e.offset + start[i]) * bitsPerToken;
+				long firstInt = firstBit / Integer.SIZE;
+				long lastInt = ((e.offset + end[i]) * bitsPerToken - 1) / Integer.SIZE;
+				int[] packed = new int[(int) (lastInt - firstInt) + 2];
+				if (tokens != null) {
+					// The file is mem-mapped. Copy the ints directly from the mapping.
+					tokens.get(firstInt, packed, 0, packed.length);
+				} else {
+					// Not mapped. Explicitly read the part we require from disk.
+					int bytesToRead = packed.length * SIZEOF_INT;
+					ByteBuffer buffer = ByteBuffer.allocate(bytesToRead);
+					int bytesRead = tokensFileChannel.read(buffer, firstInt * SIZEOF_INT);
+					if (bytesRead < bytesToRead) {
+						throw new RuntimeException("Not enough bytes read: " + bytesRead
+								+ " < " + bytesToRead);
+					}
+					buffer.position(0);
+					buffer.asIntBuffer().get(packed);
+				}
+
+				// Unpack the token ids
+				long bit = firstBit - firstInt * Integer.SIZE;
+				for (int j = 0; j < snippetLength; j++) {
+					int index = (int) (bit >>> 5);
+					long twoInts = ((long) packed[index] << Integer.SIZE) | (packed[index + 1] & 0xFFFFFFFFL);
+					snippet[j] = (int) ((twoInts >>> (Long.SIZE - (int) (bit & 31) - bitsPerToken)) & tokenMask);
+					bit += bitsPerToken;
+				}
+				result.add(snippet);
+			}
+
+			return result;
+		} catch (Exception e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return number of bits used to store each token id
+	 */
+	int getBitsPerToken() {
+		return bitsPerToken;
+	}
+
+	@Override
+	public Terms getTerms() {
+		return terms;
+	}
+
+	@Override
+	public int getNumDocs() {
+		return toc.size();
+	}
+
+	@Override
+	public int getDocLength(int fiid) {
+		return toc.get(fiid).length;
+	}
+
+	@Override
+	public void deleteDocument(int fiid) {
+		throw new UnsupportedOperationException("Forward index version " + THIS_VERSION + " is read-only");
+	}
+
+	@Override
+	public long compact(int[] fiidOrder) {
+		throw new UnsupportedOperationException("Forward index version " + THIS_VERSION + " is read-only");
+	}
+
+	@Override
+	public boolean canCompact() {
+		return false;
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return 0;
+	}
+
+	@Override
+	public int getFreeBlocks() {
+		return 0;
+	}
+
+	@Override
+	public long getTotalSize() {
+		return totalTokens;
+	}
+
+}
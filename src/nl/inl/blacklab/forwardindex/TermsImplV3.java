@@ -15,18 +15,20 @@
  *******************************************************************************/
 package nl.inl.blacklab.forwardindex;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.Collator;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -40,9 +42,6 @@ import org.apache.log4j.Logger;
  * saves and loads faster, and includes the case-insensitive sorting order.
  */
 class TermsImplV3 extends Terms {
-	/** Number of sort buffers we store in the terms file (case-sensitive/insensitive and inverted buffers for both as well) */
-	private static final int NUM_SORT_BUFFERS = 4;
-
 	/** Number of bytes per int */
 	private static final int BYTES_PER_INT = Integer.SIZE / Byte.SIZE;
 
@@ -60,8 +59,9 @@ class TermsImplV3 extends Terms {
 	int[] sortPositionPerIdInsensitive;
 
 	/**
-	 * Mapping from term to its unique index number. We use a SortedMap because we wish to
-	 * store the sorted index numbers later (to speed up sorting). Only valid in indexMode.
+	 * Mapping from term to its unique index number. In index mode, this is a concurrent
+	 * hash map, so looking up terms is O(1) and may be done from several threads; the terms
+	 * are only sorted when we write them.
 	 */
 	Map<String, Integer> termIndex;
 
@@ -91,9 +91,9 @@ class TermsImplV3 extends Terms {
 		collatorInsensitive.setStrength(Collator.PRIMARY);
 
 		if (indexMode) {
-			// Index mode: create a SortedMap based on the specified Collator.
-			// (used later to get the terms in sort order)
-			this.termIndex = new TreeMap<String, Integer>(this.collator);
+			// Index mode: create a concurrent HashMap, so indexing threads can look up
+			// terms without locking. We sort the terms when we write them.
+			this.termIndex = new ConcurrentHashMap<String, Integer>();
 		} else {
 			// Search mode: create a HashMap so insertion is O(1) instead of O(n log n).
 			// We already have the sort order, so TreeMap is not necessary here.
@@ -124,8 +124,24 @@ class TermsImplV3 extends Terms {
 			return index;
 		if (!indexMode)
 			return -1; // term not found
-		index = termIndex.size();
-		termIndex.put(term, index);
+		return addTerm(term);
+	}
+
+	/**
+	 * Add a new term and assign it the next index number.
+	 *
+	 * Synchronized so index numbers stay consecutive when several threads are indexing.
+	 *
+	 * @param term the term to add
+	 * @return the term's index number
+	 */
+	private synchronized int addTerm(String term) {
+		Integer index = termIndex.get(term);
+		if (index == null) {
+			// Not added by another thread in the meantime
+			index = termIndex.size();
+			termIndex.put(term, index);
+		}
 		return index;
 	}
 
@@ -140,7 +156,7 @@ class TermsImplV3 extends Terms {
 	}
 
 	@Override
-	public void clear() {
+	public synchronized void clear() {
 		if (!indexMode)
 			throw new RuntimeException("Cannot clear, not in index mode");
 		termIndex.clear();
@@ -177,6 +193,7 @@ class TermsImplV3 extends Terms {
 					terms[id] = str;
 				}
 				if (indexMode) {
+					termIndexBuilt = false; // (the constructor assumed an empty termIndex)
 					buildTermIndex(); // We need to find id for term while indexing
 					terms = null; // useless in index mode because we can't add to it, and we don't need it anyway
 				} else {
@@ -201,96 +218,140 @@ class TermsImplV3 extends Terms {
 	}
 
 	@Override
-	public void write(File termsFile) {
+	public synchronized void write(File termsFile) {
 		if (!indexMode)
 			throw new RuntimeException("Term.write(): not in index mode!");
 
 		try {
-			// Open the terms file
-			RandomAccessFile raf = new RandomAccessFile(termsFile, "rw");
-			FileChannel fc = raf.getChannel();
-			int n = termIndex.size();
-
 			// Fill the terms[] array
+			int n = termIndex.size();
 			terms = new String[n];
-			int termStringsByteSize = 0;
 			for (Map.Entry<String, Integer> entry: termIndex.entrySet()) {
 				terms[entry.getValue()] = entry.getKey();
-				termStringsByteSize += entry.getKey().getBytes("utf-8").length;
 			}
 
-			// Calculate the file length and map the file
-			long fileLength = 2 * BYTES_PER_INT + (n + 1) * BYTES_PER_INT + termStringsByteSize + NUM_SORT_BUFFERS * BYTES_PER_INT * n;
-			fc.truncate(fileLength); // truncate if necessary
-			MappedByteBuffer buf = fc.map(MapMode.READ_WRITE, 0, fileLength);
-			buf.putInt(n); // Start with the number of terms
+			// Start determining the case-sensitive and -insensitive sort orders
+			// (in parallel, while we write the terms)
+			File tempDir = termsFile.getAbsoluteFile().getParentFile();
+			SortThread sortSensitive = new SortThread(new TermsSorter(collator, tempDir));
+			SortThread sortInsensitive = new SortThread(new TermsSorter(collatorInsensitive, tempDir));
+			sortSensitive.start();
+			sortInsensitive.start();
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(termsFile), 65536));
 			try {
-				// Calculate byte offsets for all the terms and fill data array
+				out.writeInt(n); // Start with the number of terms
+
+				// Calculate byte offsets for all the terms and write them
 				int currentOffset = 0;
-				int[] termStringOffsets = new int[n + 1];
-				byte[] termStrings = new byte[termStringsByteSize];
 				for (int i = 0; i < n; i++) {
-					termStringOffsets[i] = currentOffset;
-					byte[] termBytes = terms[i].getBytes("utf-8");
-					System.arraycopy(termBytes, 0, termStrings, currentOffset, termBytes.length);
-					currentOffset += termBytes.length;
+					out.writeInt(currentOffset);
+					currentOffset += utf8Length(terms[i]);
 				}
-				termStringOffsets[n] = currentOffset;
-
-				// Write offset and data arrays to file
-				IntBuffer ib = buf.asIntBuffer();
-				ib.put(termStringOffsets);
-				ib.put(termStringsByteSize); // size of the data block to follow
-				buf.position(buf.position() + BYTES_PER_INT + BYTES_PER_INT * termStringOffsets.length); // advance past offsets array
-				buf.put(termStrings);
-				ib = buf.asIntBuffer();
+				out.writeInt(currentOffset);
+				int termStringsByteSize = currentOffset;
 
-				// Write the case-sensitive sort order
-				// Because termIndex is a SortedMap, values are returned in key-sorted order.
-				// In other words, the index numbers are in order of sorted terms, so the id
-				// for 'aardvark' comes before the id for 'ape', etc.
-				int i = 0;
-				sortPositionPerId = new int[n];
-				Integer[] insensitive = new Integer[n];
-				for (int id: termIndex.values()) {
-					sortPositionPerId[id] = i;
-					insensitive[i] = id; // fill this so we can re-sort later, faster b/c already partially sorted
-					i++;
-				}
-				ib.put(new int[n]); // NOT USED ANYMORE, JUST FOR FILE COMPATIBILITY
-				ib.put(sortPositionPerId);
-
-				// Now, sort case-insensitively and write those arrays as well
-				Arrays.sort(insensitive, new Comparator<Integer>() {
-					@Override
-					public int compare(Integer a, Integer b) {
-						return collatorInsensitive.compare(terms[a], terms[b]);
-					}
-				});
-				// Copy into the sortPositionPerIdInsensitive array, making sure that
-				// identical values get identical sort positions!
-				sortPositionPerIdInsensitive = new int[n];
-				int sortPos = 0;
-				for (i = 0; i < n; i++) {
-					if (i == 0 || collatorInsensitive.compare(terms[insensitive[i - 1]], terms[insensitive[i]]) != 0) {
-						// Not identical to previous value: gets its own sort position.
-						// If a value is identical to the previous one, it gets the same sort position.
-						sortPos = i;
-					}
-					sortPositionPerIdInsensitive[insensitive[i]] = sortPos;
+				// Write the data block
+				out.writeInt(termStringsByteSize); // size of the data block to follow
+				int bytesWritten = 0;
+				for (int i = 0; i < n; i++) {
+					byte[] termBytes = terms[i].getBytes("utf-8");
+					out.write(termBytes);
+					bytesWritten += termBytes.length;
 				}
-				ib.put(new int[n]); // NOT USED ANYMORE, JUST FOR FILE COMPATIBILITY
-				ib.put(sortPositionPerIdInsensitive);
-
+				if (bytesWritten != termStringsByteSize)
+					throw new RuntimeException("Wrong term data size: " + bytesWritten + " != " + termStringsByteSize);
+
+				// Write the sort orders
+				sortPositionPerId = sortSensitive.getResult();
+				sortPositionPerIdInsensitive = sortInsensitive.getResult();
+				writeInts(out, new int[n]); // NOT USED ANYMORE, JUST FOR FILE COMPATIBILITY
+				writeInts(out, sortPositionPerId);
+				writeInts(out, new int[n]); // NOT USED ANYMORE, JUST FOR FILE COMPATIBILITY
+				writeInts(out, sortPositionPerIdInsensitive);
 			} finally {
-				fc.close();
-				raf.close();
+				out.close();
 			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/** Determines sort positions on a separate thread */
+	private class SortThread extends Thread {
+		private TermsSorter sorter;
+
+		private int[] result;
+
+		private RuntimeException exception;
+
+		SortThread(TermsSorter sorter) {
+			this.sorter = sorter;
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = sorter.sortPositions(terms);
+			} catch (RuntimeException e) {
+				exception = e;
+			}
+		}
+
+		/**
+		 * Wait for the sort to finish and return the sort positions.
+		 * @return the sort position per term id
+		 * @throws InterruptedException
+		 */
+		int[] getResult() throws InterruptedException {
+			join();
+			if (exception != null)
+				throw exception;
+			return result;
+		}
+	}
+
+	/**
+	 * Write an int array to a stream.
+	 * @param out the stream
+	 * @param values the values to write
+	 * @throws IOException
+	 */
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int value: values) {
+			out.writeInt(value);
+		}
+	}
+
+	/**
+	 * Calculate the number of bytes String.getBytes("utf-8") produces, without
+	 * encoding the string.
+	 *
+	 * @param str the string
+	 * @return the number of bytes
+	 */
+	static int utf8Length(String str) {
+		int length = 0;
+		int n = str.length();
+		for (int i = 0; i < n; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+				// Surrogate pair: one 4-byte code point
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c))
+				length++; // unpaired surrogate, encoded as '?'
+			else
+				length += 3;
+		}
+		return length;
+	}
+
 	@Override
 	public String get(Integer integer) {
 		return terms[integer];
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only (search mode) version of TermsImplV3 that keeps everything in the
+ * memory-mapped terms file.
+ *
+ * TermsImplV3 decodes all terms into Strings and reads the sort arrays into the heap
+ * when opening the forward index, which takes a lot of time and memory for large
+ * forward indices. This class reads the term offsets, the UTF-8 term data and the sort
+ * arrays directly from the mapped file. Strings are only decoded when get() is called.
+ *
+ * The term index used by indexOf() is an open-addressing hash table (outside the heap)
+ * of term ids, keyed on the UTF-8 bytes of the terms.
+ *
+ * The file format is the same as that of TermsImplV3.
+ */
+class TermsImplV3Mapped extends Terms {
+
+	/** Number of bytes per int */
+	private static final int BYTES_PER_INT = Integer.SIZE / Byte.SIZE;
+
+	/** Number of terms */
+	private int n;
+
+	/** The mapped terms file */
+	private ByteBuffer buf;
+
+	/** Where the term string offsets start in the file */
+	private int offsetsStart;
+
+	/** Where the term string data starts in the file */
+	private int stringsStart;
+
+	/** The sorting position for each index number. */
+	private IntBuffer sortPositionPerId;
+
+	/** The case-insensitive sorting position for each index number. */
+	private IntBuffer sortPositionPerIdInsensitive;
+
+	/**
+	 * Hash table from term (UTF-8 bytes) to term id + 1 (0 means empty slot).
+	 * Null until buildTermIndex() is called.
+	 */
+	private volatile IntBuffer termIndex;
+
+	/** Size of termIndex minus one (size is a power of two) */
+	private int termIndexMask;
+
+	/**
+	 * Open a terms file.
+	 *
+	 * @param termsFile the terms file
+	 */
+	public TermsImplV3Mapped(File termsFile) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(termsFile, "r");
+			FileChannel fc = raf.getChannel();
+			try {
+				// NOTE: the mapping stays valid after we close the file
+				MappedByteBuffer mapped = fc.map(MapMode.READ_ONLY, 0, termsFile.length());
+				buf = mapped;
+			} finally {
+				fc.close();
+				raf.close();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		n = buf.getInt(0);
+		offsetsStart = BYTES_PER_INT;
+		int termStringsByteSize = buf.getInt(offsetsStart + (n + 1) * BYTES_PER_INT);
+		stringsStart = offsetsStart + (n + 2) * BYTES_PER_INT;
+
+		// The sort arrays follow the string data. Each is preceded by an unused
+		// array of the same size (left in there for file compatibility).
+		int sortArraysStart = stringsStart + termStringsByteSize;
+		sortPositionPerId = intBuffer(sortArraysStart + n * BYTES_PER_INT, n);
+		sortPositionPerIdInsensitive = intBuffer(sortArraysStart + 3 * n * BYTES_PER_INT, n);
+	}
+
+	/**
+	 * Get a view of part of the file as an IntBuffer.
+	 * @param start byte offset to start at
+	 * @param length number of ints
+	 * @return the IntBuffer
+	 */
+	private IntBuffer intBuffer(int start, int length) {
+		ByteBuffer b = buf.duplicate();
+		b.position(start);
+		b.limit(start + length * BYTES_PER_INT);
+		return b.slice().asIntBuffer();
+	}
+
+	/**
+	 * Hash a term's UTF-8 bytes.
+	 * @param bytes buffer containing the bytes
+	 * @param offset where the term starts
+	 * @param length length of the term in bytes
+	 * @return the hash code
+	 */
+	private static int hash(ByteBuffer bytes, int offset, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + bytes.get(offset + i);
+		}
+		// Spread the bits, because we use the lower bits as the slot number
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * Does the term with this id equal these UTF-8 bytes?
+	 * @param id term id
+	 * @param term the UTF-8 bytes to compare to
+	 * @return true if equal
+	 */
+	private boolean termEquals(int id, byte[] term) {
+		int offset = termOffset(id);
+		if (termOffset(id + 1) - offset != term.length)
+			return false;
+		for (int i = 0; i < term.length; i++) {
+			if (buf.get(stringsStart + offset + i) != term[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the offset of a term in the string data block.
+	 * @param id term id (or n to get the size of the data block)
+	 * @return the offset
+	 */
+	private int termOffset(int id) {
+		return buf.getInt(offsetsStart + id * BYTES_PER_INT);
+	}
+
+	@Override
+	public int indexOf(String term) {
+		if (termIndex == null) {
+			// (so the first call to this method might be slow, but it's only used to
+			// deserialize HitPropValueContext*, which doesn't happen a lot)
+			buildTermIndex();
+		}
+		byte[] bytes;
+		try {
+			bytes = term.getBytes("utf-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		int slot = hash(ByteBuffer.wrap(bytes), 0, bytes.length) & termIndexMask;
+		while (true) {
+			int idPlusOne = termIndex.get(slot);
+			if (idPlusOne == 0)
+				return -1; // term not found
+			if (termEquals(idPlusOne - 1, bytes))
+				return idPlusOne - 1;
+			slot = (slot + 1) & termIndexMask;
+		}
+	}
+
+	@Override
+	public synchronized void buildTermIndex() {
+		if (termIndex != null)
+			return;
+		int size = Integer.highestOneBit(Math.max(n, 1)) * 4; // load factor <= .5
+		IntBuffer table = ByteBuffer.allocateDirect(size * BYTES_PER_INT).asIntBuffer();
+		int mask = size - 1;
+		for (int id = 0; id < n; id++) {
+			int offset = termOffset(id);
+			int slot = hash(buf, stringsStart + offset, termOffset(id + 1) - offset) & mask;
+			while (table.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table.put(slot, id + 1);
+		}
+		termIndexMask = mask;
+		termIndex = table;
+	}
+
+	@Override
+	public void clear() {
+		throw new RuntimeException("Cannot clear, not in index mode");
+	}
+
+	@Override
+	public void write(File termsFile) {
+		throw new RuntimeException("Term.write(): not in index mode!");
+	}
+
+	@Override
+	public String get(Integer id) {
+		int offset = termOffset(id);
+		byte[] bytes = new byte[termOffset(id + 1) - offset];
+		ByteBuffer b = buf.duplicate();
+		b.position(stringsStart + offset);
+		b.get(bytes);
+		try {
+			return new String(bytes, "utf-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public int numberOfTerms() {
+		return n;
+	}
+
+	@Override
+	public void toSortOrder(int[] tokenId, int[] sortOrder, boolean sensitive) {
+		IntBuffer sortPos = sensitive ? sortPositionPerId : sortPositionPerIdInsensitive;
+		for (int i = 0; i < tokenId.length; i++) {
+			sortOrder[i] = sortPos.get(tokenId[i]);
+		}
+	}
+
+	@Override
+	public int compareSortPosition(int tokenId1, int tokenId2, boolean sensitive) {
+		IntBuffer sortPos = sensitive ? sortPositionPerId : sortPositionPerIdInsensitive;
+		return sortPos.get(tokenId1) - sortPos.get(tokenId2);
+	}
+
+	@Override
+	public int idToSortPosition(int id, boolean sensitive) {
+		return sensitive ? sortPositionPerId.get(id) : sortPositionPerIdInsensitive.get(id);
+	}
+
+}
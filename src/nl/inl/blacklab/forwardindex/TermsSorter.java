@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.inl.util.ExUtil;
+
+/**
+ * Determines the sort position of each term using a collator, for writing the terms file.
+ *
+ * Each term is run through the collator once, producing a collation key as a byte array;
+ * sorting compares these byte arrays. If there are too many terms to sort at once, the terms
+ * are divided into runs which are sorted in parallel and written to temporary files, after
+ * which the runs are merged.
+ */
+class TermsSorter {
+
+	/** Default maximum number of terms to sort in memory at once */
+	static final int DEFAULT_TERMS_PER_RUN = 1000000;
+
+	/** Compares collation keys (unsigned bytes, lexicographically) */
+	static final Comparator<byte[]> KEY_COMPARATOR = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] a, byte[] b) {
+			int n = Math.min(a.length, b.length);
+			for (int i = 0; i < n; i++) {
+				int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if (cmp != 0)
+					return cmp;
+			}
+			return a.length - b.length;
+		}
+	};
+
+	/** A term id with its collation key */
+	private static class Entry {
+		int id;
+
+		byte[] key;
+
+		Entry(int id, byte[] key) {
+			this.id = id;
+			this.key = key;
+		}
+	}
+
+	/** Compares entries by collation key */
+	private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return KEY_COMPARATOR.compare(a.key, b.key);
+		}
+	};
+
+	/** The collator to sort with */
+	private Collator collator;
+
+	/** Where to write the temporary run files */
+	private File tempDir;
+
+	/** Maximum number of terms to sort in memory at once */
+	private int termsPerRun;
+
+	/** Number of runs to sort in parallel */
+	private int numberOfThreads;
+
+	/**
+	 * Construct a sorter.
+	 *
+	 * @param collator the collator to sort with
+	 * @param tempDir where to write the temporary run files, if needed
+	 */
+	TermsSorter(Collator collator, File tempDir) {
+		this(collator, tempDir, DEFAULT_TERMS_PER_RUN, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct a sorter.
+	 *
+	 * @param collator the collator to sort with
+	 * @param tempDir where to write the temporary run files, if needed
+	 * @param termsPerRun maximum number of terms to sort in memory at once
+	 * @param numberOfThreads number of runs to sort in parallel
+	 */
+	TermsSorter(Collator collator, File tempDir, int termsPerRun, int numberOfThreads) {
+		this.collator = collator;
+		this.tempDir = tempDir;
+		this.termsPerRun = termsPerRun;
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+	}
+
+	/**
+	 * Determine the sort position of each term.
+	 *
+	 * Terms the collator considers equal get the same sort position.
+	 *
+	 * @param terms the terms, by id
+	 * @return the sort position for each term id
+	 */
+	int[] sortPositions(final String[] terms) {
+		int n = terms.length;
+		int[] sortPositionPerId = new int[n];
+		if (n <= termsPerRun) {
+			// Sort in memory
+			Entry[] run = sortRun(terms, 0, n, collator);
+			byte[] prevKey = null;
+			int sortPos = 0;
+			for (int i = 0; i < n; i++) {
+				if (prevKey == null || KEY_COMPARATOR.compare(prevKey, run[i].key) != 0) {
+					// Not identical to previous value: gets its own sort position.
+					// If a value is identical to the previous one, it gets the same sort position.
+					sortPos = i;
+				}
+				sortPositionPerId[run[i].id] = sortPos;
+				prevKey = run[i].key;
+			}
+			return sortPositionPerId;
+		}
+
+		// Sort runs in parallel and write them to temporary files
+		int numberOfRuns = (n + termsPerRun - 1) / termsPerRun;
+		List<File> runFiles = new ArrayList<File>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numberOfThreads, numberOfRuns));
+		try {
+			List<Future<File>> results = new ArrayList<Future<File>>();
+			for (int i = 0; i < numberOfRuns; i++) {
+				final int start = i * termsPerRun;
+				final int end = Math.min(n, start + termsPerRun);
+				// Collators are not thread-safe; each run gets its own
+				final Collator runCollator = (Collator) collator.clone();
+				results.add(executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						return writeRun(sortRun(terms, start, end, runCollator));
+					}
+				}));
+			}
+			for (Future<File> result: results) {
+				runFiles.add(result.get());
+			}
+
+			// Merge the runs
+			mergeRuns(runFiles, sortPositionPerId);
+			return sortPositionPerId;
+		} catch (InterruptedException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		} catch (ExecutionException e) {
+			throw ExUtil.wrapRuntimeException(e.getCause());
+		} catch (IOException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+			for (File f: runFiles) {
+				if (!f.delete())
+					f.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Sort a range of terms.
+	 *
+	 * @param terms the terms, by id
+	 * @param start first term id in the run
+	 * @param end first term id not in the run
+	 * @param coll collator to use (only used by the calling thread)
+	 * @return the sorted entries
+	 */
+	private static Entry[] sortRun(String[] terms, int start, int end, Collator coll) {
+		Entry[] run = new Entry[end - start];
+		for (int i = start; i < end; i++) {
+			run[i - start] = new Entry(i, coll.getCollationKey(terms[i]).toByteArray());
+		}
+		Arrays.sort(run, ENTRY_COMPARATOR);
+		return run;
+	}
+
+	/**
+	 * Write a sorted run to a temporary file.
+	 *
+	 * @param run the sorted run
+	 * @return the file
+	 * @throws IOException
+	 */
+	private File writeRun(Entry[] run) throws IOException {
+		File file = File.createTempFile("termsrun", ".tmp", tempDir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		try {
+			for (Entry e: run) {
+				out.writeInt(e.id);
+				out.writeInt(e.key.length);
+				out.write(e.key);
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/** Reads entries from a run file */
+	private static class RunReader {
+		private DataInputStream in;
+
+		Entry current;
+
+		RunReader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		}
+
+		/**
+		 * Read the next entry into current.
+		 * @return false if there are no more entries (the file is closed then)
+		 * @throws IOException
+		 */
+		boolean next() throws IOException {
+			int id;
+			try {
+				id = in.readInt();
+			} catch (EOFException e) {
+				in.close();
+				current = null;
+				return false;
+			}
+			byte[] key = new byte[in.readInt()];
+			in.readFully(key);
+			current = new Entry(id, key);
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Merge the sorted runs, determining the sort position of each term.
+	 *
+	 * @param runFiles the run files
+	 * @param sortPositionPerId where to store the sort positions
+	 * @throws IOException
+	 */
+	private static void mergeRuns(List<File> runFiles, int[] sortPositionPerId) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runFiles.size(), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader a, RunReader b) {
+				return ENTRY_COMPARATOR.compare(a.current, b.current);
+			}
+		});
+		List<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			for (File f: runFiles) {
+				RunReader r = new RunReader(f);
+				readers.add(r);
+				if (r.next())
+					queue.add(r);
+			}
+			byte[] prevKey = null;
+			int sortPos = 0, i = 0;
+			while (!queue.isEmpty()) {
+				RunReader r = queue.poll();
+				Entry e = r.current;
+				if (prevKey == null || KEY_COMPARATOR.compare(prevKey, e.key) != 0) {
+					// Not identical to previous value: gets its own sort position.
+					sortPos = i;
+				}
+				sortPositionPerId[e.id] = sortPos;
+				prevKey = e.key;
+				i++;
+				if (r.next())
+					queue.add(r);
+			}
+		} finally {
+			for (RunReader r: readers) {
+				r.close();
+			}
+		}
+	}
+
+}
@@ -31,6 +31,9 @@ import org.apache.lucene.document.Field;
 public abstract class DocIndexerAbstract implements DocIndexer {
 	/**
 	 * Write content chunks per 10M (i.e. don't keep all content in memory at all times)
+	 *
+	 * (not when indexing in parallel: the content store can only store parts of
+	 * one document at a time)
 	 */
 	private static final long WRITE_CONTENT_CHUNK_SIZE = 10000000;
 
@@ -146,7 +149,7 @@ public abstract class DocIndexerAbstract implements DocIndexer {
 
 	public void appendContent(String str) {
 		appendContentInternal(str);
-		if (content.length() >= WRITE_CONTENT_CHUNK_SIZE) {
+		if (content.length() >= WRITE_CONTENT_CHUNK_SIZE && !indexer.isParallel()) {
 			if (SKIP_LARGE_DOCUMENTS && !skippingCurrentDocument) {
 				nDocumentsSkipped++;
 				System.err.println("Skipping large document!");
@@ -159,7 +162,7 @@ public abstract class DocIndexerAbstract implements DocIndexer {
 
 	public void appendContent(char[] buffer, int start, int length) {
 		appendContentInternal(new String(buffer, start, length));
-		if (content.length() >= WRITE_CONTENT_CHUNK_SIZE) {
+		if (content.length() >= WRITE_CONTENT_CHUNK_SIZE && !indexer.isParallel()) {
 			if (SKIP_LARGE_DOCUMENTS && !skippingCurrentDocument) {
 				nDocumentsSkipped++;
 				System.err.println("Skipping large document!");
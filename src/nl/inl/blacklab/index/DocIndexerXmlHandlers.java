@@ -68,7 +68,7 @@ public abstract class DocIndexerXmlHandlers extends DocIndexerAbstract {
 	 * What namespace prefix mappings have we encountered but not output in a start tag
 	 * yet? (used to make sure the stored XML contains all the required mappings)
 	 */
-	protected static Map<String,String> outputPrefixMapping = new HashMap<String, String>();
+	protected Map<String,String> outputPrefixMapping = new HashMap<String, String>();
 
 	/** Handle Document element. Starts a new Lucene document and adds the attributes of this
 	 *  element (if any) as metadata fields. */
@@ -126,6 +126,14 @@ public abstract class DocIndexerXmlHandlers extends DocIndexerAbstract {
 			// lists while parsing.
 			contentsField.addToLuceneDoc(currentLuceneDoc);
 
+			if (storeCharOffsetsIndex) {
+				// Store the character offsets of the tokens and add the id to the Lucene doc
+				int coid = indexer.addToCharOffsetsIndex(contentsField.getName(),
+						contentsField.getStartChars(), contentsField.getEndChars());
+				currentLuceneDoc.add(new NumericField(ComplexFieldUtil.charOffsetsIdField(contentsField.getName()),
+						Store.YES, true).setIntValue(coid));
+			}
+
 			String fieldName, propName;
 			int fiid;
 
@@ -387,12 +395,23 @@ public abstract class DocIndexerXmlHandlers extends DocIndexerAbstract {
 		return contentsField.addProperty(propName, getSensitivitySetting(propName));
 	}
 
+	/** Store the character offsets of the tokens in a character offsets index?
+	 *  (set using the "charOffsetsIndex" parameter; if set, character offsets are
+	 *  no longer stored in term vectors, unless "termVectorOffsets" is set as well) */
+	private boolean storeCharOffsetsIndex;
+
 	public DocIndexerXmlHandlers(Indexer indexer, String fileName, Reader reader) {
 		super(indexer, fileName, reader);
 
 		// Define the properties that make up our complex field
 		String mainPropName = ComplexFieldUtil.getDefaultMainPropName();
 		contentsField = new ComplexField(Searcher.DEFAULT_CONTENTS_FIELD_NAME, mainPropName, getSensitivitySetting(mainPropName));
+
+		// Store character offsets in a character offsets index instead of (or in addition to)
+		// the term vector of the main property?
+		storeCharOffsetsIndex = getParameter("charOffsetsIndex", false);
+		if (storeCharOffsetsIndex && !getParameter("termVectorOffsets", false))
+			contentsField.getMainProperty().setIncludeOffsets(false);
 		propPunct = addProperty(ComplexFieldUtil.PUNCTUATION_PROP_NAME);
 		propStartTag = addProperty(ComplexFieldUtil.START_TAG_PROP_NAME); // start tag positions
 		propStartTag.setForwardIndex(false);
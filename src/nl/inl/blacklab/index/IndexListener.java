@@ -43,6 +43,9 @@ public class IndexListener {
 	// / How many files have been processed?
 	protected long filesProcessed = 0;
 
+	// / How many documents are waiting to be indexed? (parallel indexing only; -1 if not indexing in parallel)
+	protected int queueSize = -1;
+
 	protected long createTime;
 
 	protected long totalTime;
@@ -152,6 +155,20 @@ public class IndexListener {
 		indexTime = System.currentTimeMillis() - indexStartTime;
 	}
 
+	/**
+	 * The optimize process started
+	 */
+	public void optimizeStart() {
+		optimizeStartTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * The optimize process ended
+	 */
+	public void optimizeEnd() {
+		optimizeTime = System.currentTimeMillis() - optimizeStartTime;
+	}
+
 	/**
 	 * The close process started
 	 */
@@ -194,8 +211,31 @@ public class IndexListener {
 		//
 	}
 
-	public void tokensDone(int n) {
+	public synchronized void tokensDone(int n) {
 		tokensProcessed += n;
 	}
 
+	/**
+	 * The number of documents waiting to be indexed changed.
+	 *
+	 * Only called when indexing in parallel.
+	 *
+	 * Synchronized to allow parallel indexing.
+	 *
+	 * @param n
+	 *            the number of documents waiting to be indexed
+	 */
+	public synchronized void queueSize(int n) {
+		queueSize = n;
+	}
+
+	/**
+	 * Get the number of documents waiting to be indexed.
+	 *
+	 * @return the number of documents waiting, or -1 if not indexing in parallel
+	 */
+	public synchronized int getQueueSize() {
+		return queueSize;
+	}
+
 }
@@ -76,10 +76,15 @@ public class IndexListenerReportConsole extends IndexListener {
 				curTokensSpeed = overallTokenSpeed;
 			curTokensSpeed = curTokensSpeed * 0.7 + lastTokensSpeed * 0.3;
 
+			double overallDocsSpeed = docsDone / elapsed;
+
+			// When indexing in parallel, also report how many documents are waiting
+			String queue = queueSize < 0 ? "" : String.format(", %d docs queued", queueSize);
+
 			System.out
-					.printf("%d docs done (%d MB, %dk tokens). Average speed %.1fk tokens/s (%.1f MB/s), currently %.1fk tokens/s (%.1f MB/s)\n",
+					.printf("%d docs done (%d MB, %dk tokens). Average speed %.1fk tokens/s (%.1f MB/s, %.1f docs/s), currently %.1fk tokens/s (%.1f MB/s)%s\n",
 							docsDone, (int) mbDone, (int) kTokensDone, overallTokenSpeed,
-							overallSpeed, curTokensSpeed, curSpeed);
+							overallSpeed, overallDocsSpeed, curTokensSpeed, curSpeed, queue);
 
 			prevCharsDoneReported = totalCharsDone;
 			prevTokensDoneReported = totalTokensDone;
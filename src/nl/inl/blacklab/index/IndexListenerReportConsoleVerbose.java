@@ -45,6 +45,18 @@ public class IndexListenerReportConsoleVerbose extends IndexListener {
 		return (System.currentTimeMillis() - indexStartTime) / 1000;
 	}
 
+	@Override
+	public void optimizeEnd() {
+		super.optimizeEnd();
+		System.out.println("Optimizing index complete.");
+	}
+
+	@Override
+	public void optimizeStart() {
+		super.optimizeStart();
+		System.out.println("Optimizing index...");
+	}
+
 	@Override
 	public void closeEnd() {
 		super.closeEnd();
@@ -100,7 +112,7 @@ public class IndexListenerReportConsoleVerbose extends IndexListener {
 	}
 
 	@Override
-	public void tokensDone(int n) {
+	public synchronized void tokensDone(int n) {
 		super.tokensDone(n);
 		System.out.println("Tokens done total: " + getTokensProcessed());
 	}
@@ -22,12 +22,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
 import java.text.Collator;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -35,9 +40,11 @@ import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import nl.inl.blacklab.externalstorage.ContentStore;
+import nl.inl.blacklab.forwardindex.CharOffsetsIndex;
 import nl.inl.blacklab.forwardindex.ForwardIndex;
 import nl.inl.blacklab.index.complex.ComplexFieldProperty;
 import nl.inl.blacklab.search.Searcher;
+import nl.inl.util.ExUtil;
 import nl.inl.util.FileUtil;
 import nl.inl.util.TarGzipReader;
 import nl.inl.util.TarGzipReader.FileHandler;
@@ -95,6 +102,32 @@ public class Indexer {
 	 */
 	protected Map<String, String> indexerParam;
 
+	/** Number of threads to index documents with (1 means: index on the calling thread) */
+	protected int numberOfThreads = 1;
+
+	/** Maximum number of documents read into memory but not yet indexed (parallel indexing only) */
+	protected int maxQueueSize;
+
+	/** The worker threads (parallel indexing only; created when the first document is queued) */
+	private ExecutorService workers;
+
+	/** Free places in the queue of documents waiting to be indexed (parallel indexing only) */
+	private Semaphore queuePlaces;
+
+	/** Number of documents waiting to be indexed (parallel indexing only) */
+	private int queueSize = 0;
+
+	/** The first fatal error that occurred in one of the worker threads, if any */
+	private Exception workerException = null;
+
+	/** Number of Lucene documents added by each thread (to detect files we couldn't index) */
+	private ThreadLocal<int[]> docsAddedByThread = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
 	/** If an error occurs (e.g. an XML parse error), should we
 	 *  try to continue indexing, or abort?
 	 *  @param b if true, continue; if false, abort
@@ -147,6 +180,49 @@ public class Indexer {
 		this.recurseSubdirs = recurseSubdirs;
 	}
 
+	/**
+	 * Set the number of threads to index with.
+	 *
+	 * If more than one, the calling thread reads the input files (including archives)
+	 * and queues the documents; the worker threads parse and index them. The
+	 * documents waiting in the queue are kept in memory, so the queue is bounded
+	 * (by default, to twice the number of threads).
+	 *
+	 * Parallel indexing requires the DocIndexer class to be thread-safe in the sense that
+	 * different instances don't share any state; the default DocIndexers are.
+	 *
+	 * NOTE: must be called before indexing starts. When indexing in parallel, setMaxDocs()
+	 * may be overshot by the number of documents that were already queued, and
+	 * documents are not stored in the content store in chunks.
+	 *
+	 * @param numberOfThreads number of threads (1 means: index on the calling thread)
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		setNumberOfThreads(numberOfThreads, numberOfThreads * 2);
+	}
+
+	/**
+	 * Set the number of threads to index with.
+	 *
+	 * @param numberOfThreads number of threads (1 means: index on the calling thread)
+	 * @param maxQueueSize maximum number of documents read into memory but not yet indexed
+	 * @see #setNumberOfThreads(int)
+	 */
+	public synchronized void setNumberOfThreads(int numberOfThreads, int maxQueueSize) {
+		if (workers != null)
+			throw new RuntimeException("Cannot change number of threads after indexing has started");
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+		this.maxQueueSize = Math.max(1, maxQueueSize);
+	}
+
+	/**
+	 * Are we indexing documents on multiple threads?
+	 * @return true if we are, false if documents are indexed on the calling thread
+	 */
+	public boolean isParallel() {
+		return numberOfThreads > 1;
+	}
+
 	/**
 	 * Construct Indexer
 	 *
@@ -229,6 +305,52 @@ public class Indexer {
 		this.maxDocs = maxDocs;
 	}
 
+	/**
+	 * Optimize the index.
+	 *
+	 * Merges the Lucene index into a single segment and stores the forward index and
+	 * content store documents in the resulting document order (see Searcher.optimize()).
+	 * Call this after adding all documents, before closing the Indexer. Waits for the
+	 * worker threads to index the queued documents first.
+	 */
+	public void optimize() {
+		waitForWorkers();
+
+		// Don't optimize an index that's missing documents because of an indexing error
+		if (workerException != null) {
+			Exception e = workerException;
+			workerException = null;
+			throw ExUtil.wrapRuntimeException(e);
+		}
+
+		getListener().optimizeStart();
+		searcher.optimize();
+		getListener().optimizeEnd();
+	}
+
+	/**
+	 * Wait for the worker threads to index the queued documents.
+	 *
+	 * Afterwards, new worker threads are started if more documents are added.
+	 */
+	private void waitForWorkers() {
+		ExecutorService pool;
+		synchronized (this) {
+			pool = workers;
+			workers = null;
+		}
+		if (pool != null) {
+			pool.shutdown();
+			try {
+				while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+					// keep waiting
+				}
+			} catch (InterruptedException e) {
+				throw ExUtil.wrapRuntimeException(e);
+			}
+		}
+	}
+
 	/**
 	 * Close the index
 	 *
@@ -237,6 +359,9 @@ public class Indexer {
 	 */
 	public void close() throws CorruptIndexException, IOException {
 
+		// Wait for the worker threads to index the queued documents
+		waitForWorkers();
+
 		// Signal to the listener that we're done indexing and closing the index (which might take a
 		// while)
 		getListener().indexEnd();
@@ -247,6 +372,13 @@ public class Indexer {
 		// Signal that we're completely done now
 		getListener().closeEnd();
 		getListener().indexerClosed();
+
+		// Don't lose an error that occurred while indexing the last queued documents
+		if (workerException != null) {
+			Exception e = workerException;
+			workerException = null;
+			throw ExUtil.wrapRuntimeException(e);
+		}
 	}
 
 	/**
@@ -283,9 +415,25 @@ public class Indexer {
 	 */
 	public void add(Document document) throws CorruptIndexException, IOException {
 		searcher.getWriter().addDocument(document);
+		docsAddedByThread.get()[0]++;
 		getListener().luceneDocumentAdded();
 	}
 
+	/**
+	 * Get a forward index to add to.
+	 *
+	 * (Searcher opens forward indices lazily; we make sure only one thread does so)
+	 *
+	 * @param fieldName the forward index field
+	 * @return the forward index
+	 */
+	private synchronized ForwardIndex getForwardIndex(String fieldName) {
+		ForwardIndex forwardIndex = searcher.getForwardIndex(fieldName);
+		if (forwardIndex == null)
+			throw new RuntimeException("No forward index for field " + fieldName);
+		return forwardIndex;
+	}
+
 	/**
 	 * Add a list of tokens to a forward index.
 	 *
@@ -294,11 +442,7 @@ public class Indexer {
 	 * @return the id assigned to the content
 	 */
 	public int addToForwardIndex(String fieldName, List<String> tokens) {
-		ForwardIndex forwardIndex = searcher.getForwardIndex(fieldName);
-		if (forwardIndex == null)
-			throw new RuntimeException("No forward index for field " + fieldName);
-
-		return forwardIndex.addDocument(tokens);
+		return getForwardIndex(fieldName).addDocument(tokens);
 	}
 
 	/**
@@ -321,11 +465,27 @@ public class Indexer {
 	 * @return the id assigned to the content
 	 */
 	public int addToForwardIndex(String fieldName, List<String> tokens, List<Integer> posIncr) {
-		ForwardIndex forwardIndex = searcher.getForwardIndex(fieldName);
-		if (forwardIndex == null)
-			throw new RuntimeException("No forward index for field " + fieldName);
+		return getForwardIndex(fieldName).addDocument(tokens, posIncr);
+	}
+
+	/**
+	 * Add the character offsets of the tokens in a complex field to its
+	 * character offsets index.
+	 *
+	 * @param fieldName the complex field
+	 * @param startChars the start offset of each token
+	 * @param endChars the end offset of each token
+	 * @return the id assigned to the offsets
+	 */
+	public int addToCharOffsetsIndex(String fieldName, List<Integer> startChars, List<Integer> endChars) {
+		CharOffsetsIndex charOffsetsIndex;
+		synchronized (this) {
+			charOffsetsIndex = searcher.getCharOffsetsIndex(fieldName);
+		}
+		if (charOffsetsIndex == null)
+			throw new RuntimeException("No character offsets index for field " + fieldName);
 
-		return forwardIndex.addDocument(tokens, posIncr);
+		return charOffsetsIndex.addDocument(startChars, endChars);
 	}
 
 	/**
@@ -339,15 +499,100 @@ public class Indexer {
 	 * @throws Exception
 	 */
 	public void index(String documentName, Reader reader) throws Exception {
+		if (isParallel()) {
+			queue(documentName, reader);
+			return;
+		}
+		indexDocument(documentName, reader);
+	}
+
+	/**
+	 * Read a document into memory and queue it for indexing by one of the worker threads.
+	 *
+	 * Blocks if the queue is full.
+	 *
+	 * @param documentName name of the document
+	 * @param reader where to read the document from
+	 * @throws Exception if a worker thread had failed (and we shouldn't continue after errors)
+	 */
+	private void queue(final String documentName, Reader reader) throws Exception {
+		// Read the document here: the reader may be an archive entry, which is only
+		// valid until we move on to the next entry.
+		StringBuilder b = new StringBuilder();
+		char[] buffer = new char[4096];
+		int n;
+		while ((n = reader.read(buffer)) >= 0) {
+			b.append(buffer, 0, n);
+		}
+		final String content = b.toString();
+
+		synchronized (this) {
+			throwWorkerException();
+			if (workers == null) {
+				workers = Executors.newFixedThreadPool(numberOfThreads);
+				queuePlaces = new Semaphore(maxQueueSize);
+			}
+		}
+		queuePlaces.acquire();
+		queueSizeChanged(1);
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					queueSizeChanged(-1);
+					indexDocument(documentName, new StringReader(content));
+				} catch (Exception e) {
+					// Only thrown if we shouldn't continue after errors
+					synchronized (Indexer.this) {
+						if (workerException == null)
+							workerException = e;
+					}
+				} finally {
+					queuePlaces.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Update the number of documents waiting in the queue and report it to the listener.
+	 * @param delta number of documents added to (or, if negative, removed from) the queue
+	 */
+	private synchronized void queueSizeChanged(int delta) {
+		queueSize += delta;
+		getListener().queueSize(queueSize);
+	}
+
+	/**
+	 * If a worker thread failed with an error, throw it now.
+	 *
+	 * @throws Exception the error that occurred in the worker thread
+	 */
+	private synchronized void throwWorkerException() throws Exception {
+		if (workerException != null) {
+			Exception e = workerException;
+			workerException = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Index a document from a Reader on the current thread.
+	 *
+	 * @param documentName name of the document
+	 * @param reader where to index from
+	 * @throws Exception
+	 */
+	private void indexDocument(String documentName, Reader reader) throws Exception {
 		try {
 			getListener().fileStarted(documentName);
-			int docsDoneBefore = searcher.getWriter().numDocs();
+			int docsDoneBefore = docsAddedByThread.get()[0];
 
 			DocIndexer docIndexer = createDocIndexer(documentName, reader);
 
 			docIndexer.index();
 			getListener().fileDone(documentName);
-			int docsDoneAfter = searcher.getWriter().numDocs();
+			int docsDoneAfter = docsAddedByThread.get()[0];
 			if (docsDoneAfter == docsDoneBefore) {
 				System.err.println("*** Warning, couldn't index " + documentName + " ; wrong format?");
 			}
@@ -730,6 +975,8 @@ public class Indexer {
 	 * @return true if we should continue, false if not
 	 */
 	public synchronized boolean continueIndexing() {
+		if (workerException != null)
+			return false;
 		if (maxDocs >= 0) {
 			return docsToDoLeft() > 0;
 		}
@@ -758,7 +1005,7 @@ public class Indexer {
 	 * 2. Sort index added to forward index; multiple forward indexes possible
 	 */
 
-	public ContentStore getContentStore(String fieldName) {
+	public synchronized ContentStore getContentStore(String fieldName) {
 		return searcher.getContentStore(fieldName);
 	}
 
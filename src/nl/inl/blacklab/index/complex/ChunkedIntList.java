@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.index.complex;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A list of ints, stored in chunks of primitive arrays.
+ *
+ * Used to buffer the tokens of a document while indexing. Compared to an
+ * ArrayList&lt;Integer&gt;, this uses 4 bytes per value instead of a reference plus
+ * (usually) an Integer object, and never copies all values to grow, which matters
+ * for documents with millions of tokens.
+ *
+ * Use addInt() and getInt() to avoid boxing. Through the List interface, the list is
+ * read-only.
+ */
+class ChunkedIntList extends AbstractList<Integer> implements RandomAccess {
+
+	/** log2 of the chunk size */
+	private static final int CHUNK_SHIFT = 14;
+
+	/** Number of values per chunk (except the first chunk, which grows up to this size) */
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	/** For finding the index within a chunk */
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** Initial size of the first chunk */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** The chunks */
+	private int[][] chunks = new int[4][];
+
+	/** Number of values in the list */
+	private int size = 0;
+
+	/**
+	 * Get the values of a list as a ChunkedIntList.
+	 *
+	 * @param list the list
+	 * @return the list itself if it is a ChunkedIntList, otherwise a copy
+	 */
+	static ChunkedIntList from(List<Integer> list) {
+		if (list instanceof ChunkedIntList)
+			return (ChunkedIntList) list;
+		ChunkedIntList result = new ChunkedIntList();
+		for (Integer value: list) {
+			result.addInt(value);
+		}
+		return result;
+	}
+
+	/**
+	 * Add a value at the end of the list.
+	 * @param value the value to add
+	 */
+	public void addInt(int value) {
+		int chunk = size >> CHUNK_SHIFT;
+		if (chunk == chunks.length)
+			chunks = Arrays.copyOf(chunks, chunks.length * 2);
+		int[] values = chunks[chunk];
+		int index = size & CHUNK_MASK;
+		if (values == null) {
+			values = chunks[chunk] = new int[chunk == 0 ? INITIAL_CAPACITY : CHUNK_SIZE];
+		} else if (index == values.length) {
+			// Grow the first chunk (small documents don't need a whole chunk)
+			values = chunks[chunk] = Arrays.copyOf(values, Math.min(values.length * 2, CHUNK_SIZE));
+		}
+		values[index] = value;
+		size++;
+	}
+
+	/**
+	 * Get a value.
+	 * @param index the index of the value
+	 * @return the value
+	 */
+	public int getInt(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("" + index);
+		return chunks[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+	}
+
+	/**
+	 * Change a value.
+	 * @param index the index of the value
+	 * @param value the new value
+	 */
+	public void setInt(int index, int value) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("" + index);
+		chunks[index >> CHUNK_SHIFT][index & CHUNK_MASK] = value;
+	}
+
+	@Override
+	public Integer get(int index) {
+		return getInt(index);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all values, so the list can be reused for the next document.
+	 *
+	 * Keeps the first chunk, but releases the others, so the memory
+	 * used for one large document is not kept for all following documents.
+	 */
+	void reset() {
+		for (int i = 1; i < chunks.length; i++) {
+			chunks[i] = null;
+		}
+		size = 0;
+	}
+
+}
@@ -15,7 +15,6 @@
  *******************************************************************************/
 package nl.inl.blacklab.index.complex;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -52,9 +51,11 @@ public class ComplexField {
 
 	private Map<String, ComplexFieldProperty> properties = new HashMap<String, ComplexFieldProperty>();
 
-	private List<Integer> start = new ArrayList<Integer>();
+	/** Start character offset of each token */
+	private ChunkedIntList start = new ChunkedIntList();
 
-	private List<Integer> end = new ArrayList<Integer>();
+	/** End character offset of each token */
+	private ChunkedIntList end = new ChunkedIntList();
 
 	private String fieldName;
 
@@ -149,11 +150,25 @@ public class ComplexField {
 	}
 
 	public void addStartChar(int startChar) {
-		start.add(startChar);
+		start.addInt(startChar);
 	}
 
 	public void addEndChar(int endChar) {
-		end.add(endChar);
+		end.addInt(endChar);
+	}
+
+	/**
+	 * @return the start character offset of each token (read-only)
+	 */
+	public List<Integer> getStartChars() {
+		return start;
+	}
+
+	/**
+	 * @return the end character offset of each token (read-only)
+	 */
+	public List<Integer> getEndChars() {
+		return end;
 	}
 
 	public void addValue(String value, int posIncr) {
@@ -181,8 +196,8 @@ public class ComplexField {
 	}
 
 	public void clear() {
-		start.clear();
-		end.clear();
+		start.reset();
+		end.reset();
 		for (ComplexFieldProperty p : properties.values()) {
 			p.clear();
 		}
@@ -15,8 +15,8 @@
  *******************************************************************************/
 package nl.inl.blacklab.index.complex;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,13 +50,38 @@ public class ComplexFieldProperty {
 	protected boolean includeOffsets;
 
 	/**
-	 *  Term values for this property.
+	 * The distinct term values in the current document, by local term id.
 	 */
-	protected List<String> values = new ArrayList<String>();
+	private List<String> terms = new ArrayList<String>();
+
+	/**
+	 * Local term id for each distinct value in the current document.
+	 * To keep memory usage down, we only store 1 copy of each string value,
+	 * and store the tokens as term ids.
+	 */
+	private Map<String, Integer> termIds = new HashMap<String, Integer>();
+
+	/**
+	 *  Term values for this property, as local term ids.
+	 */
+	private ChunkedIntList values = new ChunkedIntList();
 
 	/** Token position increments. This allows us to index multiple terms at a single token position (just
 	 *  set the token increments of the additional tokens to 0). */
-	protected List<Integer> increments = new ArrayList<Integer>();
+	private ChunkedIntList increments = new ChunkedIntList();
+
+	/** The term values, looked up from the term ids when read */
+	private List<String> valuesView = new AbstractList<String>() {
+		@Override
+		public String get(int index) {
+			return terms.get(values.getInt(index));
+		}
+
+		@Override
+		public int size() {
+			return values.size();
+		}
+	};
 
 	/** Position of the last value added
 	 */
@@ -77,9 +102,6 @@ public class ComplexFieldProperty {
 	/** Does this property get its own forward index? */
 	private boolean hasForwardIndex = true;
 
-	/** To keep memory usage down, we make sure we only store 1 copy of each string value */
-	private Map<String, String> storedValues = new HashMap<String, String>();
-
 	/**
 	 * Construct a ComplexFieldProperty object with the default alternative
 	 * @param name property name
@@ -143,9 +165,9 @@ public class ComplexFieldProperty {
 	TokenStream getTokenStream(String altName, List<Integer> startChars, List<Integer> endChars) {
 		TokenStream ts;
 		if (includeOffsets)
-			ts = new TokenStreamWithOffsets(values, increments, startChars, endChars);
+			ts = new TokenStreamWithOffsets(valuesView, increments, startChars, endChars);
 		else
-			ts = new TokenStreamFromList(values, increments);
+			ts = new TokenStreamFromList(valuesView, increments);
 		TokenFilterAdder filterAdder = alternatives.get(altName);
 		if (filterAdder != null)
 			return filterAdder.addFilters(ts);
@@ -171,16 +193,33 @@ public class ComplexFieldProperty {
 		}
 	}
 
+	/**
+	 * Set whether to store character offsets in the term vector of the main alternative.
+	 *
+	 * Not needed if the offsets are stored in a character offsets index instead.
+	 *
+	 * @param includeOffsets whether to include character offsets in the main alternative
+	 */
+	public void setIncludeOffsets(boolean includeOffsets) {
+		this.includeOffsets = includeOffsets;
+	}
+
 	public void addAlternative(String altName, TokenFilterAdder filterAdder) {
 		alternatives.put(altName, filterAdder);
 	}
 
+	/**
+	 * @return the values added so far (read-only; strings are looked up when read)
+	 */
 	public List<String> getValues() {
-		return Collections.unmodifiableList(values);
+		return valuesView;
 	}
 
+	/**
+	 * @return the position increments of the values added so far (read-only)
+	 */
 	public List<Integer> getPositionIncrements() {
-		return Collections.unmodifiableList(increments);
+		return increments;
 	}
 
 	public int lastValuePosition() {
@@ -201,10 +240,11 @@ public class ComplexFieldProperty {
 
 	public void addValue(String value, int increment) {
 		// Make sure we don't keep duplicates of strings in memory, but re-use earlier instances.
-		String storedValue = storedValues.get(value);
-		if (storedValue == null) {
-			storedValues.put(value, value);
-			storedValue = value;
+		Integer termId = termIds.get(value);
+		if (termId == null) {
+			termId = terms.size();
+			termIds.put(value, termId);
+			terms.add(value);
 		}
 
 		// Special case: if previous value was the empty string and position increment is 0,
@@ -213,26 +253,27 @@ public class ComplexFieldProperty {
 		// property), while still being able to add a value to this position later (for example,
 		// when we encounter an XML close tag.
 		int lastIndex = values.size() - 1;
-		if (lastIndex >= 0 && values.get(lastIndex).length() == 0 && increment == 0) {
+		if (lastIndex >= 0 && terms.get(values.getInt(lastIndex)).length() == 0 && increment == 0) {
 			// Change the last value but don't change the increment.
-			values.set(lastIndex, storedValue);
+			values.setInt(lastIndex, termId);
 			return;
 		}
 
-		values.add(storedValue);
-		increments.add(increment);
+		values.addInt(termId);
+		increments.addInt(increment);
 		position += increment; // keep track of position of last token
 
 	}
 
 	public void clear() {
-		values.clear();
-		increments.clear();
+		values.reset();
+		increments.reset();
 		position = -1;
 
 		// In theory, we don't need to clear the cached values between documents, but
 		// for large data sets, this would keep getting larger and larger, so we do
 		// it anyway.
-		storedValues.clear();
+		terms.clear();
+		termIds.clear();
 	}
 }
@@ -39,6 +39,8 @@ public class ComplexFieldUtil {
 
 	private static final String LENGTH_TOKENS_BOOKKEEP_NAME = "length_tokens";
 
+	private static final String CHAR_OFFSETS_ID_BOOKKEEP_NAME = "coid";
+
 	private static final String DEFAULT_MAIN_PROP_NAME = "word";
 
 	public static final String SENSITIVE_ALT_NAME = "s";
@@ -114,13 +116,15 @@ public class ComplexFieldUtil {
 	private final static List<String> BOOKKEEPING_SUBFIELDS = Arrays.asList(
 		CONTENT_ID_BOOKKEEP_NAME,
 		FORWARD_INDEX_ID_BOOKKEEP_NAME,
-		LENGTH_TOKENS_BOOKKEEP_NAME
+		LENGTH_TOKENS_BOOKKEEP_NAME,
+		CHAR_OFFSETS_ID_BOOKKEEP_NAME
 	);
 
 	public enum BookkeepFieldType {
 		CONTENT_ID,
 		FORWARD_INDEX_ID,
-		LENGTH_TOKENS
+		LENGTH_TOKENS,
+		CHAR_OFFSETS_ID
 	}
 
 	public static boolean isBookkeepingSubfield(String bookkeepName) {
@@ -135,6 +139,8 @@ public class ComplexFieldUtil {
 			return BookkeepFieldType.FORWARD_INDEX_ID;
 		case 2:
 			return BookkeepFieldType.LENGTH_TOKENS;
+		case 3:
+			return BookkeepFieldType.CHAR_OFFSETS_ID;
 		}
 		throw new RuntimeException();
 	}
@@ -152,6 +158,10 @@ public class ComplexFieldUtil {
 		return forwardIndexIdField(propertyField(fieldName, propName));
 	}
 
+	public static String charOffsetsIdField(String fieldName) {
+		return bookkeepingField(fieldName, CHAR_OFFSETS_ID_BOOKKEEP_NAME);
+	}
+
 	public static String lengthTokensField(String fieldName) {
 		return bookkeepingField(fieldName, LENGTH_TOKENS_BOOKKEEP_NAME);
 	}
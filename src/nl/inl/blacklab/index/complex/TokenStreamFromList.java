@@ -21,6 +21,7 @@ package nl.inl.blacklab.index.complex;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -29,15 +30,18 @@ import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 /**
  * Takes an Iterable<String> and iterates through it as a TokenStream.
  *
- * The Strings are taken as terms, and the position increment is always 1.
+ * The Strings are taken as terms, with the specified position increments.
  */
 class TokenStreamFromList extends TokenStream {
 
 	/** Iterator over the terms */
 	protected Iterator<String> iterator;
 
-	/** Iterator over the position increments */
-	private Iterator<Integer> incrementIt;
+	/** The position increments */
+	private ChunkedIntList increments;
+
+	/** Index of the next token */
+	private int index = 0;
 
 	/**
 	 * Term text of the current token
@@ -49,14 +53,14 @@ class TokenStreamFromList extends TokenStream {
 	 */
 	protected PositionIncrementAttribute positionIncrementAttr;
 
-	public TokenStreamFromList(Iterable<String> tokens, Iterable<Integer> increments) {
+	public TokenStreamFromList(Iterable<String> tokens, List<Integer> increments) {
 		clearAttributes();
 		termAttr = addAttribute(CharTermAttribute.class);
 		positionIncrementAttr = addAttribute(PositionIncrementAttribute.class);
 		positionIncrementAttr.setPositionIncrement(1);
 
 		iterator = tokens.iterator();
-		incrementIt = increments.iterator();
+		this.increments = ChunkedIntList.from(increments);
 	}
 
 	@Override
@@ -64,8 +68,9 @@ class TokenStreamFromList extends TokenStream {
 		// Capture token contents
 		if (iterator.hasNext()) {
 			String word = iterator.next();
-			termAttr.copyBuffer(word.toCharArray(), 0, word.length());
-			positionIncrementAttr.setPositionIncrement(incrementIt.next());
+			termAttr.setEmpty().append(word);
+			positionIncrementAttr.setPositionIncrement(increments.getInt(index));
+			index++;
 			return true;
 		}
 		return false;
@@ -51,11 +51,14 @@ class TokenStreamWithOffsets extends TokenStream {
 
 	protected Iterator<String> iterator;
 
-	protected Iterator<Integer> incrementIt;
+	protected ChunkedIntList increments;
 
-	private Iterator<Integer> startCharIt;
+	private ChunkedIntList startChar;
 
-	private Iterator<Integer> endCharIt;
+	private ChunkedIntList endChar;
+
+	/** Index of the next token */
+	private int index = 0;
 
 	public TokenStreamWithOffsets(List<String> tokens, List<Integer> increments, List<Integer> startChar,
 			List<Integer> endChar) {
@@ -66,9 +69,9 @@ class TokenStreamWithOffsets extends TokenStream {
 		positionIncrementAttr.setPositionIncrement(1);
 
 		iterator = tokens.iterator();
-		incrementIt = increments.iterator();
-		startCharIt = startChar.iterator();
-		endCharIt = endChar.iterator();
+		this.increments = ChunkedIntList.from(increments);
+		this.startChar = ChunkedIntList.from(startChar);
+		this.endChar = ChunkedIntList.from(endChar);
 	}
 
 	@Override
@@ -78,9 +81,10 @@ class TokenStreamWithOffsets extends TokenStream {
 			String term = iterator.next();
 			if (term == null)
 				System.err.println("TERM==NULL");
-			termAttr.copyBuffer(term.toCharArray(), 0, term.length());
-			positionIncrementAttr.setPositionIncrement(incrementIt.next());
-			offsetAttr.setOffset(startCharIt.next(), endCharIt.next());
+			termAttr.setEmpty().append(term);
+			positionIncrementAttr.setPositionIncrement(increments.getInt(index));
+			offsetAttr.setOffset(startChar.getInt(index), endChar.getInt(index));
+			index++;
 			return true;
 		}
 		return false;
@@ -15,11 +15,15 @@
  *******************************************************************************/
 package nl.inl.blacklab.perdocument;
 
+import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.search.StoredFieldColumn;
 import nl.inl.blacklab.search.grouping.HitPropValueDecade;
 
 /**
  * For grouping DocResult objects by decade based on a
  * stored field containing a year.
+ *
+ * Compares documents using the Searcher's StoredFieldColumn for the field, if available.
  */
 public class DocPropertyDecade extends DocProperty {
 	private String fieldName;
@@ -44,6 +48,14 @@ public class DocPropertyDecade extends DocProperty {
 	 */
 	@Override
 	public int compare(DocResult a, DocResult b) {
+		Searcher searcher = a.getSearcher();
+		if (searcher != null) {
+			// Compare the decade ordinals (in sort order, missing year last)
+			StoredFieldColumn column = searcher.getStoredFieldColumn(fieldName);
+			int oa = column.getDecadeOrdinal(a.getDocId()), ob = column.getDecadeOrdinal(b.getDocId());
+			return oa < ob ? -1 : (oa == ob ? 0 : 1);
+		}
+
 		String strYearA = a.getDocument().get(fieldName);
 		if (strYearA == null)
 			strYearA = "";
@@ -54,7 +66,7 @@ public class DocPropertyDecade extends DocProperty {
 			return strYearB.length() == 0 ? 0 : 1;
 		if (strYearB.length() == 0) // sort missing year at the end
 			return -1;
-		int year1 = Integer.parseInt(strYearB);
+		int year1 = Integer.parseInt(strYearA);
 		year1 -= year1 % 10;
 		int year2 = Integer.parseInt(strYearB);
 		year2 -= year2 % 10;
@@ -15,11 +15,15 @@
  *******************************************************************************/
 package nl.inl.blacklab.perdocument;
 
+import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.search.StoredFieldColumn;
 import nl.inl.blacklab.search.grouping.HitPropValueString;
 
 /**
  * For grouping DocResult objects by the value of a stored field in the Lucene documents. The field
  * name is given when instantiating this class, and might be "author", "year", and such.
+ *
+ * Compares documents using the Searcher's StoredFieldColumn for the field, if available.
  */
 public class DocPropertyStoredField extends DocProperty {
 	private String fieldName;
@@ -47,6 +51,14 @@ public class DocPropertyStoredField extends DocProperty {
 	 */
 	@Override
 	public int compare(DocResult a, DocResult b) {
+		Searcher searcher = a.getSearcher();
+		if (searcher != null) {
+			// Compare the ordinals (in sort order, empty values last)
+			StoredFieldColumn column = searcher.getStoredFieldColumn(fieldName);
+			int oa = column.getOrdinal(a.getDocId()), ob = column.getOrdinal(b.getDocId());
+			return oa < ob ? -1 : (oa == ob ? 0 : 1);
+		}
+
 		String sa = a.getDocument().get(fieldName);
 		if (sa == null)
 			sa = "";
@@ -96,6 +96,13 @@ public class DocResult {
 		return docId;
 	}
 
+	/**
+	 * @return the searcher this result came from
+	 */
+	public Searcher getSearcher() {
+		return hits.getSearcher();
+	}
+
 	public float getScore() {
 		return score;
 	}
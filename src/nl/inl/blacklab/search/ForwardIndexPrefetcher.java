@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.inl.blacklab.forwardindex.ForwardIndex;
+
+/**
+ * Loads forward index documents into memory ahead of a thread that reads
+ * many documents in a row (see Hits.findContext()).
+ *
+ * The prefetcher stays at most a fixed number of tokens ahead of the reading
+ * thread, so the data isn't evicted again before it is used. If the documents
+ * are stored in document order (see Searcher.optimize()), this results in a
+ * sequential scan of the forward index files.
+ */
+class ForwardIndexPrefetcher implements Runnable {
+
+	/** How many tokens to stay ahead of the reading thread (at most) */
+	private static final long WINDOW_SIZE_TOKENS = 4 * 1024 * 1024;
+
+	/** How long to wait when we're far enough ahead */
+	private static final long PARK_NANOS = 1000000;
+
+	/** The forward indices to load the documents from */
+	private List<ForwardIndex> forwardIndices;
+
+	/** The Lucene document ids that will be read, in order */
+	private int[] docs;
+
+	/** Index in docs of the document the reading thread is at */
+	private volatile int position = 0;
+
+	/**
+	 * Construct the prefetcher.
+	 *
+	 * @param forwardIndices the forward indices to load the documents from
+	 * @param docs the Lucene document ids that will be read, in order
+	 */
+	public ForwardIndexPrefetcher(List<ForwardIndex> forwardIndices, int[] docs) {
+		this.forwardIndices = forwardIndices;
+		this.docs = docs;
+	}
+
+	/**
+	 * Let the prefetcher know where the reading thread is.
+	 *
+	 * @param position index in the docs array of the document the reading
+	 *   thread is reading next
+	 */
+	public void setPosition(int position) {
+		this.position = position;
+	}
+
+	@Override
+	public void run() {
+		ForwardIndex mainForwardIndex = forwardIndices.get(0);
+
+		// Number of tokens in docs before each index, as far as we've gotten
+		long[] tokensBefore = new long[docs.length + 1];
+		int i = 0;
+		while (i < docs.length && !Thread.currentThread().isInterrupted()) {
+			int readerPosition = position;
+			boolean skip = readerPosition > i; // reader passed us; skip to its position
+			if (!skip && tokensBefore[i] - tokensBefore[readerPosition] >= WINDOW_SIZE_TOKENS) {
+				// Far enough ahead; wait for the reader
+				LockSupport.parkNanos(PARK_NANOS);
+				continue;
+			}
+			int docId = docs[i];
+			if (!skip) {
+				for (ForwardIndex fi: forwardIndices) {
+					int fiid = fi.luceneDocIdToFiid(docId);
+					if (fiid >= 0)
+						fi.prefetch(fiid);
+				}
+			}
+			int mainFiid = mainForwardIndex.luceneDocIdToFiid(docId);
+			tokensBefore[i + 1] = tokensBefore[i] + (mainFiid >= 0 ? mainForwardIndex.getDocLength(mainFiid) : 0);
+			i++;
+		}
+	}
+
+}
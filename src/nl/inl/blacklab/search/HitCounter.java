@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import nl.inl.blacklab.search.lucene.SpanQueryFiltered;
+import nl.inl.blacklab.search.lucene.SpanQueryTermUnion;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Counts the hits of a SpanQuery without retrieving them.
+ *
+ * If the query just finds all occurrences of a term (or of any of a number of distinct
+ * terms in the same field, optionally filtered), we don't need the positions at all:
+ * the number of hits in each document is the term frequency, which we read from the
+ * postings (TermDocs). Otherwise, we iterate over the Spans, but only count the hits.
+ *
+ * maxHitsToRetrieve and maxHitsToCount are applied in the same way as when fetching
+ * the hits (see ParallelHitFetcher), so the counts are the same as those of a Hits
+ * object that has read all its hits.
+ */
+class HitCounter {
+
+	/** Number of postings to read at once */
+	private static final int POSTINGS_BATCH_SIZE = 1024;
+
+	/** How often to check if the thread was interrupted when counting hits from the Spans */
+	private static final int CHECK_INTERVAL = 10000;
+
+	private IndexReader reader;
+
+	private SpanQuery query;
+
+	private int maxHitsToRetrieve;
+
+	private int maxHitsToCount;
+
+	private int hitsCounted;
+
+	private int hitsRetrieved;
+
+	private int docsCounted;
+
+	private int docsRetrieved;
+
+	private boolean maxHitsRetrieved;
+
+	private boolean maxHitsCounted;
+
+	private boolean countedFromPostings;
+
+	/**
+	 * Construct the counter.
+	 *
+	 * @param reader the index to search
+	 * @param query the query to count hits for (should already be rewritten)
+	 * @param maxHitsToRetrieve stop retrieving hits after this number (-1 = don't stop retrieving)
+	 * @param maxHitsToCount stop counting hits after this number (-1 = don't stop counting)
+	 */
+	HitCounter(IndexReader reader, SpanQuery query, int maxHitsToRetrieve, int maxHitsToCount) {
+		this.reader = reader;
+		this.query = query;
+		this.maxHitsToRetrieve = maxHitsToRetrieve;
+		this.maxHitsToCount = maxHitsToCount;
+	}
+
+	/**
+	 * Count the hits.
+	 *
+	 * @throws InterruptedException if the thread was interrupted during this operation
+	 */
+	void count() throws InterruptedException {
+		try {
+			// Can we count using the postings?
+			SpanQuery termQuery = query;
+			DocIdSet docIdSet = null;
+			if (termQuery instanceof SpanQueryFiltered) {
+				docIdSet = ((SpanQueryFiltered) termQuery).getDocIdSet();
+				termQuery = ((SpanQueryFiltered) termQuery).getSource();
+			}
+			Set<Term> terms = new HashSet<Term>();
+			if (collectTerms(termQuery, terms)) {
+				countedFromPostings = true;
+				countPostings(terms.toArray(new Term[0]), docIdSet);
+			} else {
+				countSpans();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Collect the terms a query consists of, if it simply matches all occurrences
+	 * of distinct terms in one field.
+	 *
+	 * If the same term occurred twice, each occurrence would be a hit twice, so we
+	 * couldn't use the term frequency.
+	 *
+	 * @param query the query
+	 * @param terms (out) the terms
+	 * @return true if the query can be counted from the postings of these terms
+	 */
+	static boolean collectTerms(SpanQuery query, Set<Term> terms) {
+		if (query instanceof SpanTermQuery) {
+			return addTerm(((SpanTermQuery) query).getTerm(), terms);
+		}
+		if (query instanceof SpanQueryTermUnion) {
+			Set<Term> unionTerms = new HashSet<Term>();
+			query.extractTerms(unionTerms);
+			if (unionTerms.size() != ((SpanQueryTermUnion) query).getTerms().size())
+				return false; // duplicate terms
+			for (Term term: unionTerms) {
+				if (!addTerm(term, terms))
+					return false;
+			}
+			return true;
+		}
+		if (query instanceof SpanOrQuery) {
+			for (SpanQuery clause: ((SpanOrQuery) query).getClauses()) {
+				if (!collectTerms(clause, terms))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add a term to the set, if it is new and in the same field as the others.
+	 *
+	 * @param term the term
+	 * @param terms the terms so far
+	 * @return true if the term was added
+	 */
+	private static boolean addTerm(Term term, Set<Term> terms) {
+		if (!terms.isEmpty() && !terms.iterator().next().field().equals(term.field()))
+			return false;
+		return terms.add(term);
+	}
+
+	/**
+	 * Count hits using the term frequencies in the postings.
+	 *
+	 * @param terms the terms to count
+	 * @param docIdSet documents to count hits in, or null for all documents
+	 * @throws IOException
+	 * @throws InterruptedException if the thread was interrupted during this operation
+	 */
+	private void countPostings(Term[] terms, DocIdSet docIdSet) throws IOException, InterruptedException {
+		FixedBitSet acceptDocs = null;
+		if (docIdSet != null) {
+			acceptDocs = new FixedBitSet(reader.maxDoc());
+			DocIdSetIterator it = docIdSet.iterator();
+			if (it != null)
+				acceptDocs.or(it);
+		}
+		int[] docs = new int[POSTINGS_BATCH_SIZE];
+		int[] freqs = new int[POSTINGS_BATCH_SIZE];
+		Thread currentThread = Thread.currentThread();
+		TermDocs termDocs = reader.termDocs();
+		try {
+			if (terms.length == 1) {
+				// Postings are in document order; count as we go
+				termDocs.seek(terms[0]);
+				while (true) {
+					if (currentThread.isInterrupted())
+						throw new InterruptedException("Thread was interrupted while counting hits");
+					int n = termDocs.read(docs, freqs);
+					if (n == 0)
+						break;
+					for (int i = 0; i < n; i++) {
+						if (acceptDocs != null && !acceptDocs.get(docs[i]))
+							continue;
+						if (!addDocument(freqs[i]))
+							return;
+					}
+				}
+				return;
+			}
+
+			// Add up the frequencies of all terms per document, then count in document order
+			int[] freqPerDoc = new int[reader.maxDoc()];
+			for (Term term: terms) {
+				termDocs.seek(term);
+				while (true) {
+					if (currentThread.isInterrupted())
+						throw new InterruptedException("Thread was interrupted while counting hits");
+					int n = termDocs.read(docs, freqs);
+					if (n == 0)
+						break;
+					for (int i = 0; i < n; i++) {
+						freqPerDoc[docs[i]] += freqs[i];
+					}
+				}
+			}
+			for (int doc = 0; doc < freqPerDoc.length; doc++) {
+				if (freqPerDoc[doc] == 0 || acceptDocs != null && !acceptDocs.get(doc))
+					continue;
+				if (!addDocument(freqPerDoc[doc]))
+					return;
+			}
+		} finally {
+			termDocs.close();
+		}
+	}
+
+	/**
+	 * Count hits by iterating over the Spans, without asking for their positions.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException if the thread was interrupted during this operation
+	 */
+	private void countSpans() throws IOException, InterruptedException {
+		Spans spans = query.getSpans(reader);
+		Thread currentThread = Thread.currentThread();
+		int doc = -1;
+		int length = 0; // hits in the current document
+		int sinceCheck = 0;
+		while (spans.next()) {
+			if (spans.doc() != doc) {
+				if (length > 0 && !addDocument(length))
+					return;
+				doc = spans.doc();
+				length = 0;
+			}
+			length++;
+			if (maxHitsToCount >= 0 && hitsCounted + length >= maxHitsToCount)
+				break; // addDocument() below will mark that we've reached the maximum
+			if (++sinceCheck == CHECK_INTERVAL) {
+				sinceCheck = 0;
+				if (currentThread.isInterrupted())
+					throw new InterruptedException("Thread was interrupted while counting hits");
+			}
+		}
+		if (length > 0)
+			addDocument(length);
+	}
+
+	/**
+	 * Count the hits in a document, applying the limits.
+	 *
+	 * @param length number of hits in the document (at least 1)
+	 * @return false if we've reached the maximum number of hits to count
+	 */
+	private boolean addDocument(int length) {
+		if (maxHitsToCount >= 0 && hitsCounted + length >= maxHitsToCount) {
+			// We'll reach the maximum number of hits to count in this document
+			length = maxHitsToCount - hitsCounted;
+			maxHitsCounted = true;
+		}
+		if (length == 0)
+			return false;
+		hitsCounted += length;
+		docsCounted++;
+
+		int retrieve = length;
+		if (maxHitsToRetrieve >= 0)
+			retrieve = Math.max(0, Math.min(retrieve, maxHitsToRetrieve - hitsRetrieved));
+		hitsRetrieved += retrieve;
+		if (retrieve > 0)
+			docsRetrieved++;
+		if (retrieve < length)
+			maxHitsRetrieved = true;
+		return !maxHitsCounted;
+	}
+
+	/** @return number of hits counted */
+	int getHitsCounted() {
+		return hitsCounted;
+	}
+
+	/** @return number of hits that would be retrieved */
+	int getHitsRetrieved() {
+		return hitsRetrieved;
+	}
+
+	/** @return number of documents counted */
+	int getDocsCounted() {
+		return docsCounted;
+	}
+
+	/** @return number of documents the retrieved hits would be in */
+	int getDocsRetrieved() {
+		return docsRetrieved;
+	}
+
+	/** @return true if not all counted hits would be retrieved because of the maximum */
+	boolean maxHitsRetrieved() {
+		return maxHitsRetrieved;
+	}
+
+	/** @return true if we stopped counting hits because we reached the maximum */
+	boolean maxHitsCounted() {
+		return maxHitsCounted;
+	}
+
+	/** @return true if we counted using the term frequencies, without reading positions */
+	boolean countedFromPostings() {
+		return countedFromPostings;
+	}
+
+}
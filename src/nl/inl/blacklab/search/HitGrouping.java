@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.util.Arrays;
+
+import nl.inl.blacklab.search.grouping.HitProperty;
+import nl.inl.util.ExUtil;
+import nl.inl.util.IntSequenceMap;
+
+/**
+ * Assigns the hits in a HitList to groups, based on the sort keys of a HitProperty.
+ *
+ * Two hits are in the same group if their sort keys are equal (which means the property
+ * considers them equal). Sort keys are hashed directly using an IntSequenceMap, so no
+ * HitPropValue or Hit objects are created per hit.
+ *
+ * Large lists are split into ranges that are grouped in parallel, each with its own map;
+ * the maps are then merged. Groups are numbered in order of their first hit.
+ *
+ * Unless in count-only mode, a copy of the hits is made in which the hits of each group
+ * are together (in their original order), so the groups don't change if the original
+ * hits are sorted later. In count-only mode, only the group sizes are kept.
+ */
+public class HitGrouping {
+
+	/** Below this number of hits per thread, don't bother using more threads */
+	private static final int MIN_HITS_PER_THREAD = 50000;
+
+	/** Groups one range of hits. */
+	private static class RangeGrouper implements Runnable {
+
+		private HitList hits;
+
+		private HitProperty prop;
+
+		private int from, to;
+
+		/** Group ids for the hits in the whole list (written for our range); null in count-only mode */
+		private int[] groupOfHit;
+
+		/** Sort keys of our groups */
+		IntSequenceMap keys = new IntSequenceMap();
+
+		/** Number of hits in each group */
+		int[] size = new int[16];
+
+		/** First hit in each group */
+		int[] firstHit = new int[16];
+
+		RangeGrouper(HitList hits, HitProperty prop, int from, int to, int[] groupOfHit) {
+			this.hits = hits;
+			this.prop = prop;
+			this.from = from;
+			this.to = to;
+			this.groupOfHit = groupOfHit;
+		}
+
+		@Override
+		public void run() {
+			int[] key = new int[16];
+			for (int i = from; i < to; i++) {
+				int length = prop.sortKeyLength(hits, i);
+				if (length > key.length)
+					key = new int[Math.max(length, key.length * 2)];
+				prop.writeSortKey(hits, i, key, 0);
+				int group = keys.put(key, 0, length);
+				if (group == size.length) {
+					size = Arrays.copyOf(size, size.length * 2);
+					firstHit = Arrays.copyOf(firstHit, firstHit.length * 2);
+				}
+				if (size[group] == 0)
+					firstHit[group] = i;
+				size[group]++;
+				if (groupOfHit != null)
+					groupOfHit[i] = group;
+			}
+		}
+	}
+
+	/** Number of groups */
+	private int numberOfGroups;
+
+	/** Number of hits in each group */
+	private int[] groupSize;
+
+	/** Index of the first hit in each group */
+	private int[] firstHit;
+
+	/** Where each group's hits start in groupedHits (null in count-only mode) */
+	private int[] groupStart;
+
+	/** The hits, group after group (null in count-only mode) */
+	private HitList groupedHits;
+
+	/**
+	 * Group the hits.
+	 *
+	 * @param hits the hits to group
+	 * @param prop the property to group on (must support sort keys, and writeSortKey()
+	 *   must be safe to call from multiple threads)
+	 * @param countOnly if true, only count the hits in each group
+	 * @param numberOfThreads maximum number of threads to use
+	 */
+	HitGrouping(HitList hits, HitProperty prop, boolean countOnly, int numberOfThreads) {
+		if (!prop.hasSortKey())
+			throw new UnsupportedOperationException("Sort keys not supported for " + prop.getName());
+		int n = hits.size();
+		int threads = Math.max(1, Math.min(numberOfThreads, n / MIN_HITS_PER_THREAD));
+		int[] groupOfHit = countOnly ? null : new int[n];
+
+		// Group each range of hits
+		RangeGrouper[] ranges = new RangeGrouper[threads];
+		for (int i = 0; i < threads; i++) {
+			int from = (int) ((long) n * i / threads);
+			int to = (int) ((long) n * (i + 1) / threads);
+			ranges[i] = new RangeGrouper(hits, prop, from, to, groupOfHit);
+		}
+		if (threads == 1)
+			ranges[0].run();
+		else
+			runAll(ranges);
+
+		// Merge the groups of the ranges (in order, so groups stay in order of first hit)
+		IntSequenceMap keys = threads == 1 ? ranges[0].keys : new IntSequenceMap();
+		groupSize = new int[16];
+		firstHit = new int[16];
+		int[][] rangeToGlobal = new int[threads][];
+		for (int r = 0; r < threads; r++) {
+			RangeGrouper range = ranges[r];
+			rangeToGlobal[r] = new int[range.keys.size()];
+			for (int g = 0; g < range.keys.size(); g++) {
+				int global = threads == 1 ? g : keys.put(range.keys, g);
+				rangeToGlobal[r][g] = global;
+				if (global >= groupSize.length) {
+					groupSize = Arrays.copyOf(groupSize, Math.max(global + 1, groupSize.length * 2));
+					firstHit = Arrays.copyOf(firstHit, groupSize.length);
+				}
+				if (groupSize[global] == 0)
+					firstHit[global] = range.firstHit[g];
+				groupSize[global] += range.size[g];
+			}
+		}
+		numberOfGroups = keys.size();
+
+		if (!countOnly) {
+			// Put the hits in group order (a counting sort on group id)
+			groupStart = new int[numberOfGroups + 1];
+			for (int g = 0; g < numberOfGroups; g++) {
+				groupStart[g + 1] = groupStart[g] + groupSize[g];
+			}
+			int[] next = Arrays.copyOf(groupStart, numberOfGroups);
+			int[] order = new int[n];
+			for (int r = 0; r < threads; r++) {
+				int[] toGlobal = rangeToGlobal[r];
+				for (int i = ranges[r].from; i < ranges[r].to; i++) {
+					order[next[toGlobal[groupOfHit[i]]]++] = i;
+				}
+			}
+			groupedHits = hits.copyInOrder(order);
+		}
+	}
+
+	private static void runAll(Runnable[] tasks) {
+		Thread[] threads = new Thread[tasks.length];
+		final Throwable[] failure = new Throwable[1];
+		for (int i = 0; i < tasks.length; i++) {
+			final Runnable task = tasks[i];
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			}, "HitGrouping-" + i);
+			threads[i].start();
+		}
+		try {
+			for (Thread thread: threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread thread: threads) {
+				thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while grouping", e);
+		}
+		synchronized (failure) {
+			if (failure[0] != null)
+				throw ExUtil.wrapRuntimeException(failure[0]);
+		}
+	}
+
+	/**
+	 * @return the number of groups
+	 */
+	public int numberOfGroups() {
+		return numberOfGroups;
+	}
+
+	/**
+	 * Get the number of hits in a group.
+	 * @param group the group
+	 * @return the number of hits
+	 */
+	public int groupSize(int group) {
+		return groupSize[group];
+	}
+
+	/**
+	 * Get the index of the first hit in a group.
+	 * @param group the group
+	 * @return the index of the hit
+	 */
+	public int firstHit(int group) {
+		return firstHit[group];
+	}
+
+	/**
+	 * @return true if we only counted the hits in each group
+	 */
+	public boolean isCountOnly() {
+		return groupedHits == null;
+	}
+
+	/**
+	 * Get the hits, in group order.
+	 *
+	 * The hits of group g are at indices groupStart(g) to groupStart(g) + groupSize(g).
+	 * Not available in count-only mode.
+	 *
+	 * @return the hits in group order
+	 */
+	public HitList getGroupedHits() {
+		if (groupedHits == null)
+			throw new UnsupportedOperationException("Hits were only counted");
+		return groupedHits;
+	}
+
+	/**
+	 * Get the index of the first hit of a group in getGroupedHits().
+	 *
+	 * Not available in count-only mode.
+	 *
+	 * @param group the group
+	 * @return the index in getGroupedHits()
+	 */
+	public int groupStart(int group) {
+		if (groupStart == null)
+			throw new UnsupportedOperationException("Hits were only counted");
+		return groupStart[group];
+	}
+
+}
@@ -0,0 +1,592 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.inl.blacklab.search.grouping.HitProperty;
+import nl.inl.util.ParallelIntSort;
+import nl.inl.util.ParallelIntSort.IntComparator;
+
+/**
+ * Memory-efficient, column-oriented list of hits.
+ *
+ * Instead of keeping a separate Hit object (with its own context array) for each hit,
+ * we store the doc, start and end of all hits in chunked int arrays, and the context
+ * of all hits in one shared arena. This saves a lot of object headers and pointers
+ * when dealing with millions of hits, and keeps the garbage collector happy.
+ *
+ * The get() method returns a new Hit object with a copy of the hit's information
+ * (including its context, if any). Modifying that Hit object doesn't change the list;
+ * use set() for that. Code that needs to process many hits should use the
+ * index-based accessors (doc(i), start(i), end(i), contextArray(i), etc.) instead.
+ */
+public class HitList extends AbstractList<Hit> {
+
+	/** Log2 of the size of a full chunk. */
+	private static final int CHUNK_SHIFT = 16;
+
+	/** Size of a full chunk (number of ints) */
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	/** For getting an index inside a chunk */
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** Initial capacity of the first chunk (grows until it reaches CHUNK_SIZE) */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Size of a full context arena chunk (number of ints) */
+	static final int ARENA_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * A growable column of ints, stored in chunks.
+	 *
+	 * The first chunk starts out small and grows until it reaches the full chunk size;
+	 * after that, we just add new full-size chunks, so we never have to reallocate
+	 * and copy huge arrays.
+	 */
+	static class IntColumn {
+
+		int[][] chunks = new int[][] { new int[INITIAL_CAPACITY] };
+
+		int get(int index) {
+			return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+		}
+
+		void set(int index, int value) {
+			chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK] = value;
+		}
+
+		/**
+		 * Make sure we can store at least this many elements.
+		 * @param capacity required capacity
+		 */
+		void ensureCapacity(int capacity) {
+			int[] first = chunks[0];
+			if (first.length < CHUNK_SIZE) {
+				// Still growing the first chunk
+				if (capacity <= first.length)
+					return;
+				int newLength = first.length;
+				while (newLength < capacity && newLength < CHUNK_SIZE)
+					newLength *= 2;
+				int[] newFirst = new int[Math.min(newLength, CHUNK_SIZE)];
+				System.arraycopy(first, 0, newFirst, 0, first.length);
+				chunks[0] = newFirst;
+				if (capacity <= CHUNK_SIZE)
+					return;
+			}
+			int chunksNeeded = (capacity + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+			if (chunksNeeded > chunks.length) {
+				int[][] newChunks = new int[chunksNeeded][];
+				System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+				for (int i = chunks.length; i < chunksNeeded; i++) {
+					newChunks[i] = new int[CHUNK_SIZE];
+				}
+				chunks = newChunks;
+			}
+		}
+	}
+
+	/** Number of hits in the list */
+	private int size = 0;
+
+	/** Documents the hits occur in */
+	private IntColumn docs = new IntColumn();
+
+	/** Start positions of the hits */
+	private IntColumn starts = new IntColumn();
+
+	/** End positions of the hits */
+	private IntColumn ends = new IntColumn();
+
+	/** Per hit, the arena chunk its context is stored in, or -1 if it has no context.
+	 *  (null if no hit has context) */
+	private IntColumn contextChunk = null;
+
+	/** Per hit, where in the arena chunk its context starts */
+	private IntColumn contextOffset;
+
+	/** Per hit, the total length of its context (contextLength times number of contexts) */
+	private IntColumn contextTotalLength;
+
+	/** Per hit, where in the context the hit text starts */
+	private IntColumn contextHitStart;
+
+	/** Per hit, where in the context the right context starts */
+	private IntColumn contextRightStart;
+
+	/** Per hit, how many words one context takes up */
+	private IntColumn contextLength;
+
+	/** The shared context arena: the context of all hits is stored here */
+	private List<int[]> arena = new ArrayList<int[]>();
+
+	/** How much of the last arena chunk has been used */
+	private int arenaUsed = 0;
+
+	/**
+	 * Construct an empty hit list.
+	 */
+	public HitList() {
+		// nothing to do
+	}
+
+	/**
+	 * Construct a hit list containing the specified hits.
+	 *
+	 * Context information in the Hit objects is copied as well.
+	 *
+	 * @param hits the hits to add
+	 */
+	public HitList(List<Hit> hits) {
+		ensureCapacity(hits.size());
+		for (Hit hit: hits) {
+			add(hit);
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		docs.ensureCapacity(capacity);
+		starts.ensureCapacity(capacity);
+		ends.ensureCapacity(capacity);
+		if (contextChunk != null) {
+			contextChunk.ensureCapacity(capacity);
+			contextOffset.ensureCapacity(capacity);
+			contextTotalLength.ensureCapacity(capacity);
+			contextHitStart.ensureCapacity(capacity);
+			contextRightStart.ensureCapacity(capacity);
+			contextLength.ensureCapacity(capacity);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add a hit to the list.
+	 *
+	 * @param doc document the hit occurs in
+	 * @param start start of the hit
+	 * @param end end of the hit
+	 */
+	public void add(int doc, int start, int end) {
+		ensureCapacity(size + 1);
+		docs.set(size, doc);
+		starts.set(size, start);
+		ends.set(size, end);
+		if (contextChunk != null)
+			contextChunk.set(size, -1);
+		size++;
+	}
+
+	/**
+	 * Add a hit to the list.
+	 *
+	 * The hit's information is copied; the Hit object itself is not kept.
+	 *
+	 * @param hit the hit to add
+	 * @return true
+	 */
+	@Override
+	public boolean add(Hit hit) {
+		add(hit.doc, hit.start, hit.end);
+		if (hit.context != null) {
+			int index = size - 1;
+			reserveContext(index, hit.context.length, hit.contextHitStart, hit.contextRightStart, hit.contextLength);
+			System.arraycopy(hit.context, 0, contextArray(index), contextOffset(index), hit.context.length);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the specified hit.
+	 *
+	 * Changing the returned object doesn't change the list.
+	 *
+	 * @param index the hit index
+	 * @return the hit
+	 */
+	@Override
+	public Hit get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("" + index);
+		Hit hit = new Hit(docs.get(index), starts.get(index), ends.get(index));
+		if (hasContext(index)) {
+			int n = contextTotalLength.get(index);
+			hit.context = new int[n];
+			System.arraycopy(contextArray(index), contextOffset(index), hit.context, 0, n);
+			hit.contextHitStart = contextHitStart.get(index);
+			hit.contextRightStart = contextRightStart.get(index);
+			hit.contextLength = contextLength.get(index);
+		}
+		return hit;
+	}
+
+	/**
+	 * Replace a hit in the list.
+	 *
+	 * @param index the hit index
+	 * @param hit the new hit information (will be copied)
+	 * @return the previous hit at this index
+	 */
+	@Override
+	public Hit set(int index, Hit hit) {
+		Hit prev = get(index);
+		docs.set(index, hit.doc);
+		starts.set(index, hit.start);
+		ends.set(index, hit.end);
+		if (hit.context != null) {
+			reserveContext(index, hit.context.length, hit.contextHitStart, hit.contextRightStart, hit.contextLength);
+			System.arraycopy(hit.context, 0, contextArray(index), contextOffset(index), hit.context.length);
+		} else if (contextChunk != null) {
+			contextChunk.set(index, -1);
+		}
+		return prev;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		docs = new IntColumn();
+		starts = new IntColumn();
+		ends = new IntColumn();
+		clearContext();
+	}
+
+	/**
+	 * Get the document a hit occurs in.
+	 * @param index the hit index
+	 * @return the Lucene document id
+	 */
+	public int doc(int index) {
+		return docs.get(index);
+	}
+
+	/**
+	 * Get the start of a hit.
+	 * @param index the hit index
+	 * @return the start of the hit (in word positions)
+	 */
+	public int start(int index) {
+		return starts.get(index);
+	}
+
+	/**
+	 * Get the end of a hit.
+	 * @param index the hit index
+	 * @return the end of the hit (first word position not in the hit)
+	 */
+	public int end(int index) {
+		return ends.get(index);
+	}
+
+	/**
+	 * Remove all context information from the hits.
+	 *
+	 * This frees the context arena.
+	 */
+	public void clearContext() {
+		contextChunk = null;
+		contextOffset = contextTotalLength = contextHitStart = contextRightStart = contextLength = null;
+		arena = new ArrayList<int[]>();
+		arenaUsed = 0;
+	}
+
+	/**
+	 * Reserve space for a hit's context in the arena and set its context information.
+	 *
+	 * The context itself should be written to contextArray(index), starting at
+	 * contextOffset(index), by the caller. If the hit already had context,
+	 * the old context is discarded (but its space in the arena is not reused until
+	 * clearContext() is called).
+	 *
+	 * @param index the hit index
+	 * @param totalLength total length of the context (contextLength times the number of contexts)
+	 * @param hitStart where in the context the hit text starts
+	 * @param rightStart where in the context the right context starts
+	 * @param length how many words one context takes up
+	 */
+	public void reserveContext(int index, int totalLength, int hitStart, int rightStart, int length) {
+		if (contextChunk == null) {
+			// First hit with context; create the context columns
+			contextChunk = new IntColumn();
+			contextOffset = new IntColumn();
+			contextTotalLength = new IntColumn();
+			contextHitStart = new IntColumn();
+			contextRightStart = new IntColumn();
+			contextLength = new IntColumn();
+			ensureCapacity(size);
+			for (int i = 0; i < size; i++) {
+				contextChunk.set(i, -1);
+			}
+		}
+
+		// Find room in the arena
+		int[] current = arena.isEmpty() ? null : arena.get(arena.size() - 1);
+		if (current == null || arenaUsed + totalLength > current.length) {
+			if (current != null && arena.size() == 1 && current.length < ARENA_CHUNK_SIZE
+					&& arenaUsed + totalLength <= ARENA_CHUNK_SIZE) {
+				// Grow the first (small) chunk, so small hit lists don't use a lot of memory
+				int newLength = current.length;
+				while (newLength < arenaUsed + totalLength)
+					newLength *= 2;
+				int[] newChunk = new int[Math.min(newLength, ARENA_CHUNK_SIZE)];
+				System.arraycopy(current, 0, newChunk, 0, arenaUsed);
+				arena.set(0, newChunk);
+			} else {
+				// Start a new chunk (large enough for this context)
+				// (the first chunk starts out small and grows when necessary)
+				int chunkSize = current == null ? INITIAL_CAPACITY * 4 : ARENA_CHUNK_SIZE;
+				arena.add(new int[Math.max(chunkSize, totalLength)]);
+				arenaUsed = 0;
+			}
+		}
+		contextChunk.set(index, arena.size() - 1);
+		contextOffset.set(index, arenaUsed);
+		contextTotalLength.set(index, totalLength);
+		contextHitStart.set(index, hitStart);
+		contextRightStart.set(index, rightStart);
+		contextLength.set(index, length);
+		arenaUsed += totalLength;
+	}
+
+	/**
+	 * Does this hit have context information?
+	 * @param index the hit index
+	 * @return true iff the hit has context
+	 */
+	public boolean hasContext(int index) {
+		return contextChunk != null && contextChunk.get(index) >= 0;
+	}
+
+	/**
+	 * Get the array containing a hit's context.
+	 *
+	 * NOTE: this array is shared with other hits! The context for this hit starts
+	 * at contextOffset(index).
+	 *
+	 * @param index the hit index
+	 * @return the array containing the context
+	 */
+	public int[] contextArray(int index) {
+		return arena.get(contextChunk.get(index));
+	}
+
+	/**
+	 * Get where in contextArray(index) this hit's context starts.
+	 * @param index the hit index
+	 * @return the offset of the context
+	 */
+	public int contextOffset(int index) {
+		return contextOffset.get(index);
+	}
+
+	/**
+	 * Get the total length of this hit's context (contextLength times the number of contexts).
+	 * @param index the hit index
+	 * @return the total context length
+	 */
+	public int contextTotalLength(int index) {
+		return contextTotalLength.get(index);
+	}
+
+	/**
+	 * Get where in the context the hit text starts.
+	 * @param index the hit index
+	 * @return the hit start in the context
+	 */
+	public int contextHitStart(int index) {
+		return contextHitStart.get(index);
+	}
+
+	/**
+	 * Get where in the context the right context starts.
+	 * @param index the hit index
+	 * @return the right context start in the context
+	 */
+	public int contextRightStart(int index) {
+		return contextRightStart.get(index);
+	}
+
+	/**
+	 * Get how many words one context takes up.
+	 * @param index the hit index
+	 * @return the length of one context
+	 */
+	public int contextLength(int index) {
+		return contextLength.get(index);
+	}
+
+	/**
+	 * Sort the hits in this list (single-threaded).
+	 *
+	 * @param sortProp the property to sort on
+	 */
+	public void sort(HitProperty sortProp) {
+		sort(sortProp, 1);
+	}
+
+	/**
+	 * Sort the hits in this list.
+	 *
+	 * Uses a stable merge sort over hit indices, so no Hit objects are instantiated
+	 * (as long as the HitProperty implements the index-based compare method).
+	 *
+	 * If the property supports sort keys, all sort keys are computed first (one pass
+	 * over the hits), and the comparisons only look at those keys. In that case, the sort
+	 * is also done using multiple threads (if there are enough hits).
+	 *
+	 * @param sortProp the property to sort on
+	 * @param numberOfThreads maximum number of threads to use for sorting
+	 */
+	public void sort(final HitProperty sortProp, int numberOfThreads) {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		final int[] keyStart = sortProp.hasSortKey() ? sortKeyOffsets(sortProp) : null;
+		if (keyStart != null) {
+			// Precompute sort keys and compare those
+			final int[] keys = new int[keyStart[size]];
+			for (int i = 0; i < size; i++) {
+				sortProp.writeSortKey(this, i, keys, keyStart[i]);
+			}
+			ParallelIntSort.sort(order, new IntComparator() {
+				@Override
+				public int compare(int a, int b) {
+					// Compare the whole keys: a key may consist of several 0-terminated
+					// keys (see HitPropertyMultiple), so don't stop at the first 0.
+					int pa = keyStart[a], pb = keyStart[b];
+					int ea = keyStart[a + 1], eb = keyStart[b + 1];
+					while (pa < ea && pb < eb) {
+						int ka = keys[pa], kb = keys[pb];
+						if (ka != kb)
+							return ka < kb ? -1 : 1;
+						pa++;
+						pb++;
+					}
+					if (pa < ea)
+						return 1;
+					return pb < eb ? -1 : 0;
+				}
+			}, numberOfThreads);
+		} else {
+			// Compare using the property directly (HitProperty isn't necessarily thread-safe)
+			ParallelIntSort.sort(order, new IntComparator() {
+				@Override
+				public int compare(int a, int b) {
+					return sortProp.compare(HitList.this, a, b);
+				}
+			});
+		}
+		reorder(order);
+	}
+
+	/**
+	 * Determine where each hit's sort key starts in the key array.
+	 *
+	 * @param sortProp the property to get sort keys for
+	 * @return start offsets (one extra element at the end with the total length),
+	 *   or null if the keys wouldn't fit in a single array
+	 */
+	private int[] sortKeyOffsets(HitProperty sortProp) {
+		int[] keyStart = new int[size + 1];
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			keyStart[i] = (int) total;
+			total += sortProp.sortKeyLength(this, i);
+			if (total > Integer.MAX_VALUE - 8)
+				return null;
+		}
+		keyStart[size] = (int) total;
+		return keyStart;
+	}
+
+	/**
+	 * Reverse the order of the hits in this list.
+	 */
+	public void reverse() {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = size - 1 - i;
+		}
+		reorder(order);
+	}
+
+	/**
+	 * Put the hits in a new order.
+	 *
+	 * The context arena itself is not rearranged; only the hits' references into it.
+	 *
+	 * @param order for each new position, the old index of the hit that should go there
+	 */
+	void reorder(int[] order) {
+		docs = reorderColumn(docs, order);
+		starts = reorderColumn(starts, order);
+		ends = reorderColumn(ends, order);
+		if (contextChunk != null) {
+			contextChunk = reorderColumn(contextChunk, order);
+			contextOffset = reorderColumn(contextOffset, order);
+			contextTotalLength = reorderColumn(contextTotalLength, order);
+			contextHitStart = reorderColumn(contextHitStart, order);
+			contextRightStart = reorderColumn(contextRightStart, order);
+			contextLength = reorderColumn(contextLength, order);
+		}
+	}
+
+	/**
+	 * Create a copy of (some of) the hits in this list, in a new order.
+	 *
+	 * The copy shares the context arena with this list (context in the arena is
+	 * never overwritten), so the copy is cheap compared to copying Hit objects.
+	 *
+	 * @param order for each position in the copy, the index of the hit that should go there
+	 * @return the copy
+	 */
+	HitList copyInOrder(int[] order) {
+		HitList copy = new HitList();
+		copy.size = order.length;
+		copy.docs = reorderColumn(docs, order);
+		copy.starts = reorderColumn(starts, order);
+		copy.ends = reorderColumn(ends, order);
+		if (contextChunk != null) {
+			copy.contextChunk = reorderColumn(contextChunk, order);
+			copy.contextOffset = reorderColumn(contextOffset, order);
+			copy.contextTotalLength = reorderColumn(contextTotalLength, order);
+			copy.contextHitStart = reorderColumn(contextHitStart, order);
+			copy.contextRightStart = reorderColumn(contextRightStart, order);
+			copy.contextLength = reorderColumn(contextLength, order);
+			copy.arena = new ArrayList<int[]>(arena);
+			copy.arenaUsed = ARENA_CHUNK_SIZE; // never add context to the last chunk we share
+		}
+		return copy;
+	}
+
+	private IntColumn reorderColumn(IntColumn column, int[] order) {
+		IntColumn result = new IntColumn();
+		result.ensureCapacity(order.length);
+		for (int i = 0; i < order.length; i++) {
+			result.set(i, column.get(order[i]));
+		}
+		return result;
+	}
+
+}
@@ -32,6 +32,7 @@ import nl.inl.blacklab.search.grouping.HitProperty;
 import nl.inl.blacklab.search.grouping.HitPropertyMultiple;
 import nl.inl.blacklab.search.lucene.BLSpans;
 import nl.inl.blacklab.search.lucene.BLSpansWrapper;
+import nl.inl.util.ExUtil;
 import nl.inl.util.StringUtil;
 
 import org.apache.log4j.Logger;
@@ -48,9 +49,9 @@ public class Hits implements Iterable<Hit> {
 	protected static final Logger logger = Logger.getLogger(Hits.class);
 
 	/**
-	 * The hits.
+	 * The hits (stored in a column-oriented way, so we don't need a Hit object per hit).
 	 */
-	protected List<Hit> hits;
+	protected HitList hits;
 
 	/**
 	 * The concordances, if they have been retrieved.
@@ -85,7 +86,7 @@ public class Hits implements Iterable<Hit> {
 	/**
 	 * Did we completely read our Spans object?
 	 */
-	protected boolean sourceSpansFullyRead = true;
+	protected volatile boolean sourceSpansFullyRead = true;
 
 	/**
 	 * Our Spans object, which may not have been fully read yet.
@@ -104,6 +105,11 @@ public class Hits implements Iterable<Hit> {
 	 */
 	private static int defaultMaxHitsToCount = -1;
 
+	/**
+	 * Maximum number of threads to use when sorting or grouping hits.
+	 */
+	private static int sortThreads = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * Stop retrieving hits after this number.
 	 * (-1 = don't stop retrieving)
@@ -120,35 +126,104 @@ public class Hits implements Iterable<Hit> {
 	 * If true, we've stopped retrieving hits because there are more than
 	 * the maximum we've set.
 	 */
-	private boolean maxHitsRetrieved = false;
+	private volatile boolean maxHitsRetrieved = false;
 
 	/**
 	 * If true, we've stopped counting hits because there are more than
 	 * the maximum we've set.
 	 */
-	private boolean maxHitsCounted = false;
+	private volatile boolean maxHitsCounted = false;
 
 	/**
 	 * The number of hits we've seen and counted so far. May be more than
 	 * the number of hits we've retrieved if that exceeds maxHitsToRetrieve.
 	 */
-	private int hitsCounted = 0;
+	private volatile int hitsCounted = 0;
+
+	/**
+	 * The number of hits we've retrieved so far (the size of the hit list, but safe
+	 * to read from other threads without locking).
+	 */
+	private volatile int hitsRetrieved = 0;
 
 	/**
 	 * The number of separate documents we've seen in the hits retrieved.
 	 */
-	private int docsRetrieved = 0;
+	private volatile int docsRetrieved = 0;
 
 	/**
 	 * The number of separate documents we've counted so far (includes non-retrieved hits).
 	 */
-	private int docsCounted = 0;
+	private volatile int docsCounted = 0;
 
 	/**
 	 * Document the previous hit was in, so we can count separate documents.
 	 */
 	private int previousHitDoc = -1;
 
+	/**
+	 * Number of hits to read from the Spans before adding them to the list
+	 * (and publishing the new counts).
+	 */
+	private static final int FETCH_BATCH_SIZE = 1000;
+
+	/**
+	 * Minimum number of documents to retrieve context from before we start
+	 * loading forward index documents in the background (see findContext()).
+	 */
+	private static final int PREFETCH_MIN_DOCS = 100;
+
+	/** Doc ids of the batch of hits we're reading from the Spans */
+	private int[] batchDoc;
+
+	/** Start positions of the batch of hits we're reading from the Spans */
+	private int[] batchStart;
+
+	/** End positions of the batch of hits we're reading from the Spans */
+	private int[] batchEnd;
+
+	/**
+	 * Did we run out of hits while reading the batch? (sourceSpansFullyRead is only
+	 * set once the batch has been added, so other threads never see it before the last hits)
+	 */
+	private boolean batchReachedEnd = false;
+
+	/**
+	 * Thread fetching hits in the background, or null if hits are fetched
+	 * on demand by the calling thread.
+	 */
+	private Thread fetchThread;
+
+	/** If true, hit fetching was cancelled; we'll keep the hits we have. */
+	private volatile boolean fetchCancelled = false;
+
+	/** Fetcher executing parallelQuery, if it's running (so cancelFetch() can stop it) */
+	private volatile ParallelHitFetcher parallelFetcher;
+
+	/** If the background fetch thread failed, this is why. */
+	private Throwable fetchFailure;
+
+	/**
+	 * If not null, we execute this query using multiple threads
+	 * instead of reading from sourceSpans.
+	 */
+	private SpanQuery parallelQuery;
+
+	/** Number of threads to use for executing parallelQuery */
+	private int queryThreads;
+
+	/**
+	 * The (rewritten) query, for counting hits without retrieving them,
+	 * or null if we can't do that.
+	 */
+	private SpanQuery countQuery;
+
+	/**
+	 * If the hits were counted without retrieving them (see totalSize()), the
+	 * counts, otherwise null.
+	 */
+	private volatile HitCounter counter;
+
 	/**
 	 * The desired context size (number of words to fetch around hits).
 	 * Defaults to Searcher.getDefaultContextSize().
@@ -171,16 +246,20 @@ public class Hits implements Iterable<Hit> {
 	}
 
 	/**
-	 * Make a wrapper Hits object for a list of Hit objects.
+	 * Make a Hits object for a list of Hit objects.
+	 *
+	 * NOTE: the hit information is copied (unless the list is a HitList), so changing
+	 * the Hit objects afterwards doesn't affect this Hits object.
 	 *
 	 * @param searcher
 	 *            the searcher object
-	 * @param hits the list of hits to wrap
+	 * @param hits the list of hits
 	 */
 	public Hits(Searcher searcher, List<Hit> hits) {
 		this.searcher = searcher;
-		this.hits = hits;
+		this.hits = hits instanceof HitList ? (HitList) hits : new HitList(hits);
 		hitsCounted = hits.size();
+		hitsRetrieved = hits.size();
 		setConcordanceField(searcher.getContentsFieldMainPropName());
 		desiredContextSize = searcher.getDefaultContextSize();
 		currentContextSize = -1;
@@ -196,8 +275,9 @@ public class Hits implements Iterable<Hit> {
 	 */
 	public Hits(Searcher searcher, String concordanceFieldPropName) {
 		this.searcher = searcher;
-		hits = new ArrayList<Hit>();
+		hits = new HitList();
 		hitsCounted = 0;
+		hitsRetrieved = 0;
 		setConcordanceField(concordanceFieldPropName);
 		desiredContextSize = searcher == null ? 0 /* only for test */: searcher
 				.getDefaultContextSize();
@@ -239,6 +319,30 @@ public class Hits implements Iterable<Hit> {
 	 */
 	public Hits(Searcher searcher, String concordanceFieldPropName, SpanQuery sourceQuery)
 			throws TooManyClauses {
+		this(searcher, concordanceFieldPropName, sourceQuery, 1);
+	}
+
+	/**
+	 * Construct an empty Hits object
+	 *
+	 * If numberOfThreads is more than 1, the index is split into ranges of
+	 * documents, and the query is executed on each range by a pool of threads.
+	 * The results are then merged in document order. The resulting hits and counts
+	 * are the same as when executing the query on a single thread, but all hits
+	 * are fetched as soon as any hit is requested.
+	 *
+	 * @param searcher
+	 *            the searcher object
+	 * @param concordanceFieldPropName
+	 *            field to use by default when finding concordances
+	 * @param sourceQuery
+	 *            the query to execute to get the hits
+	 * @param numberOfThreads
+	 *            number of threads to use for executing the query
+	 * @throws TooManyClauses if the query is overly broad (expands to too many terms)
+	 */
+	public Hits(Searcher searcher, String concordanceFieldPropName, SpanQuery sourceQuery,
+			int numberOfThreads) throws TooManyClauses {
 		this(searcher, concordanceFieldPropName);
 
 		try {
@@ -247,7 +351,14 @@ public class Hits implements Iterable<Hit> {
 				reader = searcher.getIndexReader();
 			}
 			SpanQuery spanQuery = (SpanQuery) sourceQuery.rewrite(reader);
-			sourceSpans = BLSpansWrapper.optWrap(spanQuery.getSpans(reader));
+			if (reader != null)
+				countQuery = spanQuery;
+			if (numberOfThreads > 1 && reader != null) {
+				parallelQuery = spanQuery;
+				queryThreads = numberOfThreads;
+			} else {
+				sourceSpans = BLSpansWrapper.optWrap(spanQuery.getSpans(reader));
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -307,6 +418,9 @@ public class Hits implements Iterable<Hit> {
 	 * @return true if we reached the maximum and stopped retrieving hits
 	 */
 	public boolean maxHitsRetrieved() {
+		HitCounter c = counter;
+		if (c != null && !doneFetchingHits())
+			return c.maxHitsRetrieved();
 		return maxHitsRetrieved;
 	}
 
@@ -315,6 +429,9 @@ public class Hits implements Iterable<Hit> {
 	 * @return true if we reached the maximum and stopped counting hits
 	 */
 	public boolean maxHitsCounted() {
+		HitCounter c = counter;
+		if (c != null && !doneFetchingHits())
+			return c.maxHitsCounted();
 		return maxHitsCounted;
 	}
 
@@ -334,6 +451,38 @@ public class Hits implements Iterable<Hit> {
 		return new ArrayList<Hit>(hits);
 	}
 
+	/**
+	 * Make a copy of these hits, so they can be sorted or grouped without changing
+	 * this object (which may be shared, see SearchCache).
+	 *
+	 * Reads all hits first. The copy has the same counts and settings, but no
+	 * context information.
+	 *
+	 * @return the copy
+	 */
+	public synchronized Hits copy() {
+		try {
+			ensureAllHitsRead();
+		} catch (InterruptedException e) {
+			// Interrupted; just copy the hits we've gathered so far.
+		}
+		HitList copiedHits = new HitList();
+		for (int i = 0; i < hits.size(); i++) {
+			copiedHits.add(hits.doc(i), hits.start(i), hits.end(i));
+		}
+		Hits copy = new Hits(searcher, copiedHits);
+		copy.hitsCounted = hitsCounted;
+		copy.docsCounted = docsCounted;
+		copy.docsRetrieved = docsRetrieved;
+		copy.maxHitsRetrieved = maxHitsRetrieved;
+		copy.maxHitsCounted = maxHitsCounted;
+		copy.maxHitsToRetrieve = maxHitsToRetrieve;
+		copy.maxHitsToCount = maxHitsToCount;
+		copy.setConcordanceField(concordanceFieldName);
+		copy.desiredContextSize = desiredContextSize;
+		return copy;
+	}
+
 	/**
 	 * If we still have only partially read our Spans object,
 	 * read the rest of it and add all the hits.
@@ -346,55 +495,280 @@ public class Hits implements Iterable<Hit> {
 	/**
 	 * Ensure that we have read at least as many hits as specified in the parameter.
 	 *
+	 * If hits are being fetched in the background, this waits until the fetch
+	 * thread has read enough hits. Otherwise, the hits are read on the calling thread.
+	 *
 	 * @param number the minimum number of hits that will have been read when this method
 	 *   returns (unless there are fewer hits than this); if negative, reads all hits
 	 * @throws InterruptedException if the thread was interrupted during this operation
 	 */
 	void ensureHitsRead(int number) throws InterruptedException {
-		if (sourceSpansFullyRead || (number >= 0 && hits.size() >= number))
+		if (doneFetchingHits() || (number >= 0 && countSoFarHitsRetrieved() >= number))
 			return;
 
 		synchronized(this) {
 			boolean readAllHits = number < 0;
+			if (fetchThread != null) {
+				// Wait for the fetch thread to get the hits we need
+				while (!doneFetchingHits() && fetchFailure == null && (readAllHits || hits.size() < number)) {
+					wait();
+				}
+				if (fetchFailure != null)
+					throw ExUtil.wrapRuntimeException(fetchFailure);
+				return;
+			}
+			if (parallelQuery != null) {
+				// Fetch all hits using multiple threads
+				useParallelResults(executeInParallel());
+				return;
+			}
 			Thread currentThread = Thread.currentThread();
-			try {
-				while (readAllHits || hits.size() < number) {
+			while (!doneFetchingHits() && (readAllHits || hits.size() < number)) {
 
-					// Check if the thread should terminate
-					if (currentThread.isInterrupted())
-						throw new InterruptedException("Thread was interrupted while gathering hits");
+				// Check if the thread should terminate
+				if (currentThread.isInterrupted())
+					throw new InterruptedException("Thread was interrupted while gathering hits");
 
-					// Stop if we're at the maximum number of hits we want to count
-					if (maxHitsToCount >= 0 && hitsCounted >= maxHitsToCount) {
-						maxHitsCounted = true;
-						break;
-					}
+				int batchSize = FETCH_BATCH_SIZE;
+				if (!readAllHits && !maxHitsRetrieved)
+					batchSize = Math.min(batchSize, number - hits.size());
+				addBatch(readBatch(batchSize));
+			}
+		}
+	}
 
-					// Advance to next hit
-					if (!sourceSpans.next()) {
-						sourceSpansFullyRead = true;
-						break;
-					}
+	/**
+	 * Read a batch of hits from the Spans into the batch arrays.
+	 *
+	 * Only the thread fetching hits (either the background fetch thread, or a thread
+	 * holding the lock on this object) may call this. Sets batchReachedEnd if
+	 * we run out of hits; the count limit is checked in addBatch().
+	 *
+	 * @param maxNumber maximum number of hits to read
+	 * @return number of hits read
+	 */
+	private int readBatch(int maxNumber) {
+		if (batchDoc == null) {
+			batchDoc = new int[FETCH_BATCH_SIZE];
+			batchStart = new int[FETCH_BATCH_SIZE];
+			batchEnd = new int[FETCH_BATCH_SIZE];
+		}
+		if (maxHitsToCount >= 0)
+			maxNumber = Math.min(maxNumber, maxHitsToCount - hitsCounted);
+		int n = 0;
+		try {
+			while (n < maxNumber) {
+				if (!sourceSpans.next()) {
+					batchReachedEnd = true;
+					break;
+				}
+				batchDoc[n] = sourceSpans.doc();
+				batchStart[n] = sourceSpans.start();
+				batchEnd[n] = sourceSpans.end();
+				n++;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return n;
+	}
+
+	/**
+	 * Count the hits in the batch arrays and add them to the list
+	 * (unless we've reached the maximum number of hits we want).
+	 *
+	 * NOTE: not synchronized because only ever called with the lock held!
+	 *
+	 * @param n number of hits in the batch
+	 */
+	private void addBatch(int n) {
+		if (fetchCancelled)
+			return; // don't change the hits anymore; someone may be using them
+		int counted = hitsCounted, docsC = docsCounted, docsR = docsRetrieved;
+		boolean maxRetrieved = maxHitsRetrieved;
+		for (int i = 0; i < n; i++) {
+			counted++;
+			int hitDoc = batchDoc[i];
+			if (hitDoc != previousHitDoc) {
+				docsC++;
+				if (!maxRetrieved)
+					docsR++;
+				previousHitDoc = hitDoc;
+			}
+			maxRetrieved = maxHitsToRetrieve >= 0 && hits.size() >= maxHitsToRetrieve;
+			if (!maxRetrieved)
+				hits.add(hitDoc, batchStart[i], batchEnd[i]);
+		}
+
+		// Publish the new counts
+		hitsRetrieved = hits.size();
+		hitsCounted = counted;
+		docsCounted = docsC;
+		docsRetrieved = docsR;
+		maxHitsRetrieved = maxRetrieved;
+		if (batchReachedEnd)
+			sourceSpansFullyRead = true;
+		else if (maxHitsToCount >= 0 && counted >= maxHitsToCount)
+			maxHitsCounted = true;
+	}
+
+	/**
+	 * Execute parallelQuery using multiple threads.
+	 *
+	 * @return the fetcher containing the results
+	 * @throws InterruptedException if the thread was interrupted during this operation
+	 */
+	private ParallelHitFetcher executeInParallel() throws InterruptedException {
+		ParallelHitFetcher fetcher = new ParallelHitFetcher(searcher.getIndexReader(), parallelQuery,
+				searcher.getQueryThreadPool(), queryThreads, maxHitsToRetrieve, maxHitsToCount);
+		parallelFetcher = fetcher;
+		try {
+			if (fetchCancelled)
+				fetcher.cancel();
+			fetcher.fetch();
+		} finally {
+			parallelFetcher = null;
+		}
+		return fetcher;
+	}
+
+	/**
+	 * Use the results of executing parallelQuery as our hits.
+	 *
+	 * NOTE: not synchronized because only ever called with the lock held!
+	 *
+	 * @param fetcher the fetcher containing the results
+	 */
+	private void useParallelResults(ParallelHitFetcher fetcher) {
+		if (fetchCancelled)
+			return; // don't change the hits anymore; someone may be using them
+		hits = fetcher.getHits();
+		hitsRetrieved = hits.size();
+		hitsCounted = fetcher.getHitsCounted();
+		docsCounted = fetcher.getDocsCounted();
+		docsRetrieved = fetcher.getDocsRetrieved();
+		maxHitsRetrieved = fetcher.maxHitsRetrieved();
+		maxHitsCounted = fetcher.maxHitsCounted();
+		parallelQuery = null;
+		sourceSpansFullyRead = true;
+	}
+
+	/**
+	 * Start fetching hits in a background thread.
+	 *
+	 * While the hits are being fetched, other threads can get the first hits,
+	 * windows and the counts so far (see countSoFarHitsCounted() and friends)
+	 * without having to wait for all hits to be fetched. Methods that need all the
+	 * hits (like sort() and totalSize()) wait for the fetch thread to finish.
+	 *
+	 * Does nothing if all hits have already been fetched or a fetch thread is already
+	 * running. Use cancelFetch() to stop the fetch thread early.
+	 */
+	public synchronized void startBackgroundFetch() {
+		if (doneFetchingHits() || fetchThread != null)
+			return;
+		fetchThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fetchInBackground();
+			}
+		}, "BlackLab hit fetcher");
+		fetchThread.setDaemon(true);
+		fetchThread.start();
+	}
 
-					// Count the hit and add it (unless we've reached the maximum number of hits we want)
-					hitsCounted++;
-					int hitDoc = sourceSpans.doc();
-					if (hitDoc != previousHitDoc) {
-						docsCounted++;
-						if (!maxHitsRetrieved)
-							docsRetrieved++;
-						previousHitDoc = hitDoc;
+	/**
+	 * Fetch all hits (up to the maximum to count); runs in the fetch thread.
+	 *
+	 * Hits are read from the Spans without holding the lock, then added to the list
+	 * in batches, so other threads only have to wait for a short time.
+	 */
+	private void fetchInBackground() {
+		try {
+			if (parallelQuery != null) {
+				try {
+					ParallelHitFetcher fetcher = executeInParallel();
+					synchronized (this) {
+						useParallelResults(fetcher);
 					}
-					maxHitsRetrieved = maxHitsToRetrieve >= 0 && hits.size() >= maxHitsToRetrieve;
-					if (!maxHitsRetrieved)
-						hits.add(sourceSpans.getHit());
+				} catch (InterruptedException e) {
+					// Treat like a cancel; keep the hits we have
+					fetchCancelled = true;
 				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+				return;
+			}
+			while (!doneFetchingHits()) {
+				if (Thread.currentThread().isInterrupted()) {
+					// Treat like a cancel; keep the hits we have
+					fetchCancelled = true;
+					break;
+				}
+				int n = readBatch(FETCH_BATCH_SIZE);
+				synchronized (this) {
+					addBatch(n);
+					notifyAll();
+				}
+			}
+		} catch (Throwable e) {
+			synchronized (this) {
+				fetchFailure = e;
 			}
+			logger.error("Error while fetching hits", e);
+		} finally {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stop fetching hits.
+	 *
+	 * The hits that were fetched so far are kept, and will be treated as
+	 * if they were all the hits. Useful if the user is no longer interested in
+	 * the results of a long-running query.
+	 *
+	 * If a background fetch thread is running, it will stop after its current batch
+	 * (use waitForFetchThread() to wait for that).
+	 */
+	public void cancelFetch() {
+		if (doneFetchingHits())
+			return;
+		fetchCancelled = true;
+		ParallelHitFetcher fetcher = parallelFetcher;
+		if (fetcher != null)
+			fetcher.cancel();
+		synchronized (this) {
+			// Wake up any threads waiting for hits
+			notifyAll();
 		}
 	}
 
+	/**
+	 * Wait until the background fetch thread (if any) has finished.
+	 *
+	 * Call cancelFetch() first to make it stop early. Used before closing the Searcher,
+	 * so the thread doesn't read from a closed index.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	void waitForFetchThread() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = fetchThread;
+		}
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Was hit fetching cancelled using cancelFetch()?
+	 * @return true iff fetching was cancelled before all hits were fetched
+	 */
+	public boolean fetchCancelled() {
+		return fetchCancelled;
+	}
+
 	/**
 	 * Sort the list of hits.
 	 *
@@ -500,14 +874,40 @@ public class Hits implements Iterable<Hit> {
 			findContext(requiredContext);
 		}
 
-		Collections.sort(hits, sortProp);
+		hits.sort(sortProp, sortThreads);
 		if (reverseSort) {
 			// Instead of creating a new Comparator that reverses the order of the
 			// sort property (which adds an extra layer of indirection to each of the
 			// O(n log n) comparisons), just reverse the hits now (which runs
 			// in linear time).
-			Collections.reverse(hits);
+			hits.reverse();
+		}
+	}
+
+	/**
+	 * Group the hits on a property that supports sort keys.
+	 *
+	 * Hits with equal sort keys end up in the same group. No objects are created
+	 * per hit, and large result sets are grouped using multiple threads.
+	 *
+	 * If the property needs context, it must have been retrieved already (see findContext()).
+	 *
+	 * Note that if the thread is interrupted during this, not all hits may have
+	 * been read. We assume the calling method will check for thread interruption
+	 * if the application uses it.
+	 *
+	 * @param groupProp the property to group on
+	 * @param countOnly if true, only count the number of hits in each group
+	 * @return the grouping
+	 */
+	public synchronized HitGrouping groupBySortKey(HitProperty groupProp, boolean countOnly) {
+		try {
+			ensureAllHitsRead();
+		} catch (InterruptedException e) {
+			// Thread was interrupted. Just group the hits we did get;
+			// the caller will detect and deal with the interruption.
 		}
+		return new HitGrouping(hits, groupProp, countOnly, sortThreads);
 	}
 
 	/**
@@ -525,6 +925,7 @@ public class Hits implements Iterable<Hit> {
 			return;
 		}
 		hits.add(hit);
+		hitsRetrieved++;
 		hitsCounted++;
 		int hitDoc = hit.doc;
 		if (hitDoc != previousHitDoc) {
@@ -557,7 +958,7 @@ public class Hits implements Iterable<Hit> {
 			// and let client decide what to do
 		}
 
-		return hits.size() >= lowerBound;
+		return countSoFarHitsRetrieved() >= lowerBound;
 	}
 
 	/**
@@ -581,7 +982,7 @@ public class Hits implements Iterable<Hit> {
 			// but will not cause any crashes. The thread was interrupted anyway,
 			// the value should never be presented to the user.
 		}
-		return hits.size();
+		return countSoFarHitsRetrieved();
 	}
 
 	/**
@@ -593,10 +994,16 @@ public class Hits implements Iterable<Hit> {
 	 * This method returns our total hit count. Some of these hits
 	 * may not be available.
 	 *
+	 * If we haven't started retrieving hits yet, they are counted
+	 * without retrieving them.
+	 *
 	 * @return the total hit count
 	 */
 	public int totalSize() {
 		try {
+			HitCounter c = countWithoutRetrieving();
+			if (c != null)
+				return c.getHitsCounted();
 			ensureAllHitsRead();
 		} catch (InterruptedException e) {
 			// Thread was interrupted; don't complete the operation but return
@@ -608,6 +1015,30 @@ public class Hits implements Iterable<Hit> {
 		return hitsCounted;
 	}
 
+	/**
+	 * Count the hits without retrieving them, if we haven't started retrieving them.
+	 *
+	 * Callers that only need the counts (e.g. for a frequency list) then don't pay for
+	 * retrieving up to maxHitsToRetrieve hits. Simple queries (a term, or a number of
+	 * distinct terms) are counted using the term frequencies, without reading positions.
+	 * If hits are retrieved later, the query is executed again, but only as far as needed.
+	 *
+	 * @return the counts, or null if we have started retrieving hits (use the regular
+	 *   counts in that case)
+	 * @throws InterruptedException if the thread was interrupted during this operation
+	 */
+	private synchronized HitCounter countWithoutRetrieving() throws InterruptedException {
+		if (counter == null) {
+			if (countQuery == null || fetchThread != null || hitsCounted > 0 || doneFetchingHits())
+				return null;
+			HitCounter c = new HitCounter(searcher.getIndexReader(), countQuery, maxHitsToRetrieve,
+					maxHitsToCount);
+			c.count();
+			counter = c;
+		}
+		return counter;
+	}
+
 	/**
 	 * Return the number of documents in the hits we've retrieved.
 	 *
@@ -615,6 +1046,9 @@ public class Hits implements Iterable<Hit> {
 	 */
 	public int numberOfDocs() {
 		try {
+			HitCounter c = countWithoutRetrieving();
+			if (c != null)
+				return c.getDocsRetrieved();
 			ensureAllHitsRead();
 		} catch (InterruptedException e) {
 			// Thread was interrupted; don't complete the operation but return
@@ -634,6 +1068,9 @@ public class Hits implements Iterable<Hit> {
 	 */
 	public int totalNumberOfDocs() {
 		try {
+			HitCounter c = countWithoutRetrieving();
+			if (c != null)
+				return c.getDocsCounted();
 			ensureAllHitsRead();
 		} catch (InterruptedException e) {
 			// Thread was interrupted; don't complete the operation but return
@@ -662,11 +1099,12 @@ public class Hits implements Iterable<Hit> {
 	 *
 	 * If you're retrieving hits in a background thread, call this
 	 * method from another thread to get an update of the count so far.
+	 * Doesn't lock, so it doesn't have to wait for e.g. a sort to finish.
 	 *
 	 * @return the current total hit count
 	 */
 	public int countSoFarHitsRetrieved() {
-		return hits.size();
+		return hitsRetrieved;
 	}
 
 	/**
@@ -702,7 +1140,7 @@ public class Hits implements Iterable<Hit> {
 	 * @return true iff all hits have been retrieved/counted.
 	 */
 	public boolean doneFetchingHits() {
-		return sourceSpansFullyRead || maxHitsCounted;
+		return sourceSpansFullyRead || maxHitsCounted || fetchCancelled;
 	}
 
 	/**
@@ -730,7 +1168,7 @@ public class Hits implements Iterable<Hit> {
 					// answer.
 					// Client must detect the interruption and stop the thread.
 				}
-				return hits.size() >= index + 2;
+				return countSoFarHitsRetrieved() >= index + 2;
 			}
 
 			@Override
@@ -738,7 +1176,9 @@ public class Hits implements Iterable<Hit> {
 				// Check if there is a next, taking unread hits from Spans into account
 				if (hasNext()) {
 					index++;
-					return hits.get(index);
+					synchronized (Hits.this) {
+						return hits.get(index);
+					}
 				}
 				throw new NoSuchElementException();
 			}
@@ -765,9 +1205,11 @@ public class Hits implements Iterable<Hit> {
 			// Thread was interrupted. Required hit hasn't been gathered;
 			// we will just return null.
 		}
-		if (i >= hits.size())
-			return null;
-		return hits.get(i);
+		synchronized (this) {
+			if (i >= hits.size())
+				return null;
+			return hits.get(i);
+		}
 	}
 
 	/**
@@ -1066,33 +1508,81 @@ public class Hits implements Iterable<Hit> {
 			return;
 		}
 
-		// Get the context
-		// Group hits per document
-		Map<Integer, List<Hit>> hitsPerDocument = new HashMap<Integer, List<Hit>>();
-		for (Hit key: hits) {
-			List<Hit> hitsInDoc = hitsPerDocument.get(key.doc);
-			if (hitsInDoc == null) {
-				hitsInDoc = new ArrayList<Hit>();
-				hitsPerDocument.put(key.doc, hitsInDoc);
-			}
-			hitsInDoc.add(key);
-		}
-
 		List<ForwardIndex> fis = new ArrayList<ForwardIndex>();
 		for (String fieldPropName: fieldProps) {
 			fis.add(searcher.getForwardIndex(fieldPropName));
 		}
 
-		for (List<Hit> l: hitsPerDocument.values()) {
-			if (l.size() > 0) {
-				Hits hitsInThisDoc = new Hits(searcher, l);
-				hitsInThisDoc.getContextWords(desiredContextSize, fis);
+		// Throw away any old context, then get the new context per document
+		hits.clearContext();
+		int n = hits.size();
+		if (n > 0) {
+			// Sort the hit indices by document, without instantiating any objects:
+			// put doc in the high 32 bits and hit index in the low 32 bits.
+			long[] docAndIndex = new long[n];
+			for (int i = 0; i < n; i++) {
+				docAndIndex[i] = ((long) hits.doc(i) << 32) | i;
+			}
+			Arrays.sort(docAndIndex);
+			int[] hitIndices = new int[n];
+			for (int i = 0; i < n; i++) {
+				hitIndices[i] = (int) docAndIndex[i];
+			}
+
+			// If there's many documents, load them in the background before we need them
+			ForwardIndexPrefetcher prefetcher = null;
+			Thread prefetchThread = null;
+			int[] docs = distinctDocs(hitIndices);
+			List<ForwardIndex> fisToPrefetch = new ArrayList<ForwardIndex>();
+			for (ForwardIndex fi: fis) {
+				if (fi != null)
+					fisToPrefetch.add(fi);
+			}
+			if (docs.length >= PREFETCH_MIN_DOCS && fisToPrefetch.size() > 0) {
+				prefetcher = new ForwardIndexPrefetcher(fisToPrefetch, docs);
+				prefetchThread = new Thread(prefetcher, "ForwardIndexPrefetcher");
+				prefetchThread.setDaemon(true);
+				prefetchThread.start();
+			}
+
+			// Get the context for each run of hits in the same document
+			try {
+				int runStart = 0, docIndex = 0;
+				for (int i = 1; i <= n; i++) {
+					if (i == n || hits.doc(hitIndices[i]) != hits.doc(hitIndices[runStart])) {
+						getContextWords(desiredContextSize, fis, hitIndices, runStart, i);
+						runStart = i;
+						docIndex++;
+						if (prefetcher != null)
+							prefetcher.setPosition(docIndex);
+					}
+				}
+			} finally {
+				if (prefetchThread != null)
+					prefetchThread.interrupt();
 			}
 		}
 		currentContextSize = desiredContextSize;
 		contextFieldsPropName = new ArrayList<String>(fieldProps);
 	}
 
+	/**
+	 * Get the distinct documents the hits occur in.
+	 *
+	 * @param hitIndices hit indices, sorted by document
+	 * @return the documents, in the same order
+	 */
+	private int[] distinctDocs(int[] hitIndices) {
+		int[] docs = new int[hitIndices.length];
+		int n = 0;
+		for (int i = 0; i < hitIndices.length; i++) {
+			int doc = hits.doc(hitIndices[i]);
+			if (n == 0 || docs[n - 1] != doc)
+				docs[n++] = doc;
+		}
+		return Arrays.copyOf(docs, n);
+	}
+
 	/**
 	 * Clear any cached concordances so new ones will be created on next call to getConcordance().
 	 */
@@ -1107,9 +1597,7 @@ public class Hits implements Iterable<Hit> {
 	 */
 	@Deprecated
 	public synchronized void clearContext() {
-		for (Hit hit: hits) {
-			hit.context = null;
-		}
+		hits.clearContext();
 		contextFieldsPropName = null;
 	}
 
@@ -1135,14 +1623,17 @@ public class Hits implements Iterable<Hit> {
 	public synchronized TokenFrequencyList getCollocations(String propName, QueryExecutionContext ctx) {
 		findContext(Arrays.asList(ctx.luceneField(false)));
 		Map<Integer, Integer> coll = new HashMap<Integer, Integer>();
-		for (Hit hit: hits) {
-			int[] context = hit.context;
+		for (int hitIndex = 0; hitIndex < hits.size(); hitIndex++) {
+			int[] context = hits.contextArray(hitIndex);
+			int contextOffset = hits.contextOffset(hitIndex);
+			int contextHitStart = hits.contextHitStart(hitIndex);
+			int contextRightStart = hits.contextRightStart(hitIndex);
 
 			// Count words
-			for (int i = 0; i < context.length; i++) {
-				if (i >= hit.contextHitStart && i < hit.contextRightStart)
+			for (int i = 0; i < hits.contextTotalLength(hitIndex); i++) {
+				if (i >= contextHitStart && i < contextRightStart)
 					continue; // don't count words in hit itself, just around
-				int w = context[i];
+				int w = context[contextOffset + i];
 				Integer n = coll.get(w);
 				if (n == null)
 					n = 1;
@@ -1241,9 +1732,11 @@ public class Hits implements Iterable<Hit> {
 			// the first hit in the sublist, so just return an empty list.
 			return Collections.emptyList();
 		}
-		if (toIndex > hits.size())
-			toIndex = hits.size();
-		return hits.subList(fromIndex, toIndex);
+		synchronized (this) {
+			if (toIndex > hits.size())
+				toIndex = hits.size();
+			return new ArrayList<Hit>(hits.subList(fromIndex, toIndex));
+		}
 	}
 
 	/**
@@ -1297,6 +1790,18 @@ public class Hits implements Iterable<Hit> {
 		Hits.defaultMaxHitsToCount = n;
 	}
 
+	/** @return the maximum number of threads to use when sorting or grouping hits. */
+	public static int getSortThreads() {
+		return sortThreads;
+	}
+
+	/** Set the maximum number of threads to use when sorting or grouping hits
+	 * @param n the number of threads (1 means sort/group on the calling thread)
+	 */
+	public static void setSortThreads(int n) {
+		Hits.sortThreads = Math.max(1, n);
+	}
+
 	/** @return the maximum number of hits to retrieve. */
 	public int getMaxHitsToRetrieve() {
 		return maxHitsToRetrieve;
@@ -1307,6 +1812,7 @@ public class Hits implements Iterable<Hit> {
 	 */
 	public void setMaxHitsToRetrieve(int n) {
 		this.maxHitsToRetrieve = n;
+		counter = null;
 	}
 
 	/** @return the maximum number of hits to count. */
@@ -1319,6 +1825,7 @@ public class Hits implements Iterable<Hit> {
 	 */
 	public void setMaxHitsToCount(int n) {
 		this.maxHitsToCount = n;
+		counter = null;
 	}
 
 	/**
@@ -1346,109 +1853,90 @@ public class Hits implements Iterable<Hit> {
 		if (hits.size() == 0)
 			return;
 
-		// Save existing context so we can restore it afterwards
-		int[][] oldContext = null;
-		if (hits.size() > 0 && hits.get(0).context != null)
-			oldContext = getContextFromHits();
-
-		// TODO: more efficient to get all contexts with one getContextWords() call!
+		// NOTE: this object contains copies of the hits we're making concordances for,
+		// so we don't have to save and restore any existing context
 
-		// Get punctuation context
-		int[][] punctContext = null;
-		if (punctForwardIndex != null) {
-			getContextWords(wordsAroundHit, Arrays.asList(punctForwardIndex));
-			punctContext = getContextFromHits();
-		}
-		Terms punctTerms = punctForwardIndex == null ? null : punctForwardIndex.getTerms();
-
-		// Get attributes context
-		String[] attrName = null;
-		ForwardIndex[] attrFI = null;
-		Terms[] attrTerms = null;
-		int[][][] attrContext = null;
+		// Get the context for all properties in one pass:
+		// punctuation, attributes (e.g. lemma, pos), word
+		int numAttr = attrForwardIndices == null ? 0 : attrForwardIndices.size();
+		String[] attrName = new String[numAttr];
+		ForwardIndex[] sources = new ForwardIndex[numAttr + 2];
+		sources[0] = punctForwardIndex;
+		int k = 1;
 		if (attrForwardIndices != null) {
-			int n = attrForwardIndices.size();
-			attrName = new String[n];
-			attrFI = new ForwardIndex[n];
-			attrTerms = new Terms[n];
-			attrContext = new int[n][][];
-			int i = 0;
 			for (Map.Entry<String, ForwardIndex> e: attrForwardIndices.entrySet()) {
-				attrName[i] = e.getKey();
-				attrFI[i] = e.getValue();
-				attrTerms[i] = attrFI[i].getTerms();
-				getContextWords(wordsAroundHit, Arrays.asList(attrFI[i]));
-				attrContext[i] = getContextFromHits();
-				i++;
+				attrName[k - 1] = e.getKey();
+				sources[k] = e.getValue();
+				k++;
 			}
 		}
-
-		// Get word context
-		if (forwardIndex != null)
-			getContextWords(wordsAroundHit, Arrays.asList(forwardIndex));
-		Terms terms = forwardIndex == null ? null : forwardIndex.getTerms();
+		sources[numAttr + 1] = forwardIndex;
+		int[] block = getContextWords(wordsAroundHit, sources);
+		Terms[] terms = getTerms(sources);
+		int punctBlock = block[0], wordBlock = block[numAttr + 1];
 
 		// Make the concordances from the context
+		StringBuilder current = new StringBuilder();
 		for (int i = 0; i < hits.size(); i++) {
-			Hit h = hits.get(i);
-			StringBuilder[] part = new StringBuilder[3];
-			for (int j = 0; j < 3; j++) {
-				part[j] = new StringBuilder();
-			}
+			int[] context = hits.contextArray(i);
+			int offset = hits.contextOffset(i);
+			int length = hits.contextLength(i);
+			int hitStart = hits.contextHitStart(i);
+			int rightStart = hits.contextRightStart(i);
+			String[] concStr = new String[3];
 			int currentPart = 0;
-			StringBuilder current = part[currentPart];
-			for (int j = 0; j < h.context.length; j++) {
+			current.setLength(0);
+			for (int j = 0; j < length; j++) {
 
-				if (j == h.contextRightStart) {
+				if (j == rightStart) {
+					concStr[currentPart] = current.toString();
+					current.setLength(0);
 					currentPart = 2;
-					current = part[currentPart];
 				}
 
 				// Add punctuation
 				// (NOTE: punctuation after match is added to right context;
 				//  punctuation before match is added to left context)
 				if (j > 0) {
-					if (punctTerms == null) {
+					if (punctBlock < 0) {
 						// There is no punctuation forward index. Just put a space
 						// between every word.
 						current.append(" ");
 					}
 					else
-						current.append(punctTerms.get(punctContext[i][j]));
+						current.append(terms[0].get(context[offset + punctBlock * length + j]));
 				}
 
-				if (currentPart == 0 && j == h.contextHitStart) {
+				if (currentPart == 0 && j == hitStart) {
+					concStr[currentPart] = current.toString();
+					current.setLength(0);
 					currentPart = 1;
-					current = part[currentPart];
 				}
 
 				// Make word tag with lemma and pos attributes
 				current.append("<w");
-				if (attrContext != null) {
-					for (int k = 0; k < attrContext.length; k++) {
-						current
-						 	.append(" ")
-							.append(attrName[k])
-							.append("=\"")
-							.append(StringUtil.escapeXmlChars(attrTerms[k].get(attrContext[k][i][j])))
-							.append("\"");
-					}
+				for (k = 0; k < numAttr; k++) {
+					current
+						.append(" ")
+						.append(attrName[k])
+						.append("=\"")
+						.append(StringUtil.escapeXmlChars(terms[k + 1].get(context[offset + block[k + 1] * length + j])))
+						.append("\"");
 				}
 				current.append(">");
 
-				if (terms != null)
-					current.append(terms.get(h.context[j]));
+				if (wordBlock >= 0)
+					current.append(terms[numAttr + 1].get(context[offset + wordBlock * length + j]));
 
 				// End word tag
 				current.append("</w>");
 			}
-			String[] concStr = new String[] {part[0].toString(), part[1].toString(), part[2].toString()};
-			Concordance concordance = new Concordance(concStr);
-			conc.put(h, concordance);
-		}
-
-		if (oldContext != null) {
-			restoreContextInHits(oldContext);
+			concStr[currentPart] = current.toString();
+			for (int j = 0; j < 3; j++) {
+				if (concStr[j] == null)
+					concStr[j] = "";
+			}
+			conc.put(new Hit(hits.doc(i), hits.start(i), hits.end(i)), new Concordance(concStr));
 		}
 	}
 
@@ -1456,6 +1944,9 @@ public class Hits implements Iterable<Hit> {
 	 * Retrieves the KWIC information (KeyWord In Context: left, hit and right context) for
 	 * a number of hits in the same document from the ContentStore.
 	 *
+	 * The context for all properties is retrieved in one pass. The resulting Kwic objects
+	 * only store the term ids; strings are looked up when the Kwic is read.
+	 *
 	 * NOTE: the slowest part of this is getting the character offsets (retrieving large term
 	 * vectors takes time; subsequent hits from the same document are significantly faster,
 	 * presumably because of caching)
@@ -1477,110 +1968,100 @@ public class Hits implements Iterable<Hit> {
 		if (hits.size() == 0)
 			return;
 
-		// Save existing context so we can restore it afterwards
-		int[][] oldContext = null;
-		if (hits.size() > 0 && hits.get(0).context != null)
-			oldContext = getContextFromHits();
-
-		// TODO: more efficient to get all contexts with one getContextWords() call!
-
-		// Get punctuation context
-		int[][] punctContext = null;
-		if (punctForwardIndex != null) {
-			getContextWords(wordsAroundHit, Arrays.asList(punctForwardIndex));
-			punctContext = getContextFromHits();
-		}
-		Terms punctTerms = punctForwardIndex == null ? null : punctForwardIndex.getTerms();
-
-		// Get attributes context
-		String[] attrName = null;
-		ForwardIndex[] attrFI = null;
-		Terms[] attrTerms = null;
-		int[][][] attrContext = null;
+		// NOTE: this object contains copies of the hits we're making concordances for,
+		// so we don't have to save and restore any existing context
+
+		// Get the context for all properties in one pass:
+		// punctuation, attributes (e.g. lemma, pos), word
+		int numAttr = attrForwardIndices == null ? 0 : attrForwardIndices.size();
+		List<String> properties = new ArrayList<String>(numAttr + 2);
+		ForwardIndex[] sources = new ForwardIndex[numAttr + 2];
+		properties.add(searcher.concPunctFI);
+		sources[0] = punctForwardIndex;
+		int k = 1;
 		if (attrForwardIndices != null) {
-			int n = attrForwardIndices.size();
-			attrName = new String[n];
-			attrFI = new ForwardIndex[n];
-			attrTerms = new Terms[n];
-			attrContext = new int[n][][];
-			int i = 0;
 			for (Map.Entry<String, ForwardIndex> e: attrForwardIndices.entrySet()) {
-				attrName[i] = e.getKey();
-				attrFI[i] = e.getValue();
-				attrTerms[i] = attrFI[i].getTerms();
-				getContextWords(wordsAroundHit, Arrays.asList(attrFI[i]));
-				attrContext[i] = getContextFromHits();
-				i++;
+				properties.add(e.getKey());
+				sources[k] = e.getValue();
+				k++;
 			}
 		}
+		properties.add(searcher.concWordFI);
+		sources[numAttr + 1] = forwardIndex;
+		int[] block = getContextWords(wordsAroundHit, sources);
+		Terms[] terms = getTerms(sources);
+		properties = Collections.unmodifiableList(properties);
 
-		// Get word context
-		if (forwardIndex != null)
-			getContextWords(wordsAroundHit, Arrays.asList(forwardIndex));
-		Terms terms = forwardIndex == null ? null : forwardIndex.getTerms();
-
-		// Make the concordances from the context
+		// Make the KWICs from the context
 		for (int i = 0; i < hits.size(); i++) {
-			Hit h = hits.get(i);
-			List<List<String>> part = new ArrayList<List<String>>();
-			for (int j = 0; j < 3; j++) {
-				part.add(new ArrayList<String>());
-			}
-			int currentPart = 0;
-			List<String> current = part.get(currentPart);
-			for (int j = 0; j < h.context.length; j++) {
-
-				if (j == h.contextRightStart) {
-					currentPart = 2;
-					current = part.get(currentPart);
-				}
-
-				if (currentPart == 0 && j == h.contextHitStart) {
-					currentPart = 1;
-					current = part.get(currentPart);
-				}
-
-				// Add punctuation before word
-				// (Applications may choose to ignore punctuation before the first word)
-				if (punctTerms == null) {
-					// There is no punctuation forward index. Just put a space
-					// between every word.
-					current.add(" ");
-				}
-				else
-					current.add(punctTerms.get(punctContext[i][j]));
-
-				// Add extra attributes (e.g. lemma, pos)
-				if (attrContext != null) {
-					for (int k = 0; k < attrContext.length; k++) {
-						current.add(attrTerms[k].get(attrContext[k][i][j]));
-					}
-				}
-
-				// Add word
-				if (terms != null)
-					current.add(terms.get(h.context[j]));
-				else
-					current.add(""); // weird, but make sure the numbers add up at the end
+			// Copy the context: our context arena will be reused
+			int n = hits.contextTotalLength(i);
+			int[] context = new int[n];
+			System.arraycopy(hits.contextArray(i), hits.contextOffset(i), context, 0, n);
+			Kwic kwic = new Kwic(properties, terms, block, context, hits.contextLength(i),
+					hits.contextHitStart(i), hits.contextRightStart(i));
+			kwics.put(new Hit(hits.doc(i), hits.start(i), hits.end(i)), kwic);
+		}
+	}
 
+	/**
+	 * Get context words for all hits from a number of forward indices in one pass.
+	 *
+	 * Sources may be null (e.g. if there is no punctuation forward index); these are skipped.
+	 * The context of the other sources is stored in our HitList, one after the other.
+	 *
+	 * All hits must be in the same document.
+	 *
+	 * NOTE: not synchronized because only ever called from synchronized methods!
+	 *
+	 * @param wordsAroundHit how many words of context we want
+	 * @param sources forward indices to get context from (may contain nulls)
+	 * @return for each source, the index of its context block, or -1 if the source was null
+	 */
+	private int[] getContextWords(int wordsAroundHit, ForwardIndex[] sources) {
+		int[] block = new int[sources.length];
+		List<ForwardIndex> contextSources = new ArrayList<ForwardIndex>(sources.length);
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] == null) {
+				block[i] = -1;
+			} else {
+				block[i] = contextSources.size();
+				contextSources.add(sources[i]);
 			}
-			List<String> properties = new ArrayList<String>();
-			properties.add(searcher.concPunctFI);
-			for (int k = 0; k < attrContext.length; k++) {
-				properties.add(attrName[k]);
+		}
+		if (contextSources.isEmpty()) {
+			// No forward indices at all. We still need the context structure.
+			hits.clearContext();
+			for (int i = 0; i < hits.size(); i++) {
+				int start = hits.start(i);
+				int first = wordsAroundHit >= start ? 0 : start - wordsAroundHit;
+				hits.reserveContext(i, 0, start - first, hits.end(i) - first, 0);
 			}
-			properties.add(searcher.concWordFI);
-			Kwic kwic = new Kwic(properties, part.get(0), part.get(1), part.get(2));
-			kwics.put(h, kwic);
+		} else {
+			getContextWords(wordsAroundHit, contextSources);
 		}
+		return block;
+	}
 
-		if (oldContext != null) {
-			restoreContextInHits(oldContext);
+	/**
+	 * Get the Terms objects for a number of forward indices.
+	 *
+	 * @param sources the forward indices (may contain nulls)
+	 * @return the Terms objects (null where the forward index was null)
+	 */
+	private static Terms[] getTerms(ForwardIndex[] sources) {
+		Terms[] terms = new Terms[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			if (sources[i] != null)
+				terms[i] = sources[i].getTerms();
 		}
+		return terms;
 	}
 
 	/**
-	 * Get context words from the forward index.
+	 * Get context words from the forward index, for all hits.
+	 *
+	 * All hits must be in the same document.
 	 *
 	 * NOTE: not synchronized because only ever called from synchronized methods!
 	 *
@@ -1589,21 +2070,47 @@ public class Hits implements Iterable<Hit> {
 	 *            forward indices to get context from
 	 */
 	private void getContextWords(int wordsAroundHit, List<ForwardIndex> contextSources) {
-
 		int n = hits.size();
-		if (n == 0)
+		int[] hitIndices = new int[n];
+		for (int i = 0; i < n; i++) {
+			hitIndices[i] = i;
+		}
+		hits.clearContext();
+		getContextWords(wordsAroundHit, contextSources, hitIndices, 0, n);
+	}
+
+	/**
+	 * Get context words from the forward index, for some of the hits.
+	 *
+	 * The context is stored in our HitList. All the specified hits must be in the same
+	 * document.
+	 *
+	 * NOTE: not synchronized because only ever called from synchronized methods!
+	 *
+	 * @param wordsAroundHit how many words of context we want
+	 * @param contextSources
+	 *            forward indices to get context from
+	 * @param hitIndices array containing the indices of the hits to get context for
+	 * @param from first element of hitIndices to use
+	 * @param to first element of hitIndices not to use
+	 */
+	private void getContextWords(int wordsAroundHit, List<ForwardIndex> contextSources,
+			int[] hitIndices, int from, int to) {
+
+		int n = to - from;
+		if (n <= 0)
 			return;
 		int[] startsOfSnippets = new int[n];
 		int[] endsOfSnippets = new int[n];
-		int i = 0;
-		for (Hit h: hits) {
-			startsOfSnippets[i] = wordsAroundHit >= h.start ? 0 : h.start - wordsAroundHit;
-			endsOfSnippets[i] = h.end + wordsAroundHit;
-			i++;
+		for (int i = 0; i < n; i++) {
+			int hitIndex = hitIndices[from + i];
+			int start = hits.start(hitIndex);
+			startsOfSnippets[i] = wordsAroundHit >= start ? 0 : start - wordsAroundHit;
+			endsOfSnippets[i] = hits.end(hitIndex) + wordsAroundHit;
 		}
 
 		int fiNumber = 0;
-		int doc = hits.get(0).doc;
+		int doc = hits.doc(hitIndices[from]);
 		for (ForwardIndex forwardIndex: contextSources) {
 			// Get all the words from the forward index
 			List<int[]> words;
@@ -1617,63 +2124,28 @@ public class Hits implements Iterable<Hit> {
 
 			// Build the actual concordances
 			Iterator<int[]> wordsIt = words.iterator();
-			int j = 0;
-			for (Hit hit: hits) {
+			for (int i = 0; i < n; i++) {
+				int hitIndex = hitIndices[from + i];
 				int[] theseWords = wordsIt.next();
 
-				// Put the concordance in the Hit object
-				int firstWordIndex = startsOfSnippets[j];
+				// Put the context in the hit list
+				int firstWordIndex = startsOfSnippets[i];
 
 				if (fiNumber == 0) {
-					// Allocate context array and set hit and right start and context length
-					hit.context = new int[theseWords.length * contextSources.size()];
-					hit.contextHitStart = hit.start - firstWordIndex;
-					hit.contextRightStart = hit.end - firstWordIndex;
-					hit.contextLength = theseWords.length;
+					// Allocate context space and set hit and right start and context length
+					hits.reserveContext(hitIndex, theseWords.length * contextSources.size(),
+							hits.start(hitIndex) - firstWordIndex, hits.end(hitIndex) - firstWordIndex,
+							theseWords.length);
 				}
-				// Copy the context we just retrieved into the context array
-				int start = fiNumber * theseWords.length;
-				System.arraycopy(theseWords, 0, hit.context, start, theseWords.length);
-				j++;
+				// Copy the context we just retrieved into the context arena
+				int start = hits.contextOffset(hitIndex) + fiNumber * theseWords.length;
+				System.arraycopy(theseWords, 0, hits.contextArray(hitIndex), start, theseWords.length);
 			}
 
 			fiNumber++;
 		}
 	}
 
-	/**
-	 * Get the context information from the list of hits, so we can
-	 * look up a different context but still have access to this one as well.
-	 *
-	 * NOTE: not synchronized because only ever called from synchronized methods!
-	 *
-	 * @return the context
-	 */
-	private int[][] getContextFromHits() {
-		int[][] context = new int[hits.size()][];
-		int i = 0;
-		for (Hit h: hits) {
-			context[i] = h.context;
-			i++;
-		}
-		return context;
-	}
-
-	/**
-	 * Put context information into the list of hits.
-	 *
-	 * NOTE: not synchronized because only ever called from synchronized methods!
-	 *
-	 * @param context the context to restore
-	 */
-	private void restoreContextInHits(int[][] context) {
-		int i = 0;
-		for (Hit h: hits) {
-			h.context = context[i];
-			i++;
-		}
-	}
-
 	/**
 	 * Retrieves the concordance information (left, hit and right context) for a number of hits in
 	 * the same document from the ContentStore.
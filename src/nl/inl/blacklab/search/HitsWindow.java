@@ -15,8 +15,6 @@
  *******************************************************************************/
 package nl.inl.blacklab.search;
 
-import java.util.ArrayList;
-
 /**
  * Represents a subset of a Hits object, for example a page of hits.
  */
@@ -66,14 +64,20 @@ public class HitsWindow extends Hits {
 			number = source.size() - first;
 
 		// Copy the hits we're interested in.
-		// (we make a copy because we might want to change the context, which would
-		//  affect the original Hits object if we didn't clone)
-		hits = new ArrayList<Hit>();
+		// (the HitList copies the hit information, so changing the context
+		//  doesn't affect the original Hits object)
+		hits = new HitList();
 		for (int i = first; i < first + number; i++) {
-			hits.add((Hit)source.get(i).clone());
+			hits.add(source.get(i));
 		}
 	}
 
+	@Override
+	public int countSoFarHitsRetrieved() {
+		// Our hits were all copied in the constructor
+		return hits.size();
+	}
+
 	/**
 	 * Are there more hits in the original Hits object beyond our window?
 	 *
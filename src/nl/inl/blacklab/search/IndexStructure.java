@@ -59,12 +59,16 @@ public class IndexStructure {
 		/** Are there XML tag locations stored for this field? */
 		private boolean xmlTags;
 
+		/** Does the field have a character offsets index? */
+		private boolean charOffsetsIndex;
+
 		public ComplexFieldDesc(String name) {
 			fieldName = name;
 			props = new TreeMap<String, PropertyDesc>();
 			contentStore = false;
 			lengthInTokens = false;
 			xmlTags = false;
+			charOffsetsIndex = false;
 			mainProperty = null;
 		}
 
@@ -107,6 +111,16 @@ public class IndexStructure {
 			return xmlTags;
 		}
 
+		/**
+		 * Checks if this field has a character offsets index, storing the start and
+		 * end character offset of each token (see CharOffsetsIndex). If so, we don't
+		 * need term vectors with offsets to find the character positions of hits.
+		 * @return true iff there's a character offsets index.
+		 */
+		public boolean hasCharOffsetsIndex() {
+			return charOffsetsIndex;
+		}
+
 		/**
 		 * Checks if this field has a "punctuation" forward index, storing all the
 		 * intra-word characters (whitespace and punctuation) so we can build concordances
@@ -149,6 +163,10 @@ public class IndexStructure {
 					// Complex field has length in tokens
 					lengthInTokens = true;
 					return;
+				case CHAR_OFFSETS_ID:
+					// Complex field has character offsets index
+					charOffsetsIndex = true;
+					return;
 				}
 				throw new RuntimeException();
 			}
@@ -200,11 +218,15 @@ public class IndexStructure {
 				}
 			}
 
-			// None have offsets; just assume the first property is the main one
+			// None have offsets; use the property with the default main property name if
+			// there is one (e.g. when character offsets are stored in a character offsets
+			// index instead of in term vectors), otherwise just assume the first property
+			// is the main one
 			// (note that not having any offsets makes it impossible to highlight the
 			//  original content, but this may not be an issue. We probably need
 			//  a better way to keep track of the main property)
-			mainProperty = firstProperty;
+			PropertyDesc defaultMain = props.get(ComplexFieldUtil.getDefaultMainPropName());
+			mainProperty = defaultMain != null ? defaultMain : firstProperty;
 
 //			throw new RuntimeException(
 //					"No main property (with char. offsets) detected for complex field " + fieldName);
@@ -222,6 +244,7 @@ public class IndexStructure {
 			out.println("  * " + (contentStore ? "Includes" : "No") + " content store");
 			out.println("  * " + (xmlTags ? "Includes" : "No") + " XML tag index");
 			out.println("  * " + (lengthInTokens ? "Includes" : "No") + " document length field");
+			out.println("  * " + (charOffsetsIndex ? "Includes" : "No") + " character offsets index");
 		}
 
 	}
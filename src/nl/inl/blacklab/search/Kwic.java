@@ -15,8 +15,10 @@
  *******************************************************************************/
 package nl.inl.blacklab.search;
 
+import java.util.AbstractList;
 import java.util.List;
 
+import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.util.StringUtil;
 
 
@@ -41,6 +43,9 @@ import nl.inl.util.StringUtil;
  *
  * This object may be converted to the old-style Concordance object (with XML strings)
  * by calling Kwic.toConcordance().
+ *
+ * A Kwic made by Hits only stores the term ids of the context; the context
+ * lists are views that look up the strings when they are read.
  */
 public class Kwic {
 
@@ -75,6 +80,35 @@ public class Kwic {
 		this.right = right;
 	}
 
+	/**
+	 * Construct a Kwic from the term ids retrieved from the forward indices.
+	 *
+	 * The context array contains the term ids for each property that has a forward index,
+	 * one block of contextLength ids after the other.
+	 *
+	 * @param properties
+	 *            What properties are stored in what order for this Kwic (punct first, word last)
+	 * @param terms
+	 *            Terms object for each property, or null if the property has no forward index
+	 * @param block
+	 *            for each property, the index of its block in the context array (or -1 if none)
+	 * @param context
+	 *            the term ids
+	 * @param contextLength
+	 *            number of words in the context
+	 * @param hitStart
+	 *            where the hit starts in the context
+	 * @param rightStart
+	 *            where the right context starts in the context
+	 */
+	Kwic(List<String> properties, Terms[] terms, int[] block, int[] context, int contextLength,
+			int hitStart, int rightStart) {
+		this.properties = properties;
+		left = new ContextList(terms, block, context, contextLength, 0, hitStart);
+		match = new ContextList(terms, block, context, contextLength, hitStart, rightStart);
+		right = new ContextList(terms, block, context, contextLength, rightStart, contextLength);
+	}
+
 	/**
 	 * Convert this Kwic object to a Concordance object (the same information in XML format).
 	 * @return the Concordance object
@@ -120,4 +154,51 @@ public class Kwic {
 		return b.toString();
 	}
 
+	/**
+	 * A part of the context (left, match or right), stored as term ids.
+	 *
+	 * Properties without a forward index have a default value: a space for punctuation,
+	 * the empty string otherwise.
+	 */
+	private static class ContextList extends AbstractList<String> {
+
+		private Terms[] terms;
+
+		private int[] block;
+
+		private int[] context;
+
+		private int contextLength;
+
+		private int firstWord;
+
+		private int numberOfWords;
+
+		ContextList(Terms[] terms, int[] block, int[] context, int contextLength, int firstWord,
+				int lastWord) {
+			this.terms = terms;
+			this.block = block;
+			this.context = context;
+			this.contextLength = contextLength;
+			this.firstWord = firstWord;
+			numberOfWords = lastWord - firstWord;
+		}
+
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= size())
+				throw new IndexOutOfBoundsException("" + index);
+			int word = firstWord + index / terms.length;
+			int property = index % terms.length;
+			if (block[property] < 0)
+				return property == 0 ? " " : "";
+			return terms[property].get(context[block[property] * contextLength + word]);
+		}
+
+		@Override
+		public int size() {
+			return numberOfWords * terms.length;
+		}
+	}
+
 }
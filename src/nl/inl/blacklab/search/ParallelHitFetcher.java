@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import nl.inl.blacklab.search.lucene.BLSpansWrapper;
+import nl.inl.util.ExUtil;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * Executes a SpanQuery using multiple threads.
+ *
+ * The index is split into slices (ranges of document ids). Each slice gets its
+ * own Spans object (over the whole index, so filters and forward index lookups work
+ * as usual), which skips to the start of the slice and stops at the end. The slices are
+ * processed by a (shared) pool of worker threads, and the results are merged in document order.
+ *
+ * maxHitsToRetrieve and maxHitsToCount are enforced globally: the result is exactly the
+ * same as when executing the query on a single thread. A slice stops early once the
+ * slices before it (which only ever grow) plus its own hits exceed these limits.
+ */
+class ParallelHitFetcher {
+
+	/** Number of slices per thread (more slices means better load balancing) */
+	private static final int SLICES_PER_THREAD = 4;
+
+	/** How often a slice checks whether it can stop early */
+	private static final int CHECK_INTERVAL = 1000;
+
+	/** Hits found in one range of documents. */
+	private class Slice implements Runnable {
+
+		/** Index of this slice */
+		private int index;
+
+		/** First document in this slice */
+		private int startDoc;
+
+		/** First document after this slice */
+		private int endDoc;
+
+		/** The hits stored from this slice */
+		private HitList hits = new HitList();
+
+		/** Number of hits counted; may be more than hits.size() */
+		private volatile int counted = 0;
+
+		/** Number of hits stored (same as hits.size(), but safe to read from other threads) */
+		private volatile int stored = 0;
+
+		/** Documents counted hits occur in */
+		private int[] runDoc = new int[16];
+
+		/** Number of counted hits in each of the documents in runDoc */
+		private int[] runLength = new int[16];
+
+		/** Number of entries in runDoc/runLength */
+		private int runs = 0;
+
+		/** Did we stop before seeing all hits in this slice? */
+		private boolean stoppedEarly = false;
+
+		Slice(int index, int startDoc, int endDoc) {
+			this.index = index;
+			this.startDoc = startDoc;
+			this.endDoc = endDoc;
+		}
+
+		@Override
+		public void run() {
+			if (cancelled)
+				return;
+			try {
+				Spans spans = BLSpansWrapper.optWrap(query.getSpans(reader));
+				boolean storing = true;
+				int n = 0, s = 0;
+				boolean more = spans.skipTo(startDoc);
+				while (more) {
+					int doc = spans.doc();
+					if (doc >= endDoc)
+						break;
+
+					if (n % CHECK_INTERVAL == 0) {
+						// Publish our progress and see if we can stop
+						counted = n;
+						stored = s;
+						if (Thread.currentThread().isInterrupted() || cancelled)
+							throw new InterruptedException();
+						if (maxHitsToCount >= 0 && countedBefore(index) + n >= maxHitsToCount) {
+							stoppedEarly = true;
+							break;
+						}
+						if (storing && maxHitsToRetrieve >= 0 && storedBefore(index) + s >= maxHitsToRetrieve)
+							storing = false;
+					}
+
+					// Count the hit, and store it if we may still need it
+					if (runs > 0 && runDoc[runs - 1] == doc) {
+						runLength[runs - 1]++;
+					} else {
+						if (runs == runDoc.length) {
+							runDoc = grow(runDoc);
+							runLength = grow(runLength);
+						}
+						runDoc[runs] = doc;
+						runLength[runs] = 1;
+						runs++;
+					}
+					n++;
+					if (storing && (maxHitsToRetrieve < 0 || s < maxHitsToRetrieve)) {
+						hits.add(doc, spans.start(), spans.end());
+						s++;
+					}
+					if (maxHitsToCount >= 0 && n >= maxHitsToCount) {
+						stoppedEarly = true;
+						break;
+					}
+					more = spans.next();
+				}
+				counted = n;
+				stored = s;
+			} catch (InterruptedException e) {
+				cancelled = true;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private int[] grow(int[] array) {
+			int[] newArray = new int[array.length * 2];
+			System.arraycopy(array, 0, newArray, 0, array.length);
+			return newArray;
+		}
+	}
+
+	/** The index to search */
+	private IndexReader reader;
+
+	/** The (rewritten) query to execute */
+	private SpanQuery query;
+
+	/** The threads to execute the slices on */
+	private ExecutorService pool;
+
+	/** Maximum number of threads to use */
+	private int numberOfThreads;
+
+	/** Stop retrieving hits after this number (-1 = don't stop retrieving) */
+	private int maxHitsToRetrieve;
+
+	/** Stop counting hits after this number (-1 = don't stop counting) */
+	private int maxHitsToCount;
+
+	/** The slices we're executing */
+	private List<Slice> slices;
+
+	/** Set if we were interrupted; makes all slices stop */
+	private volatile boolean cancelled = false;
+
+	/** The merged hits */
+	private HitList hits;
+
+	private int hitsCounted;
+
+	private int docsCounted;
+
+	private int docsRetrieved;
+
+	private boolean maxHitsRetrieved;
+
+	private boolean maxHitsCounted;
+
+	/**
+	 * Construct the fetcher.
+	 *
+	 * @param reader the index to search
+	 * @param query the query to execute (should already be rewritten)
+	 * @param pool the threads to execute the slices on (not shut down by the fetcher)
+	 * @param numberOfThreads maximum number of threads to use
+	 * @param maxHitsToRetrieve stop retrieving hits after this number (-1 = don't stop retrieving)
+	 * @param maxHitsToCount stop counting hits after this number (-1 = don't stop counting)
+	 */
+	ParallelHitFetcher(IndexReader reader, SpanQuery query, ExecutorService pool, int numberOfThreads,
+			int maxHitsToRetrieve, int maxHitsToCount) {
+		this.reader = reader;
+		this.query = query;
+		this.pool = pool;
+		this.numberOfThreads = numberOfThreads;
+		this.maxHitsToRetrieve = maxHitsToRetrieve;
+		this.maxHitsToCount = maxHitsToCount;
+	}
+
+	/**
+	 * Number of hits counted in the slices before this one.
+	 *
+	 * May be less than the final number, as those slices may still be running.
+	 *
+	 * @param sliceIndex the slice
+	 * @return number of hits counted so far in the slices before it
+	 */
+	int countedBefore(int sliceIndex) {
+		long total = 0;
+		for (int i = 0; i < sliceIndex; i++) {
+			total += slices.get(i).counted;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, total);
+	}
+
+	/**
+	 * Number of hits stored in the slices before this one.
+	 *
+	 * May be less than the final number, as those slices may still be running.
+	 *
+	 * @param sliceIndex the slice
+	 * @return number of hits stored so far in the slices before it
+	 */
+	int storedBefore(int sliceIndex) {
+		long total = 0;
+		for (int i = 0; i < sliceIndex; i++) {
+			total += slices.get(i).stored;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, total);
+	}
+
+	/**
+	 * Execute the query on all slices and merge the results.
+	 *
+	 * Doesn't return until all slices have stopped, even if interrupted, so the
+	 * caller may close the index afterwards.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	void fetch() throws InterruptedException {
+		int maxDoc = reader.maxDoc();
+		int numberOfSlices = Math.max(1, Math.min(numberOfThreads * SLICES_PER_THREAD, maxDoc));
+		slices = new ArrayList<Slice>(numberOfSlices);
+		for (int i = 0; i < numberOfSlices; i++) {
+			int start = (int) ((long) maxDoc * i / numberOfSlices);
+			int end = (int) ((long) maxDoc * (i + 1) / numberOfSlices);
+			slices.add(new Slice(i, start, end));
+		}
+
+		// Execute the slices (in order, so the earlier slices can make the later ones stop early)
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (Slice slice: slices) {
+				futures.add(pool.submit(slice));
+			}
+			for (Future<?> future: futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			cancelled = true;
+			throw e;
+		} catch (ExecutionException e) {
+			cancelled = true;
+			throw ExUtil.wrapRuntimeException(e.getCause());
+		} finally {
+			// The pool is shared, so we can't just shut it down: wait for our
+			// (cancelled) slices to stop using the index
+			waitForSlices(futures);
+		}
+		if (cancelled)
+			throw new InterruptedException("Thread was interrupted while gathering hits");
+
+		merge();
+	}
+
+	/**
+	 * Wait for the submitted slices to finish, ignoring interrupts and errors.
+	 *
+	 * If we were interrupted while waiting, the interrupt status is restored afterwards.
+	 *
+	 * @param futures the submitted slices
+	 */
+	private static void waitForSlices(List<Future<?>> futures) {
+		boolean interrupted = false;
+		for (Future<?> future: futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Make all slices stop as soon as possible; fetch() will throw InterruptedException.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Merge the slices in document order, applying the limits.
+	 */
+	private void merge() {
+		hits = new HitList();
+		hitsCounted = 0;
+		docsCounted = 0;
+		docsRetrieved = 0;
+		maxHitsRetrieved = false;
+		maxHitsCounted = false;
+		for (Slice slice: slices) {
+			int pos = 0; // position of the current hit within the slice
+			for (int run = 0; run < slice.runs; run++) {
+				int length = slice.runLength[run];
+				if (maxHitsToCount >= 0 && hitsCounted + length >= maxHitsToCount) {
+					// We'll reach the maximum number of hits to count in this document
+					length = maxHitsToCount - hitsCounted;
+					maxHitsCounted = true;
+				}
+				if (length == 0)
+					break;
+				hitsCounted += length;
+				docsCounted++;
+
+				// Retrieve the hits we stored for this document (as long as we're allowed to)
+				int available = Math.max(0, Math.min(length, slice.hits.size() - pos));
+				int retrieve = available;
+				if (maxHitsToRetrieve >= 0)
+					retrieve = Math.max(0, Math.min(retrieve, maxHitsToRetrieve - hits.size()));
+				for (int i = pos; i < pos + retrieve; i++) {
+					hits.add(slice.hits.doc(i), slice.hits.start(i), slice.hits.end(i));
+				}
+				if (retrieve > 0)
+					docsRetrieved++;
+				if (retrieve < length)
+					maxHitsRetrieved = true;
+				pos += length;
+				if (maxHitsCounted)
+					return;
+			}
+			if (slice.stoppedEarly) {
+				// Only happens if we've reached the maximum number of hits to count
+				maxHitsCounted = true;
+				return;
+			}
+		}
+	}
+
+	/** @return the merged hits */
+	HitList getHits() {
+		return hits;
+	}
+
+	/** @return number of hits counted */
+	int getHitsCounted() {
+		return hitsCounted;
+	}
+
+	/** @return number of documents counted */
+	int getDocsCounted() {
+		return docsCounted;
+	}
+
+	/** @return number of documents retrieved */
+	int getDocsRetrieved() {
+		return docsRetrieved;
+	}
+
+	/** @return true if we stopped retrieving hits because we reached the maximum */
+	boolean maxHitsRetrieved() {
+		return maxHitsRetrieved;
+	}
+
+	/** @return true if we stopped counting hits because we reached the maximum */
+	boolean maxHitsCounted() {
+		return maxHitsCounted;
+	}
+
+}
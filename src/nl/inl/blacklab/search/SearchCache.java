@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import nl.inl.blacklab.perdocument.DocGrouper;
+import nl.inl.blacklab.perdocument.DocProperty;
+import nl.inl.blacklab.perdocument.DocResults;
+import nl.inl.blacklab.search.grouping.HitProperty;
+import nl.inl.blacklab.search.grouping.ResultsGrouper;
+import nl.inl.util.ExUtil;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.Filter;
+
+/**
+ * Caches search results, so a query that is executed repeatedly (e.g. by a web
+ * application, for paging, sorting and grouping the same results) is only executed once.
+ *
+ * Results are keyed on the rewritten TextPattern, the field and the filter (filters
+ * are compared using equals(), which Lucene's filters such as QueryWrapperFilter
+ * implement). Sorted and grouped results are additionally keyed on a string that
+ * identifies the sort or group criteria, supplied by the caller; usually this is the
+ * request parameter the criteria were created from.
+ *
+ * If several threads request the same results at the same time, the search is only
+ * executed once and the threads share the results. The Hits object returned by
+ * getHits() is fetched in the background, so threads can use the first hits while
+ * the rest are still being fetched.
+ *
+ * NOTE: cached results are shared, so callers must not change them: don't sort,
+ * cancel or change the settings of a Hits object from this cache. Use getSortedHits()
+ * and getGroups() instead, which work on a copy of the hits.
+ *
+ * When the estimated size of the cached results exceeds the maximum, the least
+ * recently used results are evicted. Searches that are still running are never evicted.
+ */
+public class SearchCache {
+	protected static final Logger logger = Logger.getLogger(SearchCache.class);
+
+	/** Estimated memory use per hit (doc, start and end, plus some list overhead) */
+	private static final int BYTES_PER_HIT = 16;
+
+	/** Estimated memory use per group, excluding its hits */
+	private static final int BYTES_PER_GROUP = 200;
+
+	/** Estimated memory use per document result, excluding its hits */
+	private static final int BYTES_PER_DOC_RESULT = 200;
+
+	/** Estimated memory use of an entry, excluding its results */
+	private static final int BYTES_PER_ENTRY = 500;
+
+	/** Identifies cached results: the kind of results and what they were created from */
+	private static final class Key {
+		private List<Object> parts;
+
+		Key(Object... parts) {
+			this.parts = Arrays.asList(parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return parts.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && parts.equals(((Key) obj).parts);
+		}
+
+		@Override
+		public String toString() {
+			return parts.toString();
+		}
+	}
+
+	/** The searcher we cache results for */
+	private Searcher searcher;
+
+	/** Maximum estimated size of the cached results, in bytes */
+	private long maxSize;
+
+	/** The cached results (or searches in progress), least recently used first */
+	private Map<Key, FutureTask<Object>> entries = new LinkedHashMap<Key, FutureTask<Object>>(16, 0.75f, true);
+
+	/** Number of requests that found their results in the cache */
+	private long cacheHits = 0;
+
+	/** Number of requests that had to execute a search */
+	private long cacheMisses = 0;
+
+	/** Number of results evicted because the cache was full */
+	private long evictions = 0;
+
+	/**
+	 * Construct the cache.
+	 *
+	 * @param searcher the searcher to cache results for
+	 * @param maxSize maximum estimated size of the cached results, in bytes
+	 */
+	public SearchCache(Searcher searcher, long maxSize) {
+		this.searcher = searcher;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Find hits for a pattern in a field, or get them from the cache.
+	 *
+	 * The hits are shared; don't change them (see class comment).
+	 *
+	 * @param pattern the pattern to find
+	 * @param fieldName field to find pattern in
+	 * @param filter determines which documents to search, or null for all documents
+	 * @return the hits found
+	 */
+	public Hits getHits(final TextPattern pattern, final String fieldName, final Filter filter) {
+		return (Hits) get(hitsKey(pattern, fieldName, filter), new Callable<Object>() {
+			@Override
+			public Object call() {
+				Hits hits = searcher.find(pattern, fieldName, filter);
+				hits.startBackgroundFetch();
+				return hits;
+			}
+		});
+	}
+
+	/**
+	 * Find hits for a pattern in a field and sort them, or get them from the cache.
+	 *
+	 * The hits are shared; don't change them (see class comment).
+	 *
+	 * @param pattern the pattern to find
+	 * @param fieldName field to find pattern in
+	 * @param filter determines which documents to search, or null for all documents
+	 * @param sortProp the hit property to sort on
+	 * @param reverseSort if true, sort in descending order
+	 * @param sortKey identifies sortProp (see class comment)
+	 * @return the sorted hits
+	 */
+	public Hits getSortedHits(final TextPattern pattern, final String fieldName, final Filter filter,
+			final HitProperty sortProp, final boolean reverseSort, String sortKey) {
+		Key key = new Key("sorted", hitsKey(pattern, fieldName, filter), sortKey, reverseSort,
+				searcher.isDefaultSearchCaseSensitive());
+		return (Hits) get(key, new Callable<Object>() {
+			@Override
+			public Object call() {
+				Hits sorted = getHits(pattern, fieldName, filter).copy();
+				sorted.sort(sortProp, reverseSort);
+				return sorted;
+			}
+		});
+	}
+
+	/**
+	 * Find hits for a pattern in a field and group them, or get the groups from the cache.
+	 *
+	 * The groups are shared; don't change them (see class comment).
+	 *
+	 * @param pattern the pattern to find
+	 * @param fieldName field to find pattern in
+	 * @param filter determines which documents to search, or null for all documents
+	 * @param groupBy the hit property to group on
+	 * @param groupKey identifies groupBy (see class comment)
+	 * @return the groups
+	 */
+	public ResultsGrouper getGroups(final TextPattern pattern, final String fieldName, final Filter filter,
+			final HitProperty groupBy, String groupKey) {
+		Key key = new Key("groups", hitsKey(pattern, fieldName, filter), groupKey,
+				searcher.isDefaultSearchCaseSensitive());
+		return (ResultsGrouper) get(key, new Callable<Object>() {
+			@Override
+			public Object call() {
+				return new ResultsGrouper(getHits(pattern, fieldName, filter).copy(), groupBy);
+			}
+		});
+	}
+
+	/**
+	 * Find documents matching a pattern and group them, or get the groups from the cache.
+	 *
+	 * The groups are shared; don't change them (see class comment).
+	 *
+	 * @param pattern the pattern to find
+	 * @param fieldName field to find pattern in
+	 * @param filter determines which documents to search, or null for all documents
+	 * @param groupBy the document property to group on
+	 * @param groupKey identifies groupBy (see class comment)
+	 * @return the groups
+	 */
+	public DocGrouper getDocGroups(final TextPattern pattern, final String fieldName, final Filter filter,
+			final DocProperty groupBy, String groupKey) {
+		Key key = new Key("docgroups", hitsKey(pattern, fieldName, filter), groupKey);
+		return (DocGrouper) get(key, new Callable<Object>() {
+			@Override
+			public Object call() {
+				Hits hits = getHits(pattern, fieldName, filter);
+				return new DocGrouper(new DocResults(searcher, hits), groupBy);
+			}
+		});
+	}
+
+	/**
+	 * Determine the key for the hits for a pattern.
+	 *
+	 * @param pattern the pattern to find
+	 * @param fieldName field to find pattern in
+	 * @param filter determines which documents to search, or null for all documents
+	 * @return the key
+	 */
+	private Key hitsKey(TextPattern pattern, String fieldName, Filter filter) {
+		// The string representation of the rewritten pattern includes the Lucene fields
+		// and (de)sensitized terms, so it identifies the query
+		String query = pattern.rewrite().translate(new TextPatternTranslatorString(),
+				searcher.getDefaultExecutionContext(fieldName));
+		return new Key("hits", query, fieldName, filter, Hits.getDefaultMaxHitsToRetrieve(),
+				Hits.getDefaultMaxHitsToCount());
+	}
+
+	/**
+	 * Get results from the cache, or create them.
+	 *
+	 * If another thread is creating the same results, waits for it to finish.
+	 *
+	 * @param key identifies the results
+	 * @param create creates the results
+	 * @return the results
+	 */
+	private Object get(Key key, Callable<Object> create) {
+		FutureTask<Object> task;
+		boolean createHere = false;
+		synchronized (this) {
+			task = entries.get(key);
+			if (task == null) {
+				task = new FutureTask<Object>(create);
+				entries.put(key, task);
+				createHere = true;
+				cacheMisses++;
+			} else {
+				cacheHits++;
+			}
+		}
+		if (createHere) {
+			task.run();
+			if (Thread.currentThread().isInterrupted()) {
+				// The results may be incomplete; don't keep them
+				remove(key, task);
+			}
+			removeEldestEntries();
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		} catch (ExecutionException e) {
+			remove(key, task);
+			throw ExUtil.wrapRuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Remove an entry, if it hasn't been replaced yet.
+	 *
+	 * @param key the key
+	 * @param task the entry to remove
+	 */
+	private synchronized void remove(Key key, FutureTask<Object> task) {
+		if (entries.get(key) == task)
+			entries.remove(key);
+	}
+
+	/**
+	 * Remove the least recently used results until the cache isn't too large.
+	 */
+	private synchronized void removeEldestEntries() {
+		long size = getSizeEstimate();
+		Iterator<Map.Entry<Key, FutureTask<Object>>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<Key, FutureTask<Object>> e = it.next();
+			FutureTask<Object> task = e.getValue();
+			if (!isFinished(task))
+				continue; // still running; other threads may be waiting for it
+			size -= estimateSize(task);
+			it.remove();
+			evictions++;
+			logger.debug("Evicted from search cache: " + e.getKey());
+		}
+	}
+
+	/**
+	 * Is this task done, and are its results complete?
+	 *
+	 * @param task the task
+	 * @return true if the results are complete
+	 */
+	private static boolean isFinished(FutureTask<Object> task) {
+		if (!task.isDone())
+			return false;
+		Object results = getResults(task);
+		return !(results instanceof Hits) || ((Hits) results).doneFetchingHits();
+	}
+
+	/**
+	 * Get the results of a task that is done.
+	 *
+	 * @param task the task
+	 * @return the results, or null if the task failed
+	 */
+	private static Object getResults(FutureTask<Object> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Estimate the memory used by cached results.
+	 *
+	 * @param task the task producing the results
+	 * @return the estimated size in bytes
+	 */
+	private static long estimateSize(FutureTask<Object> task) {
+		long size = BYTES_PER_ENTRY;
+		if (!task.isDone())
+			return size;
+		Object results = getResults(task);
+		if (results instanceof Hits) {
+			size += (long) ((Hits) results).countSoFarHitsRetrieved() * BYTES_PER_HIT;
+		} else if (results instanceof ResultsGrouper) {
+			ResultsGrouper groups = (ResultsGrouper) results;
+			size += (long) groups.getTotalResults() * BYTES_PER_HIT
+					+ (long) groups.numberOfGroups() * BYTES_PER_GROUP;
+		} else if (results instanceof DocGrouper) {
+			DocGrouper groups = (DocGrouper) results;
+			size += (long) groups.getTotalResults() * BYTES_PER_DOC_RESULT
+					+ (long) groups.numberOfGroups() * BYTES_PER_GROUP;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the estimated memory used by the cached results, in bytes
+	 */
+	public synchronized long getSizeEstimate() {
+		long size = 0;
+		for (FutureTask<Object> task: entries.values()) {
+			size += estimateSize(task);
+		}
+		return size;
+	}
+
+	/**
+	 * @return the maximum estimated size of the cached results, in bytes
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Set the maximum estimated size of the cached results.
+	 *
+	 * @param maxSize the maximum size in bytes
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		removeEldestEntries();
+	}
+
+	/**
+	 * @return the number of cached results (including searches in progress)
+	 */
+	public synchronized int numberOfEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of requests that found their results in the cache
+	 */
+	public synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * @return the number of requests that had to execute a search
+	 */
+	public synchronized long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	/**
+	 * @return the number of results evicted because the cache was full
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Remove all cached results.
+	 *
+	 * Stops fetching the cached hits and waits for their fetch threads to finish,
+	 * so the index may be closed afterwards (see Searcher.close()). Searches in progress
+	 * are waited for as well, then their hits are cancelled in the same way.
+	 */
+	public void clear() {
+		List<FutureTask<Object>> tasks;
+		synchronized (this) {
+			tasks = new ArrayList<FutureTask<Object>>(entries.values());
+			entries.clear();
+		}
+
+		// Cancel the finished ones first: searches in progress may be waiting for their hits
+		for (FutureTask<Object> task: tasks) {
+			if (task.isDone())
+				cancelFetch(task);
+		}
+		try {
+			for (FutureTask<Object> task: tasks) {
+				Object results = cancelFetch(task);
+				if (results instanceof Hits)
+					((Hits) results).waitForFetchThread();
+			}
+		} catch (InterruptedException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Wait for a task, and if its results are hits, stop fetching them.
+	 *
+	 * @param task the task
+	 * @return the results, or null if the task failed
+	 */
+	private static Object cancelFetch(FutureTask<Object> task) {
+		Object results = getResults(task);
+		if (results instanceof Hits)
+			((Hits) results).cancelFetch();
+		return results;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SearchCache(" + entries.size() + " entries, ~" + getSizeEstimate() / 1024 + "K, " +
+				cacheHits + " hits, " + cacheMisses + " misses, " + evictions + " evictions)";
+	}
+
+}
@@ -26,6 +26,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import nl.inl.blacklab.analysis.BLDutchAnalyzer;
 import nl.inl.blacklab.externalstorage.ContentAccessorContentStore;
@@ -34,6 +39,7 @@ import nl.inl.blacklab.externalstorage.ContentStoreDir;
 import nl.inl.blacklab.externalstorage.ContentStoreDirAbstract;
 import nl.inl.blacklab.externalstorage.ContentStoreDirUtf8;
 import nl.inl.blacklab.externalstorage.ContentStoreDirZip;
+import nl.inl.blacklab.forwardindex.CharOffsetsIndex;
 import nl.inl.blacklab.forwardindex.ForwardIndex;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.highlight.XmlHighlighter;
@@ -53,6 +59,8 @@ import nl.inl.util.VersionFile;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -124,6 +132,16 @@ public class Searcher {
 	 */
 	Map<String, ForwardIndex> forwardIndices = new HashMap<String, ForwardIndex>();
 
+	/**
+	 * The character offsets indices, by complex field name (if any)
+	 */
+	Map<String, CharOffsetsIndex> charOffsetsIndices = new HashMap<String, CharOffsetsIndex>();
+
+	/**
+	 * The values of stored fields used for sorting/grouping, by field name (built when first needed)
+	 */
+	private Map<String, StoredFieldColumn> storedFieldColumns = new HashMap<String, StoredFieldColumn>();
+
 	/**
 	 * The Lucene index reader
 	 */
@@ -142,6 +160,15 @@ public class Searcher {
 	/** Default number of words around a hit */
 	private int defaultContextSize = 5;
 
+	/** Number of threads to use for executing a query [1] */
+	private int queryThreads = 1;
+
+	/** Threads executing queries in parallel, shared by all queries (created when first used) */
+	private ThreadPoolExecutor queryThreadPool;
+
+	/** Cache for search results (created when first used) */
+	private SearchCache searchCache;
+
 	/** Should we default to case-sensitive searching? [false] */
 	private boolean defaultCaseSensitive = false;
 
@@ -354,6 +381,16 @@ public class Searcher {
 	 */
 	public void close() {
 		try {
+			// Stop the threads fetching cached hits first; they read from the index
+			if (searchCache != null)
+				searchCache.clear();
+
+			// Don't accept any more parallel query slices
+			synchronized (this) {
+				if (queryThreadPool != null)
+					queryThreadPool.shutdown();
+			}
+
 			indexSearcher.close();
 			indexReader.close();
 			if (indexWriter != null)
@@ -380,6 +417,11 @@ public class Searcher {
 				fi.close();
 			}
 
+			// Close the character offsets indices
+			for (CharOffsetsIndex coi: charOffsetsIndices.values()) {
+				coi.close();
+			}
+
 			// Close the content accessor(s)
 			// (the ContentStore, and possibly other content accessors
 			// (although that feature is not used right now))
@@ -520,7 +562,7 @@ public class Searcher {
 	 *             if a wildcard or regular expression term is overly broad
 	 */
 	public Hits find(SpanQuery query, String fieldNameConc) throws BooleanQuery.TooManyClauses {
-		return new Hits(this, fieldNameConc, query);
+		return new Hits(this, fieldNameConc, query, queryThreads);
 	}
 
 	/**
@@ -533,7 +575,7 @@ public class Searcher {
 	 *             if a wildcard or regular expression term is overly broad
 	 */
 	public Hits find(SpanQuery query) throws BooleanQuery.TooManyClauses {
-		return new Hits(this, fieldNameContents, query);
+		return new Hits(this, fieldNameContents, query, queryThreads);
 	}
 
 	/**
@@ -552,7 +594,7 @@ public class Searcher {
 	 */
 	public Hits find(TextPattern pattern, String fieldName, Filter filter)
 			throws BooleanQuery.TooManyClauses {
-		return new Hits(this, fieldName, createSpanQuery(pattern, fieldName, filter));
+		return new Hits(this, fieldName, createSpanQuery(pattern, fieldName, filter), queryThreads);
 	}
 
 	/**
@@ -655,6 +697,9 @@ public class Searcher {
 	 *
 	 * Places character positions in the same arrays as the word positions were specified in.
 	 *
+	 * Uses the character offsets index for the field if there is one (and the document has
+	 * offsets stored in it); otherwise, reads the term vector of the main property.
+	 *
 	 * @param doc
 	 *            the document from which to find character positions
 	 * @param fieldName
@@ -672,6 +717,40 @@ public class Searcher {
 	 */
 	void getCharacterOffsets(int doc, String fieldName, int[] startsOfWords, int[] endsOfWords,
 			boolean fillInDefaultsIfNotFound) {
+		CharOffsetsIndex charOffsetsIndex = charOffsetsIndices.get(fieldName);
+		if (charOffsetsIndex != null) {
+			int coid = charOffsetsIndex.luceneDocIdToCoid(doc);
+			if (coid >= 0) {
+				// Look up the offsets directly
+				charOffsetsIndex.getCharacterOffsets(coid, startsOfWords, endsOfWords,
+						fillInDefaultsIfNotFound);
+				return;
+			}
+		}
+		getCharacterOffsetsFromTermVector(doc, fieldName, startsOfWords, endsOfWords,
+				fillInDefaultsIfNotFound);
+	}
+
+	/**
+	 * Get character positions from word positions, using the term vector of the
+	 * main property.
+	 *
+	 * This has to read and scan the whole term vector, so it is slow for large documents.
+	 *
+	 * @param doc
+	 *            the document from which to find character positions
+	 * @param fieldName
+	 *            the field from which to find character positions
+	 * @param startsOfWords
+	 *            word positions for which we want starting character positions
+	 * @param endsOfWords
+	 *            word positions for which we want ending character positions
+	 * @param fillInDefaultsIfNotFound
+	 *            if true, illegal word positions get a sane default value. Otherwise,
+	 *            throws an exception.
+	 */
+	private void getCharacterOffsetsFromTermVector(int doc, String fieldName, int[] startsOfWords,
+			int[] endsOfWords, boolean fillInDefaultsIfNotFound) {
 		String fieldPropName = ComplexFieldUtil.mainPropertyOffsetsField(indexStructure, fieldName);
 		TermFreqVector termFreqVector = getTermFreqVector(doc, fieldPropName);
 		if (!(termFreqVector instanceof TermPositionVector)) {
@@ -1077,6 +1156,10 @@ public class Searcher {
 					getForwardIndex(ComplexFieldUtil.propertyField(field, property));
 				}
 			}
+			if (fieldDesc.hasCharOffsetsIndex()) {
+				// This field has a character offsets index. Open it.
+				getCharOffsetsIndex(field);
+			}
 		}
 
 		if (!indexMode && autoWarmForwardIndices) {
@@ -1168,6 +1251,51 @@ public class Searcher {
 		return forwardIndex;
 	}
 
+	/**
+	 * Get the values of a stored (metadata) field for all documents, for fast sorting
+	 * and grouping.
+	 *
+	 * The values are read from the index the first time this is called for a field.
+	 *
+	 * @param fieldName the stored field
+	 * @return the values
+	 */
+	public StoredFieldColumn getStoredFieldColumn(String fieldName) {
+		synchronized (storedFieldColumns) {
+			StoredFieldColumn column = storedFieldColumns.get(fieldName);
+			if (column == null) {
+				column = new StoredFieldColumn(indexReader, fieldName);
+				storedFieldColumns.put(fieldName, column);
+			}
+			return column;
+		}
+	}
+
+	/**
+	 * Get the character offsets index for the specified complex field.
+	 *
+	 * Looks for an already-opened index first. If none is found and we're in index mode,
+	 * opens or creates one. Otherwise, opens an existing index, if there is one.
+	 *
+	 * @param fieldName
+	 *            the complex field for which we want the character offsets index
+	 * @return the index if found/created, or null otherwise
+	 */
+	public CharOffsetsIndex getCharOffsetsIndex(String fieldName) {
+		CharOffsetsIndex charOffsetsIndex = charOffsetsIndices.get(fieldName);
+		if (charOffsetsIndex == null) {
+			File dir = new File(indexLocation, "co_" + fieldName);
+			if (!indexMode && !dir.exists()) {
+				// Index doesn't exist
+				return null;
+			}
+			charOffsetsIndex = new CharOffsetsIndex(dir, indexMode, createdNewIndex);
+			charOffsetsIndex.setIdTranslateInfo(indexReader, fieldName);
+			charOffsetsIndices.put(fieldName, charOffsetsIndex);
+		}
+		return charOffsetsIndex;
+	}
+
 	/**
 	 * Retrieve concordancs for a list of hits.
 	 *
@@ -1339,6 +1467,80 @@ public class Searcher {
 		this.defaultContextSize = defaultContextSize;
 	}
 
+	/**
+	 * Get the number of threads used for executing a query.
+	 * @return the number of threads
+	 */
+	public int getQueryThreads() {
+		return queryThreads;
+	}
+
+	/**
+	 * Set the number of threads to use for executing a query.
+	 *
+	 * If more than 1, the index is split into ranges of documents, and
+	 * the query is executed on each range in parallel. This speeds up queries
+	 * with many hits, at the cost of always fetching all hits (up to
+	 * Hits.getMaxHitsToCount()) as soon as any hit is requested.
+	 *
+	 * All queries share the same threads, so at most this many threads are
+	 * used in total.
+	 *
+	 * @param queryThreads the number of threads [1]
+	 */
+	public synchronized void setQueryThreads(int queryThreads) {
+		this.queryThreads = Math.max(1, queryThreads);
+		if (queryThreadPool != null) {
+			// Resize the pool (the core size may never exceed the maximum size)
+			if (this.queryThreads > queryThreadPool.getMaximumPoolSize()) {
+				queryThreadPool.setMaximumPoolSize(this.queryThreads);
+				queryThreadPool.setCorePoolSize(this.queryThreads);
+			} else {
+				queryThreadPool.setCorePoolSize(this.queryThreads);
+				queryThreadPool.setMaximumPoolSize(this.queryThreads);
+			}
+		}
+	}
+
+	/**
+	 * Get the threads for executing queries in parallel (see setQueryThreads()).
+	 *
+	 * Idle threads are stopped after a while. The pool is shut down when the
+	 * Searcher is closed.
+	 *
+	 * @return the thread pool
+	 */
+	synchronized ExecutorService getQueryThreadPool() {
+		if (queryThreadPool == null) {
+			queryThreadPool = new ThreadPoolExecutor(queryThreads, queryThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "BlackLab query thread");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			queryThreadPool.allowCoreThreadTimeOut(true);
+		}
+		return queryThreadPool;
+	}
+
+	/**
+	 * Get the cache for search results.
+	 *
+	 * Applications that execute the same query repeatedly (e.g. for paging, sorting
+	 * and grouping) should get their results from the cache instead of calling find().
+	 * By default, the cache may use up to 10% of the maximum heap size.
+	 *
+	 * @return the search cache
+	 */
+	public synchronized SearchCache getCache() {
+		if (searchCache == null)
+			searchCache = new SearchCache(this, Runtime.getRuntime().maxMemory() / 10);
+		return searchCache;
+	}
+
 	/**
 	 * Factory method to create a directory content store.
 	 *
@@ -1564,6 +1766,13 @@ public class Searcher {
 							fi.deleteDocument(fiid);
 						}
 
+						// Delete this document in all character offsets indices
+						for (Map.Entry<String, CharOffsetsIndex> e: charOffsetsIndices.entrySet()) {
+							String coid = d.get(ComplexFieldUtil.charOffsetsIdField(e.getKey()));
+							if (coid != null)
+								e.getValue().deleteDocument(Integer.parseInt(coid));
+						}
+
 						// Delete this document in all content stores
 						for (Map.Entry<String, ContentAccessor> e: contentAccessors.entrySet()) {
 							String fieldName = e.getKey();
@@ -1591,6 +1800,152 @@ public class Searcher {
 		}
 	}
 
+	/**
+	 * Optimize the index for searching.
+	 *
+	 * Merges the Lucene index into a single segment, so the Lucene document ids are
+	 * final, then compacts the forward indices, character offsets indices and content
+	 * stores (see compact()), so their documents are stored in that same order. This
+	 * makes scans over many documents (e.g. when sorting or grouping hits) read the
+	 * files sequentially.
+	 *
+	 * Forward index ids don't change, so mapping a Lucene document id to a forward index
+	 * id is still a lookup in an array; but for an optimized index, the entries are read
+	 * in ascending order.
+	 *
+	 * The index should not be searched while optimizing.
+	 */
+	public void optimize() {
+		if (!indexMode)
+			throw new RuntimeException("Cannot optimize, not in index mode");
+		try {
+			logger.info("Merging Lucene index");
+			indexWriter.forceMerge(1);
+			indexWriter.commit();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		compact();
+	}
+
+	/**
+	 * Compact the forward indices, character offsets indices and content stores.
+	 *
+	 * Removes the space left behind by deleted documents and stores the documents in Lucene
+	 * document order, so reading documents in that order (e.g. when sorting or grouping hits)
+	 * reads the files sequentially. Their ids don't change. Forward indices and content
+	 * stores in an older format that doesn't support compacting are skipped.
+	 *
+	 * The index should not be searched while compacting.
+	 */
+	public void compact() {
+		if (!indexMode)
+			throw new RuntimeException("Cannot compact, not in index mode");
+		try {
+			// Collect the forward index, character offsets index and content store ids
+			// in Lucene document order
+			Map<String, String> idFields = new HashMap<String, String>();
+			Map<String, ForwardIndex> compactableForwardIndices = getCompactableForwardIndices();
+			for (String fieldName: compactableForwardIndices.keySet()) {
+				idFields.put(ComplexFieldUtil.forwardIndexIdField(fieldName), fieldName);
+			}
+			for (String fieldName: charOffsetsIndices.keySet()) {
+				idFields.put(ComplexFieldUtil.charOffsetsIdField(fieldName), fieldName);
+			}
+			Map<String, ContentStoreDirUtf8> contentStores = getCompactableContentStores();
+			for (Map.Entry<String, ContentStoreDirUtf8> e: contentStores.entrySet()) {
+				idFields.put(ComplexFieldUtil.contentIdField(e.getKey()), e.getKey());
+			}
+			Map<String, int[]> idsInDocOrder = new HashMap<String, int[]>();
+			int n = 0;
+			IndexReader reader = IndexReader.open(indexWriter, true);
+			try {
+				for (String idField: idFields.keySet()) {
+					idsInDocOrder.put(idField, new int[reader.numDocs()]);
+				}
+				FieldSelector fieldSelector = new MapFieldSelector(idFields.keySet().toArray(new String[0]));
+				for (int docId = 0; docId < reader.maxDoc(); docId++) {
+					if (reader.isDeleted(docId))
+						continue;
+					Document d = reader.document(docId, fieldSelector);
+					for (Map.Entry<String, int[]> e: idsInDocOrder.entrySet()) {
+						String id = d.get(e.getKey());
+						e.getValue()[n] = id == null ? -1 : Integer.parseInt(id);
+					}
+					n++;
+				}
+			} finally {
+				reader.close();
+			}
+
+			// Compact the forward indices
+			for (Map.Entry<String, ForwardIndex> e: compactableForwardIndices.entrySet()) {
+				ForwardIndex fi = e.getValue();
+				int[] order = idsInDocOrder.get(ComplexFieldUtil.forwardIndexIdField(e.getKey()));
+				long freed = fi.compact(order);
+				logger.info("Compacted forward index " + e.getKey() + ", freed " + freed + " tokens");
+			}
+
+			// Compact the character offsets indices
+			for (Map.Entry<String, CharOffsetsIndex> e: charOffsetsIndices.entrySet()) {
+				int[] order = idsInDocOrder.get(ComplexFieldUtil.charOffsetsIdField(e.getKey()));
+				long freed = e.getValue().compact(order);
+				logger.info("Compacted character offsets index " + e.getKey() + ", freed " + freed + " tokens");
+			}
+
+			// Compact the content stores
+			for (Map.Entry<String, ContentStoreDirUtf8> e: contentStores.entrySet()) {
+				int[] order = idsInDocOrder.get(ComplexFieldUtil.contentIdField(e.getKey()));
+				long freed = e.getValue().compact(order);
+				logger.info("Compacted content store " + e.getKey() + ", freed " + freed + " bytes");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the forward indices that can be compacted (see compact()).
+	 *
+	 * Other forward indices (in an older format) are skipped.
+	 *
+	 * @return the forward indices to compact, by field name
+	 */
+	private Map<String, ForwardIndex> getCompactableForwardIndices() {
+		Map<String, ForwardIndex> result = new HashMap<String, ForwardIndex>();
+		for (Map.Entry<String, ForwardIndex> e: forwardIndices.entrySet()) {
+			ForwardIndex fi = e.getValue();
+			if (fi.canCompact())
+				result.put(e.getKey(), fi);
+			else
+				logger.info("Forward index " + e.getKey() + " (" + fi.getClass().getSimpleName()
+						+ ") can't be compacted; skipping it");
+		}
+		return result;
+	}
+
+	/**
+	 * Get the content stores that can be compacted (see compact()).
+	 *
+	 * Other content stores (e.g. in the older ContentStoreDir format) are skipped.
+	 *
+	 * @return the content stores to compact, by field name
+	 */
+	private Map<String, ContentStoreDirUtf8> getCompactableContentStores() {
+		Map<String, ContentStoreDirUtf8> result = new HashMap<String, ContentStoreDirUtf8>();
+		for (Map.Entry<String, ContentAccessor> e: contentAccessors.entrySet()) {
+			if (!(e.getValue() instanceof ContentAccessorContentStore))
+				continue;
+			ContentStore cs = ((ContentAccessorContentStore) e.getValue()).getContentStore();
+			if (cs instanceof ContentStoreDirUtf8)
+				result.put(e.getKey(), (ContentStoreDirUtf8) cs);
+			else
+				logger.info("Content store " + e.getKey() + " (" + cs.getClass().getSimpleName()
+						+ ") can't be compacted; skipping it");
+		}
+		return result;
+	}
+
 	public Analyzer getAnalyzer() {
 		return analyzer;
 	}
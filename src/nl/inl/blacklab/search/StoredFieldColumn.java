@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.io.IOException;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.inl.util.ExUtil;
+import nl.inl.util.StringUtil;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * The values of a stored (metadata) field for all documents in the index, for fast
+ * sorting and grouping.
+ *
+ * Reading a stored field means reading (and decompressing) the stored fields of a
+ * document, which is far too slow to do for each comparison when sorting. Instead, we
+ * read each document's value once, and number the distinct values in sort order
+ * (using the collator, with empty values last), so values can be compared by comparing
+ * their ordinals. Years are parsed once as well, for sorting and grouping by decade.
+ *
+ * Immutable after construction, so it may be used from multiple threads.
+ */
+public class StoredFieldColumn {
+
+	/** Decade value for documents without a valid year. Sorts after all other decades. */
+	public static final int NO_DECADE = Integer.MAX_VALUE;
+
+	/** The field name */
+	private String fieldName;
+
+	/** The distinct values, in sort order (the empty value, if any, is last) */
+	private String[] values;
+
+	/** For each document, the ordinal of its value (the index in values) */
+	private int[] docOrdinal;
+
+	/** For each value, the decade (if the value is a year), or NO_DECADE */
+	private int[] decadeOfValue;
+
+	/** For each value, the ordinal of its decade among the distinct decades */
+	private int[] decadeOrdinalOfValue;
+
+	/**
+	 * Read the values of a stored field for all documents in the index.
+	 *
+	 * @param reader the index
+	 * @param fieldName the stored field
+	 * @param collator the collator to sort values with
+	 */
+	public StoredFieldColumn(IndexReader reader, String fieldName, final Collator collator) {
+		this.fieldName = fieldName;
+		try {
+			// Read each document's value and assign a temporary id to each distinct value
+			int maxDoc = reader.maxDoc();
+			docOrdinal = new int[maxDoc];
+			Map<String, Integer> valueIds = new HashMap<String, Integer>();
+			String[] valueById = new String[16];
+			MapFieldSelector onlyThisField = new MapFieldSelector(new String[] { fieldName });
+			for (int doc = 0; doc < maxDoc; doc++) {
+				String value = null;
+				if (!reader.isDeleted(doc)) {
+					Document d = reader.document(doc, onlyThisField);
+					value = d.get(fieldName);
+				}
+				if (value == null)
+					value = "";
+				Integer id = valueIds.get(value);
+				if (id == null) {
+					id = valueIds.size();
+					valueIds.put(value, id);
+					if (id == valueById.length)
+						valueById = Arrays.copyOf(valueById, valueById.length * 2);
+					valueById[id] = value;
+				}
+				docOrdinal[doc] = id;
+			}
+
+			// Sort the distinct values: empty value last, then using the collator.
+			// Values the collator considers equal are ordered by String.compareTo(), so each
+			// distinct value gets its own ordinal.
+			int n = valueIds.size();
+			final CollationKey[] keys = new CollationKey[n];
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				keys[i] = collator.getCollationKey(valueById[i]);
+				order[i] = i;
+			}
+			final String[] valueByIdFinal = valueById;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					String va = valueByIdFinal[a], vb = valueByIdFinal[b];
+					if (va.length() == 0 || vb.length() == 0)
+						return (va.length() == 0 ? 1 : 0) - (vb.length() == 0 ? 1 : 0);
+					int cmp = keys[a].compareTo(keys[b]);
+					return cmp != 0 ? cmp : va.compareTo(vb);
+				}
+			});
+			values = new String[n];
+			int[] ordinalOfId = new int[n];
+			for (int i = 0; i < n; i++) {
+				values[i] = valueById[order[i]];
+				ordinalOfId[order[i]] = i;
+			}
+			for (int doc = 0; doc < maxDoc; doc++) {
+				docOrdinal[doc] = ordinalOfId[docOrdinal[doc]];
+			}
+
+			// Parse the values as years and determine the decades
+			decadeOfValue = new int[n];
+			for (int i = 0; i < n; i++) {
+				decadeOfValue[i] = NO_DECADE;
+				try {
+					int year = Integer.parseInt(values[i].trim());
+					decadeOfValue[i] = year - year % 10;
+				} catch (NumberFormatException e) {
+					// Not a year; leave NO_DECADE
+				}
+			}
+			int[] decades = decadeOfValue.clone();
+			Arrays.sort(decades);
+			int numberOfDecades = 0;
+			for (int i = 0; i < n; i++) {
+				if (numberOfDecades == 0 || decades[i] != decades[numberOfDecades - 1])
+					decades[numberOfDecades++] = decades[i];
+			}
+			decadeOrdinalOfValue = new int[n];
+			for (int i = 0; i < n; i++) {
+				decadeOrdinalOfValue[i] = Arrays.binarySearch(decades, 0, numberOfDecades, decadeOfValue[i]);
+			}
+		} catch (IOException e) {
+			throw ExUtil.wrapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read the values of a stored field for all documents in the index, sorting
+	 * values using the default collator.
+	 *
+	 * @param reader the index
+	 * @param fieldName the stored field
+	 */
+	public StoredFieldColumn(IndexReader reader, String fieldName) {
+		this(reader, fieldName, StringUtil.getDefaultCollator());
+	}
+
+	/**
+	 * @return the field name
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * Get a document's value.
+	 * @param doc the Lucene document id
+	 * @return the value, or the empty string if the document has none
+	 */
+	public String getValue(int doc) {
+		return values[docOrdinal[doc]];
+	}
+
+	/**
+	 * Get the ordinal of a document's value.
+	 *
+	 * Ordinals are in sort order: comparing the ordinals of two documents gives the
+	 * same result as comparing their values (with the empty value last). Documents
+	 * have the same ordinal iff they have the same value.
+	 *
+	 * @param doc the Lucene document id
+	 * @return the ordinal
+	 */
+	public int getOrdinal(int doc) {
+		return docOrdinal[doc];
+	}
+
+	/**
+	 * @return the number of distinct values (including the empty value, if any document
+	 *   doesn't have a value)
+	 */
+	public int numberOfValues() {
+		return values.length;
+	}
+
+	/**
+	 * Get the decade of a document's value (if it is a year).
+	 * @param doc the Lucene document id
+	 * @return the decade (the year rounded down to a multiple of 10), or NO_DECADE if the
+	 *   value is not a valid year
+	 */
+	public int getDecade(int doc) {
+		return decadeOfValue[docOrdinal[doc]];
+	}
+
+	/**
+	 * Get the ordinal of the decade of a document's value.
+	 *
+	 * Comparing decade ordinals gives the same result as comparing decades (with
+	 * NO_DECADE last).
+	 *
+	 * @param doc the Lucene document id
+	 * @return the decade ordinal
+	 */
+	public int getDecadeOrdinal(int doc) {
+		return decadeOrdinalOfValue[docOrdinal[doc]];
+	}
+
+}
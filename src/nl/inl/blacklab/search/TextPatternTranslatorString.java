@@ -57,7 +57,7 @@ public class TextPatternTranslatorString extends TextPatternTranslator<String> {
 
 	@Override
 	public String tags(QueryExecutionContext context, String elementName, Map<String, String> attr) {
-		return "TAGS(" + elementName + (attr == null ? "-" : ", " + StringUtil.join(attr.values(), ";")) + ")";
+		return "TAGS(" + elementName + (attr == null ? "-" : ", " + StringUtil.join(attr.entrySet(), ";")) + ")";
 	}
 
 	@Override
@@ -20,6 +20,7 @@ import java.util.Comparator;
 import java.util.List;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 
 /**
  * Abstract base class for a property of a hit, like document title, hit text, right context, etc.
@@ -47,6 +48,69 @@ public abstract class HitProperty implements Comparator<Object> {
 	@Override
 	public abstract int compare(Object a, Object b);
 
+	/**
+	 * Compares two hits in a HitList on this property.
+	 *
+	 * The default implementation instantiates the two Hit objects and calls
+	 * compare(Object, Object). Subclasses should override this if they can read
+	 * the information they need from the HitList directly; this saves a lot of
+	 * object instantiations while sorting.
+	 *
+	 * @param hits the hits
+	 * @param a index of the first hit
+	 * @param b index of the second hit
+	 * @return 0 if equal, negative if a < b, positive if a > b.
+	 */
+	public int compare(HitList hits, int a, int b) {
+		return compare(hits.get(a), hits.get(b));
+	}
+
+	/**
+	 * Can this property produce sort keys for hits?
+	 *
+	 * If so, hits can be sorted by computing all the sort keys first and comparing
+	 * those, instead of calling compare() O(n log n) times. Comparing sort keys is
+	 * cheap and can be done from multiple threads. Sort keys are also used for grouping
+	 * (hits with equal sort keys are in the same group); in that case, writeSortKey()
+	 * may be called from multiple threads at the same time.
+	 *
+	 * @return true iff sortKeyLength() and writeSortKey() are implemented
+	 */
+	public boolean hasSortKey() {
+		return false;
+	}
+
+	/**
+	 * Get the length of the sort key for a hit.
+	 *
+	 * See writeSortKey() for the format of sort keys.
+	 *
+	 * @param hits the hits
+	 * @param index index of the hit
+	 * @return length of the sort key, including the terminating 0
+	 */
+	public int sortKeyLength(HitList hits, int index) {
+		throw new UnsupportedOperationException("Sort keys not supported for " + getName());
+	}
+
+	/**
+	 * Write the sort key for a hit.
+	 *
+	 * A sort key is a sequence of positive ints (usually sort positions plus one),
+	 * terminated by a 0. Comparing two sort keys element by element gives the same
+	 * result as compare(). Because of the terminating 0, the sort keys of several
+	 * properties can simply be concatenated (see HitPropertyMultiple).
+	 *
+	 * @param hits the hits
+	 * @param index index of the hit
+	 * @param dest where to write the sort key
+	 * @param offset where in dest to start writing
+	 * @return number of ints written (same as sortKeyLength())
+	 */
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		throw new UnsupportedOperationException("Sort keys not supported for " + getName());
+	}
+
 	/**
 	 * Retrieve context from which field(s) prior to sorting/grouping on this
 	 * property?
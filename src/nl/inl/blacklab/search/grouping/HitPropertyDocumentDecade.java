@@ -16,20 +16,29 @@
 package nl.inl.blacklab.search.grouping;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.search.StoredFieldColumn;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 
 /**
  * A hit property for grouping on by decade based on a stored field
  * in the corresponding Lucene document containing a year.
+ *
+ * Uses a StoredFieldColumn, so each document's year is only read and parsed once.
  */
 public class HitPropertyDocumentDecade extends HitProperty {
 	IndexReader reader;
 
 	String fieldName;
 
+	/** Searcher to get the field values from, or null if we read them ourselves */
+	private Searcher searcher;
+
+	/** The field values (retrieved or read when first needed) */
+	private volatile StoredFieldColumn column;
+
 	public HitPropertyDocumentDecade(String fieldName, IndexReader reader) {
 		this.reader = reader;
 		this.fieldName = fieldName;
@@ -37,46 +46,59 @@ public class HitPropertyDocumentDecade extends HitProperty {
 
 	public HitPropertyDocumentDecade(String fieldName, Searcher searcher) {
 		this(fieldName, searcher.getIndexReader());
+		this.searcher = searcher;
+	}
+
+	private StoredFieldColumn getColumn() {
+		if (column == null) {
+			if (searcher != null)
+				column = searcher.getStoredFieldColumn(fieldName);
+			else
+				column = new StoredFieldColumn(reader, fieldName);
+		}
+		return column;
 	}
 
 	@Override
 	public HitPropValueDecade get(Hit result) {
-		try {
-			Document d = reader.document(result.doc);
-			String strYear = d.get(fieldName);
-			int year = Integer.parseInt(strYear);
-			year -= year % 10;
-			return new HitPropValueDecade(year);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		int decade = getColumn().getDecade(result.doc);
+		if (decade == StoredFieldColumn.NO_DECADE)
+			throw new RuntimeException("No valid year in field " + fieldName + " of document " + result.doc);
+		return new HitPropValueDecade(decade);
 	}
 
 	@Override
 	public int compare(Object a, Object b) {
-		try {
-			Document d = reader.document(((Hit)a).doc);
-			String strYearA = d.get(fieldName);
-			if (strYearA == null)
-				strYearA = "";
-			d = reader.document(((Hit)b).doc);
-			String strYearB = d.get(fieldName);
-			if (strYearB == null)
-				strYearB = "";
-			if (strYearA.length() == 0) // sort missing year at the end
-				return strYearB.length() == 0 ? 0 : 1;
-			if (strYearB.length() == 0) // sort missing year at the end
-				return -1;
-			int aYear = Integer.parseInt(strYearA);
-			aYear -= aYear % 10;
-			int bYear = Integer.parseInt(strYearB);
-			bYear -= bYear % 10;
-
-			return aYear - bYear;
-
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return compareDocs(((Hit)a).doc, ((Hit)b).doc);
+	}
+
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		return compareDocs(hits.doc(a), hits.doc(b));
+	}
+
+	private int compareDocs(int docA, int docB) {
+		// Decade ordinals are in sort order (missing year last)
+		StoredFieldColumn col = getColumn();
+		int oa = col.getDecadeOrdinal(docA), ob = col.getDecadeOrdinal(docB);
+		return oa < ob ? -1 : (oa == ob ? 0 : 1);
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return 2;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		dest[offset] = getColumn().getDecadeOrdinal(hits.doc(index)) + 1;
+		dest[offset + 1] = 0;
+		return 2;
 	}
 
 //	@Override
@@ -16,6 +16,7 @@
 package nl.inl.blacklab.search.grouping;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 
 /**
  * A hit property for grouping per document.
@@ -41,4 +42,26 @@ public class HitPropertyDocumentId extends HitProperty {
 		return ((Hit)a).doc - ((Hit)b).doc;
 	}
 
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		return hits.doc(a) - hits.doc(b);
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return 2;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		dest[offset] = hits.doc(index) + 1;
+		dest[offset + 1] = 0;
+		return 2;
+	}
+
 }
@@ -16,13 +16,17 @@
 package nl.inl.blacklab.search.grouping;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Searcher;
+import nl.inl.blacklab.search.StoredFieldColumn;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 
 /**
  * A hit property for grouping on a stored field in the corresponding Lucene document.
+ *
+ * Uses the Searcher's StoredFieldColumn for the field, so documents are only read
+ * once, and values can be compared by comparing their ordinals.
  */
 public class HitPropertyDocumentStoredField extends HitProperty {
 	IndexReader reader;
@@ -31,49 +35,65 @@ public class HitPropertyDocumentStoredField extends HitProperty {
 
 	private String friendlyName;
 
+	private Searcher searcher;
+
+	/** The field values (retrieved from the Searcher when first needed) */
+	private volatile StoredFieldColumn column;
+
 	public HitPropertyDocumentStoredField(String fieldName, Searcher searcher) {
 		this(fieldName, fieldName, searcher);
 	}
 
 	public HitPropertyDocumentStoredField(String fieldName, String friendlyName, Searcher searcher) {
+		this.searcher = searcher;
 		reader = searcher.getIndexReader();
 		this.fieldName = fieldName;
 		this.friendlyName = friendlyName;
 	}
 
+	private StoredFieldColumn getColumn() {
+		if (column == null)
+			column = searcher.getStoredFieldColumn(fieldName);
+		return column;
+	}
+
 	@Override
 	public HitPropValueString get(Hit result) {
-		try {
-			Document d = reader.document(result.doc);
-			String value = d.get(fieldName);
-			if (value == null)
-				value = "";
-			return new HitPropValueString(value);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return new HitPropValueString(getColumn().getValue(result.doc));
 	}
 
 	@Override
 	public int compare(Object a, Object b) {
-		try {
-			Document d = reader.document(((Hit)a).doc);
-			String va = d.get(fieldName);
-			if (va == null)
-				va = "";
-			d = reader.document(((Hit)b).doc);
-			String vb = d.get(fieldName);
-			if (vb == null)
-				vb = "";
-			if (va.length() == 0) // sort empty string at the end
-				return vb.length() == 0 ? 0 : 1;
-			if (vb.length() == 0) // sort empty string at the end
-				return -1;
-
-			return HitPropValue.collator.compare(va, vb);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return compareDocs(((Hit)a).doc, ((Hit)b).doc);
+	}
+
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		return compareDocs(hits.doc(a), hits.doc(b));
+	}
+
+	private int compareDocs(int docA, int docB) {
+		// Ordinals are in sort order (empty values last)
+		StoredFieldColumn col = getColumn();
+		int oa = col.getOrdinal(docA), ob = col.getOrdinal(docB);
+		return oa < ob ? -1 : (oa == ob ? 0 : 1);
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return 2;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		dest[offset] = getColumn().getOrdinal(hits.doc(index)) + 1;
+		dest[offset + 1] = 0;
+		return 2;
 	}
 
 	@Override
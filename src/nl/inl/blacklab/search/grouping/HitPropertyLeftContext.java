@@ -21,6 +21,7 @@ import java.util.List;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.index.complex.ComplexFieldUtil;
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Searcher;
 
 /**
@@ -120,6 +121,58 @@ public class HitPropertyLeftContext extends HitProperty {
 		return 1; // a longer than b => a > b
 	}
 
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		int[] ca = hits.contextArray(a), cb = hits.contextArray(b);
+		int contextIndex = contextIndices.get(0);
+		int aOffset = hits.contextOffset(a) + contextIndex * hits.contextLength(a);
+		int bOffset = hits.contextOffset(b) + contextIndex * hits.contextLength(b);
+
+		// Compare the left context for these two hits, starting at the end
+		int ai = hits.contextHitStart(a) - 1;
+		int bi = hits.contextHitStart(b) - 1;
+		while (ai >= 0 && bi >= 0) {
+			int cmp = terms.compareSortPosition(ca[aOffset + ai], cb[bOffset + bi], sensitive);
+			if (cmp != 0)
+				return cmp;
+			ai--;
+			bi--;
+		}
+		// One or both ran out, and so far, they're equal.
+		if (ai < 0) {
+			if (bi >= 0) {
+				// b longer than a => a < b
+				return -1;
+			}
+			return 0; // same length; a == b
+		}
+		return 1; // a longer than b => a > b
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return hits.contextHitStart(index) + 1;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		// Left context is compared from right to left, so write it in reverse
+		int[] context = hits.contextArray(index);
+		int contextStart = hits.contextOffset(index) + contextIndices.get(0) * hits.contextLength(index);
+		int n = 0;
+		for (int i = hits.contextHitStart(index) - 1; i >= 0; i--) {
+			dest[offset + n] = terms.idToSortPosition(context[contextStart + i], sensitive) + 1;
+			n++;
+		}
+		dest[offset + n] = 0;
+		return n + 1;
+	}
+
 	@Override
 	public List<String> needsContext() {
 		return Arrays.asList(fieldName);
@@ -21,6 +21,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 
 /**
  * A collection of GroupProperty's identifying a particular group.
@@ -142,6 +143,44 @@ public class HitPropertyMultiple extends HitProperty implements Iterable<HitProp
 		return 0;
 	}
 
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		for (HitProperty crit : criteria) {
+			int cmp = crit.compare(hits, a, b);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		for (HitProperty crit : criteria) {
+			if (!crit.hasSortKey())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		int length = 0;
+		for (HitProperty crit : criteria) {
+			length += crit.sortKeyLength(hits, index);
+		}
+		return length;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		// Each criterium's key ends with a 0, so we can just concatenate them
+		int n = 0;
+		for (HitProperty crit : criteria) {
+			n += crit.writeSortKey(hits, index, dest, offset + n);
+		}
+		return n;
+	}
+
 	@Override
 	public String getName() {
 		StringBuilder b = new StringBuilder();
@@ -21,6 +21,7 @@ import java.util.List;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.index.complex.ComplexFieldUtil;
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Searcher;
 
 /**
@@ -111,6 +112,58 @@ public class HitPropertyRightContext extends HitProperty {
 		return 1; // a longer than b => a > b
 	}
 
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		int[] ca = hits.contextArray(a), cb = hits.contextArray(b);
+		int contextIndex = contextIndices.get(0);
+		int aLength = hits.contextLength(a), bLength = hits.contextLength(b);
+		int aOffset = hits.contextOffset(a) + contextIndex * aLength;
+		int bOffset = hits.contextOffset(b) + contextIndex * bLength;
+
+		// Compare the right context for these two hits
+		int ai = hits.contextRightStart(a);
+		int bi = hits.contextRightStart(b);
+		while (ai < aLength && bi < bLength) {
+			int cmp = terms.compareSortPosition(ca[aOffset + ai], cb[bOffset + bi], sensitive);
+			if (cmp != 0)
+				return cmp;
+			ai++;
+			bi++;
+		}
+		// One or both ran out, and so far, they're equal.
+		if (ai >= aLength) {
+			if (bi < bLength) {
+				// b longer than a => a < b
+				return -1;
+			}
+			return 0; // same length; a == b
+		}
+		return 1; // a longer than b => a > b
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return Math.max(0, hits.contextLength(index) - hits.contextRightStart(index)) + 1;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		int[] context = hits.contextArray(index);
+		int contextStart = hits.contextOffset(index) + contextIndices.get(0) * hits.contextLength(index);
+		int n = 0;
+		for (int i = hits.contextRightStart(index); i < hits.contextLength(index); i++) {
+			dest[offset + n] = terms.idToSortPosition(context[contextStart + i], sensitive) + 1;
+			n++;
+		}
+		dest[offset + n] = 0;
+		return n + 1;
+	}
+
 	@Override
 	public List<String> needsContext() {
 		return Arrays.asList(fieldName);
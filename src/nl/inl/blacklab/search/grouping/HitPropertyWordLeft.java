@@ -21,6 +21,7 @@ import java.util.List;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.index.complex.ComplexFieldUtil;
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Searcher;
 
 /**
@@ -101,6 +102,45 @@ public class HitPropertyWordLeft extends HitProperty {
 				sensitive);
 	}
 
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		int aHitStart = hits.contextHitStart(a), bHitStart = hits.contextHitStart(b);
+		if (aHitStart <= 0)
+			return bHitStart <= 0 ? 0 : -1;
+		if (bHitStart <= 0)
+			return 1;
+		// Compare one word to the left of the hit
+		int contextIndex = contextIndices.get(0);
+		return terms.compareSortPosition(
+				hits.contextArray(a)[hits.contextOffset(a) + contextIndex * hits.contextLength(a) + aHitStart - 1],
+				hits.contextArray(b)[hits.contextOffset(b) + contextIndex * hits.contextLength(b) + bHitStart - 1],
+				sensitive);
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return hits.contextHitStart(index) <= 0 ? 1 : 2;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		int hitStart = hits.contextHitStart(index);
+		if (hitStart <= 0) {
+			// No word to the left; sorts first
+			dest[offset] = 0;
+			return 1;
+		}
+		int contextStart = hits.contextOffset(index) + contextIndices.get(0) * hits.contextLength(index);
+		dest[offset] = terms.idToSortPosition(hits.contextArray(index)[contextStart + hitStart - 1], sensitive) + 1;
+		dest[offset + 1] = 0;
+		return 2;
+	}
+
 	@Override
 	public List<String> needsContext() {
 		return Arrays.asList(fieldName);
@@ -21,6 +21,7 @@ import java.util.List;
 import nl.inl.blacklab.forwardindex.Terms;
 import nl.inl.blacklab.index.complex.ComplexFieldUtil;
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Searcher;
 
 /**
@@ -96,6 +97,45 @@ public class HitPropertyWordRight extends HitProperty {
 				sensitive);
 	}
 
+	@Override
+	public int compare(HitList hits, int a, int b) {
+		int aRightStart = hits.contextRightStart(a), bRightStart = hits.contextRightStart(b);
+		if (hits.contextTotalLength(a) <= aRightStart)
+			return hits.contextTotalLength(b) <= bRightStart ? 0 : -1;
+		if (hits.contextTotalLength(b) <= bRightStart)
+			return 1;
+		// Compare one word to the right of the hit
+		int contextIndex = contextIndices.get(0);
+		return terms.compareSortPosition(
+				hits.contextArray(a)[hits.contextOffset(a) + contextIndex * hits.contextLength(a) + aRightStart],
+				hits.contextArray(b)[hits.contextOffset(b) + contextIndex * hits.contextLength(b) + bRightStart],
+				sensitive);
+	}
+
+	@Override
+	public boolean hasSortKey() {
+		return true;
+	}
+
+	@Override
+	public int sortKeyLength(HitList hits, int index) {
+		return hits.contextTotalLength(index) <= hits.contextRightStart(index) ? 1 : 2;
+	}
+
+	@Override
+	public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+		int rightStart = hits.contextRightStart(index);
+		if (hits.contextTotalLength(index) <= rightStart) {
+			// No word to the right; sorts first
+			dest[offset] = 0;
+			return 1;
+		}
+		int contextStart = hits.contextOffset(index) + contextIndices.get(0) * hits.contextLength(index);
+		dest[offset] = terms.idToSortPosition(hits.contextArray(index)[contextStart + rightStart], sensitive) + 1;
+		dest[offset + 1] = 0;
+		return 2;
+	}
+
 	@Override
 	public List<String> needsContext() {
 		return Arrays.asList(fieldName);
@@ -19,6 +19,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Hits;
 import nl.inl.blacklab.search.Searcher;
 import nl.inl.blacklab.search.lucene.BLSpans;
@@ -30,35 +31,88 @@ import org.apache.lucene.search.spans.Spans;
  * randomly (i.e. you can obtain a list of Hit objects)
  */
 public class RandomAccessGroup extends Group {
+	/** The hits in this group (null until needed if they are taken from a HitList, or if we only count them) */
 	Hits results;
 
+	private Searcher searcher;
+
+	private String defaultConcField;
+
+	private List<String> contextField;
+
+	/** Hits our hits are taken from (null if we have our own Hits object, or only count hits) */
+	private HitList source;
+
+	/** Where our hits start in source */
+	private int sourceStart;
+
+	/** Number of hits (if we don't have our own Hits object yet) */
+	private int size;
+
 	public RandomAccessGroup(Searcher searcher, HitPropValue groupIdentity, String defaultConcField) {
 		super(groupIdentity);
 		results = new Hits(searcher, defaultConcField);
 	}
 
-	public Hits getHits() {
+	/**
+	 * Construct a group whose hits are taken from a HitList when they're needed.
+	 *
+	 * @param searcher our Searcher object
+	 * @param groupIdentity the group identity
+	 * @param defaultConcField the default concordance field
+	 * @param source the hits our hits are taken from, or null if only the number of hits
+	 *   is known (getHits() is not supported in that case, and add() only counts the hit)
+	 * @param sourceStart where our hits start in source
+	 * @param size the number of hits in this group
+	 */
+	RandomAccessGroup(Searcher searcher, HitPropValue groupIdentity, String defaultConcField,
+			HitList source, int sourceStart, int size) {
+		super(groupIdentity);
+		this.searcher = searcher;
+		this.defaultConcField = defaultConcField;
+		this.source = source;
+		this.sourceStart = sourceStart;
+		this.size = size;
+	}
+
+	public synchronized Hits getHits() {
+		if (results == null) {
+			if (source == null)
+				throw new UnsupportedOperationException("Hits in this group were only counted");
+			results = new Hits(searcher, defaultConcField);
+			for (int i = sourceStart; i < sourceStart + size; i++) {
+				results.add(source.get(i));
+			}
+			if (contextField != null)
+				results.setContextField(contextField);
+			source = null;
+		}
 		return results;
 	}
 
 	public int size() {
-		return results.size();
+		return results == null ? size : results.size();
 	}
 
-	public void add(Hit result) {
-		results.add(result);
+	public synchronized void add(Hit result) {
+		if (results == null && source == null) {
+			// We only count the hits in this group
+			size++;
+			return;
+		}
+		getHits().add(result);
 	}
 
 	@Override
 	public String toString() {
-		return "GroupOfHits, identity = " + groupIdentity + ", size = " + results.size();
+		return "GroupOfHits, identity = " + groupIdentity + ", size = " + size();
 	}
 
 	@Deprecated
 	@Override
 	public Spans getSpans() {
 		return new BLSpans() {
-			Iterator<Hit> it = results.iterator();
+			Iterator<Hit> it = getHits().iterator();
 
 			Hit currentHit = null;
 
@@ -129,6 +183,8 @@ public class RandomAccessGroup extends Group {
 	}
 
 	public void setContextField(List<String> contextField) {
-		 results.setContextField(contextField);
+		this.contextField = contextField;
+		if (results != null)
+			results.setContextField(contextField);
 	}
 }
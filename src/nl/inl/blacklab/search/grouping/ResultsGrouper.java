@@ -23,6 +23,8 @@ import java.util.List;
 import java.util.Map;
 
 import nl.inl.blacklab.search.Hit;
+import nl.inl.blacklab.search.HitGrouping;
+import nl.inl.blacklab.search.HitList;
 import nl.inl.blacklab.search.Hits;
 import nl.inl.blacklab.search.Searcher;
 
@@ -67,6 +69,11 @@ public class ResultsGrouper extends RandomAccessGroups {
 	 */
 	private int largestGroupSize = 0;
 
+	/**
+	 * If true, we only count the hits in each group.
+	 */
+	private boolean countOnly = false;
+
 	/**
 	 * Construct a ResultsGrouper object, by grouping the supplied spans.
 	 *
@@ -95,13 +102,39 @@ public class ResultsGrouper extends RandomAccessGroups {
 	 *            the criteria to group on
 	 */
 	public ResultsGrouper(Hits hits, HitProperty criteria) {
+		this(hits, criteria, false);
+	}
+
+	/**
+	 * Construct a ResultsGrouper object, by grouping the supplied hits.
+	 *
+	 * If the criteria support sort keys (most do), the hits are grouped on their sort keys,
+	 * without creating objects per hit, using multiple threads if there are many hits
+	 * (see Hits.setSortThreads()).
+	 *
+	 * In count-only mode, only the number of hits in each group is kept, which saves a lot
+	 * of memory for large result sets. Calling getHits() on such a group throws an exception.
+	 *
+	 * @param hits
+	 *            the hits to group
+	 * @param criteria
+	 *            the criteria to group on
+	 * @param countOnly
+	 *            if true, only count the hits in each group
+	 */
+	public ResultsGrouper(Hits hits, HitProperty criteria, boolean countOnly) {
 		super(hits.getSearcher(), criteria);
+		this.countOnly = countOnly;
 		defaultConcField = hits.getConcordanceFieldName();
 		List<String> requiredContext = criteria.needsContext();
 		if (requiredContext != null) {
 			hits.findContext(requiredContext);
 		}
 		contextField = hits.getContextFieldPropName();
+		if (criteria.hasSortKey()) {
+			groupBySortKey(hits);
+			return;
+		}
 		Thread currentThread = Thread.currentThread();
 		for (Hit hit : hits) {
 			if (currentThread.isInterrupted()) {
@@ -122,6 +155,30 @@ public class ResultsGrouper extends RandomAccessGroups {
 
 	}
 
+	/**
+	 * Group the hits on the sort keys of the criteria.
+	 *
+	 * @param hits
+	 *            the hits to group
+	 */
+	private void groupBySortKey(Hits hits) {
+		HitGrouping grouping = hits.groupBySortKey(criteria, countOnly);
+		HitList groupedHits = countOnly ? null : grouping.getGroupedHits();
+		for (int i = 0; i < grouping.numberOfGroups(); i++) {
+			// Only determine the group identity once per group
+			HitPropValue identity = getGroupIdentity(hits.get(grouping.firstHit(i)));
+			int size = grouping.groupSize(i);
+			RandomAccessGroup group = new RandomAccessGroup(searcher, identity, defaultConcField,
+					groupedHits, countOnly ? 0 : grouping.groupStart(i), size);
+			group.setContextField(contextField);
+			groups.put(identity, group);
+			groupsOrdered.add(group);
+			if (size > largestGroupSize)
+				largestGroupSize = size;
+			totalHits += size;
+		}
+	}
+
 	/**
 	 * Add a hit to the appropriate group.
 	 *
@@ -132,7 +189,10 @@ public class ResultsGrouper extends RandomAccessGroups {
 		HitPropValue identity = getGroupIdentity(hit);
 		RandomAccessGroup group = groups.get(identity);
 		if (group == null) {
-			group = new RandomAccessGroup(searcher, identity, defaultConcField);
+			if (countOnly)
+				group = new RandomAccessGroup(searcher, identity, defaultConcField, null, 0, 0);
+			else
+				group = new RandomAccessGroup(searcher, identity, defaultConcField);
 			group.setContextField(contextField);
 			groups.put(identity, group);
 			groupsOrdered.add(group);
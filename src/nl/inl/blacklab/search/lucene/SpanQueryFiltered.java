@@ -41,6 +41,20 @@ public class SpanQueryFiltered extends SpanQuery {
 		this.docIdSet = docIdSet;
 	}
 
+	/**
+	 * @return the query being filtered
+	 */
+	public SpanQuery getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the documents to keep, or null if all documents are kept
+	 */
+	public DocIdSet getDocIdSet() {
+		return docIdSet;
+	}
+
 	@Override
 	public Spans getSpans(IndexReader reader) throws IOException {
 		Spans result = source.getSpans(reader);
@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import nl.inl.blacklab.index.complex.ComplexFieldUtil;
+import nl.inl.util.RegexAutomaton;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * Matches all terms in a field that completely match a regular expression.
+ *
+ * Replaces RegexQuery (and WildcardQuery and PrefixQuery) wrapped in a
+ * BLSpanMultiTermQueryWrapper. Those check every term in the field and rewrite to a
+ * SpanOrQuery with a clause per matching term, which is slow for large term lists and
+ * may throw BooleanQuery.TooManyClauses.
+ *
+ * Instead, the regular expression is compiled into a RegexAutomaton, which is run
+ * over the sorted term list. Each term continues from the automaton state reached for
+ * the prefix it shares with the previous term. When the automaton can't match any term
+ * with the current prefix, we seek to the first term that might match. The resulting
+ * terms are combined into a SpanQueryTermUnion, which has no limit on the number of terms.
+ *
+ * If the automaton doesn't support the regular expression, we check all terms using
+ * java.util.regex, like RegexQuery does.
+ */
+public class SpanQueryRegex extends SpanQuery {
+
+	/** How many terms to read sequentially before seeking to a term further on */
+	private static final int TERMS_TO_SCAN_BEFORE_SEEK = 8;
+
+	/** Field to search and regular expression to match */
+	private Term term;
+
+	/**
+	 * Construct a regular expression query.
+	 *
+	 * @param term the field to search and the regular expression to match
+	 */
+	public SpanQueryRegex(Term term) {
+		this.term = term;
+	}
+
+	/**
+	 * Construct a query matching a wildcard pattern (* matches any string, ? any character).
+	 *
+	 * @param term the field to search and the wildcard pattern to match
+	 * @return the query
+	 */
+	public static SpanQueryRegex wildcard(Term term) {
+		return new SpanQueryRegex(term.createTerm(RegexAutomaton.wildcardToRegex(term.text())));
+	}
+
+	/**
+	 * Construct a query matching all terms that start with a prefix.
+	 *
+	 * @param term the field to search and the prefix
+	 * @return the query
+	 */
+	public static SpanQueryRegex prefix(Term term) {
+		return new SpanQueryRegex(term.createTerm("(?s)" + RegexAutomaton.escape(term.text()) + ".*"));
+	}
+
+	/**
+	 * @return the field to search and the regular expression to match
+	 */
+	public Term getTerm() {
+		return term;
+	}
+
+	/**
+	 * Find all terms in the field that match the regular expression.
+	 *
+	 * @param reader the index
+	 * @return the matching terms, in index order
+	 * @throws IOException on error
+	 */
+	public List<String> getMatchingTerms(IndexReader reader) throws IOException {
+		RegexAutomaton automaton = RegexAutomaton.compile(term.text());
+		Pattern pattern = null; // only compiled when needed
+		if (automaton == null)
+			pattern = Pattern.compile(term.text());
+		String field = term.field();
+		List<String> results = new ArrayList<String>();
+
+		// Automaton state after each prefix of the previous term
+		// (states[i] is the state after reading i characters)
+		int[] states = new int[16];
+		states[0] = automaton == null ? 0 : automaton.getInitialState();
+		String previous = "";
+
+		TermEnum termEnum = reader.terms(term.createTerm(""));
+		try {
+			String seekTarget = null;
+			int termsScanned = 0;
+			while (true) {
+				Term t = termEnum.term();
+				if (t == null || t.field() != field)
+					break; // end of the field (field names are interned)
+				String text = t.text();
+
+				if (seekTarget != null) {
+					// Is it worth seeking, or are we (almost) there already?
+					if (text.compareTo(seekTarget) < 0) {
+						termsScanned++;
+						if (termsScanned >= TERMS_TO_SCAN_BEFORE_SEEK) {
+							termEnum.close();
+							termEnum = reader.terms(term.createTerm(seekTarget));
+							seekTarget = null;
+							continue;
+						}
+						if (!termEnum.next())
+							break;
+						continue;
+					}
+					seekTarget = null;
+				}
+
+				if (automaton == null) {
+					if (pattern.matcher(text).matches())
+						results.add(text);
+					if (!termEnum.next())
+						break;
+					continue;
+				}
+
+				// Run the automaton, starting from the prefix shared with the previous term
+				int common = 0;
+				int max = Math.min(text.length(), previous.length());
+				while (common < max && text.charAt(common) == previous.charAt(common))
+					common++;
+				if (states.length <= text.length())
+					states = grow(states, text.length() + 1);
+				int i = common, state = states[common];
+				boolean surrogates = false;
+				for (; i < text.length(); i++) {
+					char c = text.charAt(i);
+					if (isSurrogate(c))
+						surrogates = true;
+					state = automaton.step(state, c);
+					if (state == RegexAutomaton.DEAD)
+						break;
+					states[i + 1] = state;
+				}
+				if (surrogates || hasSurrogates(text, 0, common)) {
+					// The automaton works on UTF-16 code units, java.util.regex on code points;
+					// check this term using java.util.regex, and don't skip any terms.
+					if (pattern == null)
+						pattern = Pattern.compile(term.text());
+					if (pattern.matcher(text).matches())
+						results.add(text);
+					previous = text.substring(0, Math.min(i, text.length()));
+					if (!termEnum.next())
+						break;
+					continue;
+				}
+				if (state != RegexAutomaton.DEAD) {
+					if (automaton.isAccepting(state))
+						results.add(text);
+					previous = text;
+					if (!termEnum.next())
+						break;
+					continue;
+				}
+
+				// No term starting with text[0..i] can match. Skip to the first
+				// term that might.
+				previous = text.substring(0, i);
+				seekTarget = nextCandidate(automaton, states, text, i);
+				if (seekTarget == null)
+					break; // no more terms can match
+				termsScanned = 0;
+				if (!termEnum.next())
+					break;
+			}
+		} finally {
+			termEnum.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Find the smallest string after all strings starting with text[0..deadAt] that
+	 * could start a matching term.
+	 *
+	 * @param automaton the automaton
+	 * @param states the automaton states for the prefixes of text
+	 * @param text the current term
+	 * @param deadAt the position of the character where the automaton failed
+	 * @return the string, or null if there is none
+	 */
+	private static String nextCandidate(RegexAutomaton automaton, int[] states, String text, int deadAt) {
+		int pos = deadAt;
+		int from = text.charAt(pos) + 1;
+		while (true) {
+			if (from <= Character.MAX_VALUE) {
+				int c = automaton.nextLiveChar(states[pos], from);
+				// Never skip surrogates, because the automaton doesn't handle them properly
+				int firstSurrogate = Math.max(from, Character.MIN_SURROGATE);
+				if (firstSurrogate <= Character.MAX_SURROGATE && (c < 0 || c > firstSurrogate))
+					c = firstSurrogate;
+				if (c >= 0)
+					return text.substring(0, pos) + (char) c;
+			}
+			// No more candidates with this prefix; try the previous position
+			if (pos == 0)
+				return null;
+			pos--;
+			from = text.charAt(pos) + 1;
+		}
+	}
+
+	private static boolean hasSurrogates(String text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (isSurrogate(text.charAt(i)))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	private static int[] grow(int[] array, int minLength) {
+		int[] newArray = new int[Math.max(minLength, array.length * 2)];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+
+	@Override
+	public Query rewrite(IndexReader reader) throws IOException {
+		List<String> terms = getMatchingTerms(reader);
+		if (terms.size() == 1)
+			return new BLSpanTermQuery(term.createTerm(terms.get(0)));
+		return new SpanQueryTermUnion(term.field(), terms);
+	}
+
+	@Override
+	public Spans getSpans(IndexReader reader) throws IOException {
+		return ((SpanQuery) rewrite(reader)).getSpans(reader);
+	}
+
+	@Override
+	public String getField() {
+		return ComplexFieldUtil.getBaseName(term.field());
+	}
+
+	@Override
+	public String toString(String field) {
+		return "SpanQueryRegex(" + term + ")";
+	}
+
+	@Override
+	public int hashCode() {
+		return term.hashCode() ^ Float.floatToIntBits(getBoost());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		SpanQueryRegex other = (SpanQueryRegex) obj;
+		return term.equals(other.term) && getBoost() == other.getBoost();
+	}
+
+}
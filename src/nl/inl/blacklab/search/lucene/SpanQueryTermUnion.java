@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import nl.inl.blacklab.index.complex.ComplexFieldUtil;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * Matches all occurrences of any of a (possibly very large) list of terms in a field.
+ *
+ * Equivalent to a SpanOrQuery of SpanTermQuery clauses, but doesn't need a clause
+ * (and an open TermPositions) per term, so there's no limit on the number of terms.
+ * See SpansTermUnion.
+ */
+public class SpanQueryTermUnion extends SpanQuery {
+
+	/** The field to search */
+	private String field;
+
+	/** The terms to find */
+	private List<String> terms;
+
+	/**
+	 * Construct the query.
+	 *
+	 * @param field the field to search
+	 * @param terms the terms to find
+	 */
+	public SpanQueryTermUnion(String field, List<String> terms) {
+		this.field = field;
+		this.terms = new ArrayList<String>(terms);
+	}
+
+	/**
+	 * @return the terms to find
+	 */
+	public List<String> getTerms() {
+		return terms;
+	}
+
+	@Override
+	public Spans getSpans(IndexReader reader) throws IOException {
+		Term[] t = new Term[terms.size()];
+		Term prototype = new Term(field, "");
+		for (int i = 0; i < t.length; i++) {
+			t[i] = prototype.createTerm(terms.get(i));
+		}
+		return new SpansTermUnion(reader, t);
+	}
+
+	@Override
+	public String getField() {
+		return ComplexFieldUtil.getBaseName(field);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Override
+	public void extractTerms(Set terms_) {
+		Term prototype = new Term(field, "");
+		for (String term: terms) {
+			terms_.add(prototype.createTerm(term));
+		}
+	}
+
+	@Override
+	public String toString(String f) {
+		StringBuilder b = new StringBuilder("SpanQueryTermUnion(").append(field).append(":");
+		int n = Math.min(terms.size(), 10);
+		for (int i = 0; i < n; i++) {
+			b.append(i == 0 ? "" : ", ").append(terms.get(i));
+		}
+		if (n < terms.size())
+			b.append(", ... (").append(terms.size()).append(" terms)");
+		return b.append(")").toString();
+	}
+
+	@Override
+	public int hashCode() {
+		return field.hashCode() ^ terms.hashCode() ^ Float.floatToIntBits(getBoost());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		SpanQueryTermUnion other = (SpanQueryTermUnion) obj;
+		return field.equals(other.field) && terms.equals(other.terms) && getBoost() == other.getBoost();
+	}
+
+}
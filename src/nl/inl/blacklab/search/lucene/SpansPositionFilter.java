@@ -16,9 +16,9 @@
 package nl.inl.blacklab.search.lucene;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import nl.inl.blacklab.search.lucene.SpanQueryPositionFilter.Filter;
-import nl.inl.blacklab.search.sequences.SpanComparatorStartPoint;
 import nl.inl.blacklab.search.sequences.SpansInBucketsPerDocument;
 import nl.inl.blacklab.search.sequences.SpansInBucketsPerDocumentSorted;
 
@@ -27,10 +27,14 @@ import org.apache.lucene.search.spans.Spans;
 /**
  * Finds hits from a set that contain one or more hits from the second set,
  * or finds hits from a set that are contained by hit(s) from the second set.
+ *
+ * The filter hits are gathered per document, sorted by start point. For each
+ * document, a small index is built on them (see indexFilterBucket()), so each
+ * producer hit can be checked in (amortized) constant time instead of checking it
+ * against every filter hit in the document. Because producer hits are sorted by start
+ * point as well, we can keep a pointer into the filter bucket that only moves forward.
  */
 class SpansPositionFilter extends BLSpans {
-	static SpanComparatorStartPoint cmpStartPoint = new SpanComparatorStartPoint();
-
 	/** The two sets of hits to combine */
 	private BLSpans producer;
 
@@ -46,6 +50,23 @@ class SpansPositionFilter extends BLSpans {
 	 */
 	private Filter op;
 
+	/** Document the filter bucket index was built for, or -1 if none yet */
+	private int indexedDoc = -1;
+
+	/**
+	 * Index on the filter bucket, depending on the operation:
+	 * CONTAINING: smallest end of filter hits i and up;
+	 * WITHIN: largest end of filter hits 0 through i;
+	 * ENDS_AT: ends of the filter hits, sorted.
+	 */
+	private int[] filterIndex = new int[16];
+
+	/**
+	 * Position in the filter bucket: first filter hit starting after (WITHIN) or
+	 * at or after (other operations) the current producer hit.
+	 */
+	private int filterPosition;
+
 	/**
 	 * Find hits containing other hits, or contained by other hits.
 	 *
@@ -63,7 +84,7 @@ class SpansPositionFilter extends BLSpans {
 		}
 		else {
 			// Not sorted yet; sort buckets
-			this.filter = new SpansInBucketsPerDocumentSorted(filter, cmpStartPoint);
+			this.filter = new SpansInBucketsPerDocumentSorted(filter, true);
 		}
 	}
 
@@ -133,48 +154,11 @@ class SpansPositionFilter extends BLSpans {
 
 			// Are there search results in this document?
 			if (filter.doc() == producer.doc()) {
-				// Yes. See if the current container contains any of the search results.
-				//List<Hit> filterHits = filter.getHits();
-				switch(op) {
-				case CONTAINING:
-					// Looking for producer hits with a filter hit inside
-					for (int i = 0; i < filter.bucketSize(); i++) {
-						if (filter.start(i) >= producer.start() && filter.end(i) <= producer.end()) {
-							// Yes, this filter hit is contained in the current producer hit.
-							return true;
-						}
-					}
-					break;
-				case WITHIN:
-					// Looking for producer hits contained by a filter hit
-					for (int i = 0; i < filter.bucketSize(); i++) {
-						if (filter.start(i) <= producer.start() && filter.end(i) >= producer.end()) {
-							// Yes, this filter hit contains the current producer hit.
-							return true;
-						}
-					}
-					break;
-				case STARTS_AT:
-					// Looking for producer hits starting at a filter hit
-					for (int i = 0; i < filter.bucketSize(); i++) {
-						if (filter.start(i) == producer.start()) {
-							// Yes, this filter hit starts at the current producer hit.
-							return true;
-						}
-					}
-					break;
-				case ENDS_AT:
-					// Looking for producer hits ending at a filter hit
-					for (int i = 0; i < filter.bucketSize(); i++) {
-						if (filter.end(i) == producer.end()) {
-							// Yes, this filter hit ends at the current producer hit.
-							return true;
-						}
-					}
-					break;
-				default:
-					throw new RuntimeException("Unknown filter operation " + op);
-				}
+				// Yes. See if the current container matches any of the search results.
+				if (indexedDoc != filter.doc())
+					indexFilterBucket();
+				if (producerMatches())
+					return true;
 			}
 
 			// No search results found in the current container.
@@ -185,6 +169,81 @@ class SpansPositionFilter extends BLSpans {
 		}
 	}
 
+	/**
+	 * Build the index on the filter bucket for the current document.
+	 */
+	private void indexFilterBucket() {
+		int n = filter.bucketSize();
+		if (filterIndex.length < n)
+			filterIndex = new int[Math.max(n, filterIndex.length * 2)];
+		switch (op) {
+		case CONTAINING:
+			// Smallest end from each filter hit onwards
+			for (int i = n - 1; i >= 0; i--) {
+				int end = filter.end(i);
+				filterIndex[i] = i == n - 1 ? end : Math.min(end, filterIndex[i + 1]);
+			}
+			break;
+		case WITHIN:
+			// Largest end up to and including each filter hit
+			for (int i = 0; i < n; i++) {
+				int end = filter.end(i);
+				filterIndex[i] = i == 0 ? end : Math.max(end, filterIndex[i - 1]);
+			}
+			break;
+		case STARTS_AT:
+			// Filter hits are sorted by start point already
+			break;
+		case ENDS_AT:
+			for (int i = 0; i < n; i++) {
+				filterIndex[i] = filter.end(i);
+			}
+			Arrays.sort(filterIndex, 0, n);
+			break;
+		default:
+			throw new RuntimeException("Unknown filter operation " + op);
+		}
+		filterPosition = 0;
+		indexedDoc = filter.doc();
+	}
+
+	/**
+	 * Does the current producer hit match any filter hit in the current document?
+	 *
+	 * Producer hits within a document must be checked in start point order.
+	 *
+	 * @return true iff the producer hit matches
+	 */
+	private boolean producerMatches() {
+		int n = filter.bucketSize();
+		int start = producer.start();
+		int end = producer.end();
+		switch (op) {
+		case CONTAINING:
+			// Looking for producer hits with a filter hit inside:
+			// of the filter hits starting at or after the producer hit, one must end before it does.
+			while (filterPosition < n && filter.start(filterPosition) < start)
+				filterPosition++;
+			return filterPosition < n && filterIndex[filterPosition] <= end;
+		case WITHIN:
+			// Looking for producer hits contained by a filter hit:
+			// of the filter hits starting at or before the producer hit, one must end after it does.
+			while (filterPosition < n && filter.start(filterPosition) <= start)
+				filterPosition++;
+			return filterPosition > 0 && filterIndex[filterPosition - 1] >= end;
+		case STARTS_AT:
+			// Looking for producer hits starting at a filter hit
+			while (filterPosition < n && filter.start(filterPosition) < start)
+				filterPosition++;
+			return filterPosition < n && filter.start(filterPosition) == start;
+		case ENDS_AT:
+			// Looking for producer hits ending at a filter hit
+			return Arrays.binarySearch(filterIndex, 0, n, end) >= 0;
+		default:
+			throw new RuntimeException("Unknown filter operation " + op);
+		}
+	}
+
 	/**
 	 * Skip to the specified document (or the first document after it containing hits)
 	 *
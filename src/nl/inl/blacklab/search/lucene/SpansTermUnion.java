@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermPositions;
+
+/**
+ * Returns all occurrences of any of a list of terms, in document and position order.
+ *
+ * A SpanOrQuery keeps a Spans object (and so a TermPositions object with its buffers)
+ * open for each term, and merges them using a priority queue. That doesn't work for
+ * hundreds of thousands of terms. Instead, we process the index in windows (ranges of
+ * documents): for each window, we read the positions of all terms that occur in it
+ * using a single TermPositions object, and sort them.
+ *
+ * For each term, we remember the first document we haven't read yet, so terms that
+ * don't occur in a window are skipped without looking them up again. The size of the
+ * window is adjusted so each window contains roughly the same number of hits.
+ */
+class SpansTermUnion extends BLSpans {
+
+	/** Number of hits we'd like each window to contain */
+	private static final int TARGET_HITS_PER_WINDOW = 16384;
+
+	/** Number of documents in the first window (small, so the first hits are found quickly) */
+	private static final int INITIAL_WINDOW_DOCS = 256;
+
+	/** Marks a term that has no more documents */
+	private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+	/** The terms to find */
+	private Term[] terms;
+
+	/** For each term: the first document we haven't read yet */
+	private int[] nextDoc;
+
+	/** Smallest value in nextDoc */
+	private int minNextDoc = 0;
+
+	/** Used to read the positions of all terms */
+	private TermPositions termPositions;
+
+	/** Number of documents in the index */
+	private int maxDoc;
+
+	/** First document after the current window */
+	private int windowEnd = 0;
+
+	/** Number of documents in the next window */
+	private int windowDocs = INITIAL_WINDOW_DOCS;
+
+	/** Hits in the current window, sorted (document id in upper 32 bits, position in lower) */
+	private long[] hits = new long[1024];
+
+	/** Number of hits in the current window */
+	private int numberOfHits = 0;
+
+	/** Current hit */
+	private int current = -1;
+
+	/**
+	 * Construct the spans.
+	 *
+	 * @param reader the index
+	 * @param terms the terms to find (all in the same field)
+	 * @throws IOException on error
+	 */
+	SpansTermUnion(IndexReader reader, Term[] terms) throws IOException {
+		this.terms = terms;
+		nextDoc = new int[terms.length];
+		if (terms.length == 0)
+			minNextDoc = NO_MORE_DOCS;
+		maxDoc = reader.maxDoc();
+		termPositions = reader.termPositions();
+	}
+
+	@Override
+	public int doc() {
+		return (int) (hits[current] >>> 32);
+	}
+
+	@Override
+	public int start() {
+		return (int) hits[current];
+	}
+
+	@Override
+	public int end() {
+		return start() + 1;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		current++;
+		while (current >= numberOfHits) {
+			if (!readWindow())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean skipTo(int target) throws IOException {
+		if (target >= windowEnd) {
+			// Skip the rest of this window and start the next one at the target
+			windowEnd = target;
+			numberOfHits = 0;
+			current = 0;
+		}
+		do {
+			if (!next())
+				return false;
+		} while (doc() < target);
+		return true;
+	}
+
+	/**
+	 * Read the hits in the next window that contains any.
+	 *
+	 * @return true if we read a window, false if there are no more documents
+	 * @throws IOException on error
+	 */
+	private boolean readWindow() throws IOException {
+		int start = Math.max(windowEnd, minNextDoc);
+		if (start >= maxDoc)
+			return false;
+		int end = (int) Math.min(maxDoc, (long) start + windowDocs);
+
+		numberOfHits = 0;
+		current = 0;
+		int newMinNextDoc = NO_MORE_DOCS;
+		for (int i = 0; i < terms.length; i++) {
+			if (nextDoc[i] < end) {
+				termPositions.seek(terms[i]);
+				boolean more = termPositions.skipTo(Math.max(start, nextDoc[i]));
+				while (more && termPositions.doc() < end) {
+					long doc = (long) termPositions.doc() << 32;
+					int freq = termPositions.freq();
+					for (int j = 0; j < freq; j++) {
+						if (numberOfHits == hits.length)
+							hits = Arrays.copyOf(hits, hits.length * 2);
+						hits[numberOfHits] = doc | termPositions.nextPosition();
+						numberOfHits++;
+					}
+					more = termPositions.next();
+				}
+				nextDoc[i] = more ? termPositions.doc() : NO_MORE_DOCS;
+			}
+			newMinNextDoc = Math.min(newMinNextDoc, nextDoc[i]);
+		}
+		minNextDoc = newMinNextDoc;
+		windowEnd = end;
+		Arrays.sort(hits, 0, numberOfHits);
+
+		// Adjust the window size so the next window contains about the right number of hits
+		long newWindowDocs = numberOfHits == 0 ? (long) windowDocs * 8
+				: (long) windowDocs * TARGET_HITS_PER_WINDOW / numberOfHits;
+		windowDocs = (int) Math.max(1, Math.min(Math.min(newWindowDocs, (long) windowDocs * 8), maxDoc));
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "SpansTermUnion(" + terms.length + " terms)";
+	}
+
+}
@@ -28,9 +28,6 @@ import nl.inl.blacklab.search.sequences.SpanQueryRepetition;
 import nl.inl.blacklab.search.sequences.SpanQuerySequence;
 
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.PrefixQuery;
-import org.apache.lucene.search.WildcardQuery;
-import org.apache.lucene.search.regex.RegexQuery;
 import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 
@@ -51,8 +48,7 @@ public class TextPatternTranslatorSpanQuery extends TextPatternTranslator<SpanQu
 
 	@Override
 	public SpanQuery regex(QueryExecutionContext context, String value) {
-		return new BLSpanMultiTermQueryWrapper<RegexQuery>(new RegexQuery(
-				new Term(context.luceneField(), context.optDesensitize(value))));
+		return new SpanQueryRegex(new Term(context.luceneField(), context.optDesensitize(value)));
 	}
 
 	@Override
@@ -136,14 +132,12 @@ public class TextPatternTranslatorSpanQuery extends TextPatternTranslator<SpanQu
 
 	@Override
 	public SpanQuery wildcard(QueryExecutionContext context, String value) {
-		return new BLSpanMultiTermQueryWrapper<WildcardQuery>(new WildcardQuery(new Term(context.luceneField(),
-				context.optDesensitize(value))));
+		return SpanQueryRegex.wildcard(new Term(context.luceneField(), context.optDesensitize(value)));
 	}
 
 	@Override
 	public SpanQuery prefix(QueryExecutionContext context, String value) {
-		return new BLSpanMultiTermQueryWrapper<PrefixQuery>(new PrefixQuery(new Term(context.luceneField(),
-				context.optDesensitize(value))));
+		return SpanQueryRegex.prefix(new Term(context.luceneField(), context.optDesensitize(value)));
 	}
 
 	@Override
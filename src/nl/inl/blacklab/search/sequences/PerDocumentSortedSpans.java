@@ -17,7 +17,6 @@ package nl.inl.blacklab.search.sequences;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Comparator;
 
 import nl.inl.blacklab.search.Hit;
 import nl.inl.blacklab.search.lucene.BLSpans;
@@ -30,10 +29,6 @@ import org.apache.lucene.search.spans.Spans;
  */
 public class PerDocumentSortedSpans extends BLSpans {
 
-	static Comparator<Hit> cmpStartPoint = new SpanComparatorStartPoint();
-
-	static Comparator<Hit> cmpEndPoint = new SpanComparatorEndPoint();
-
 	protected BLSpans source;
 
 	private int curDoc = -1, curStart = -1, curEnd = -1;
@@ -54,15 +49,11 @@ public class PerDocumentSortedSpans extends BLSpans {
 
 		// Wrap a HitsPerDocument and show it to the client as a normal, sequential Spans.
 		this.sortByEndPoint = sortByEndPoint;
-		Comparator<Hit> comparator = null;
-		if (sortByEndPoint) {
-			if (!source.hitsEndPointSorted())
-				comparator = cmpEndPoint;
-		} else {
-			if (!source.hitsStartPointSorted())
-				comparator = cmpStartPoint;
-		}
-		bucketedSpans = new SpansInBucketsPerDocumentSorted(src, comparator);
+		boolean alreadySorted = sortByEndPoint ? source.hitsEndPointSorted() : source.hitsStartPointSorted();
+		if (alreadySorted)
+			bucketedSpans = new SpansInBucketsPerDocument(src);
+		else
+			bucketedSpans = new SpansInBucketsPerDocumentSorted(src, !sortByEndPoint);
 
 		this.eliminateDuplicates = eliminateDuplicates;
 	}
@@ -17,6 +17,7 @@ package nl.inl.blacklab.search.sequences;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -42,23 +43,105 @@ import org.apache.lucene.search.spans.Spans;
  *
  * Also, SpansInBuckets assumes all hits in a bucket are from a single document.
  *
+ * The start and end points of the hits in the current bucket are kept in arrays that are
+ * reused for the next bucket, so no objects are created per hit (unless you call getHit()).
  */
 abstract class SpansInBucketsAbstract implements SpansInBuckets {
 	protected Spans source;
 
 	protected int currentDoc = -1;
 
-	private List<Hit> hits = new ArrayList<Hit>();
+	/** Initial capacity of the arrays holding the hits in the current bucket */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * If a bucket needed arrays larger than this, we release them before gathering the next bucket,
+	 * so we don't hold on to a lot of memory indefinitely after encountering one huge bucket.
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+	/** Start points of the hits in the current bucket */
+	private int[] starts = new int[INITIAL_CAPACITY];
+
+	/** End points of the hits in the current bucket */
+	private int[] ends = new int[INITIAL_CAPACITY];
+
+	/** Used for sorting the hits: start and end point of each hit packed into a long */
+	private long[] sortBuffer;
 
 	private int bucketSize = 0;
 
+	/**
+	 * Add a hit to the current bucket.
+	 *
+	 * @param doc document the hit occurs in (the current document)
+	 * @param start start of the hit
+	 * @param end end of the hit
+	 */
 	protected void addHit(int doc, int start, int end) {
-		hits.add(new Hit(doc, start, end));
+		if (bucketSize == starts.length)
+			grow();
+		starts[bucketSize] = start;
+		ends[bucketSize] = end;
 		bucketSize++;
 	}
 
+	/**
+	 * Double the capacity of the arrays holding the hits in the current bucket.
+	 */
+	private void grow() {
+		starts = Arrays.copyOf(starts, starts.length * 2);
+		ends = Arrays.copyOf(ends, ends.length * 2);
+	}
+
+	/**
+	 * Sort the hits in the current bucket, without creating objects.
+	 *
+	 * @param sortByStartPoint if true, sort by start point, then end point; if false, sort by
+	 *   end point, then start point
+	 */
+	protected void sortHits(boolean sortByStartPoint) {
+		int[] first = sortByStartPoint ? starts : ends;
+		int[] second = sortByStartPoint ? ends : starts;
+
+		// Hits are often sorted already; if so, we're done
+		int i = 1;
+		while (i < bucketSize && (first[i - 1] < first[i] || first[i - 1] == first[i] && second[i - 1] <= second[i]))
+			i++;
+		if (i >= bucketSize)
+			return;
+
+		if (sortBuffer == null || sortBuffer.length < bucketSize)
+			sortBuffer = new long[starts.length];
+		// Positions are never negative, so comparing the packed values compares the first
+		// value, then the second
+		for (i = 0; i < bucketSize; i++) {
+			sortBuffer[i] = ((long) first[i] << 32) | (second[i] & 0xFFFFFFFFL);
+		}
+		Arrays.sort(sortBuffer, 0, bucketSize);
+		for (i = 0; i < bucketSize; i++) {
+			first[i] = (int) (sortBuffer[i] >>> 32);
+			second[i] = (int) sortBuffer[i];
+		}
+	}
+
+	/**
+	 * Sort the hits in the current bucket using a comparator.
+	 *
+	 * This creates a Hit object per hit; use sortHits(boolean) if possible.
+	 *
+	 * @param hitComparator the comparator
+	 */
 	protected void sortHits(Comparator<Hit> hitComparator) {
+		List<Hit> hits = new ArrayList<Hit>(bucketSize);
+		for (int i = 0; i < bucketSize; i++) {
+			hits.add(getHit(i));
+		}
 		Collections.sort(hits, hitComparator);
+		for (int i = 0; i < bucketSize; i++) {
+			starts[i] = hits.get(i).start;
+			ends[i] = hits.get(i).end;
+		}
 	}
 
 	@Override
@@ -68,17 +151,17 @@ abstract class SpansInBucketsAbstract implements SpansInBuckets {
 
 	@Override
 	public int start(int index) {
-		return hits.get(index).start;
+		return starts[index];
 	}
 
 	@Override
 	public int end(int index) {
-		return hits.get(index).end;
+		return ends[index];
 	}
 
 	@Override
 	public Hit getHit(int index) {
-		return hits.get(index);
+		return new Hit(currentDoc, starts[index], ends[index]);
 	}
 
 	/**
@@ -141,9 +224,11 @@ abstract class SpansInBucketsAbstract implements SpansInBuckets {
 	private void gatherHitsInternal() throws IOException {
 		currentDoc = source.doc();
 
-		// NOTE: we could call .clear() here, but we don't want to hold on to
-		// a lot of memory indefinitely after encountering one huge bucket.
-		hits = new ArrayList<Hit>();
+		if (starts.length > MAX_RETAINED_CAPACITY) {
+			starts = new int[INITIAL_CAPACITY];
+			ends = new int[INITIAL_CAPACITY];
+			sortBuffer = null;
+		}
 
 		bucketSize = 0;
 		gatherHits();
@@ -26,14 +26,42 @@ import org.apache.lucene.search.spans.Spans;
  * Wrap a Spans to retrieve hits per document, so we can process all matches in a document
  * efficiently.
  *
- * Hits are sorted by the given comparator.
+ * Hits are sorted by start point or end point, or by the given comparator.
  */
 public class SpansInBucketsPerDocumentSorted extends SpansInBucketsPerDocument {
+	/** Sort by start point (true) or end point (false); only used if comparator is null */
+	private boolean sortByStartPoint;
+
+	/** Comparator to sort with, or null to sort by start point or end point */
 	private Comparator<Hit> comparator;
 
+	/**
+	 * Construct the buckets, sorting by start point or end point.
+	 *
+	 * @param source the hits to sort per document
+	 * @param sortByStartPoint if true, sort by start point, then end point; if false, sort by
+	 *   end point, then start point
+	 */
+	public SpansInBucketsPerDocumentSorted(Spans source, boolean sortByStartPoint) {
+		super(source);
+		this.sortByStartPoint = sortByStartPoint;
+	}
+
+	/**
+	 * Construct the buckets, sorting by the given comparator.
+	 *
+	 * SpanComparatorStartPoint and SpanComparatorEndPoint are recognized and sort without
+	 * creating objects; other comparators need a Hit object per hit.
+	 *
+	 * @param source the hits to sort per document
+	 * @param comparator the comparator to sort with
+	 */
 	public SpansInBucketsPerDocumentSorted(Spans source, Comparator<Hit> comparator) {
 		super(source);
-		this.comparator = comparator;
+		if (comparator instanceof SpanComparatorStartPoint)
+			sortByStartPoint = true;
+		else if (!(comparator instanceof SpanComparatorEndPoint))
+			this.comparator = comparator;
 	}
 
 	@Override
@@ -41,6 +69,8 @@ public class SpansInBucketsPerDocumentSorted extends SpansInBucketsPerDocument {
 		super.gatherHits();
 		if (comparator != null)
 			sortHits(comparator);
+		else
+			sortHits(sortByStartPoint);
 	}
 
-}
\ No newline at end of file
+}
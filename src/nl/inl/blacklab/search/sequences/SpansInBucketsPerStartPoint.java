@@ -16,8 +16,7 @@
 package nl.inl.blacklab.search.sequences;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import nl.inl.blacklab.search.Hit;
 
@@ -34,7 +33,17 @@ class SpansInBucketsPerStartPoint implements SpansInBuckets {
 
 	protected int currentStart = -1;
 
-	private List<Integer> endPoints = new ArrayList<Integer>();
+	/** Initial capacity of the end points array */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * If a bucket needed an array larger than this, we release it before gathering the next bucket,
+	 * so we don't hold on to a lot of memory indefinitely after encountering one huge bucket.
+	 */
+	private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+	/** End points of the hits in the current bucket (reused for the next bucket) */
+	private int[] endPoints = new int[INITIAL_CAPACITY];
 
 	private int bucketSize = 0;
 
@@ -76,12 +85,14 @@ class SpansInBucketsPerStartPoint implements SpansInBuckets {
 		currentDoc = source.doc();
 		currentStart = source.start();
 
-		// NOTE: we don't call clear() to avoid holding on to a lot of memory indefinitely
-		endPoints = new ArrayList<Integer>();
+		if (endPoints.length > MAX_RETAINED_CAPACITY)
+			endPoints = new int[INITIAL_CAPACITY];
 
 		bucketSize = 0;
 		while (moreInSource && source.doc() == currentDoc && source.start() == currentStart) {
-			endPoints.add(source.end());
+			if (bucketSize == endPoints.length)
+				endPoints = Arrays.copyOf(endPoints, endPoints.length * 2);
+			endPoints[bucketSize] = source.end();
 			bucketSize++;
 			moreInSource = source.next();
 		}
@@ -137,7 +148,7 @@ class SpansInBucketsPerStartPoint implements SpansInBuckets {
 
 	@Override
 	public int end(int index) {
-		return endPoints.get(index);
+		return endPoints[index];
 	}
 
 	@Override
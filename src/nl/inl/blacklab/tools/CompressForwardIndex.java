@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.tools;
+
+import java.io.File;
+
+import nl.inl.blacklab.forwardindex.ForwardIndex;
+import nl.inl.util.VersionFile;
+
+import org.apache.log4j.BasicConfigurator;
+
+/**
+ * Converts the forward indices of a BlackLab index to the compact, read-only
+ * version 4 format (see ForwardIndex.convertToVersion4()).
+ *
+ * Each forward index dir is converted into a new dir, after which the old one
+ * is renamed to [name].v3 and the new one takes its place. The old dirs may
+ * be removed after checking that the index works as expected. Note that you
+ * cannot add documents to the index after conversion.
+ */
+public class CompressForwardIndex {
+
+	public static void main(String[] args) {
+		BasicConfigurator.configure(); // suppress log4j warning
+
+		if (args.length != 1) {
+			System.err.println("Usage: CompressForwardIndex <indexDir>");
+			return;
+		}
+		File indexDir = new File(args[0]);
+		File[] files = indexDir.listFiles();
+		if (files == null) {
+			System.err.println("Index directory not found: " + indexDir);
+			return;
+		}
+		int converted = 0;
+		for (File dir: files) {
+			if (!dir.isDirectory() || !(dir.getName().startsWith("fi_") || dir.getName().equals("forward")))
+				continue;
+			if (!VersionFile.isTypeVersion(dir, "fi", "3")) {
+				System.out.println("Skipping " + dir + ": " + VersionFile.report(dir));
+				continue;
+			}
+			System.out.print("Converting " + dir + "... ");
+			long start = System.currentTimeMillis();
+			File newDir = new File(indexDir, dir.getName() + ".v4");
+			File oldDir = new File(indexDir, dir.getName() + ".v3");
+			if (newDir.exists() || oldDir.exists()) {
+				System.out.println("failed; " + newDir + " or " + oldDir + " already exists.");
+				continue;
+			}
+			ForwardIndex.convertToVersion4(dir, newDir);
+			if (!dir.renameTo(oldDir) || !newDir.renameTo(dir)) {
+				System.out.println("failed; could not rename " + newDir + " to " + dir);
+				continue;
+			}
+			long oldSize = new File(oldDir, "tokens.dat").length();
+			long newSize = new File(dir, "tokens.dat").length();
+			System.out.println("done (" + (System.currentTimeMillis() - start) + " ms); tokens file "
+					+ oldSize / 1024 + " -> " + newSize / 1024 + " kB.");
+			converted++;
+		}
+		System.out.println("Converted " + converted + " forward index(es).");
+		if (converted > 0)
+			System.out.println("The original forward indices were renamed to *.v3 and may be removed.");
+	}
+
+}
@@ -36,6 +36,7 @@ import nl.inl.util.LogUtil;
 import nl.inl.util.LuceneUtil;
 import nl.inl.util.PropertiesUtil;
 
+import org.apache.log4j.Level;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.queryParser.ParseException;
 
@@ -66,12 +67,13 @@ public class IndexTool {
 
 		// Parse command line
 		int maxDocs = 0;
+		int numberOfThreads = 1;
 		File indexDir = null, inputDir = null;
 		String glob = "*";
 		String fileFormat = null;
 		boolean createNewIndex = false;
 		String command = "";
-		Set<String> commands = new HashSet<String>(Arrays.asList("add", "create", "delete"));
+		Set<String> commands = new HashSet<String>(Arrays.asList("add", "create", "delete", "compact", "optimize"));
 		boolean addingFiles = true;
 		String deleteQuery = null;
 		for (int i = 0; i < args.length; i++) {
@@ -102,6 +104,20 @@ public class IndexTool {
 						usage();
 						return;
 					}
+				} else if (name.equals("threads")) {
+					if (i + 1 == args.length) {
+						System.err.println("--threads option needs argument");
+						usage();
+						return;
+					}
+					try {
+						numberOfThreads = Integer.parseInt(args[i + 1]);
+						i++;
+					} catch (NumberFormatException e) {
+						System.err.println("--threads option needs integer argument");
+						usage();
+						return;
+					}
 				} else if (name.equals("create")) {
 					System.err.println("Option --create is deprecated; use create command (--help for details)");
 					createNewIndex = true;
@@ -180,6 +196,10 @@ public class IndexTool {
 			commandDelete(indexDir, deleteQuery);
 			return;
 		}
+		if (command.equals("compact") || command.equals("optimize")) {
+			commandCompact(indexDir, command.equals("optimize"));
+			return;
+		}
 		createNewIndex |= command.equals("create");
 
 		// We're adding files. Do we have an input dir/file and file format name?
@@ -256,6 +276,8 @@ public class IndexTool {
 		indexer.setIndexerParam(indexerParam);
 		if (maxDocs > 0)
 			indexer.setMaxDocs(maxDocs);
+		if (numberOfThreads > 1)
+			indexer.setNumberOfThreads(numberOfThreads);
 		try {
 			if (glob.contains("*") || glob.contains("?")) {
 				// Real wildcard glob
@@ -297,14 +319,37 @@ public class IndexTool {
 		}
 	}
 
+	private static void commandCompact(File indexDir, boolean optimize) throws IOException, CorruptIndexException {
+		// Log progress
+		LogUtil.initLog4jIfNotAlready(Level.INFO);
+
+		Searcher searcher = Searcher.openForWriting(indexDir, false);
+		try {
+			long start = System.currentTimeMillis();
+			if (optimize) {
+				System.out.println("Optimizing " + indexDir);
+				searcher.optimize();
+			} else {
+				System.out.println("Compacting forward indices, character offsets indices and content stores in " + indexDir);
+				searcher.compact();
+			}
+			System.out.println("Done (" + (System.currentTimeMillis() - start) / 1000 + " s).");
+		} finally {
+			searcher.close();
+		}
+	}
+
 	private static void usage() {
 		System.out
 				.println("Usage:\n"
 						+ "  IndexTool {add|create} [options] <indexdir> <inputdir> <format>\n"
 						+ "  IndexTool delete <indexdir> <filterQuery>\n"
+						+ "  IndexTool compact <indexdir>\n"
+						+ "  IndexTool optimize <indexdir>\n"
 						+ "\n"
 						+ "Options:\n"
 						+ "  --maxdocs <n>        Stop after indexing <n> documents\n"
+						+ "  --threads <n>        Index documents using <n> threads\n"
 						+ "  --indexparam <file>  Read properties file with parameters for DocIndexer\n"
 						+ "                       (NOTE: even without this option, if the current\n"
 						+ "                        directory, the input or index directory (or its parent)\n"
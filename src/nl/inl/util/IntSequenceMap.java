@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import java.util.Arrays;
+
+/**
+ * Assigns consecutive ids (0, 1, 2, ...) to sequences of ints.
+ *
+ * Like a HashMap&lt;List&lt;Integer&gt;, Integer&gt;, but without any objects per key:
+ * the keys are stored one after the other in a single int array, and the hash table
+ * is an int array using open addressing (linear probing) that stores key ids.
+ *
+ * Not thread-safe.
+ */
+public class IntSequenceMap {
+
+	/** All keys, one after the other */
+	private int[] keyData = new int[256];
+
+	/** Number of ints used in keyData */
+	private int keyDataSize = 0;
+
+	/** Where each key starts in keyData (keyStart[size] == keyDataSize) */
+	private int[] keyStart = new int[65];
+
+	/** Hash code of each key */
+	private int[] keyHash = new int[64];
+
+	/** Number of keys */
+	private int size = 0;
+
+	/** The hash table: key id + 1 for each slot (0 means empty) */
+	private int[] table = new int[128];
+
+	/** table.length - 1 (table length is a power of two) */
+	private int mask = table.length - 1;
+
+	private static int hash(int[] key, int offset, int length) {
+		int h = 1;
+		for (int i = offset; i < offset + length; i++) {
+			h = 31 * h + key[i];
+		}
+		// Spread the bits, because we use the lower bits as the slot number
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	private boolean keyEquals(int id, int[] key, int offset, int length) {
+		int start = keyStart[id];
+		if (keyStart[id + 1] - start != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (keyData[start + i] != key[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the slot for a key.
+	 * @return the slot containing the key, or the empty slot where it should go
+	 */
+	private int findSlot(int[] key, int offset, int length, int h) {
+		int slot = h & mask;
+		while (true) {
+			int idPlusOne = table[slot];
+			if (idPlusOne == 0)
+				return slot;
+			if (keyHash[idPlusOne - 1] == h && keyEquals(idPlusOne - 1, key, offset, length))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Get the id of a key.
+	 *
+	 * @param key array containing the key
+	 * @param offset where the key starts
+	 * @param length length of the key
+	 * @return the id, or -1 if the key isn't in the map
+	 */
+	public int get(int[] key, int offset, int length) {
+		return table[findSlot(key, offset, length, hash(key, offset, length))] - 1;
+	}
+
+	/**
+	 * Get the id of a key, adding it if it isn't in the map yet.
+	 *
+	 * @param key array containing the key
+	 * @param offset where the key starts
+	 * @param length length of the key
+	 * @return the id (if the key was added, this is the previous value of size())
+	 */
+	public int put(int[] key, int offset, int length) {
+		int h = hash(key, offset, length);
+		int slot = findSlot(key, offset, length, h);
+		if (table[slot] != 0)
+			return table[slot] - 1;
+
+		// Add the key
+		if (keyDataSize + length > keyData.length)
+			keyData = Arrays.copyOf(keyData, Math.max(keyDataSize + length, keyData.length * 2));
+		System.arraycopy(key, offset, keyData, keyDataSize, length);
+		keyDataSize += length;
+		if (size == keyHash.length) {
+			keyHash = Arrays.copyOf(keyHash, keyHash.length * 2);
+			keyStart = Arrays.copyOf(keyStart, keyHash.length + 1);
+		}
+		int id = size;
+		keyHash[id] = h;
+		keyStart[id + 1] = keyDataSize;
+		size++;
+		table[slot] = id + 1;
+		if (size * 2 > table.length)
+			rehash();
+		return id;
+	}
+
+	/** Double the size of the hash table. */
+	private void rehash() {
+		table = new int[table.length * 2];
+		mask = table.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = keyHash[id] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the length of a key.
+	 * @param id the key id
+	 * @return the length
+	 */
+	public int keyLength(int id) {
+		return keyStart[id + 1] - keyStart[id];
+	}
+
+	/**
+	 * Copy a key to an array.
+	 * @param id the key id
+	 * @param dest array to copy to
+	 * @param offset where to start in the array
+	 * @return the length of the key
+	 */
+	public int getKey(int id, int[] dest, int offset) {
+		int length = keyLength(id);
+		System.arraycopy(keyData, keyStart[id], dest, offset, length);
+		return length;
+	}
+
+	/**
+	 * Get the id a key has in this map, adding it if necessary.
+	 *
+	 * @param other the map containing the key
+	 * @param otherId the id of the key in the other map
+	 * @return the id of the key in this map
+	 */
+	public int put(IntSequenceMap other, int otherId) {
+		return put(other.keyData, other.keyStart[otherId], other.keyLength(otherId));
+	}
+
+}
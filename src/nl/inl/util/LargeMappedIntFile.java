@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file of ints that may be larger than 2GB, accessed through memory mapping.
+ *
+ * Java can only map up to 2GB in a single MappedByteBuffer, so the file is mapped
+ * in segments of a fixed size (a power of two). Finding the segment for a position
+ * is just a shift, and reads and writes of ranges that cross a segment boundary are
+ * split over the segments involved, so any range can be accessed.
+ *
+ * In read-only mode, all segments are mapped when the object is created, and reading
+ * is thread-safe. In writable mode, segments are mapped (and remapped, as the file grows)
+ * when needed, and the caller must make sure only one thread accesses the file at a time.
+ */
+public class LargeMappedIntFile {
+
+	/** Number of bytes per int */
+	private static final int BYTES_PER_INT = Integer.SIZE / Byte.SIZE;
+
+	/** Default segment size in ints (1GB) */
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 28;
+
+	/** Number of ints per memory page (assuming 4K pages) */
+	private static final int INTS_PER_PAGE = 4096 / BYTES_PER_INT;
+
+	/** Minimum number of ints to map in writable mode (so we don't remap too often) */
+	private static final int MIN_WRITE_MAPPING_SIZE = 1 << 18;
+
+	/** The file we're accessing */
+	private FileChannel channel;
+
+	/** Are we allowed to write? */
+	private boolean writable;
+
+	/** log2 of the segment size */
+	private int segmentShift;
+
+	/** Segment size minus one, to find the position within a segment */
+	private int segmentMask;
+
+	/** The mapped segments. In writable mode, some may be null (not mapped yet). */
+	private List<IntBuffer> segments = new ArrayList<IntBuffer>();
+
+	/** Number of ints in the file (in writable mode: position after the last int written) */
+	private long size;
+
+	/**
+	 * Open a file with the default segment size.
+	 *
+	 * @param channel the file to access
+	 * @param writable if true, we may write to the file (and it grows as necessary)
+	 * @param size the number of ints in the file
+	 * @throws IOException on error
+	 */
+	public LargeMappedIntFile(FileChannel channel, boolean writable, long size) throws IOException {
+		this(channel, writable, size, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Open a file.
+	 *
+	 * @param channel the file to access
+	 * @param writable if true, we may write to the file (and it grows as necessary)
+	 * @param size the number of ints in the file
+	 * @param segmentSize size of the segments to map, in ints (rounded down to a power of two)
+	 * @throws IOException on error
+	 */
+	public LargeMappedIntFile(FileChannel channel, boolean writable, long size, int segmentSize)
+			throws IOException {
+		this.channel = channel;
+		this.writable = writable;
+		this.size = size;
+		segmentShift = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(segmentSize, 2)));
+		segmentMask = (1 << segmentShift) - 1;
+		if (!writable) {
+			// Map all segments now, so we can read from multiple threads without locking
+			int n = (int) ((size + segmentMask) >> segmentShift);
+			for (int i = 0; i < n; i++) {
+				long start = (long) i << segmentShift;
+				int length = (int) Math.min(size - start, segmentMask + 1L);
+				segments.add(map(i, length));
+			}
+		}
+	}
+
+	/**
+	 * Map (part of) a segment.
+	 * @param segment the segment number
+	 * @param length number of ints to map, starting at the start of the segment
+	 * @return the mapping
+	 * @throws IOException on error
+	 */
+	private IntBuffer map(int segment, int length) throws IOException {
+		long startBytes = ((long) segment << segmentShift) * BYTES_PER_INT;
+		return channel.map(writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, startBytes,
+				(long) length * BYTES_PER_INT).asIntBuffer();
+	}
+
+	/**
+	 * Get a segment, making sure (in writable mode) it is mapped at least up to the
+	 * specified length.
+	 *
+	 * @param segment the segment number
+	 * @param minLength number of ints from the start of the segment that must be mapped
+	 * @return the segment
+	 * @throws IOException on error
+	 */
+	private IntBuffer segment(int segment, int minLength) throws IOException {
+		IntBuffer buffer = segment < segments.size() ? segments.get(segment) : null;
+		if (buffer != null && buffer.capacity() >= minLength)
+			return buffer;
+		if (!writable)
+			throw new IndexOutOfBoundsException("Position beyond end of file");
+
+		// (Re)map the segment, making it larger than necessary so we don't have to remap often
+		int oldLength = buffer == null ? 0 : buffer.capacity();
+		long newLength = Math.max(minLength, Math.max(oldLength * 2L, MIN_WRITE_MAPPING_SIZE));
+		newLength = Math.min(newLength, segmentMask + 1L);
+		buffer = map(segment, (int) newLength);
+		while (segments.size() <= segment) {
+			segments.add(null);
+		}
+		segments.set(segment, buffer);
+		return buffer;
+	}
+
+	/**
+	 * @return the number of ints in the file (in writable mode: the position
+	 *   after the last int written)
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Read an int.
+	 *
+	 * @param position position in the file (in ints)
+	 * @return the int at that position
+	 */
+	public int get(long position) {
+		try {
+			int posInSegment = (int) (position & segmentMask);
+			return segment((int) (position >> segmentShift), posInSegment + 1).get(posInSegment);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a range of ints.
+	 *
+	 * @param position position in the file to start reading (in ints)
+	 * @param dest array to read into
+	 * @param destOffset where in the array to start
+	 * @param length number of ints to read
+	 */
+	public void get(long position, int[] dest, int destOffset, int length) {
+		if (position < 0 || position + length > size)
+			throw new IndexOutOfBoundsException("Range " + position + "-" + (position + length)
+					+ " outside file (size " + size + ")");
+		try {
+			while (length > 0) {
+				int posInSegment = (int) (position & segmentMask);
+				int n = Math.min(length, segmentMask + 1 - posInSegment);
+				IntBuffer buffer = segment((int) (position >> segmentShift), posInSegment + n);
+				// Use a duplicate so we don't interfere with other threads reading the same segment
+				IntBuffer view = buffer.duplicate();
+				view.position(posInSegment);
+				view.get(dest, destOffset, n);
+				position += n;
+				destOffset += n;
+				length -= n;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Make sure a range of the file is loaded into memory, by reading one int
+	 * from each memory page in the range.
+	 *
+	 * This is like MappedByteBuffer.load(), but for part of the file. It may be
+	 * called from a background thread to load data before it is needed.
+	 *
+	 * @param position position in the file to start loading (in ints)
+	 * @param length number of ints to load
+	 * @return a meaningless value (return it or store it somewhere, so the reads
+	 *   can't be optimized away)
+	 */
+	public int load(long position, long length) {
+		long end = Math.min(position + length, size);
+		int result = 0;
+		for (long p = Math.max(0, position); p < end; p += INTS_PER_PAGE) {
+			result += get(p);
+		}
+		if (end > position && end > 0)
+			result += get(end - 1);
+		return result;
+	}
+
+	/**
+	 * Write a range of ints. The file grows if necessary.
+	 *
+	 * Only allowed in writable mode.
+	 *
+	 * @param position position in the file to start writing (in ints)
+	 * @param src array to write from
+	 * @param srcOffset where in the array to start
+	 * @param length number of ints to write
+	 */
+	public void put(long position, int[] src, int srcOffset, int length) {
+		if (!writable)
+			throw new UnsupportedOperationException("Not opened for writing");
+		try {
+			long end = position + length;
+			while (length > 0) {
+				int posInSegment = (int) (position & segmentMask);
+				int n = Math.min(length, segmentMask + 1 - posInSegment);
+				IntBuffer view = segment((int) (position >> segmentShift), posInSegment + n).duplicate();
+				view.position(posInSegment);
+				view.put(src, srcOffset, n);
+				position += n;
+				srcOffset += n;
+				length -= n;
+			}
+			if (end > size)
+				size = end;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Replace the contents of a file with those of another file.
+	 *
+	 * The data is copied through the channel, instead of deleting the file and renaming the
+	 * other file to take its place: a file that is (or was) memory-mapped can't be deleted
+	 * on Windows, and mappings can't be released explicitly. Any LargeMappedIntFile on the
+	 * channel must not be used afterwards; create a new one.
+	 *
+	 * If the file can't be truncated (on Windows, while an old mapping still exists), data
+	 * may be left after the new contents. Callers keep track of the size of their data
+	 * themselves, so this space is simply unused (and overwritten when appending).
+	 *
+	 * @param channel the file to replace the contents of
+	 * @param newContents the file containing the new contents
+	 * @throws IOException on error
+	 */
+	public static void replaceContents(FileChannel channel, File newContents) throws IOException {
+		FileInputStream in = new FileInputStream(newContents);
+		try {
+			FileChannel src = in.getChannel();
+			long size = src.size();
+			long done = 0;
+			while (done < size) {
+				done += channel.transferFrom(src, done, size - done);
+			}
+			try {
+				channel.truncate(size);
+			} catch (IOException e) {
+				// Still mapped; see above
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+/**
+ * Stable merge sort for arrays of ints (usually indices into some other data structure)
+ * using a custom comparator, optionally using multiple threads.
+ *
+ * The array is split into as many ranges as there are threads; the ranges are sorted
+ * in parallel, then merged pairwise (also in parallel) until one sorted range remains.
+ *
+ * Because the elements are primitive ints, no boxing is needed (unlike when using
+ * Collections.sort() with a Comparator&lt;Integer&gt;).
+ */
+public class ParallelIntSort {
+
+	/** Compares two ints, for example two indices into a data structure. */
+	public interface IntComparator {
+		/**
+		 * Compare two elements.
+		 * @param a first element
+		 * @param b second element
+		 * @return 0 if equal, negative if a &lt; b, positive if a &gt; b.
+		 */
+		int compare(int a, int b);
+	}
+
+	/** Below this size, we always sort on the calling thread. */
+	private static final int MIN_PARALLEL_SIZE = 50000;
+
+	/** Below this size, use insertion sort instead of merge sort. */
+	private static final int INSERTION_SORT_THRESHOLD = 7;
+
+	private ParallelIntSort() {
+	}
+
+	/**
+	 * Sort an array (single-threaded).
+	 *
+	 * @param a the array to sort
+	 * @param cmp the comparator to use
+	 */
+	public static void sort(int[] a, IntComparator cmp) {
+		sort(a, cmp, 1);
+	}
+
+	/**
+	 * Sort an array, using multiple threads if the array is large enough.
+	 *
+	 * The comparator must be safe to call from multiple threads at the same time.
+	 *
+	 * @param a the array to sort
+	 * @param cmp the comparator to use
+	 * @param numberOfThreads maximum number of threads to use
+	 */
+	public static void sort(final int[] a, final IntComparator cmp, int numberOfThreads) {
+		final int n = a.length;
+		if (numberOfThreads <= 1 || n < MIN_PARALLEL_SIZE) {
+			int[] aux = a.clone();
+			mergeSort(aux, a, 0, n, cmp);
+			return;
+		}
+
+		// Determine the ranges to sort in parallel
+		final int[] bounds = new int[numberOfThreads + 1];
+		for (int i = 0; i <= numberOfThreads; i++) {
+			bounds[i] = (int) ((long) n * i / numberOfThreads);
+		}
+
+		// Sort each range in its own thread
+		final int[] aux = a.clone();
+		Thread[] threads = new Thread[numberOfThreads];
+		final Throwable[] failure = new Throwable[1];
+		for (int i = 0; i < numberOfThreads; i++) {
+			final int from = bounds[i], to = bounds[i + 1];
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						mergeSort(aux, a, from, to, cmp);
+					} catch (Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			}, "ParallelIntSort-" + i);
+			threads[i].start();
+		}
+		joinAll(threads, failure);
+
+		// Merge sorted ranges pairwise until we have one sorted range
+		int[] src = a, dest = aux;
+		int ranges = numberOfThreads;
+		int step = 1;
+		while (ranges > 1) {
+			int merges = (ranges + 1) / 2;
+			threads = new Thread[merges];
+			for (int i = 0; i < merges; i++) {
+				final int low = bounds[Math.min(2 * i * step, numberOfThreads)];
+				final int mid = bounds[Math.min((2 * i + 1) * step, numberOfThreads)];
+				final int high = bounds[Math.min((2 * i + 2) * step, numberOfThreads)];
+				final int[] s = src, d = dest;
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							merge(s, d, low, mid, high, cmp);
+						} catch (Throwable e) {
+							synchronized (failure) {
+								failure[0] = e;
+							}
+						}
+					}
+				}, "ParallelIntSort-merge-" + i);
+				threads[i].start();
+			}
+			joinAll(threads, failure);
+			int[] t = src;
+			src = dest;
+			dest = t;
+			ranges = merges;
+			step *= 2;
+		}
+		if (src != a)
+			System.arraycopy(src, 0, a, 0, n);
+	}
+
+	private static void joinAll(Thread[] threads, Throwable[] failure) {
+		try {
+			for (Thread thread: threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread thread: threads) {
+				thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while sorting", e);
+		}
+		synchronized (failure) {
+			if (failure[0] != null)
+				throw ExUtil.wrapRuntimeException(failure[0]);
+		}
+	}
+
+	/**
+	 * Stable merge sort of a range.
+	 *
+	 * @param src source array (must contain the same elements as dest in this range)
+	 * @param dest destination array (will contain the sorted elements)
+	 * @param low start of range to sort
+	 * @param high end of range to sort
+	 * @param cmp the comparator
+	 */
+	static void mergeSort(int[] src, int[] dest, int low, int high, IntComparator cmp) {
+		int length = high - low;
+		if (length < INSERTION_SORT_THRESHOLD) {
+			// Insertion sort for small ranges
+			for (int i = low; i < high; i++) {
+				for (int j = i; j > low && cmp.compare(dest[j - 1], dest[j]) > 0; j--) {
+					int t = dest[j];
+					dest[j] = dest[j - 1];
+					dest[j - 1] = t;
+				}
+			}
+			return;
+		}
+
+		// Sort both halves (from dest into src)
+		int mid = (low + high) >>> 1;
+		mergeSort(dest, src, low, mid, cmp);
+		mergeSort(dest, src, mid, high, cmp);
+		merge(src, dest, low, mid, high, cmp);
+	}
+
+	/**
+	 * Merge two adjacent sorted ranges from src into dest.
+	 *
+	 * @param src source array
+	 * @param dest destination array
+	 * @param low start of first range
+	 * @param mid end of first range / start of second range
+	 * @param high end of second range
+	 * @param cmp the comparator
+	 */
+	private static void merge(int[] src, int[] dest, int low, int mid, int high, IntComparator cmp) {
+		// Already sorted? Just copy.
+		if (mid == low || mid == high || cmp.compare(src[mid - 1], src[mid]) <= 0) {
+			System.arraycopy(src, low, dest, low, high - low);
+			return;
+		}
+		for (int i = low, p = low, q = mid; i < high; i++) {
+			if (q >= high || p < mid && cmp.compare(src[p], src[q]) <= 0)
+				dest[i] = src[p++];
+			else
+				dest[i] = src[q++];
+		}
+	}
+
+}
@@ -0,0 +1,799 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A deterministic automaton that matches the same (complete) strings as a regular
+ * expression.
+ *
+ * The regular expression is compiled into an NFA, which is turned into a DFA lazily:
+ * a DFA state is only created when step() first reaches it. Because of this, matching
+ * a string is linear in its length, and the automaton can tell after each character
+ * whether any string with the prefix read so far can still match (step() returns DEAD
+ * if not). That makes it suitable for walking a sorted term list, skipping all terms
+ * that share a prefix that cannot match.
+ *
+ * Only the commonly used subset of java.util.regex syntax is supported: literals,
+ * escapes, ., character classes, groups, alternation and greedy or reluctant quantifiers,
+ * plus ^ and $ at the start and end of the pattern and a leading (?s). compile() returns
+ * null for other patterns (backreferences, lookaround, most flags, etc.), so the caller
+ * can fall back to java.util.regex.
+ *
+ * Characters are UTF-16 code units. For strings containing surrogate pairs, the result
+ * may differ from java.util.regex (which matches code points), so callers should check
+ * those using java.util.regex.
+ *
+ * Not thread-safe, as the DFA is built while it is used.
+ */
+public class RegexAutomaton {
+
+	/** Returned by step() if no string with this prefix can match */
+	public static final int DEAD = -1;
+
+	/** Marks a transition we haven't computed yet */
+	private static final int UNKNOWN = -2;
+
+	/** Patterns that result in more NFA states than this are not supported */
+	private static final int MAX_NFA_STATES = 10000;
+
+	/** Characters that . doesn't match (unless (?s) is specified) */
+	private static final char[] LINE_TERMINATORS = { '\n', '\r', '\u0085', '\u2028', '\u2029' };
+
+	/** Thrown while parsing if the pattern uses something we don't support */
+	private static class UnsupportedPatternException extends RuntimeException {
+		// (no contents)
+	}
+
+	/** Node in the parsed pattern */
+	private static class Node {
+		static final int CHARS = 0;
+
+		static final int CONCAT = 1;
+
+		static final int ALT = 2;
+
+		static final int REPEAT = 3;
+
+		int type;
+
+		/** For CHARS: sorted, non-overlapping inclusive ranges (lo1, hi1, lo2, hi2, ...) */
+		int[] ranges;
+
+		/** For CONCAT, ALT and REPEAT: the child node(s) */
+		List<Node> children = new ArrayList<Node>();
+
+		/** For REPEAT: minimum and maximum number of repetitions (max -1 means no maximum) */
+		int min, max;
+
+		Node(int type) {
+			this.type = type;
+		}
+
+		static Node chars(int[] ranges) {
+			Node n = new Node(CHARS);
+			n.ranges = ranges;
+			return n;
+		}
+	}
+
+	/** A set of NFA states, usable as a map key. */
+	private static class StateSet {
+		int[] states;
+
+		StateSet(int[] states) {
+			this.states = states;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(states);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof StateSet && Arrays.equals(states, ((StateSet) obj).states);
+		}
+	}
+
+	/* ---- The NFA ---- */
+
+	/** Number of NFA states */
+	private int nfaSize = 0;
+
+	/** For each NFA state: the character ranges it accepts, or null for an epsilon state */
+	private int[][] nfaRanges = new int[16][];
+
+	/** For each NFA state: the next state (after a character, or epsilon); -1 if none */
+	private int[] nfaOut1 = new int[16];
+
+	/** For each NFA state: a second epsilon transition; -1 if none */
+	private int[] nfaOut2 = new int[16];
+
+	/** The accepting NFA state */
+	private int nfaAccept;
+
+	/** The initial NFA state */
+	private int nfaStart;
+
+	/* ---- The DFA (built lazily) ---- */
+
+	/** For each DFA state: the NFA states (character states and accept state only) */
+	private List<int[]> dfaStates = new ArrayList<int[]>();
+
+	/** For each DFA state: is it accepting? */
+	private List<Boolean> dfaAccepting = new ArrayList<Boolean>();
+
+	/** For each DFA state: transitions for ASCII characters (null until used) */
+	private List<int[]> dfaAsciiNext = new ArrayList<int[]>();
+
+	/** For each DFA state: transitions for other characters (null until used) */
+	private List<Map<Character, Integer>> dfaOtherNext = new ArrayList<Map<Character, Integer>>();
+
+	/** Find DFA states by their NFA states */
+	private Map<StateSet, Integer> dfaStateIds = new HashMap<StateSet, Integer>();
+
+	/** Marks used while computing epsilon closures */
+	private int[] mark;
+
+	/** Current mark value */
+	private int currentMark = 0;
+
+	/* ---- Parser state ---- */
+
+	/** The pattern we're parsing */
+	private String pattern;
+
+	/** Current position in the pattern */
+	private int pos;
+
+	/** Position after any leading flags (where ^ is allowed) */
+	private int patternStart;
+
+	/** Does . match line terminators as well? */
+	private boolean dotAll = false;
+
+	private RegexAutomaton() {
+		// use compile()
+	}
+
+	/**
+	 * Compile a regular expression into an automaton.
+	 *
+	 * The automaton matches strings the regular expression matches completely
+	 * (like Matcher.matches()).
+	 *
+	 * @param regex the regular expression
+	 * @return the automaton, or null if the pattern uses syntax we don't support
+	 *   (or is invalid)
+	 */
+	public static RegexAutomaton compile(String regex) {
+		RegexAutomaton a = new RegexAutomaton();
+		try {
+			Node root = a.parse(regex);
+			a.nfaAccept = a.newState(null, -1, -1);
+			a.nfaStart = a.build(root, a.nfaAccept);
+		} catch (UnsupportedPatternException e) {
+			return null;
+		}
+		a.mark = new int[a.nfaSize];
+		a.addDfaState(a.closure(new int[] { a.nfaStart }, 1));
+		return a;
+	}
+
+	/**
+	 * Escape a string so it is matched literally by a regular expression.
+	 *
+	 * Only escapes ASCII characters, so the result can be used both with
+	 * this class and with java.util.regex.
+	 *
+	 * @param literal the string
+	 * @return the escaped string
+	 */
+	public static String escape(String literal) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < literal.length(); i++) {
+			char c = literal.charAt(i);
+			if (c < 128 && !Character.isLetterOrDigit(c))
+				b.append('\\');
+			b.append(c);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Translate a wildcard pattern (* matches any string, ? any character) into
+	 * an equivalent regular expression.
+	 *
+	 * @param wildcard the wildcard pattern
+	 * @return the regular expression
+	 */
+	public static String wildcardToRegex(String wildcard) {
+		StringBuilder b = new StringBuilder("(?s)");
+		int start = 0;
+		for (int i = 0; i < wildcard.length(); i++) {
+			char c = wildcard.charAt(i);
+			if (c == '*' || c == '?') {
+				b.append(escape(wildcard.substring(start, i))).append(c == '*' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		b.append(escape(wildcard.substring(start)));
+		return b.toString();
+	}
+
+	/**
+	 * @return the initial state
+	 */
+	public int getInitialState() {
+		return 0;
+	}
+
+	/**
+	 * Is this an accepting state?
+	 * @param state the state
+	 * @return true if the string read so far matches
+	 */
+	public boolean isAccepting(int state) {
+		return dfaAccepting.get(state);
+	}
+
+	/**
+	 * Go to the next state.
+	 *
+	 * @param state the current state
+	 * @param c the next character
+	 * @return the next state, or DEAD if no string with this prefix can match
+	 */
+	public int step(int state, char c) {
+		if (c < 128) {
+			int[] next = dfaAsciiNext.get(state);
+			if (next == null) {
+				next = new int[128];
+				Arrays.fill(next, UNKNOWN);
+				dfaAsciiNext.set(state, next);
+			}
+			if (next[c] == UNKNOWN)
+				next[c] = computeStep(state, c);
+			return next[c];
+		}
+		Map<Character, Integer> next = dfaOtherNext.get(state);
+		if (next == null) {
+			next = new HashMap<Character, Integer>();
+			dfaOtherNext.set(state, next);
+		}
+		Integer result = next.get(c);
+		if (result == null) {
+			result = computeStep(state, c);
+			next.put(c, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the smallest character that doesn't lead to DEAD from this state.
+	 *
+	 * @param state the current state
+	 * @param from smallest character to consider
+	 * @return the character, or -1 if there is none (from or above)
+	 */
+	public int nextLiveChar(int state, int from) {
+		int best = -1;
+		for (int s: dfaStates.get(state)) {
+			int[] ranges = nfaRanges[s];
+			if (ranges == null)
+				continue;
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (ranges[i + 1] >= from) {
+					int c = Math.max(ranges[i], from);
+					if (best < 0 || c < best)
+						best = c;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Does the automaton match this string?
+	 * @param s the string
+	 * @return true if it matches
+	 */
+	public boolean matches(CharSequence s) {
+		int state = getInitialState();
+		for (int i = 0; i < s.length(); i++) {
+			state = step(state, s.charAt(i));
+			if (state == DEAD)
+				return false;
+		}
+		return isAccepting(state);
+	}
+
+	/**
+	 * @return number of DFA states built so far
+	 */
+	public int getNumberOfStates() {
+		return dfaStates.size();
+	}
+
+	private int computeStep(int state, char c) {
+		int[] from = dfaStates.get(state);
+		int[] to = new int[from.length];
+		int n = 0;
+		for (int s: from) {
+			if (nfaRanges[s] != null && contains(nfaRanges[s], c))
+				to[n++] = nfaOut1[s];
+		}
+		if (n == 0)
+			return DEAD;
+		int[] closure = closure(to, n);
+		if (closure.length == 0)
+			return DEAD;
+		Integer id = dfaStateIds.get(new StateSet(closure));
+		if (id != null)
+			return id;
+		return addDfaState(closure);
+	}
+
+	private int addDfaState(int[] nfaStates) {
+		int id = dfaStates.size();
+		dfaStates.add(nfaStates);
+		dfaAccepting.add(Arrays.binarySearch(nfaStates, nfaAccept) >= 0);
+		dfaAsciiNext.add(null);
+		dfaOtherNext.add(null);
+		dfaStateIds.put(new StateSet(nfaStates), id);
+		return id;
+	}
+
+	private static boolean contains(int[] ranges, char c) {
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (c < ranges[i])
+				return false;
+			if (c <= ranges[i + 1])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the epsilon closure of a set of NFA states, keeping only
+	 * the character states and the accept state.
+	 *
+	 * @param states the states
+	 * @param n number of states in the array
+	 * @return the sorted closure
+	 */
+	private int[] closure(int[] states, int n) {
+		currentMark++;
+		int[] stack = new int[nfaSize];
+		int stackSize = 0;
+		int[] result = new int[nfaSize];
+		int resultSize = 0;
+		for (int i = 0; i < n; i++) {
+			if (mark[states[i]] != currentMark) {
+				mark[states[i]] = currentMark;
+				stack[stackSize++] = states[i];
+			}
+		}
+		while (stackSize > 0) {
+			int s = stack[--stackSize];
+			if (nfaRanges[s] != null || s == nfaAccept) {
+				result[resultSize++] = s;
+				continue;
+			}
+			for (int next: new int[] { nfaOut1[s], nfaOut2[s] }) {
+				if (next >= 0 && mark[next] != currentMark) {
+					mark[next] = currentMark;
+					stack[stackSize++] = next;
+				}
+			}
+		}
+		int[] sorted = new int[resultSize];
+		System.arraycopy(result, 0, sorted, 0, resultSize);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/* ---- Building the NFA ---- */
+
+	private int newState(int[] ranges, int out1, int out2) {
+		if (nfaSize == MAX_NFA_STATES)
+			throw new UnsupportedPatternException();
+		if (nfaSize == nfaOut1.length) {
+			int newLength = nfaSize * 2;
+			nfaRanges = Arrays.copyOf(nfaRanges, newLength);
+			nfaOut1 = Arrays.copyOf(nfaOut1, newLength);
+			nfaOut2 = Arrays.copyOf(nfaOut2, newLength);
+		}
+		nfaRanges[nfaSize] = ranges;
+		nfaOut1[nfaSize] = out1;
+		nfaOut2[nfaSize] = out2;
+		return nfaSize++;
+	}
+
+	/**
+	 * Build the NFA for a node.
+	 *
+	 * We build from back to front, so we always know the state to continue with.
+	 *
+	 * @param node the node
+	 * @param next state to go to after the node has matched
+	 * @return the start state of the node
+	 */
+	private int build(Node node, int next) {
+		switch (node.type) {
+		case Node.CHARS:
+			return newState(node.ranges, next, -1);
+		case Node.CONCAT:
+			int s = next;
+			for (int i = node.children.size() - 1; i >= 0; i--) {
+				s = build(node.children.get(i), s);
+			}
+			return s;
+		case Node.ALT:
+			int alt = build(node.children.get(node.children.size() - 1), next);
+			for (int i = node.children.size() - 2; i >= 0; i--) {
+				alt = newState(null, build(node.children.get(i), next), alt);
+			}
+			return alt;
+		default: // REPEAT
+			Node child = node.children.get(0);
+			int start;
+			if (node.max < 0) {
+				// Loop back to a split state
+				int loop = newState(null, -1, next);
+				nfaOut1[loop] = build(child, loop);
+				start = loop;
+			} else {
+				// Optional copies, each of which may skip to the end
+				start = next;
+				for (int i = 0; i < node.max - node.min; i++) {
+					start = newState(null, build(child, start), next);
+				}
+			}
+			for (int i = 0; i < node.min; i++) {
+				start = build(child, start);
+			}
+			return start;
+		}
+	}
+
+	/* ---- Parsing ---- */
+
+	private Node parse(String regex) {
+		pattern = regex;
+		pos = 0;
+		if (pattern.startsWith("(?s)")) {
+			dotAll = true;
+			pos = 4;
+		}
+		patternStart = pos;
+		Node root = parseAlternatives();
+		if (pos < pattern.length())
+			throw new UnsupportedPatternException(); // unbalanced parenthesis
+		return root;
+	}
+
+	private boolean more() {
+		return pos < pattern.length();
+	}
+
+	private char peek() {
+		return pattern.charAt(pos);
+	}
+
+	private Node parseAlternatives() {
+		Node first = parseConcatenation();
+		if (!more() || peek() != '|')
+			return first;
+		Node alt = new Node(Node.ALT);
+		alt.children.add(first);
+		while (more() && peek() == '|') {
+			pos++;
+			alt.children.add(parseConcatenation());
+		}
+		return alt;
+	}
+
+	private Node parseConcatenation() {
+		Node concat = new Node(Node.CONCAT);
+		while (more() && peek() != '|' && peek() != ')') {
+			Node n = parseRepetition();
+			if (n != null)
+				concat.children.add(n);
+		}
+		return concat.children.size() == 1 ? concat.children.get(0) : concat;
+	}
+
+	private Node parseRepetition() {
+		Node atom = parseAtom();
+		if (!more())
+			return atom;
+		int min, max;
+		switch (peek()) {
+		case '*':
+			min = 0;
+			max = -1;
+			pos++;
+			break;
+		case '+':
+			min = 1;
+			max = -1;
+			pos++;
+			break;
+		case '?':
+			min = 0;
+			max = 1;
+			pos++;
+			break;
+		case '{':
+			pos++;
+			min = parseNumber();
+			max = min;
+			if (more() && peek() == ',') {
+				pos++;
+				max = more() && peek() == '}' ? -1 : parseNumber();
+			}
+			if (!more() || peek() != '}' || (max >= 0 && max < min))
+				throw new UnsupportedPatternException();
+			pos++;
+			break;
+		default:
+			return atom;
+		}
+		if (atom == null)
+			throw new UnsupportedPatternException(); // nothing to repeat
+		if (more() && peek() == '?')
+			pos++; // reluctant; matches the same complete strings
+		if (more() && (peek() == '+' || peek() == '*' || peek() == '?' || peek() == '{'))
+			throw new UnsupportedPatternException(); // possessive or stacked quantifier
+		Node repeat = new Node(Node.REPEAT);
+		repeat.children.add(atom);
+		repeat.min = min;
+		repeat.max = max;
+		return repeat;
+	}
+
+	private int parseNumber() {
+		int start = pos;
+		while (more() && peek() >= '0' && peek() <= '9' && pos - start < 4)
+			pos++;
+		if (pos == start || (more() && peek() >= '0' && peek() <= '9'))
+			throw new UnsupportedPatternException();
+		return Integer.parseInt(pattern.substring(start, pos));
+	}
+
+	/**
+	 * Parse an atom.
+	 * @return the node, or null if the atom matches the empty string (anchors, empty quotes)
+	 */
+	private Node parseAtom() {
+		char c = peek();
+		pos++;
+		switch (c) {
+		case '(':
+			if (more() && peek() == '?') {
+				if (!pattern.startsWith("?:", pos))
+					throw new UnsupportedPatternException(); // lookaround, flags, named group
+				pos += 2;
+			}
+			Node group = parseAlternatives();
+			if (!more() || peek() != ')')
+				throw new UnsupportedPatternException();
+			pos++;
+			return group;
+		case '[':
+			return Node.chars(parseClass());
+		case '.':
+			return Node.chars(dotAll ? new int[] { 0, Character.MAX_VALUE } : negate(normalize(charsToRanges(LINE_TERMINATORS))));
+		case '^':
+			if (pos - 1 != patternStart)
+				throw new UnsupportedPatternException();
+			return null;
+		case '$':
+			if (more())
+				throw new UnsupportedPatternException();
+			return null;
+		case '\\':
+			if (more() && peek() == 'Q') {
+				// Quoted literal
+				int end = pattern.indexOf("\\E", pos + 1);
+				String literal = pattern.substring(pos + 1, end < 0 ? pattern.length() : end);
+				pos = end < 0 ? pattern.length() : end + 2;
+				if (literal.length() == 0)
+					return null;
+				Node concat = new Node(Node.CONCAT);
+				for (int i = 0; i < literal.length(); i++) {
+					char l = literal.charAt(i);
+					concat.children.add(Node.chars(new int[] { l, l }));
+				}
+				return concat;
+			}
+			return Node.chars(parseEscape());
+		case '*':
+		case '+':
+		case '?':
+		case '{':
+			throw new UnsupportedPatternException(); // dangling quantifier
+		default:
+			return Node.chars(new int[] { c, c });
+		}
+	}
+
+	/**
+	 * Parse a character class (after the opening bracket).
+	 * @return the ranges the class matches
+	 */
+	private int[] parseClass() {
+		boolean negated = more() && peek() == '^';
+		if (negated)
+			pos++;
+		if (more() && peek() == ']')
+			throw new UnsupportedPatternException();
+		List<int[]> parts = new ArrayList<int[]>();
+		while (true) {
+			if (!more())
+				throw new UnsupportedPatternException();
+			char c = peek();
+			pos++;
+			if (c == ']')
+				break;
+			if (c == '[' || (c == '&' && more() && peek() == '&'))
+				throw new UnsupportedPatternException(); // union/intersection
+			int[] item = c == '\\' ? parseEscape() : new int[] { c, c };
+			if (item.length == 2 && item[0] == item[1] && more() && peek() == '-'
+					&& pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+				// Range
+				pos++;
+				char to = peek();
+				pos++;
+				int[] toItem = to == '\\' ? parseEscape() : new int[] { to, to };
+				if (toItem.length != 2 || toItem[0] != toItem[1] || toItem[0] < item[0])
+					throw new UnsupportedPatternException();
+				item = new int[] { item[0], toItem[0] };
+			}
+			parts.add(item);
+		}
+		int n = 0;
+		for (int[] part: parts)
+			n += part.length;
+		int[] ranges = new int[n];
+		n = 0;
+		for (int[] part: parts) {
+			System.arraycopy(part, 0, ranges, n, part.length);
+			n += part.length;
+		}
+		ranges = normalize(ranges);
+		return negated ? negate(ranges) : ranges;
+	}
+
+	/**
+	 * Parse an escape sequence (after the backslash).
+	 * @return the ranges the escape sequence matches
+	 */
+	private int[] parseEscape() {
+		if (!more())
+			throw new UnsupportedPatternException();
+		char c = peek();
+		pos++;
+		switch (c) {
+		case 'd':
+			return new int[] { '0', '9' };
+		case 'D':
+			return negate(new int[] { '0', '9' });
+		case 'w':
+			return new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+		case 'W':
+			return negate(new int[] { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' });
+		case 's':
+			return new int[] { '\t', '\r', ' ', ' ' };
+		case 'S':
+			return negate(new int[] { '\t', '\r', ' ', ' ' });
+		case 't':
+			return new int[] { '\t', '\t' };
+		case 'n':
+			return new int[] { '\n', '\n' };
+		case 'r':
+			return new int[] { '\r', '\r' };
+		case 'f':
+			return new int[] { '\f', '\f' };
+		case 'a':
+			return new int[] { '\u0007', '\u0007' };
+		case 'e':
+			return new int[] { '\u001B', '\u001B' };
+		case 'x':
+		case 'u':
+			int digits = c == 'x' ? 2 : 4;
+			if (pos + digits > pattern.length())
+				throw new UnsupportedPatternException();
+			try {
+				int value = Integer.parseInt(pattern.substring(pos, pos + digits), 16);
+				pos += digits;
+				return new int[] { value, value };
+			} catch (NumberFormatException e) {
+				throw new UnsupportedPatternException();
+			}
+		default:
+			if (c < 128 && !Character.isLetterOrDigit(c))
+				return new int[] { c, c }; // escaped special character
+			throw new UnsupportedPatternException(); // backreference, boundary, property, ...
+		}
+	}
+
+	private static int[] charsToRanges(char[] chars) {
+		int[] ranges = new int[chars.length * 2];
+		for (int i = 0; i < chars.length; i++) {
+			ranges[i * 2] = chars[i];
+			ranges[i * 2 + 1] = chars[i];
+		}
+		return ranges;
+	}
+
+	/**
+	 * Sort ranges and merge overlapping or adjacent ones.
+	 * @param ranges the ranges (lo1, hi1, lo2, hi2, ...)
+	 * @return the normalized ranges
+	 */
+	private static int[] normalize(int[] ranges) {
+		long[] sorted = new long[ranges.length / 2];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = ((long) ranges[i * 2] << 32) | ranges[i * 2 + 1];
+		}
+		Arrays.sort(sorted);
+		int[] result = new int[ranges.length];
+		int n = 0;
+		for (long range: sorted) {
+			int lo = (int) (range >>> 32), hi = (int) range;
+			if (n > 0 && lo <= result[n - 1] + 1) {
+				result[n - 1] = Math.max(result[n - 1], hi);
+			} else {
+				result[n++] = lo;
+				result[n++] = hi;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Complement normalized ranges.
+	 * @param ranges the ranges
+	 * @return all characters not in the ranges
+	 */
+	private static int[] negate(int[] ranges) {
+		int[] result = new int[ranges.length + 2];
+		int n = 0;
+		int next = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (ranges[i] > next) {
+				result[n++] = next;
+				result[n++] = ranges[i] - 1;
+			}
+			next = ranges[i + 1] + 1;
+		}
+		if (next <= Character.MAX_VALUE) {
+			result[n++] = next;
+			result[n++] = Character.MAX_VALUE;
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+}
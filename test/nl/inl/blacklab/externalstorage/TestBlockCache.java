@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.externalstorage;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestBlockCache {
+
+	private Object storeA = new Object();
+
+	private Object storeB = new Object();
+
+	@Test
+	public void testGetPut() {
+		BlockCache cache = new BlockCache(100);
+		Assert.assertNull(cache.get(storeA, 1, 0));
+		cache.put(storeA, 1, 0, "hello");
+		Assert.assertEquals("hello", cache.get(storeA, 1, 0));
+		Assert.assertNull(cache.get(storeB, 1, 0));
+		Assert.assertNull(cache.get(storeA, 2, 0));
+		Assert.assertNull(cache.get(storeA, 1, 5));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		BlockCache cache = new BlockCache(10);
+		cache.put(storeA, 1, 0, "aaaa");
+		cache.put(storeA, 1, 4, "bbbb");
+		cache.get(storeA, 1, 0); // a is now more recently used than b
+		cache.put(storeA, 1, 8, "cccc");
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(8, cache.getSizeChars());
+		Assert.assertNull(cache.get(storeA, 1, 4));
+		Assert.assertEquals("aaaa", cache.get(storeA, 1, 0));
+		Assert.assertEquals("cccc", cache.get(storeA, 1, 8));
+	}
+
+	@Test
+	public void testRemoveAll() {
+		BlockCache cache = new BlockCache(100);
+		cache.put(storeA, 1, 0, "aaaa");
+		cache.put(storeB, 1, 0, "bbbb");
+		cache.removeAll(storeA);
+		Assert.assertNull(cache.get(storeA, 1, 0));
+		Assert.assertEquals("bbbb", cache.get(storeB, 1, 0));
+		Assert.assertEquals(4, cache.getSizeChars());
+	}
+
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.externalstorage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+import nl.inl.util.Utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test: retrieve parts of documents from many threads at the same time
+ * (while another thread stores and deletes documents) and check the results.
+ */
+public class TestContentStoreConcurrentReads {
+
+	private static final int NUMBER_OF_READERS = 32;
+
+	private static final int NUMBER_OF_DOCS = 50;
+
+	private static final int READS_PER_THREAD = 2000;
+
+	private ContentStoreDirUtf8 store;
+
+	private File dir;
+
+	private String[] docs = new String[NUMBER_OF_DOCS];
+
+	@Before
+	public void setUp() {
+		Utilities.removeBlackLabTestDirs();
+		dir = Utilities.createBlackLabTestDir("ContentStoreConcurrentReads");
+
+		// Store documents with multi-byte characters, spanning many (compressed) blocks
+		Random random = new Random(42);
+		String alphabet = "abcdefghij éü€<>";
+		store = new ContentStoreDirZip(dir, true);
+		try {
+			store.setBlockSizeCharacters(100);
+			store.setDataFileSizeHint(10000);
+			for (int i = 0; i < NUMBER_OF_DOCS; i++) {
+				StringBuilder doc = new StringBuilder();
+				int length = 500 + random.nextInt(3000);
+				for (int j = 0; j < length; j++) {
+					doc.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+				docs[i] = doc.toString();
+				Assert.assertEquals(i + 1, store.store(docs[i]));
+			}
+		} finally {
+			store.close();
+		}
+		store = new ContentStoreDirZip(dir);
+
+		// Small cache, so we get plenty of misses and evictions
+		store.setBlockCache(new BlockCache(2000));
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null)
+			store.close();
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	@Test
+	public void testConcurrentReads() throws InterruptedException {
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < NUMBER_OF_READERS; t++) {
+			final Random random = new Random(t);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < READS_PER_THREAD; i++) {
+							int doc = random.nextInt(NUMBER_OF_DOCS);
+							String content = docs[doc];
+							int[] start = new int[3], end = new int[3];
+							for (int j = 0; j < 3; j++) {
+								start[j] = random.nextInt(content.length());
+								end[j] = start[j] + 1 + random.nextInt(Math.min(400, content.length() - start[j]));
+							}
+							String[] parts = store.retrieveParts(doc + 1, start, end);
+							for (int j = 0; j < 3; j++) {
+								Assert.assertEquals(content.substring(start[j], end[j]), parts[j]);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+
+		// Meanwhile, store and delete documents
+		threads.add(new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 100; i++) {
+						int id = store.store("extra document " + i);
+						store.delete(id);
+					}
+				} catch (Throwable e) {
+					synchronized (failures) {
+						failures.add(e);
+					}
+				}
+			}
+		});
+
+		for (Thread thread: threads) {
+			thread.start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		if (!failures.isEmpty())
+			throw new RuntimeException("Reader failed", failures.get(0));
+		Assert.assertTrue(store.getBlockCache().getEvictions() > 0);
+	}
+
+}
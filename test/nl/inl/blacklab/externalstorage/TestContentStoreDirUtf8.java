@@ -16,6 +16,8 @@
 package nl.inl.blacklab.externalstorage;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 import junit.framework.Assert;
 import nl.inl.util.Utilities;
@@ -99,4 +101,58 @@ public class TestContentStoreDirUtf8 {
 		store = new ContentStoreDirUtf8(dir);
 		Assert.assertEquals(5, store.store("test"));
 	}
+
+	@Test
+	public void testBlockCache() {
+		BlockCache cache = new BlockCache(1000);
+		((ContentStoreDirUtf8) store).setBlockCache(cache);
+		Assert.assertEquals(str[1], store.retrieve(2));
+		Assert.assertEquals(2, cache.getMisses()); // 20 chars, block size 15
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(str[1].substring(3, 17), store.retrieveParts(2, new int[] { 3 }, new int[] { 17 })[0]);
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(20, cache.getSizeChars());
+	}
+
+	@Test
+	public void testCompact() {
+		store.delete(2);
+		Assert.assertTrue(((ContentStoreDirUtf8) store).compact(new int[] { 4, 3, 1 }) > 0);
+		Assert.assertFalse(new File(dir, "data0001.dat").exists()); // replaced by new data files
+		Assert.assertTrue(store.isDeleted(2));
+		Assert.assertNull(store.retrieve(2));
+		Assert.assertEquals(str[0], store.retrieve(1));
+		Assert.assertEquals(str[2], store.retrieve(3));
+		Assert.assertEquals(str[3].substring(10, 20), store.retrievePart(4, 10, 20));
+
+		// Ids aren't re-used after compacting, and the store can be reopened
+		Assert.assertEquals(5, store.store("test"));
+		store.close();
+		store = new ContentStoreDirUtf8(dir);
+		Assert.assertEquals(str[3], store.retrieve(4));
+		Assert.assertEquals("test", store.retrieve(5));
+		Assert.assertEquals(6, store.store("test2"));
+	}
+
+	/** Data files left over from an interrupted compaction don't affect the store. */
+	@Test
+	public void testCompactInterrupted() throws IOException {
+		store.close();
+		File leftover = new File(dir, "data0099.dat");
+		FileOutputStream out = new FileOutputStream(leftover);
+		try {
+			out.write(new byte[] { 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+		store = new ContentStoreDirUtf8(dir);
+		Assert.assertEquals(str[1], store.retrieve(2));
+
+		((ContentStoreDirUtf8) store).compact(new int[0]);
+		Assert.assertFalse(leftover.exists());
+		for (int i = 0; i < str.length; i++) {
+			Assert.assertEquals(str[i], store.retrieve(i + 1));
+		}
+	}
 }
@@ -97,4 +97,23 @@ public class TestContentStoreDirZip {
 		store = new ContentStoreDirZip(dir);
 		Assert.assertEquals(5, store.store("test"));
 	}
+
+	@Test
+	public void testCompact() {
+		store.delete(2);
+		Assert.assertTrue(((ContentStoreDirUtf8) store).compact(new int[] { 4, 3, 1 }) > 0);
+		Assert.assertTrue(store.isDeleted(2));
+		Assert.assertNull(store.retrieve(2));
+		Assert.assertEquals(str[0], store.retrieve(1));
+		Assert.assertEquals(str[2], store.retrieve(3));
+		Assert.assertEquals(str[3].substring(10, 20), store.retrievePart(4, 10, 20));
+
+		// Ids aren't re-used after compacting, and the store can be reopened
+		Assert.assertEquals(5, store.store("test"));
+		store.close();
+		store = new ContentStoreDirZip(dir);
+		Assert.assertEquals(str[3], store.retrieve(4));
+		Assert.assertEquals("test", store.retrieve(5));
+		Assert.assertEquals(6, store.store("test2"));
+	}
 }
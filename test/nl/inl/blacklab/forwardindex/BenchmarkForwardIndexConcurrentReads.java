@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.inl.util.Utilities;
+
+/**
+ * Measures forward index read throughput (snippets per second) in search mode
+ * for an increasing number of threads. Not a unit test; run manually.
+ *
+ * Usage: BenchmarkForwardIndexConcurrentReads [maxThreads] [secondsPerRun]
+ */
+public class BenchmarkForwardIndexConcurrentReads {
+
+	private static final int NUMBER_OF_DOCS = 2000;
+
+	private static final int DOC_LENGTH = 5000;
+
+	private static final int SNIPPET_LENGTH = 11;
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+		int secondsPerRun = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Utilities.removeBlackLabTestDirs();
+		File dir = Utilities.createBlackLabTestDir("BenchmarkForwardIndexConcurrentReads");
+		ForwardIndex fi = new ForwardIndexImplV3(dir, true, null, true);
+		try {
+			Random random = new Random(0);
+			for (int fiid = 0; fiid < NUMBER_OF_DOCS; fiid++) {
+				List<String> content = new ArrayList<String>(DOC_LENGTH);
+				for (int i = 0; i < DOC_LENGTH; i++) {
+					content.add("w" + random.nextInt(10000));
+				}
+				fi.addDocument(content);
+			}
+		} finally {
+			fi.close();
+		}
+
+		fi = new ForwardIndexImplV3(dir, false, null, false);
+		try {
+			System.out.println("threads\tsnippets/sec");
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				long perSec = run(fi, threads, secondsPerRun * 1000L);
+				System.out.println(threads + "\t" + perSec);
+			}
+		} finally {
+			fi.close();
+			Utilities.removeBlackLabTestDirs();
+		}
+	}
+
+	private static long run(final ForwardIndex fi, int numberOfThreads, final long durationMs) throws InterruptedException {
+		final AtomicLong snippetsRead = new AtomicLong();
+		final long stopAt = System.currentTimeMillis() + durationMs;
+		Thread[] threads = new Thread[numberOfThreads];
+		for (int t = 0; t < numberOfThreads; t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int[] start = new int[10];
+					int[] end = new int[10];
+					long n = 0;
+					while (System.currentTimeMillis() < stopAt) {
+						// Simulate making concordances for 10 hits in a document
+						int fiid = random.nextInt(NUMBER_OF_DOCS);
+						for (int i = 0; i < start.length; i++) {
+							start[i] = random.nextInt(DOC_LENGTH - SNIPPET_LENGTH);
+							end[i] = start[i] + SNIPPET_LENGTH;
+						}
+						fi.retrievePartsInt(fiid, start, end);
+						n += start.length;
+					}
+					snippetsRead.addAndGet(n);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		return snippetsRead.get() * 1000 / durationMs;
+	}
+
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.inl.util.Utilities;
+
+/**
+ * Compares the size and random snippet read throughput (snippets per second) of
+ * version 3 and bit-packed version 4 forward indices, for different numbers of
+ * terms. Not a unit test; run manually.
+ *
+ * Usage: BenchmarkForwardIndexV4 [secondsPerRun]
+ */
+public class BenchmarkForwardIndexV4 {
+
+	private static final int NUMBER_OF_DOCS = 2000;
+
+	private static final int DOC_LENGTH = 5000;
+
+	private static final int SNIPPET_LENGTH = 11;
+
+	public static void main(String[] args) {
+		int secondsPerRun = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+		System.out.println("terms\tversion\ttokens.dat (kB)\tsnippets/sec");
+		for (int numberOfTerms: new int[] { 50, 5000, 500000 }) {
+			Utilities.removeBlackLabTestDirs();
+			File dir = Utilities.createBlackLabTestDir("BenchmarkForwardIndexV4");
+			File v3Dir = new File(dir, "v3");
+			File v4Dir = new File(dir, "v4");
+			ForwardIndex fi = new ForwardIndexImplV3(v3Dir, true, null, true);
+			try {
+				Random random = new Random(0);
+				for (int fiid = 0; fiid < NUMBER_OF_DOCS; fiid++) {
+					List<String> content = new ArrayList<String>(DOC_LENGTH);
+					for (int i = 0; i < DOC_LENGTH; i++) {
+						content.add("w" + random.nextInt(numberOfTerms));
+					}
+					fi.addDocument(content);
+				}
+			} finally {
+				fi.close();
+			}
+			ForwardIndex.convertToVersion4(v3Dir, v4Dir);
+
+			for (File fiDir: new File[] { v3Dir, v4Dir }) {
+				fi = ForwardIndex.open(fiDir);
+				try {
+					run(fi, 1000L); // warm up
+					long perSec = run(fi, secondsPerRun * 1000L);
+					long size = new File(fiDir, "tokens.dat").length() / 1024;
+					System.out.println(numberOfTerms + "\t" + fiDir.getName() + "\t" + size + "\t" + perSec);
+				} finally {
+					fi.close();
+				}
+			}
+		}
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	private static long run(ForwardIndex fi, long durationMs) {
+		Random random = new Random(0);
+		int[] start = new int[10];
+		int[] end = new int[10];
+		long n = 0;
+		long stopAt = System.currentTimeMillis() + durationMs;
+		while (System.currentTimeMillis() < stopAt) {
+			// Simulate making concordances for 10 hits in a document
+			int fiid = random.nextInt(NUMBER_OF_DOCS);
+			for (int i = 0; i < start.length; i++) {
+				start[i] = random.nextInt(DOC_LENGTH - SNIPPET_LENGTH);
+				end[i] = start[i] + SNIPPET_LENGTH;
+			}
+			fi.retrievePartsInt(fiid, start, end);
+			n += start.length;
+		}
+		return n * 1000 / durationMs;
+	}
+
+}
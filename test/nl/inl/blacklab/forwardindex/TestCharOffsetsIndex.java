@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import nl.inl.blacklab.index.complex.ComplexFieldUtil;
+import nl.inl.util.Utilities;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCharOffsetsIndex {
+	private CharOffsetsIndex coi;
+
+	private File dir;
+
+	/** Number of tokens in each test document */
+	private int[] docLengths = { 5, 1000, 3 };
+
+	@Before
+	public void setUp() {
+		// Remove any previously left over temp test dirs
+		Utilities.removeBlackLabTestDirs();
+
+		// Create new test dir
+		dir = Utilities.createBlackLabTestDir("CharOffsetsIndex");
+
+		// Token i of document d starts at char 10 * i + d and ends 4 chars later
+		coi = new CharOffsetsIndex(dir, true, true);
+		for (int d = 0; d < docLengths.length; d++) {
+			List<Integer> starts = new ArrayList<Integer>();
+			List<Integer> ends = new ArrayList<Integer>();
+			for (int i = 0; i < docLengths[d]; i++) {
+				starts.add(10 * i + d);
+				ends.add(10 * i + d + 4);
+			}
+			Assert.assertEquals(d, coi.addDocument(starts, ends));
+		}
+		coi.close();
+
+		// Reopen in search mode
+		coi = new CharOffsetsIndex(dir, false, false);
+	}
+
+	@After
+	public void tearDown() {
+		if (coi != null)
+			coi.close();
+		// Try to remove (some files may be locked though)
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	@Test
+	public void testRetrieve() {
+		Assert.assertEquals(3, coi.getNumDocs());
+		for (int d = 0; d < docLengths.length; d++) {
+			Assert.assertEquals(docLengths[d], coi.getDocLength(d));
+			int[] starts = { docLengths[d] - 1, 0 };
+			int[] ends = { 0, docLengths[d] - 1 };
+			coi.getCharacterOffsets(d, starts, ends, false);
+			Assert.assertEquals(10 * (docLengths[d] - 1) + d, starts[0]);
+			Assert.assertEquals(d, starts[1]);
+			Assert.assertEquals(d + 4, ends[0]);
+			Assert.assertEquals(10 * (docLengths[d] - 1) + d + 4, ends[1]);
+		}
+	}
+
+	@Test
+	public void testDefaults() {
+		int[] starts = { 7 };
+		int[] ends = { 7 };
+		coi.getCharacterOffsets(0, starts, ends, true);
+		Assert.assertEquals(0, starts[0]);  // first char of first word
+		Assert.assertEquals(44, ends[0]);   // last char of last word
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testNoDefaults() {
+		coi.getCharacterOffsets(2, new int[] { 3 }, new int[0], false);
+	}
+
+	@Test
+	public void testDeleteAndAdd() {
+		coi.close();
+		coi = new CharOffsetsIndex(dir, true, false);
+		coi.deleteDocument(1);
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> ends = new ArrayList<Integer>();
+		starts.add(100);
+		ends.add(105);
+		Assert.assertEquals(3, coi.addDocument(starts, ends));
+		coi.close();
+
+		coi = new CharOffsetsIndex(dir, false, false);
+		int[] s = { 0 };
+		int[] e = { 0 };
+		coi.getCharacterOffsets(3, s, e, false);
+		Assert.assertEquals(100, s[0]);
+		Assert.assertEquals(105, e[0]);
+		s[0] = e[0] = 0;
+		coi.getCharacterOffsets(2, s, e, false);
+		Assert.assertEquals(2, s[0]);
+		s[0] = e[0] = 0;
+		try {
+			coi.getCharacterOffsets(1, s, e, false);
+			Assert.fail("Deleted document should not be readable");
+		} catch (RuntimeException ex) {
+			// expected
+		}
+	}
+
+	/** Compacting removes the space used by deleted documents but keeps the ids. */
+	@Test
+	public void testCompact() {
+		coi.close();
+		coi = new CharOffsetsIndex(dir, true, false);
+		coi.deleteDocument(1);
+		Assert.assertEquals(1000, coi.compact(new int[] { 2, 0 }));
+		Assert.assertFalse(new File(dir, "offsets.dat.new").exists());
+		assertDocuments(new int[] { 0, 2 });
+
+		// New documents are added after the compacted ones
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> ends = new ArrayList<Integer>();
+		starts.add(100);
+		ends.add(105);
+		Assert.assertEquals(3, coi.addDocument(starts, ends));
+		coi.close();
+
+		// Compacted index is written correctly
+		coi = new CharOffsetsIndex(dir, false, false);
+		Assert.assertEquals(4, coi.getNumDocs());
+		assertDocuments(new int[] { 0, 2 });
+		int[] s = { 0 };
+		int[] e = { 0 };
+		coi.getCharacterOffsets(3, s, e, false);
+		Assert.assertEquals(100, s[0]);
+		Assert.assertEquals(105, e[0]);
+		try {
+			coi.getCharacterOffsets(1, new int[] { 0 }, new int[0], false);
+			Assert.fail("Deleted document should not be readable");
+		} catch (RuntimeException ex) {
+			// expected
+		}
+	}
+
+	/** Id 0 is a real id, not "no value". */
+	@Test
+	public void testLuceneDocIdToCoid() throws Exception {
+		RAMDirectory luceneDir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(luceneDir, new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36)));
+		String idField = ComplexFieldUtil.charOffsetsIdField("contents");
+		int[] coids = { 0, -1, 2, 1 }; // -1: document without character offsets
+		for (int coid: coids) {
+			Document doc = new Document();
+			doc.add(new Field("title", "doc", Field.Store.YES, Field.Index.NOT_ANALYZED));
+			if (coid >= 0)
+				doc.add(new NumericField(idField, Field.Store.YES, true).setIntValue(coid));
+			writer.addDocument(doc);
+		}
+		writer.close();
+		IndexReader reader = IndexReader.open(luceneDir);
+		try {
+			coi.setIdTranslateInfo(reader, "contents");
+			for (int docId = 0; docId < coids.length; docId++) {
+				Assert.assertEquals(coids[docId], coi.luceneDocIdToCoid(docId));
+			}
+		} finally {
+			reader.close();
+			luceneDir.close();
+		}
+	}
+
+	private void assertDocuments(int[] coids) {
+		for (int d: coids) {
+			Assert.assertEquals(docLengths[d], coi.getDocLength(d));
+			int[] starts = new int[docLengths[d]];
+			int[] ends = new int[docLengths[d]];
+			for (int i = 0; i < starts.length; i++) {
+				starts[i] = ends[i] = i;
+			}
+			coi.getCharacterOffsets(d, starts, ends, false);
+			for (int i = 0; i < starts.length; i++) {
+				Assert.assertEquals(10 * i + d, starts[i]);
+				Assert.assertEquals(10 * i + d + 4, ends[i]);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+import nl.inl.util.Utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestForwardIndexConcurrentReads {
+
+	private static final int NUMBER_OF_DOCS = 50;
+
+	private static final int NUMBER_OF_THREADS = 8;
+
+	private static final int READS_PER_THREAD = 2000;
+
+	private ForwardIndex fi;
+
+	private int[] docLengths = new int[NUMBER_OF_DOCS];
+
+	@Before
+	public void setUpForwardIndex() {
+		// Remove any previously left over temp test dirs
+		Utilities.removeBlackLabTestDirs();
+
+		// Create new test dir
+		File dir = Utilities.createBlackLabTestDir("ForwardIndexConcurrentReads");
+
+		fi = new ForwardIndexImplV3(dir, true, null, true);
+		try {
+			// Make test docs: token at position i is (fiid + i) % 100,
+			// so we can check the results of any read
+			for (int fiid = 0; fiid < NUMBER_OF_DOCS; fiid++) {
+				docLengths[fiid] = 100 + fiid * 10;
+				List<String> content = new ArrayList<String>();
+				for (int i = 0; i < docLengths[fiid]; i++) {
+					content.add(Integer.toString((fiid + i) % 100));
+				}
+				Assert.assertEquals(fiid, fi.addDocument(content));
+			}
+		} finally {
+			fi.close(); // close so everything is guaranteed to be written
+		}
+		fi = new ForwardIndexImplV3(dir, false, null, false);
+	}
+
+	@After
+	public void tearDown() {
+		if (fi != null)
+			fi.close();
+		// Try to remove (some files may be locked though)
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	@Test
+	public void testConcurrentReads() throws InterruptedException {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[NUMBER_OF_THREADS];
+		for (int t = 0; t < NUMBER_OF_THREADS; t++) {
+			final long seed = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						readAndCheck(new Random(seed));
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		if (failure.get() != null)
+			throw new RuntimeException(failure.get());
+	}
+
+	void readAndCheck(Random random) {
+		Terms terms = fi.getTerms();
+		for (int i = 0; i < READS_PER_THREAD; i++) {
+			int fiid = random.nextInt(NUMBER_OF_DOCS);
+			int start = random.nextInt(docLengths[fiid] - 10);
+			int end = start + 1 + random.nextInt(10);
+			int[] snippet = fi.retrievePartsInt(fiid, new int[] {start}, new int[] {end}).get(0);
+			Assert.assertEquals(end - start, snippet.length);
+			for (int j = 0; j < snippet.length; j++) {
+				Assert.assertEquals(Integer.toString((fiid + start + j) % 100), terms.get(snippet[j]));
+			}
+		}
+	}
+
+}
@@ -16,6 +16,11 @@
 package nl.inl.blacklab.forwardindex;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -135,4 +140,90 @@ public class TestForwardIndexDelete {
 		Assert.assertEquals(0, addDocumentOfLength(9)); // exact fit
 	}
 
+	/** Compacting removes the gaps but keeps the fiids. */
+	@Test
+	public void testCompact() {
+		Assert.assertEquals(42, fi.getFreeSpace());
+		Assert.assertEquals(3, fi.getFreeBlocks());
+		Assert.assertEquals(42, fi.compact(new int[] { 5, 3, 1 }));
+		Assert.assertEquals(0, fi.getFreeSpace());
+		Assert.assertEquals(0, fi.getFreeBlocks());
+		Assert.assertEquals(48, fi.getTotalSize());
+		Assert.assertFalse(new File(dir, "tokens.dat.new").exists());
+		assertDocuments(new int[] { 1, 3, 5 }, new int[] { 12, 16, 20 });
+
+		// Unused entries are re-used
+		Assert.assertTrue(addDocumentOfLength(7) % 2 == 0);
+		Assert.assertEquals(55, fi.getTotalSize());
+
+		// Compacted forward index is written correctly
+		fi.close();
+		fi = new ForwardIndexImplV3(dir, false, null, false);
+		assertDocuments(new int[] { 1, 3, 5 }, new int[] { 12, 16, 20 });
+	}
+
+	/** A compaction interrupted after the compacted files were written is completed on open. */
+	@Test
+	public void testCompactRecovery() throws IOException {
+		// Compact a copy of the forward index
+		fi.close();
+		File copyDir = Utilities.createBlackLabTestDir("ForwardIndexDeleteCopy");
+		for (String name: dir.list()) {
+			copyFile(new File(dir, name), new File(copyDir, name));
+		}
+		fi = new ForwardIndexImplV3(copyDir, true, null, false);
+		fi.compact(new int[] { 5, 3, 1 });
+		fi.close();
+
+		// Pretend compacting the original was interrupted just after writing these files
+		copyFile(new File(copyDir, "tokens.dat"), new File(dir, "tokens.dat.new"));
+		copyFile(new File(copyDir, "docs.dat"), new File(dir, "docs.dat.new"));
+		fi = new ForwardIndexImplV3(dir, false, null, false);
+		Assert.assertFalse(new File(dir, "tokens.dat.new").exists());
+		Assert.assertFalse(new File(dir, "docs.dat.new").exists());
+		Assert.assertEquals(48, fi.getTotalSize());
+		assertDocuments(new int[] { 1, 3, 5 }, new int[] { 12, 16, 20 });
+	}
+
+	/** A compaction interrupted while writing the compacted files is undone on open. */
+	@Test
+	public void testCompactRecoveryIncomplete() throws IOException {
+		fi.close();
+		copyFile(new File(dir, "docs.dat"), new File(dir, "docs.dat.tmp"));
+		copyFile(new File(dir, "tokens.dat"), new File(dir, "tokens.dat.new"));
+		fi = new ForwardIndexImplV3(dir, false, null, false);
+		Assert.assertFalse(new File(dir, "tokens.dat.new").exists());
+		Assert.assertFalse(new File(dir, "docs.dat.tmp").exists());
+		Assert.assertEquals(42, fi.getFreeSpace());
+		assertDocuments(new int[] { 1, 3, 5 }, new int[] { 12, 16, 20 });
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[4096];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void assertDocuments(int[] fiids, int[] lengths) {
+		for (int j = 0; j < fiids.length; j++) {
+			Assert.assertEquals(lengths[j], fi.getDocLength(fiids[j]));
+			int[] test = fi.retrievePartsInt(fiids[j], new int[] { 0 }, new int[] { lengths[j] }).get(0);
+			for (int i = 0; i < lengths[j]; i++) {
+				Assert.assertEquals(i, test[i]);
+			}
+		}
+	}
+
 }
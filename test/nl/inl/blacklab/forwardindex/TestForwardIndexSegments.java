@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import nl.inl.util.Utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test reading snippets that cross the boundary between two mapped segments
+ * of the tokens file.
+ */
+public class TestForwardIndexSegments {
+
+	private ForwardIndex fi;
+
+	private File dir;
+
+	private int oldChunkSize;
+
+	private int[] docLengths = { 5, 30, 17, 64, 3, 41 };
+
+	@Before
+	public void setUp() {
+		Utilities.removeBlackLabTestDirs();
+		dir = Utilities.createBlackLabTestDir("ForwardIndexSegments");
+
+		// Use tiny segments (16 ints)
+		oldChunkSize = ForwardIndexImplV3.preferredChunkSizeBytes;
+		ForwardIndexImplV3.preferredChunkSizeBytes = 64;
+
+		fi = new ForwardIndexImplV3(dir, true, null, true);
+		try {
+			for (int length: docLengths) {
+				List<String> content = new ArrayList<String>();
+				for (int i = 0; i < length; i++) {
+					content.add("w" + i);
+				}
+				fi.addDocument(content);
+			}
+		} finally {
+			fi.close();
+		}
+		fi = new ForwardIndexImplV3(dir, false, null, false);
+	}
+
+	@After
+	public void tearDown() {
+		if (fi != null)
+			fi.close();
+		ForwardIndexImplV3.preferredChunkSizeBytes = oldChunkSize;
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	@Test
+	public void testRetrieveAcrossSegments() {
+		Terms terms = fi.getTerms();
+		for (int fiid = 0; fiid < docLengths.length; fiid++) {
+			int length = docLengths[fiid];
+			for (int start = 0; start < length; start += 3) {
+				int end = Math.min(length, start + 20);
+				int[] snippet = fi.retrievePartsInt(fiid, new int[] { start }, new int[] { end }).get(0);
+				Assert.assertEquals(end - start, snippet.length);
+				for (int i = 0; i < snippet.length; i++) {
+					Assert.assertEquals("w" + (start + i), terms.get(snippet[i]));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+import nl.inl.util.Utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test converting a forward index to the bit-packed version 4 format.
+ */
+public class TestForwardIndexV4 {
+
+	private File dir;
+
+	private int[] docLengths = { 5, 30, 17, 64, 3, 41, 1, 100 };
+
+	@Before
+	public void setUp() {
+		Utilities.removeBlackLabTestDirs();
+		dir = Utilities.createBlackLabTestDir("ForwardIndexV4");
+	}
+
+	@After
+	public void tearDown() {
+		ForwardIndexImplV4.preferredChunkSizeBytes = 1 << 30;
+		ForwardIndexImplV4.useMemoryMapping = true;
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	/**
+	 * Create a version 3 forward index with random terms and convert it.
+	 *
+	 * @param numberOfTerms number of different terms to use
+	 * @return the version 3 forward index dir
+	 */
+	private File createAndConvert(int numberOfTerms) {
+		File v3Dir = new File(dir, "v3");
+		ForwardIndex fi = new ForwardIndexImplV3(v3Dir, true, null, true);
+		try {
+			Random random = new Random(numberOfTerms);
+			for (int length: docLengths) {
+				List<String> content = new ArrayList<String>();
+				for (int i = 0; i < length; i++) {
+					content.add("w" + random.nextInt(numberOfTerms));
+				}
+				fi.addDocument(content);
+			}
+			fi.deleteDocument(2);
+		} finally {
+			fi.close();
+		}
+		ForwardIndex.convertToVersion4(v3Dir, new File(dir, "v4"));
+		return v3Dir;
+	}
+
+	private void assertSameContents(File v3Dir) {
+		ForwardIndex v3 = ForwardIndex.open(v3Dir);
+		ForwardIndex v4 = ForwardIndex.open(new File(dir, "v4"));
+		try {
+			Assert.assertTrue(v4 instanceof ForwardIndexImplV4);
+			Assert.assertEquals(v3.getNumDocs(), v4.getNumDocs());
+			Assert.assertEquals(v3.getTerms().numberOfTerms(), v4.getTerms().numberOfTerms());
+			Assert.assertEquals(v3.getTotalSize() - v3.getFreeSpace(), v4.getTotalSize());
+			for (int fiid = 0; fiid < docLengths.length; fiid++) {
+				if (fiid == 2) {
+					// Deleted
+					Assert.assertNull(v4.retrievePartsInt(fiid, new int[] { 0 }, new int[] { 1 }));
+					continue;
+				}
+				int length = docLengths[fiid];
+				Assert.assertEquals(length, v4.getDocLength(fiid));
+				for (int start = 0; start < length; start++) {
+					for (int end = start + 1; end <= length; end += 7) {
+						int[] expected = v3.retrievePartsInt(fiid, new int[] { start }, new int[] { end }).get(0);
+						int[] actual = v4.retrievePartsInt(fiid, new int[] { start }, new int[] { end }).get(0);
+						Assert.assertEquals(expected.length, actual.length);
+						for (int i = 0; i < expected.length; i++) {
+							Assert.assertEquals(expected[i], actual[i]);
+						}
+					}
+				}
+				int[] whole = v4.retrievePartsInt(fiid, new int[] { -1 }, new int[] { -1 }).get(0);
+				Assert.assertEquals(length, whole.length);
+			}
+		} finally {
+			v3.close();
+			v4.close();
+		}
+	}
+
+	@Test
+	public void testBitsPerToken() {
+		Assert.assertEquals(1, ForwardIndexImplV4.bitsPerToken(0));
+		Assert.assertEquals(1, ForwardIndexImplV4.bitsPerToken(1));
+		Assert.assertEquals(1, ForwardIndexImplV4.bitsPerToken(2));
+		Assert.assertEquals(2, ForwardIndexImplV4.bitsPerToken(3));
+		Assert.assertEquals(8, ForwardIndexImplV4.bitsPerToken(256));
+		Assert.assertEquals(9, ForwardIndexImplV4.bitsPerToken(257));
+		Assert.assertEquals(31, ForwardIndexImplV4.bitsPerToken(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testSingleTerm() {
+		assertSameContents(createAndConvert(1));
+	}
+
+	@Test
+	public void testFewTerms() {
+		assertSameContents(createAndConvert(5));
+	}
+
+	@Test
+	public void testManyTerms() {
+		assertSameContents(createAndConvert(100000));
+	}
+
+	@Test
+	public void testSmallSegments() {
+		// Use tiny segments (16 ints)
+		ForwardIndexImplV4.preferredChunkSizeBytes = 64;
+		assertSameContents(createAndConvert(40));
+	}
+
+	@Test
+	public void testNoMemoryMapping() {
+		ForwardIndexImplV4.useMemoryMapping = false;
+		assertSameContents(createAndConvert(40));
+	}
+
+	@Test
+	public void testSmallerFile() {
+		File v3Dir = createAndConvert(40);
+		long v3Size = new File(v3Dir, "tokens.dat").length();
+		long v4Size = new File(new File(dir, "v4"), "tokens.dat").length();
+		Assert.assertTrue(v4Size * 4 < v3Size);
+	}
+
+	@Test
+	public void testPrefetch() {
+		File v3Dir = createAndConvert(40);
+		for (File fiDir: new File[] { v3Dir, new File(dir, "v4") }) {
+			ForwardIndex fi = ForwardIndex.open(fiDir);
+			try {
+				// Prefetching (including the deleted document) shouldn't affect the results
+				for (int fiid = 0; fiid < docLengths.length; fiid++) {
+					fi.prefetch(fiid);
+				}
+				int[] whole = fi.retrievePartsInt(7, new int[] { -1 }, new int[] { -1 }).get(0);
+				Assert.assertEquals(docLengths[7], whole.length);
+			} finally {
+				fi.close();
+			}
+		}
+		assertSameContents(v3Dir);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testReadOnly() {
+		createAndConvert(40);
+		ForwardIndex.open(new File(dir, "v4"), true);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.forwardindex;
+
+import java.io.File;
+import java.text.Collator;
+import java.util.Locale;
+import java.util.Random;
+
+import junit.framework.Assert;
+import nl.inl.util.Utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTermsSorter {
+
+	private File dir;
+
+	private String[] terms;
+
+	@Before
+	public void setUp() {
+		Utilities.removeBlackLabTestDirs();
+		dir = Utilities.createBlackLabTestDir("TermsSorter");
+
+		// Random terms, including some that only differ in case
+		Random random = new Random(42);
+		terms = new String[1000];
+		for (int i = 0; i < terms.length; i++) {
+			StringBuilder b = new StringBuilder();
+			int length = 1 + random.nextInt(3);
+			for (int j = 0; j < length; j++) {
+				char c = (char) ('a' + random.nextInt(4));
+				b.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+			}
+			terms[i] = b.toString() + (i % 2 == 0 ? "" : "\u00e9");
+		}
+	}
+
+	@After
+	public void tearDown() {
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	private void checkOrder(Collator collator) {
+		int[] pos = new TermsSorter(collator, dir).sortPositions(terms);
+		for (int i = 0; i < terms.length; i++) {
+			for (int j = 0; j < terms.length; j += 7) {
+				int cmp = collator.compare(terms[i], terms[j]);
+				int cmpPos = pos[i] - pos[j];
+				Assert.assertEquals(terms[i] + " / " + terms[j], Integer.signum(cmp), Integer.signum(cmpPos));
+			}
+		}
+
+		// Sorting in runs that are merged gives the same result
+		int[] posRuns = new TermsSorter(collator, dir, 64, 3).sortPositions(terms);
+		for (int i = 0; i < terms.length; i++) {
+			Assert.assertEquals(pos[i], posRuns[i]);
+		}
+		Assert.assertEquals(0, dir.listFiles().length); // temporary files removed
+	}
+
+	@Test
+	public void testSensitive() {
+		Collator collator = Collator.getInstance(new Locale("en", "GB"));
+		collator.setStrength(Collator.TERTIARY);
+		checkOrder(collator);
+	}
+
+	@Test
+	public void testInsensitive() {
+		Collator collator = Collator.getInstance(new Locale("en", "GB"));
+		collator.setStrength(Collator.PRIMARY);
+		checkOrder(collator);
+	}
+
+	@Test
+	public void testUtf8Length() throws Exception {
+		String[] str = { "", "abc", "\u00e9t\u00e9", "\u20ac", "\ud83d\ude00", "a\ud83dz" };
+		for (String s: str) {
+			Assert.assertEquals(s.getBytes("utf-8").length, TermsImplV3.utf8Length(s));
+		}
+	}
+
+}
@@ -101,4 +101,54 @@ public class TestTermsV3 {
 			Assert.assertEquals(expected[i], t.idToSortPosition(i, true));
 		}
 	}
+
+	/**
+	 * Test if terms can be added from several threads, getting consecutive ids.
+	 */
+	@Test
+	public void testConcurrentIndexOf() throws InterruptedException {
+		final Terms ti = new TermsImplV3(true, Collator.getInstance(new Locale("en", "GB")));
+		final int[][] ids = new int[4][1000];
+		Thread[] threads = new Thread[ids.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int[] threadIds = ids[i];
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < threadIds.length; j++) {
+						threadIds[j] = ti.indexOf("term" + j);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		boolean[] seen = new boolean[1000];
+		for (int j = 0; j < 1000; j++) {
+			for (int i = 1; i < ids.length; i++) {
+				Assert.assertEquals(ids[0][j], ids[i][j]);
+			}
+			Assert.assertFalse(seen[ids[0][j]]);
+			seen[ids[0][j]] = true;
+		}
+	}
+
+	/**
+	 * Test adding terms to an existing terms file.
+	 */
+	@Test
+	public void testAppend() {
+		File f = new File(dir, "terms.dat");
+		t = new TermsImplV3(true, Collator.getInstance(new Locale("en", "GB")), f);
+		Assert.assertEquals(3, t.indexOf("fox"));
+		Assert.assertEquals(8, t.indexOf("cat"));
+		t.write(f);
+
+		t = new TermsImplV3(false, Collator.getInstance(new Locale("en", "GB")), f);
+		Assert.assertEquals(9, t.numberOfTerms());
+		Assert.assertEquals("fox", t.get(3));
+		Assert.assertEquals("cat", t.get(8));
+	}
 }
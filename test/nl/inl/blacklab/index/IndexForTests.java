@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.index;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Random;
+
+import nl.inl.blacklab.example.DocIndexerExample;
+import nl.inl.blacklab.queryParser.corpusql.CorpusQueryLanguageParser;
+import nl.inl.blacklab.search.TextPattern;
+
+/**
+ * Creates small test indices, using the example DocIndexer (see Example).
+ */
+public class IndexForTests {
+
+	/** Words used in the test documents: word, lemma and part of speech */
+	private static final String[][] WORDS = {
+		{ "The", "the", "art" }, { "the", "the", "art" }, { "quick", "quick", "adj" },
+		{ "brown", "brown", "adj" }, { "fox", "fox", "nou" }, { "jumps", "jump", "vrb" },
+		{ "over", "over", "pre" }, { "lazy", "lazy", "adj" }, { "dog", "dog", "nou" },
+		{ "may", "may", "vrb" }, { "force", "force", "nou" }, { "be", "be", "vrb" },
+		{ "with", "with", "pre" }, { "you", "you", "pro" }
+	};
+
+	/**
+	 * Generate test documents in the example format.
+	 *
+	 * @param numberOfDocs number of documents to generate
+	 * @param seed random seed (the same seed gives the same documents)
+	 * @return the documents
+	 */
+	public static String[] makeDocuments(int numberOfDocs, long seed) {
+		Random random = new Random(seed);
+		String[] docs = new String[numberOfDocs];
+		for (int i = 0; i < numberOfDocs; i++) {
+			StringBuilder b = new StringBuilder("<doc>");
+			int length = 1 + random.nextInt(50);
+			for (int j = 0; j < length; j++) {
+				String[] word = WORDS[random.nextInt(WORDS.length)];
+				b.append("<w l='").append(word[1]).append("' p='").append(word[2]).append("'>")
+						.append(word[0]).append("</w> ");
+			}
+			docs[i] = b.append(".</doc>").toString();
+		}
+		return docs;
+	}
+
+	/**
+	 * Create an index containing the documents.
+	 *
+	 * The documents are named doc0, doc1, etc. (stored in the fromInputFile field).
+	 *
+	 * @param indexDir where to create the index
+	 * @param docs the documents to index
+	 * @param numberOfThreads number of threads to index with
+	 * @throws Exception
+	 */
+	public static void createIndex(File indexDir, String[] docs, int numberOfThreads) throws Exception {
+		Indexer indexer = new Indexer(indexDir, true, DocIndexerExample.class);
+		try {
+			indexer.setListener(new IndexListenerDevNull());
+			indexer.setIndexerParam(new HashMap<String, String>());
+			indexer.setNumberOfThreads(numberOfThreads);
+			for (int i = 0; i < docs.length; i++) {
+				indexer.index("doc" + i, new StringReader(docs[i]));
+			}
+		} finally {
+			indexer.close();
+		}
+	}
+
+	/**
+	 * Parse a Corpus Query Language query.
+	 *
+	 * @param query the query
+	 * @return the resulting pattern
+	 */
+	public static TextPattern parse(String query) {
+		try {
+			return CorpusQueryLanguageParser.parse(query);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
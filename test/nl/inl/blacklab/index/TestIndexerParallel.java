@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.index;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import nl.inl.blacklab.example.DocIndexerExample;
+import nl.inl.blacklab.forwardindex.ForwardIndex;
+import nl.inl.blacklab.search.Searcher;
+import nl.inl.util.Utilities;
+
+import org.apache.lucene.document.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test indexing documents using multiple threads.
+ */
+public class TestIndexerParallel {
+
+	private static final int NUMBER_OF_DOCS = 60;
+
+	private static final String[] QUERIES = { "\"the\"", "[pos=\"adj\"] \"fox\"", "[lemma=\"jump\"]", "\"dog\" \".*\"" };
+
+	private File dir;
+
+	@Before
+	public void setUp() {
+		Utilities.removeBlackLabTestDirs();
+		dir = Utilities.createBlackLabTestDir("IndexerParallel");
+	}
+
+	@After
+	public void tearDown() {
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	/** Contents of one document in an index */
+	private static class DocContents {
+		String content;
+
+		List<String> words = new ArrayList<String>();
+
+		List<String> lemmas = new ArrayList<String>();
+	}
+
+	/**
+	 * Read the content store text and forward index contents of each document.
+	 *
+	 * @param searcher the index
+	 * @return the contents of each document, by document name
+	 */
+	private static Map<String, DocContents> readContents(Searcher searcher) {
+		Map<String, DocContents> result = new HashMap<String, DocContents>();
+		ForwardIndex words = searcher.getForwardIndex("contents%word");
+		ForwardIndex lemmas = searcher.getForwardIndex("contents%lemma");
+		for (int docId = 0; docId < searcher.maxDoc(); docId++) {
+			Document d = searcher.document(docId);
+			DocContents contents = new DocContents();
+			contents.content = searcher.getContent(d);
+			readForwardIndex(words, docId, contents.words);
+			readForwardIndex(lemmas, docId, contents.lemmas);
+			result.put(d.get("fromInputFile"), contents);
+		}
+		return result;
+	}
+
+	private static void readForwardIndex(ForwardIndex fi, int docId, List<String> dest) {
+		int fiid = fi.luceneDocIdToFiid(docId);
+		int[] tokens = fi.retrievePartsInt(fiid, new int[] { -1 }, new int[] { -1 }).get(0);
+		for (int token: tokens) {
+			dest.add(fi.getTerms().get(token));
+		}
+	}
+
+	@Test
+	public void testSameResults() throws Exception {
+		String[] docs = IndexForTests.makeDocuments(NUMBER_OF_DOCS, 1);
+		File singleDir = new File(dir, "single");
+		File parallelDir = new File(dir, "parallel");
+		IndexForTests.createIndex(singleDir, docs, 1);
+		IndexForTests.createIndex(parallelDir, docs, 4);
+
+		Searcher single = Searcher.open(singleDir);
+		Searcher parallel = Searcher.open(parallelDir);
+		try {
+			// Same hit counts
+			for (String query: QUERIES) {
+				int expected = single.find(IndexForTests.parse(query)).totalSize();
+				Assert.assertTrue(expected > 0);
+				Assert.assertEquals(query, expected, parallel.find(IndexForTests.parse(query)).totalSize());
+			}
+
+			// Same documents (though possibly in a different order)
+			Map<String, DocContents> singleContents = readContents(single);
+			Map<String, DocContents> parallelContents = readContents(parallel);
+			Assert.assertEquals(NUMBER_OF_DOCS, singleContents.size());
+			Assert.assertEquals(singleContents.keySet(), parallelContents.keySet());
+			for (Map.Entry<String, DocContents> e: singleContents.entrySet()) {
+				DocContents expected = e.getValue();
+				DocContents actual = parallelContents.get(e.getKey());
+				Assert.assertEquals(expected.content, actual.content);
+				Assert.assertEquals(expected.words, actual.words);
+				Assert.assertEquals(expected.lemmas, actual.lemmas);
+			}
+		} finally {
+			single.close();
+			parallel.close();
+		}
+	}
+
+	@Test
+	public void testOptimizeWaitsForWorkers() throws Exception {
+		String[] docs = IndexForTests.makeDocuments(NUMBER_OF_DOCS, 3);
+		File singleDir = new File(dir, "single");
+		File parallelDir = new File(dir, "parallel");
+		IndexForTests.createIndex(singleDir, docs, 1);
+
+		// Optimize right after queueing the last document
+		Indexer indexer = new Indexer(parallelDir, true, DocIndexerExample.class);
+		try {
+			indexer.setListener(new IndexListenerDevNull());
+			indexer.setIndexerParam(new HashMap<String, String>());
+			indexer.setNumberOfThreads(4);
+			for (int i = 0; i < docs.length; i++) {
+				indexer.index("doc" + i, new StringReader(docs[i]));
+			}
+			indexer.optimize();
+		} finally {
+			indexer.close();
+		}
+
+		Searcher single = Searcher.open(singleDir);
+		Searcher parallel = Searcher.open(parallelDir);
+		try {
+			Assert.assertEquals(NUMBER_OF_DOCS, parallel.maxDoc());
+			Map<String, DocContents> singleContents = readContents(single);
+			Map<String, DocContents> parallelContents = readContents(parallel);
+			Assert.assertEquals(singleContents.keySet(), parallelContents.keySet());
+			for (Map.Entry<String, DocContents> e: singleContents.entrySet()) {
+				DocContents expected = e.getValue();
+				DocContents actual = parallelContents.get(e.getKey());
+				Assert.assertEquals(expected.content, actual.content);
+				Assert.assertEquals(expected.words, actual.words);
+			}
+		} finally {
+			single.close();
+			parallel.close();
+		}
+	}
+
+	@Test
+	public void testWorkerExceptionRethrown() throws Exception {
+		String[] docs = IndexForTests.makeDocuments(NUMBER_OF_DOCS, 2);
+		docs[10] = "<doc><w l='the' p='art'>The</w> <w>unclosed</doc>";
+
+		Indexer indexer = new Indexer(dir, true, DocIndexerExample.class);
+		indexer.setListener(new IndexListenerDevNull());
+		indexer.setIndexerParam(new HashMap<String, String>());
+		indexer.setNumberOfThreads(4);
+		indexer.setContinueAfterInputError(false);
+		Exception thrown = null;
+		try {
+			for (int i = 0; i < docs.length; i++) {
+				indexer.index("doc" + i, new StringReader(docs[i]));
+			}
+		} catch (Exception e) {
+			// Worker error reported while queueing a later document
+			thrown = e;
+		} finally {
+			try {
+				indexer.close();
+			} catch (Exception e) {
+				// Worker error reported when closing (if it occurred after the last document was queued)
+				Assert.assertNull(thrown);
+				thrown = e;
+			}
+		}
+		Assert.assertNotNull(thrown);
+	}
+
+}
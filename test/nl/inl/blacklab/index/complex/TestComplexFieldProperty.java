@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.index.complex;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import nl.inl.blacklab.index.complex.ComplexFieldProperty.SensitivitySetting;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.Test;
+
+public class TestComplexFieldProperty {
+
+	@Test
+	public void testValues() {
+		ComplexFieldProperty prop = new ComplexFieldProperty("word", SensitivitySetting.ONLY_SENSITIVE, false);
+		prop.addValue("the");
+		prop.addValue("");
+		prop.addValue("dog", 0); // replaces the empty value
+		prop.addValue("the");
+		prop.addValue("DOG", 0);
+		Assert.assertEquals(Arrays.asList("the", "dog", "the", "DOG"), prop.getValues());
+		Assert.assertEquals(Arrays.asList(1, 1, 1, 0), prop.getPositionIncrements());
+		Assert.assertEquals(2, prop.lastValuePosition());
+
+		prop.clear();
+		Assert.assertEquals(0, prop.getValues().size());
+		prop.addValue("fox");
+		Assert.assertEquals(Arrays.asList("fox"), prop.getValues());
+	}
+
+	@Test
+	public void testLargeDocument() {
+		ChunkedIntList list = new ChunkedIntList();
+		int n = 100000;
+		for (int i = 0; i < n; i++) {
+			list.addInt(i * 3);
+		}
+		Assert.assertEquals(n, list.size());
+		for (int i = 0; i < n; i += 997) {
+			Assert.assertEquals(i * 3, list.getInt(i));
+		}
+		list.setInt(50000, -1);
+		Assert.assertEquals(-1, (int)list.get(50000));
+		list.reset();
+		Assert.assertEquals(0, list.size());
+		list.addInt(42);
+		Assert.assertEquals(42, list.getInt(0));
+	}
+
+	@Test
+	public void testTokenStream() throws Exception {
+		ComplexFieldProperty prop = new ComplexFieldProperty("word", SensitivitySetting.ONLY_SENSITIVE, true);
+		prop.addValue("quick");
+		prop.addValue("fox");
+		TokenStream ts = prop.getTokenStream(ComplexFieldUtil.SENSITIVE_ALT_NAME,
+				Arrays.asList(0, 6), Arrays.asList(5, 9));
+		CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+		OffsetAttribute offset = ts.addAttribute(OffsetAttribute.class);
+		PositionIncrementAttribute incr = ts.addAttribute(PositionIncrementAttribute.class);
+		Assert.assertTrue(ts.incrementToken());
+		Assert.assertEquals("quick", term.toString());
+		Assert.assertEquals(0, offset.startOffset());
+		Assert.assertEquals(1, incr.getPositionIncrement());
+		Assert.assertTrue(ts.incrementToken());
+		Assert.assertEquals("fox", term.toString());
+		Assert.assertEquals(9, offset.endOffset());
+		Assert.assertFalse(ts.incrementToken());
+		ts.close();
+	}
+
+}
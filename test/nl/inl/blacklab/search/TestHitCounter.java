@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+import nl.inl.blacklab.search.lucene.SpanQueryFiltered;
+import nl.inl.blacklab.search.lucene.SpanQueryTermUnion;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestHitCounter {
+
+	private static RAMDirectory dir;
+
+	private static IndexReader reader;
+
+	private static ExecutorService pool;
+
+	private static SpanQuery term(String value) {
+		return new SpanTermQuery(new Term("contents", value));
+	}
+
+	@BeforeClass
+	public static void createIndex() throws Exception {
+		dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36)));
+		for (int i = 0; i < 300; i++) {
+			// Document i contains (i % 7) occurrences of "a" and (i % 3) of "c"
+			StringBuilder text = new StringBuilder();
+			for (int j = 0; j < 10; j++) {
+				text.append(j < i % 7 ? "a " : (j >= 10 - i % 3 ? "c " : "b "));
+			}
+			Document doc = new Document();
+			doc.add(new Field("contents", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+			writer.addDocument(doc);
+		}
+		writer.close();
+		reader = IndexReader.open(dir);
+		pool = Executors.newSingleThreadExecutor();
+	}
+
+	@AfterClass
+	public static void closeIndex() throws Exception {
+		pool.shutdown();
+		reader.close();
+		dir.close();
+	}
+
+	private static void testCounts(SpanQuery query, boolean fromPostings) throws Exception {
+		int[][] limits = { { -1, -1 }, { 100, -1 }, { 0, -1 }, { 100, 500 }, { 500, 100 }, { -1, 1 } };
+		for (int[] limit: limits) {
+			// Fetching all hits gives the expected counts
+			ParallelHitFetcher fetcher = new ParallelHitFetcher(reader, query, pool, 1, limit[0], limit[1]);
+			fetcher.fetch();
+
+			HitCounter counter = new HitCounter(reader, query, limit[0], limit[1]);
+			counter.count();
+			String msg = query + " " + Arrays.toString(limit);
+			Assert.assertEquals(msg, fromPostings, counter.countedFromPostings());
+			Assert.assertEquals(msg, fetcher.getHitsCounted(), counter.getHitsCounted());
+			Assert.assertEquals(msg, fetcher.getHits().size(), counter.getHitsRetrieved());
+			Assert.assertEquals(msg, fetcher.getDocsCounted(), counter.getDocsCounted());
+			Assert.assertEquals(msg, fetcher.getDocsRetrieved(), counter.getDocsRetrieved());
+			Assert.assertEquals(msg, fetcher.maxHitsCounted(), counter.maxHitsCounted());
+			Assert.assertEquals(msg, fetcher.maxHitsRetrieved(), counter.maxHitsRetrieved());
+		}
+	}
+
+	@Test
+	public void testTerm() throws Exception {
+		testCounts(term("a"), true);
+		testCounts(term("nonexistent"), true);
+	}
+
+	@Test
+	public void testTermUnion() throws Exception {
+		testCounts(new SpanOrQuery(term("a"), term("c")), true);
+		testCounts(new SpanQueryTermUnion("contents", Arrays.asList("a", "c")), true);
+	}
+
+	@Test
+	public void testDuplicateTerms() throws Exception {
+		// Each occurrence is found twice; can't use the term frequencies
+		testCounts(new SpanOrQuery(term("a"), term("a")), false);
+	}
+
+	@Test
+	public void testFiltered() throws Exception {
+		FixedBitSet evenDocs = new FixedBitSet(reader.maxDoc());
+		for (int i = 0; i < reader.maxDoc(); i += 2) {
+			evenDocs.set(i);
+		}
+		testCounts(new SpanQueryFiltered(term("a"), evenDocs), true);
+		testCounts(new SpanQueryFiltered(new SpanOrQuery(term("a"), term("c")), evenDocs), true);
+	}
+
+	@Test
+	public void testOtherQuery() throws Exception {
+		testCounts(new SpanNearQuery(new SpanQuery[] { term("b"), term("c") }, 0, true), false);
+	}
+
+	@Test
+	public void testCounts() throws Exception {
+		HitCounter counter = new HitCounter(reader, term("a"), -1, -1);
+		counter.count();
+		// Documents with i % 7 == 0 have no hits; each group of 7 documents has 21 hits
+		Assert.assertEquals(300 - 43, counter.getDocsCounted());
+		Assert.assertEquals(42 * 21 + (1 + 2 + 3 + 4 + 5), counter.getHitsCounted());
+	}
+
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import junit.framework.Assert;
+import nl.inl.blacklab.search.grouping.HitPropertyDocumentId;
+
+import org.junit.Test;
+
+public class TestHitList {
+
+	@Test
+	public void testAddGet() {
+		HitList hits = new HitList();
+		int n = HitList.CHUNK_SIZE * 2 + 10; // make sure we cross chunk boundaries
+		for (int i = 0; i < n; i++) {
+			hits.add(i / 10, i, i + 1);
+		}
+		Assert.assertEquals(n, hits.size());
+		for (int i = 0; i < n; i += 997) {
+			Hit hit = hits.get(i);
+			Assert.assertEquals(i / 10, hit.doc);
+			Assert.assertEquals(i, hit.start);
+			Assert.assertEquals(i + 1, hit.end);
+			Assert.assertNull(hit.context);
+		}
+	}
+
+	@Test
+	public void testContext() {
+		HitList hits = new HitList();
+		Hit withContext = new Hit(1, 5, 7);
+		withContext.context = new int[] { 10, 11, 12, 13, 14, 20, 21, 22, 23, 24 };
+		withContext.contextHitStart = 1;
+		withContext.contextRightStart = 3;
+		withContext.contextLength = 5;
+		hits.add(new Hit(0, 1, 2));
+		hits.add(withContext);
+
+		Assert.assertFalse(hits.hasContext(0));
+		Assert.assertTrue(hits.hasContext(1));
+		Assert.assertEquals(10, hits.contextTotalLength(1));
+		Assert.assertEquals(22, hits.contextArray(1)[hits.contextOffset(1) + 7]);
+
+		Hit copy = hits.get(1);
+		Assert.assertEquals(withContext, copy);
+		Assert.assertEquals(1, copy.contextHitStart);
+		Assert.assertEquals(3, copy.contextRightStart);
+		Assert.assertEquals(5, copy.contextLength);
+		for (int i = 0; i < withContext.context.length; i++) {
+			Assert.assertEquals(withContext.context[i], copy.context[i]);
+		}
+
+		// Modifying the copy doesn't modify the list
+		copy.context[0] = 99;
+		Assert.assertEquals(10, hits.contextArray(1)[hits.contextOffset(1)]);
+
+		hits.clearContext();
+		Assert.assertFalse(hits.hasContext(1));
+	}
+
+	@Test
+	public void testSortReverse() {
+		int[] docs = { 3, 1, 2, 1, 0 };
+		HitList hits = new HitList();
+		for (int i = 0; i < docs.length; i++) {
+			hits.add(docs[i], i, i + 1);
+		}
+		hits.sort(new HitPropertyDocumentId());
+		int[] expectedDocs = { 0, 1, 1, 2, 3 };
+		int[] expectedStarts = { 4, 1, 3, 2, 0 }; // sort is stable
+		for (int i = 0; i < docs.length; i++) {
+			Assert.assertEquals(expectedDocs[i], hits.doc(i));
+			Assert.assertEquals(expectedStarts[i], hits.start(i));
+		}
+		hits.reverse();
+		for (int i = 0; i < docs.length; i++) {
+			Assert.assertEquals(expectedDocs[docs.length - 1 - i], hits.doc(i));
+			Assert.assertEquals(expectedStarts[docs.length - 1 - i], hits.start(i));
+		}
+	}
+
+}
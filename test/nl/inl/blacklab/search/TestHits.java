@@ -15,7 +15,13 @@
  *******************************************************************************/
 package nl.inl.blacklab.search;
 
+import java.util.Arrays;
+
 import junit.framework.Assert;
+import nl.inl.blacklab.search.grouping.HitPropValueInt;
+import nl.inl.blacklab.search.grouping.HitProperty;
+import nl.inl.blacklab.search.grouping.HitPropertyDocumentId;
+import nl.inl.blacklab.search.grouping.HitPropertyMultiple;
 import nl.inl.blacklab.search.lucene.SpansStub;
 
 import org.apache.lucene.search.spans.Spans;
@@ -42,4 +48,158 @@ public class TestHits {
 		}
 	}
 
+	private static Spans makeSpans(int n) {
+		int[] doc = new int[n];
+		int[] start = new int[n];
+		int[] end = new int[n];
+		for (int i = 0; i < n; i++) {
+			doc[i] = i / 10;
+			start[i] = i % 10;
+			end[i] = i % 10 + 1;
+		}
+		return new SpansStub(doc, start, end);
+	}
+
+	@Test
+	public void testBackgroundFetch() {
+		@SuppressWarnings("deprecation")
+		Hits hits = new Hits(null, null, makeSpans(25000));
+		hits.startBackgroundFetch();
+
+		// First hits should be available right away
+		Hit hit = hits.get(15);
+		Assert.assertEquals(1, hit.doc);
+		Assert.assertEquals(5, hit.start);
+
+		// Waits for the fetch thread to finish
+		Assert.assertEquals(25000, hits.size());
+		Assert.assertEquals(25000, hits.totalSize());
+		Assert.assertEquals(2500, hits.totalNumberOfDocs());
+		Assert.assertTrue(hits.doneFetchingHits());
+		Assert.assertFalse(hits.fetchCancelled());
+		Assert.assertEquals(24999 / 10, hits.get(24999).doc);
+	}
+
+	@Test
+	public void testBackgroundFetchMaxHits() {
+		@SuppressWarnings("deprecation")
+		Hits hits = new Hits(null, null, makeSpans(25000));
+		hits.setMaxHitsToRetrieve(5000);
+		hits.setMaxHitsToCount(12345);
+		hits.startBackgroundFetch();
+		Assert.assertEquals(5000, hits.size());
+		Assert.assertEquals(12345, hits.totalSize());
+		Assert.assertTrue(hits.maxHitsRetrieved());
+		Assert.assertTrue(hits.maxHitsCounted());
+	}
+
+	@Test
+	public void testCancelFetch() {
+		@SuppressWarnings("deprecation")
+		Hits hits = new Hits(null, null, makeSpans(25000));
+		Assert.assertNotNull(hits.get(100));
+		hits.cancelFetch();
+		Assert.assertTrue(hits.fetchCancelled());
+		Assert.assertTrue(hits.doneFetchingHits());
+
+		// We keep the hits we had, and don't fetch any more
+		int n = hits.size();
+		Assert.assertTrue(n >= 101 && n < 25000);
+		Assert.assertEquals(n, hits.totalSize());
+	}
+
+	@Test
+	public void testCountSoFarDoesntLock() throws InterruptedException {
+		@SuppressWarnings("deprecation")
+		final Hits hits = new Hits(null, null, makeSpans(2500));
+		Assert.assertEquals(2500, hits.size());
+		final int[] counts = new int[4];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				counts[0] = hits.countSoFarHitsRetrieved();
+				counts[1] = hits.countSoFarHitsCounted();
+				counts[2] = hits.countSoFarDocsRetrieved();
+				counts[3] = hits.countSoFarDocsCounted();
+			}
+		};
+		synchronized (hits) {
+			// Another thread holds the lock (e.g. while sorting); we should still get the counts
+			thread.start();
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		}
+		Assert.assertEquals(2500, counts[0]);
+		Assert.assertEquals(2500, counts[1]);
+		Assert.assertEquals(250, counts[2]);
+		Assert.assertEquals(250, counts[3]);
+	}
+
+	/** Sorts on hit start, using sort keys. */
+	private static class HitPropertyStart extends HitProperty {
+		@Override
+		public HitPropValueInt get(Hit result) {
+			return new HitPropValueInt(result.start);
+		}
+
+		@Override
+		public int compare(Object a, Object b) {
+			return ((Hit) a).start - ((Hit) b).start;
+		}
+
+		@Override
+		public boolean hasSortKey() {
+			return true;
+		}
+
+		@Override
+		public int sortKeyLength(HitList hits, int index) {
+			return 2;
+		}
+
+		@Override
+		public int writeSortKey(HitList hits, int index, int[] dest, int offset) {
+			dest[offset] = hits.start(index) + 1;
+			dest[offset + 1] = 0;
+			return 2;
+		}
+
+		@Override
+		public String getName() {
+			return "start";
+		}
+	}
+
+	@Test
+	public void testSortMultiple() {
+		int[] aDoc = new int[] { 1, 1, 0, 1 };
+		int[] aStart = new int[] { 9, 3, 5, 1 };
+		int[] aEnd = new int[] { 10, 4, 6, 2 };
+		HitProperty prop = new HitPropertyMultiple(new HitPropertyDocumentId(), new HitPropertyStart());
+
+		// Sort with sort keys (multiple criteria, the first of which ties)
+		@SuppressWarnings("deprecation")
+		Hits hits = new Hits(null, null, new SpansStub(aDoc, aStart, aEnd));
+		hits.sort(prop, false, true);
+		int[] expectedDoc = { 0, 1, 1, 1 };
+		int[] expectedStart = { 5, 1, 3, 9 };
+		for (int i = 0; i < expectedDoc.length; i++) {
+			Assert.assertEquals(expectedDoc[i], hits.get(i).doc);
+			Assert.assertEquals(expectedStart[i], hits.get(i).start);
+		}
+
+		// Sort on the Hit objects; should give the same result
+		@SuppressWarnings("deprecation")
+		Hits hits2 = new Hits(null, null, new SpansStub(aDoc, aStart, aEnd));
+		Hit[] array = new Hit[aDoc.length];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = hits2.get(i);
+		}
+		Arrays.sort(array, prop);
+		for (int i = 0; i < expectedDoc.length; i++) {
+			Assert.assertEquals(expectedDoc[i], array[i].doc);
+			Assert.assertEquals(expectedStart[i], array[i].start);
+		}
+	}
+
 }
@@ -1,9 +1,11 @@
 package nl.inl.blacklab.search;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 
 import junit.framework.Assert;
+import nl.inl.blacklab.forwardindex.Terms;
 
 import org.junit.Test;
 
@@ -23,4 +25,63 @@ public class TestKwic {
 		Assert.assertEquals("<w lemma=\"bruin\" pos=\"bn\">bruine</w>", conc.hit);
 		Assert.assertEquals(" <w lemma=\"vos\" pos=\"zn\">vos</w>", conc.right);
 	}
+
+	/** Simple Terms object for testing */
+	private static Terms terms(final String... values) {
+		return new Terms() {
+			@Override
+			public int indexOf(String term) {
+				return Arrays.asList(values).indexOf(term);
+			}
+
+			@Override
+			public void clear() {
+				//
+			}
+
+			@Override
+			public void write(File termsFile) {
+				//
+			}
+
+			@Override
+			public String get(Integer id) {
+				return values[id];
+			}
+
+			@Override
+			public int numberOfTerms() {
+				return values.length;
+			}
+
+			@Override
+			public int idToSortPosition(int id, boolean sensitive) {
+				return id;
+			}
+		};
+	}
+
+	@Test
+	public void testKwicFromTermIds() {
+		List<String> props = Arrays.asList("punct", "lemma", "pos", "word");
+
+		// No punctuation forward index; lemma, pos and word context blocks
+		Terms[] t = { null, terms("de", "snel", "bruin", "vos"), terms("lw", "bn", "zn"),
+				terms("De", "snelle", "bruine", "vos") };
+		int[] block = { -1, 0, 1, 2 };
+		int[] context = {
+			0, 1, 2, 3, // lemma
+			0, 1, 1, 2, // pos
+			0, 1, 2, 3, // word
+		};
+		Kwic kwic = new Kwic(props, t, block, context, 4, 2, 3);
+
+		Assert.assertEquals(Arrays.asList(" ", "de", "lw", "De", " ", "snel", "bn", "snelle"), kwic.left);
+		Assert.assertEquals(Arrays.asList(" ", "bruin", "bn", "bruine"), kwic.match);
+		Assert.assertEquals(Arrays.asList(" ", "vos", "zn", "vos"), kwic.right);
+
+		Concordance conc = kwic.toConcordance();
+		Assert.assertEquals("<w lemma=\"bruin\" pos=\"bn\">bruine</w>", conc.hit);
+		Assert.assertEquals(" <w lemma=\"vos\" pos=\"zn\">vos</w>", conc.right);
+	}
 }
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestParallelHitFetcher {
+
+	private static RAMDirectory dir;
+
+	private static IndexReader reader;
+
+	private static SpanQuery query = new SpanTermQuery(new Term("contents", "a"));
+
+	private static ExecutorService pool;
+
+	@BeforeClass
+	public static void createIndex() throws Exception {
+		dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36)));
+		for (int i = 0; i < 300; i++) {
+			// Document i contains (i % 7) occurrences of "a" (so some contain none)
+			StringBuilder text = new StringBuilder();
+			for (int j = 0; j < 10; j++) {
+				text.append(j < i % 7 ? "a " : "b ");
+			}
+			Document doc = new Document();
+			doc.add(new Field("contents", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+			writer.addDocument(doc);
+		}
+		writer.close();
+		reader = IndexReader.open(dir);
+		pool = Executors.newFixedThreadPool(3);
+	}
+
+	@AfterClass
+	public static void closeIndex() throws Exception {
+		pool.shutdown();
+		reader.close();
+		dir.close();
+	}
+
+	private static void testLimits(int maxHitsToRetrieve, int maxHitsToCount) throws Exception {
+		// Execute on a single thread for comparison
+		HitList expected = new HitList();
+		int counted = 0;
+		Spans spans = query.getSpans(reader);
+		while ((maxHitsToCount < 0 || counted < maxHitsToCount) && spans.next()) {
+			counted++;
+			if (maxHitsToRetrieve < 0 || expected.size() < maxHitsToRetrieve)
+				expected.add(spans.doc(), spans.start(), spans.end());
+		}
+
+		ParallelHitFetcher fetcher = new ParallelHitFetcher(reader, query, pool, 3,
+				maxHitsToRetrieve, maxHitsToCount);
+		fetcher.fetch();
+		HitList hits = fetcher.getHits();
+		Assert.assertEquals(counted, fetcher.getHitsCounted());
+		Assert.assertEquals(expected.size(), hits.size());
+		for (int i = 0; i < hits.size(); i++) {
+			Assert.assertEquals(expected.doc(i), hits.doc(i));
+			Assert.assertEquals(expected.start(i), hits.start(i));
+			Assert.assertEquals(expected.end(i), hits.end(i));
+		}
+	}
+
+	@Test
+	public void testNoLimits() throws Exception {
+		testLimits(-1, -1);
+	}
+
+	@Test
+	public void testMaxHitsToRetrieve() throws Exception {
+		testLimits(100, -1);
+		testLimits(0, -1);
+	}
+
+	@Test
+	public void testMaxHitsToCount() throws Exception {
+		testLimits(100, 500);
+		testLimits(500, 100);
+		testLimits(-1, 1);
+	}
+
+	@Test
+	public void testDocCounts() throws Exception {
+		ParallelHitFetcher fetcher = new ParallelHitFetcher(reader, query, pool, 4, -1, -1);
+		fetcher.fetch();
+		// Documents with i % 7 == 0 have no hits
+		Assert.assertEquals(300 - 43, fetcher.getDocsCounted());
+		Assert.assertEquals(300 - 43, fetcher.getDocsRetrieved());
+		Assert.assertFalse(fetcher.maxHitsCounted());
+		Assert.assertFalse(fetcher.maxHitsRetrieved());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		ParallelHitFetcher fetcher = new ParallelHitFetcher(reader, query, pool, 4, -1, -1);
+		fetcher.cancel();
+		try {
+			fetcher.fetch();
+			Assert.fail("Cancelled fetch should throw");
+		} catch (InterruptedException e) {
+			// expected
+		}
+
+		// The shared pool can still be used afterwards
+		testLimits(-1, -1);
+	}
+
+}
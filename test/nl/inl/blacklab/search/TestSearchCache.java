@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import nl.inl.blacklab.index.IndexForTests;
+import nl.inl.blacklab.search.grouping.HitPropValueInt;
+import nl.inl.blacklab.search.grouping.HitProperty;
+import nl.inl.blacklab.search.grouping.HitPropertyDocumentId;
+import nl.inl.blacklab.search.grouping.HitPropertyHitText;
+import nl.inl.blacklab.search.grouping.ResultsGrouper;
+import nl.inl.util.Utilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSearchCache {
+
+	private static final String FIELD = "contents";
+
+	private Searcher searcher;
+
+	private SearchCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		Utilities.removeBlackLabTestDirs();
+		File dir = Utilities.createBlackLabTestDir("SearchCache");
+		IndexForTests.createIndex(dir, IndexForTests.makeDocuments(50, 1), 1);
+		searcher = Searcher.open(dir);
+		cache = new SearchCache(searcher, Long.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() {
+		if (searcher != null)
+			searcher.close();
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	private static TextPattern pattern(String query) {
+		return IndexForTests.parse(query);
+	}
+
+	/** Groups on document id, but waits for a signal before grouping the first hit. */
+	private static class HitPropertyWaiting extends HitPropertyDocumentId {
+		CountDownLatch started = new CountDownLatch(1);
+
+		CountDownLatch proceed = new CountDownLatch(1);
+
+		@Override
+		public boolean hasSortKey() {
+			return false; // make sure get() is used
+		}
+
+		@Override
+		public HitPropValueInt get(Hit result) {
+			started.countDown();
+			try {
+				proceed.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return super.get(result);
+		}
+	}
+
+	@Test
+	public void testSameHits() {
+		Hits hits = cache.getHits(pattern("\"the\""), FIELD, null);
+		Assert.assertTrue(hits.size() > 0);
+		Assert.assertSame(hits, cache.getHits(pattern("\"the\""), FIELD, null));
+		Hits fox = cache.getHits(pattern("\"fox\""), FIELD, null);
+		Assert.assertNotSame(hits, fox);
+		Assert.assertTrue(fox.size() > 0);
+		Assert.assertEquals(2, cache.numberOfEntries());
+		Assert.assertEquals(1, cache.getCacheHits());
+		Assert.assertEquals(2, cache.getCacheMisses());
+	}
+
+	@Test
+	public void testSortedAndGroupedAreCopies() {
+		TextPattern p = pattern("[pos=\"adj\"]");
+		Hits hits = cache.getHits(p, FIELD, null);
+		Hits sorted = cache.getSortedHits(p, FIELD, null, new HitPropertyHitText(searcher, FIELD), false, "hit");
+		Assert.assertNotSame(hits, sorted);
+		Assert.assertSame(sorted, cache.getSortedHits(p, FIELD, null,
+				new HitPropertyHitText(searcher, FIELD), false, "hit"));
+		Assert.assertEquals(hits.size(), sorted.size());
+
+		// The sorted hits are in hit text order; the shared hits are still in document order
+		boolean differentOrder = false;
+		for (int i = 1; i < hits.size(); i++) {
+			Hit prev = hits.get(i - 1), hit = hits.get(i);
+			Assert.assertTrue(prev.doc < hit.doc || (prev.doc == hit.doc && prev.start < hit.start));
+			if (sorted.get(i).doc != hit.doc || sorted.get(i).start != hit.start)
+				differentOrder = true;
+		}
+		Assert.assertTrue(differentOrder);
+
+		ResultsGrouper groups = cache.getGroups(p, FIELD, null, new HitPropertyDocumentId(), "doc");
+		Assert.assertEquals(hits.size(), groups.getTotalResults());
+		Assert.assertSame(groups, cache.getGroups(p, FIELD, null, new HitPropertyDocumentId(), "doc"));
+		Assert.assertSame(hits, cache.getHits(p, FIELD, null));
+		Assert.assertEquals(3, cache.numberOfEntries());
+	}
+
+	@Test
+	public void testEviction() {
+		String[] queries = { "\"the\"", "\"fox\"", "\"dog\"" };
+		for (String query: queries) {
+			// Wait until the background fetch is done, so the entry can be evicted
+			Assert.assertTrue(cache.getHits(pattern(query), FIELD, null).size() > 0);
+		}
+		Assert.assertEquals(3, cache.numberOfEntries());
+		long size = cache.getSizeEstimate();
+		Assert.assertTrue(size > 0);
+
+		// Make room for about two entries; the least recently used one should be evicted
+		cache.setMaxSize(size - 1);
+		Assert.assertEquals(2, cache.numberOfEntries());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertTrue(cache.getSizeEstimate() <= size - 1);
+
+		// The first entry was evicted, so we have to search again
+		cache.setMaxSize(Long.MAX_VALUE);
+		long misses = cache.getCacheMisses();
+		cache.getHits(pattern("\"the\""), FIELD, null).size();
+		Assert.assertEquals(misses + 1, cache.getCacheMisses());
+		Assert.assertEquals(3, cache.numberOfEntries());
+
+		cache.setMaxSize(0);
+		Assert.assertEquals(0, cache.numberOfEntries());
+		Assert.assertEquals(4, cache.getEvictions());
+		Assert.assertEquals(0, cache.getSizeEstimate());
+	}
+
+	@Test
+	public void testFailedSearchNotCached() {
+		TextPattern p = pattern("\"the\"");
+		HitProperty failing = new HitPropertyDocumentId() {
+			@Override
+			public boolean hasSortKey() {
+				return false; // make sure get() is used
+			}
+
+			@Override
+			public HitPropValueInt get(Hit result) {
+				throw new IllegalStateException("test");
+			}
+		};
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.getGroups(p, FIELD, null, failing, "failing");
+				Assert.fail("expected exception");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			// Only the hits are cached, not the failed grouping
+			Assert.assertEquals(1, cache.numberOfEntries());
+		}
+		// Both attempts had to group (the hits were found in the cache the second time)
+		Assert.assertEquals(3, cache.getCacheMisses());
+		Assert.assertEquals(1, cache.getCacheHits());
+	}
+
+	@Test
+	public void testConcurrentRequestsShareResults() throws InterruptedException {
+		final TextPattern p = pattern("\"the\"");
+		final HitPropertyWaiting waiting = new HitPropertyWaiting();
+		final ResultsGrouper[] results = new ResultsGrouper[2];
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final int threadNumber = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					results[threadNumber] = cache.getGroups(p, FIELD, null, waiting, "waiting");
+				}
+			};
+		}
+
+		// The first thread starts grouping, then blocks
+		threads[0].start();
+		Assert.assertTrue(waiting.started.await(10, TimeUnit.SECONDS));
+
+		// The second thread finds the grouping in progress and waits for it
+		threads[1].start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cache.getCacheHits() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, cache.getCacheHits());
+
+		// The grouping in progress isn't evicted, but the finished hits are
+		cache.setMaxSize(0);
+		Assert.assertEquals(1, cache.numberOfEntries());
+
+		waiting.proceed.countDown();
+		for (Thread thread: threads) {
+			thread.join(10000);
+			Assert.assertFalse(thread.isAlive());
+		}
+		Assert.assertNotNull(results[0]);
+		Assert.assertSame(results[0], results[1]);
+		Assert.assertEquals(2, cache.getCacheMisses());
+	}
+
+	@Test
+	public void testCloseWhileFetching() throws Exception {
+		searcher.close();
+		File dir = Utilities.createBlackLabTestDir("SearchCacheLarge");
+		IndexForTests.createIndex(dir, IndexForTests.makeDocuments(1000, 2), 1);
+		searcher = Searcher.open(dir);
+
+		// Many batches of hits; while we hold the lock, the fetch thread can't add the next batch
+		final Hits hits = searcher.getCache().getHits(pattern("[word=\".*\"]"), FIELD, null);
+		Thread closer;
+		synchronized (hits) {
+			Assert.assertFalse(hits.doneFetchingHits());
+			closer = new Thread() {
+				@Override
+				public void run() {
+					searcher.close();
+				}
+			};
+			closer.start();
+
+			// Wait until close() has cancelled the fetch and is waiting for the lock
+			long deadline = System.currentTimeMillis() + 10000;
+			while (closer.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(Thread.State.BLOCKED, closer.getState());
+		}
+		closer.join(10000);
+		Assert.assertFalse(closer.isAlive());
+		searcher = null;
+
+		// The fetch thread stopped before the index was closed
+		Assert.assertTrue(hits.fetchCancelled());
+		for (Thread thread: Thread.getAllStackTraces().keySet()) {
+			Assert.assertFalse(thread.getName().equals("BlackLab hit fetcher") && thread.isAlive());
+		}
+		Assert.assertEquals(hits.countSoFarHitsRetrieved(), hits.size());
+	}
+
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestStoredFieldColumn {
+
+	private static final String[] AUTHORS = { "mulisch", "Hermans", null, "Reve", "hermans", "" };
+
+	private static final String[] YEARS = { "1952", "1966", "1947", "unknown", "1961", null };
+
+	private static RAMDirectory dir;
+
+	private static IndexReader reader;
+
+	private static StoredFieldColumn authors;
+
+	private static StoredFieldColumn years;
+
+	@BeforeClass
+	public static void createIndex() throws Exception {
+		dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36)));
+		for (int i = 0; i < AUTHORS.length; i++) {
+			Document doc = new Document();
+			if (AUTHORS[i] != null)
+				doc.add(new Field("author", AUTHORS[i], Field.Store.YES, Field.Index.NO));
+			if (YEARS[i] != null)
+				doc.add(new Field("year", YEARS[i], Field.Store.YES, Field.Index.NO));
+			writer.addDocument(doc);
+		}
+		writer.close();
+		reader = IndexReader.open(dir);
+		authors = new StoredFieldColumn(reader, "author");
+		years = new StoredFieldColumn(reader, "year");
+	}
+
+	@AfterClass
+	public static void closeIndex() throws Exception {
+		reader.close();
+		dir.close();
+	}
+
+	@Test
+	public void testValues() {
+		Assert.assertEquals("mulisch", authors.getValue(0));
+		Assert.assertEquals("", authors.getValue(2));
+		Assert.assertEquals("", authors.getValue(5));
+		Assert.assertEquals(5, authors.numberOfValues());
+	}
+
+	@Test
+	public void testOrdinals() {
+		// Collator order (case-insensitive), distinct values get distinct ordinals,
+		// empty values last
+		int hermans1 = authors.getOrdinal(1), hermans2 = authors.getOrdinal(4);
+		Assert.assertTrue(hermans1 != hermans2);
+		Assert.assertTrue(Math.max(hermans1, hermans2) < authors.getOrdinal(0));
+		Assert.assertTrue(authors.getOrdinal(0) < authors.getOrdinal(3));
+		Assert.assertTrue(authors.getOrdinal(3) < authors.getOrdinal(2));
+		Assert.assertEquals(authors.getOrdinal(2), authors.getOrdinal(5));
+	}
+
+	@Test
+	public void testDecades() {
+		Assert.assertEquals(1950, years.getDecade(0));
+		Assert.assertEquals(1940, years.getDecade(2));
+		Assert.assertEquals(StoredFieldColumn.NO_DECADE, years.getDecade(3));
+		Assert.assertEquals(StoredFieldColumn.NO_DECADE, years.getDecade(5));
+
+		// 1940 < 1950 < 1960 (twice) < no decade
+		Assert.assertTrue(years.getDecadeOrdinal(2) < years.getDecadeOrdinal(0));
+		Assert.assertTrue(years.getDecadeOrdinal(0) < years.getDecadeOrdinal(1));
+		Assert.assertEquals(years.getDecadeOrdinal(1), years.getDecadeOrdinal(4));
+		Assert.assertTrue(years.getDecadeOrdinal(1) < years.getDecadeOrdinal(3));
+		Assert.assertEquals(years.getDecadeOrdinal(3), years.getDecadeOrdinal(5));
+	}
+
+}
@@ -51,4 +51,56 @@ public class TestResultsGrouper {
 		HitPropValueInt three = new HitPropValueInt(3);
 		Assert.assertEquals(1, groups.get(three).size());
 	}
+
+	@Test
+	public void testCountOnly() {
+		SpanQuery query = new SpanQueryStub(doc, start, end);
+		Hits hits = new Hits((Searcher)null, "contents%word", query);
+		ResultsGrouper grouper = new ResultsGrouper(hits, new HitPropertyDocumentId(), true);
+		Map<HitPropValue, RandomAccessGroup> groups = grouper.getGroupMap();
+
+		Assert.assertEquals(3, groups.size());
+		Assert.assertEquals(6, grouper.getTotalResults());
+		Assert.assertEquals(3, grouper.getLargestGroupSize());
+		Assert.assertEquals(3, groups.get(new HitPropValueInt(1)).size());
+		Assert.assertEquals(2, groups.get(new HitPropValueInt(2)).size());
+		Assert.assertEquals(1, groups.get(new HitPropValueInt(3)).size());
+		try {
+			groups.get(new HitPropValueInt(1)).getHits();
+			Assert.fail("Hits should not be available in count-only mode");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testParallel() {
+		// Enough hits to group using multiple threads
+		int n = 200000;
+		int[] manyDoc = new int[n], manyStart = new int[n], manyEnd = new int[n];
+		for (int i = 0; i < n; i++) {
+			manyDoc[i] = i / 100;
+			manyStart[i] = i % 100;
+			manyEnd[i] = i % 100 + 1;
+		}
+		Hits hits = new Hits((Searcher)null, "contents%word", new SpanQueryStub(manyDoc, manyStart, manyEnd));
+		int oldThreads = Hits.getSortThreads();
+		Hits.setSortThreads(4);
+		try {
+			ResultsGrouper grouper = new ResultsGrouper(hits, new HitPropertyDocumentId());
+			Assert.assertEquals(n / 100, grouper.numberOfGroups());
+			Assert.assertEquals(n, grouper.getTotalResults());
+			int expectedDoc = 0;
+			for (RandomAccessGroup group: grouper.getGroups()) {
+				// Groups are in order of their first hit; hits within a group are in original order
+				Assert.assertEquals(new HitPropValueInt(expectedDoc), group.getIdentity());
+				Assert.assertEquals(100, group.size());
+				Assert.assertEquals(expectedDoc, group.getHits().get(99).doc);
+				Assert.assertEquals(99, group.getHits().get(99).start);
+				expectedDoc++;
+			}
+		} finally {
+			Hits.setSortThreads(oldThreads);
+		}
+	}
 }
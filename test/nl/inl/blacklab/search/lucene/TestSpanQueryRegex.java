@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestSpanQueryRegex {
+
+	private static final String[] WORDS = { "heid", "waarheid", "vrijheid", "vrijheden", "huis",
+			"huizen", "de", "het", "een", "aap", "noot", "mies", "x𐀀y", "xy", "zz" };
+
+	private static RAMDirectory dir;
+
+	private static IndexReader reader;
+
+	@BeforeClass
+	public static void createIndex() throws Exception {
+		dir = new RAMDirectory();
+		IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36,
+				new WhitespaceAnalyzer(Version.LUCENE_36)));
+		for (int i = 0; i < 500; i++) {
+			StringBuilder text = new StringBuilder();
+			for (int j = 0; j < 20; j++) {
+				text.append(WORDS[(i * 7 + j * j) % WORDS.length]).append(" ");
+			}
+			// Lots of different numbers, to test term lists larger than the clause limit
+			text.append("n").append(i).append(" n").append(i * 3);
+			Document doc = new Document();
+			doc.add(new Field("contents", text.toString(), Field.Store.NO, Field.Index.ANALYZED));
+			// Other field, to make sure we don't look at its terms
+			doc.add(new Field("other", "huis waarheid", Field.Store.NO, Field.Index.ANALYZED));
+			writer.addDocument(doc);
+		}
+		writer.close();
+		reader = IndexReader.open(dir);
+	}
+
+	@AfterClass
+	public static void closeIndex() throws Exception {
+		reader.close();
+		dir.close();
+	}
+
+	private static List<String> matchingTermsUsingPattern(String regex) throws Exception {
+		Pattern pattern = Pattern.compile(regex);
+		List<String> result = new ArrayList<String>();
+		TermEnum te = reader.terms(new Term("contents", ""));
+		do {
+			Term t = te.term();
+			if (t == null || !t.field().equals("contents"))
+				break;
+			if (pattern.matcher(t.text()).matches())
+				result.add(t.text());
+		} while (te.next());
+		te.close();
+		return result;
+	}
+
+	private static void assertSameSpans(SpanQuery expected, SpanQuery actual) throws Exception {
+		Spans a = expected.getSpans(reader);
+		Spans b = actual.getSpans(reader);
+		while (a.next()) {
+			Assert.assertTrue(b.next());
+			Assert.assertEquals(a.doc(), b.doc());
+			Assert.assertEquals(a.start(), b.start());
+			Assert.assertEquals(a.end(), b.end());
+		}
+		Assert.assertFalse(b.next());
+	}
+
+	private static void testRegex(String regex) throws Exception {
+		List<String> expected = matchingTermsUsingPattern(regex);
+		SpanQueryRegex query = new SpanQueryRegex(new Term("contents", regex));
+		Assert.assertEquals(regex, expected, query.getMatchingTerms(reader));
+	}
+
+	@Test
+	public void testMatchingTerms() throws Exception {
+		testRegex(".*heid");
+		testRegex("vrij.*");
+		testRegex("h.*s");
+		testRegex("n1[0-9]*");
+		testRegex("n[13]+");
+		testRegex("(de|het|een)");
+		testRegex("x.y");
+		testRegex("x.*");
+		testRegex("[^n].*");
+		testRegex("q.*");
+		testRegex("");
+		testRegex("(h)\\1.*"); // not supported by the automaton
+	}
+
+	@Test
+	public void testWildcardAndPrefix() throws Exception {
+		Assert.assertEquals(matchingTermsUsingPattern("vrij.*"),
+				SpanQueryRegex.prefix(new Term("contents", "vrij")).getMatchingTerms(reader));
+		Assert.assertEquals(matchingTermsUsingPattern("h.i.*"),
+				SpanQueryRegex.wildcard(new Term("contents", "h?i*")).getMatchingTerms(reader));
+	}
+
+	@Test
+	public void testSpans() throws Exception {
+		SpanQuery expected = new SpanOrQuery(new SpanTermQuery(new Term("contents", "heid")),
+				new SpanTermQuery(new Term("contents", "vrijheid")),
+				new SpanTermQuery(new Term("contents", "waarheid")));
+		assertSameSpans(expected, (SpanQuery) new SpanQueryRegex(new Term("contents", ".*heid")).rewrite(reader));
+	}
+
+	@Test
+	public void testSkipTo() throws Exception {
+		SpanQuery expected = new SpanOrQuery(new SpanTermQuery(new Term("contents", "huis")),
+				new SpanTermQuery(new Term("contents", "huizen")));
+		SpanQuery actual = (SpanQuery) new SpanQueryRegex(new Term("contents", "hui.*")).rewrite(reader);
+		Spans a = expected.getSpans(reader);
+		Spans b = actual.getSpans(reader);
+		for (int target = 0; target < 500; target += 37) {
+			Assert.assertEquals(a.skipTo(target), b.skipTo(target));
+			Assert.assertEquals(a.doc(), b.doc());
+			Assert.assertEquals(a.start(), b.start());
+		}
+	}
+
+	@Test
+	public void testManyTerms() throws Exception {
+		// More terms than the BooleanQuery clause limit
+		SpanQueryRegex query = new SpanQueryRegex(new Term("contents", "n[0-9]+"));
+		List<String> terms = query.getMatchingTerms(reader);
+		int oldMax = BooleanQuery.getMaxClauseCount();
+		BooleanQuery.setMaxClauseCount(100);
+		try {
+			Assert.assertTrue(terms.size() > 100);
+			Spans spans = ((SpanQuery) query.rewrite(reader)).getSpans(reader);
+			int n = 0;
+			while (spans.next()) {
+				n++;
+			}
+			Assert.assertEquals(1000, n);
+		} finally {
+			BooleanQuery.setMaxClauseCount(oldMax);
+		}
+	}
+
+}
@@ -16,8 +16,12 @@
 package nl.inl.blacklab.search.lucene;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.Assert;
+import nl.inl.blacklab.search.lucene.SpanQueryPositionFilter.Filter;
 
 import org.apache.lucene.search.spans.Spans;
 import org.junit.Test;
@@ -83,4 +87,123 @@ public class TestSpansPositionFilter {
 		Assert.assertFalse(spansContaining.next());
 	}
 
+	@Test
+	public void testStartsAt() throws IOException {
+		int[] aDoc = new int[] { 1, 1, 2, 2 };
+		int[] aStart = new int[] { 10, 20, 10, 30 };
+		int[] aEnd = new int[] { 15, 25, 20, 35 };
+		Spans a = new SpansStub(aDoc, aStart, aEnd);
+
+		int[] bDoc = new int[] { 1, 1, 2 };
+		int[] bStart = new int[] { 20, 10, 11 };
+		int[] bEnd = new int[] { 21, 11, 12 };
+		Spans b = new SpansStub(bDoc, bStart, bEnd);
+
+		SpansPositionFilter spans = new SpansPositionFilter(a, b, Filter.STARTS_AT);
+
+		Assert.assertTrue(spans.next());
+		Assert.assertEquals(1, spans.doc());
+		Assert.assertEquals(10, spans.start());
+		Assert.assertTrue(spans.next());
+		Assert.assertEquals(1, spans.doc());
+		Assert.assertEquals(20, spans.start());
+		Assert.assertFalse(spans.next());
+	}
+
+	@Test
+	public void testEndsAt() throws IOException {
+		int[] aDoc = new int[] { 1, 1, 2, 2 };
+		int[] aStart = new int[] { 10, 20, 10, 30 };
+		int[] aEnd = new int[] { 15, 25, 20, 35 };
+		Spans a = new SpansStub(aDoc, aStart, aEnd);
+
+		int[] bDoc = new int[] { 1, 2, 2 };
+		int[] bStart = new int[] { 24, 5, 34 };
+		int[] bEnd = new int[] { 25, 35, 35 };
+		Spans b = new SpansStub(bDoc, bStart, bEnd);
+
+		SpansPositionFilter spans = new SpansPositionFilter(a, b, Filter.ENDS_AT);
+
+		Assert.assertTrue(spans.next());
+		Assert.assertEquals(1, spans.doc());
+		Assert.assertEquals(20, spans.start());
+		Assert.assertTrue(spans.next());
+		Assert.assertEquals(2, spans.doc());
+		Assert.assertEquals(30, spans.start());
+		Assert.assertFalse(spans.next());
+	}
+
+	/**
+	 * Compare the results for random hits with those of checking
+	 * each producer hit against each filter hit.
+	 */
+	@Test
+	public void testRandom() throws IOException {
+		Random random = new Random(1);
+		for (int run = 0; run < 20; run++) {
+			int[][] a = randomHits(random, 200);
+			int[][] b = randomHits(random, 50);
+			for (Filter op: Filter.values()) {
+				List<Integer> expected = new ArrayList<Integer>();
+				for (int i = 0; i < a[0].length; i++) {
+					for (int j = 0; j < b[0].length; j++) {
+						if (a[0][i] == b[0][j] && matches(op, a[1][i], a[2][i], b[1][j], b[2][j])) {
+							expected.add(i);
+							break;
+						}
+					}
+				}
+				SpansPositionFilter spans = new SpansPositionFilter(new SpansStub(a[0], a[1], a[2]),
+						new SpansStub(b[0], b[1], b[2]), op);
+				for (int i: expected) {
+					Assert.assertTrue(spans.next());
+					Assert.assertEquals(a[0][i], spans.doc());
+					Assert.assertEquals(a[1][i], spans.start());
+					Assert.assertEquals(a[2][i], spans.end());
+				}
+				Assert.assertFalse(spans.next());
+			}
+		}
+	}
+
+	private static boolean matches(Filter op, int start, int end, int filterStart, int filterEnd) {
+		switch (op) {
+		case CONTAINING:
+			return filterStart >= start && filterEnd <= end;
+		case WITHIN:
+			return filterStart <= start && filterEnd >= end;
+		case STARTS_AT:
+			return filterStart == start;
+		case ENDS_AT:
+			return filterEnd == end;
+		default:
+			throw new RuntimeException("Unknown filter operation " + op);
+		}
+	}
+
+	/**
+	 * Generate random hits in a few documents, sorted by document, start and end point.
+	 *
+	 * @param random random generator
+	 * @param n number of hits
+	 * @return arrays of documents, starts and ends
+	 */
+	private static int[][] randomHits(Random random, int n) {
+		int[] doc = new int[n], start = new int[n], end = new int[n];
+		int d = 0, s = 0;
+		for (int i = 0; i < n; i++) {
+			if (random.nextInt(20) == 0) {
+				d += 1 + random.nextInt(2);
+				s = 0;
+			}
+			s += random.nextInt(3);
+			doc[i] = d;
+			start[i] = s;
+			end[i] = s + 1 + random.nextInt(10);
+			if (i > 0 && doc[i - 1] == d && start[i - 1] == s && end[i - 1] > end[i])
+				end[i] = end[i - 1]; // keep hits with the same start sorted by end
+		}
+		return new int[][] { doc, start, end };
+	}
+
 }
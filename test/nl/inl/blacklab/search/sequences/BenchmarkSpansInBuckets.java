@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.blacklab.search.sequences;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import nl.inl.blacklab.search.lucene.SpansStub;
+
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * Measures the throughput (hits per second) of sequence and repetition Spans,
+ * which gather their source hits in buckets. Not a unit test; run manually.
+ *
+ * Usage: BenchmarkSpansInBuckets [secondsPerRun]
+ */
+public class BenchmarkSpansInBuckets {
+
+	private static final int NUMBER_OF_DOCS = 1000;
+
+	private static final int DOC_LENGTH = 2000;
+
+	private static int[] doc, start, end;
+
+	public static void main(String[] args) throws IOException {
+		int secondsPerRun = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+		// Single-token hits at random positions (about half of all positions)
+		Random random = new Random(0);
+		int n = 0;
+		doc = new int[NUMBER_OF_DOCS * DOC_LENGTH];
+		start = new int[doc.length];
+		end = new int[doc.length];
+		for (int d = 0; d < NUMBER_OF_DOCS; d++) {
+			for (int p = 0; p < DOC_LENGTH; p++) {
+				if (random.nextBoolean()) {
+					doc[n] = d;
+					start[n] = p;
+					end[n] = p + 1;
+					n++;
+				}
+			}
+		}
+		doc = Arrays.copyOf(doc, n);
+		start = Arrays.copyOf(start, n);
+		end = Arrays.copyOf(end, n);
+
+		System.out.println("query\thits/sec");
+		// Warm up
+		run(false, 1000L);
+		run(true, 1000L);
+		System.out.println("sequence\t" + run(false, secondsPerRun * 1000L));
+		System.out.println("repetition\t" + run(true, secondsPerRun * 1000L));
+	}
+
+	private static Spans source() {
+		return new SpansStub(doc, start, end);
+	}
+
+	private static long run(boolean repetition, long durationMs) throws IOException {
+		long hits = 0;
+		long startTime = System.currentTimeMillis();
+		long elapsed;
+		do {
+			Spans spans = repetition ? new SpansRepetition(source(), 1, 5) : new SpansSequenceRaw(source(), source());
+			while (spans.next()) {
+				hits++;
+			}
+			elapsed = System.currentTimeMillis() - startTime;
+		} while (elapsed < durationMs);
+		return hits * 1000 / elapsed;
+	}
+
+}
@@ -85,4 +85,54 @@ public class TestSpansInBuckets {
 	public void testSkipToPastEnd() throws IOException {
 		Assert.assertFalse(hpd.skipTo(6));
 	}
+
+	@Test
+	public void testSorted() throws IOException {
+		int[] doc = { 1, 1, 1, 1 }, start = { 3, 1, 2, 1 }, end = { 4, 5, 3, 2 };
+
+		SpansInBuckets sorted = new SpansInBucketsPerDocumentSorted(new SpansStub(doc, start, end), true);
+		Assert.assertTrue(sorted.next());
+		int[] expStart = { 1, 1, 2, 3 }, expEnd = { 2, 5, 3, 4 };
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals(expStart[i], sorted.start(i));
+			Assert.assertEquals(expEnd[i], sorted.end(i));
+		}
+		Assert.assertEquals(1, sorted.getHit(3).doc);
+
+		sorted = new SpansInBucketsPerDocumentSorted(new SpansStub(doc, start, end), new SpanComparatorEndPoint());
+		Assert.assertTrue(sorted.next());
+		expStart = new int[] { 1, 2, 3, 1 };
+		expEnd = new int[] { 2, 3, 4, 5 };
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals(expStart[i], sorted.start(i));
+			Assert.assertEquals(expEnd[i], sorted.end(i));
+		}
+	}
+
+	@Test
+	public void testLargeBucket() throws IOException {
+		// One huge bucket, followed by a small one
+		int n = 100000;
+		int[] doc = new int[n + 1], start = new int[n + 1], end = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			doc[i] = 1;
+			start[i] = n - i;
+			end[i] = n - i + 1;
+		}
+		doc[n] = 2;
+		start[n] = 5;
+		end[n] = 6;
+		SpansInBuckets sorted = new SpansInBucketsPerDocumentSorted(new SpansStub(doc, start, end), true);
+		Assert.assertTrue(sorted.next());
+		Assert.assertEquals(n, sorted.bucketSize());
+		for (int i = 0; i < n; i += 997) {
+			Assert.assertEquals(i + 1, sorted.start(i));
+			Assert.assertEquals(i + 2, sorted.end(i));
+		}
+		Assert.assertTrue(sorted.next());
+		Assert.assertEquals(2, sorted.doc());
+		Assert.assertEquals(1, sorted.bucketSize());
+		Assert.assertEquals(5, sorted.start(0));
+		Assert.assertFalse(sorted.next());
+	}
 }
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestIntSequenceMap {
+
+	@Test
+	public void testPutAndGet() {
+		IntSequenceMap map = new IntSequenceMap();
+		int[] data = { 1, 2, 3, 1, 2, 3, 4 };
+		Assert.assertEquals(0, map.put(data, 0, 3));
+		Assert.assertEquals(0, map.put(data, 3, 3)); // same key
+		Assert.assertEquals(1, map.put(data, 3, 4));
+		Assert.assertEquals(2, map.put(data, 0, 0)); // empty key
+		Assert.assertEquals(3, map.size());
+		Assert.assertEquals(1, map.get(new int[] { 1, 2, 3, 4 }, 0, 4));
+		Assert.assertEquals(-1, map.get(new int[] { 2, 3 }, 0, 2));
+
+		int[] key = new int[4];
+		Assert.assertEquals(4, map.getKey(1, key, 0));
+		Assert.assertEquals(4, key[3]);
+	}
+
+	@Test
+	public void testManyKeys() {
+		IntSequenceMap map = new IntSequenceMap();
+		for (int i = 0; i < 100000; i++) {
+			Assert.assertEquals(i, map.put(new int[] { i, i % 7, i % 13 }, 0, i % 3 + 1));
+		}
+		for (int i = 0; i < 100000; i++) {
+			Assert.assertEquals(i, map.get(new int[] { i, i % 7, i % 13 }, 0, i % 3 + 1));
+		}
+
+		// Merge into another map
+		IntSequenceMap other = new IntSequenceMap();
+		other.put(new int[] { 5, 5, 5 }, 0, 3);
+		Assert.assertEquals(0, other.put(map, 5)); // key 5 is { 5, 5, 5 }
+		Assert.assertEquals(1, other.put(map, 4)); // key 4 is { 4, 4 }
+		Assert.assertEquals(2, other.size());
+	}
+
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLargeMappedIntFile {
+
+	/** Small segments, so we can test ranges that cross segment boundaries */
+	private static final int SEGMENT_SIZE = 16;
+
+	private File dir;
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		Utilities.removeBlackLabTestDirs();
+		dir = Utilities.createBlackLabTestDir("LargeMappedIntFile");
+		file = new File(dir, "ints.dat");
+	}
+
+	@After
+	public void tearDown() {
+		Utilities.removeBlackLabTestDirs();
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		int n = 1000;
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = i * 7;
+		}
+
+		// Write in pieces of varying length, crossing segment boundaries
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			LargeMappedIntFile f = new LargeMappedIntFile(raf.getChannel(), true, 0, SEGMENT_SIZE);
+			int pos = 0, length = 1;
+			while (pos < n) {
+				int l = Math.min(length, n - pos);
+				f.put(pos, values, pos, l);
+				pos += l;
+				length = length * 3 % 41 + 1;
+			}
+			Assert.assertEquals(n, f.size());
+			Assert.assertEquals(values[500], f.get(500));
+		} finally {
+			raf.close();
+		}
+
+		// Read back read-only
+		raf = new RandomAccessFile(file, "r");
+		try {
+			LargeMappedIntFile f = new LargeMappedIntFile(raf.getChannel(), false, n, SEGMENT_SIZE);
+			for (int start = 0; start < n; start += 13) {
+				int length = Math.min(50, n - start);
+				int[] snippet = new int[length];
+				f.get(start, snippet, 0, length);
+				for (int i = 0; i < length; i++) {
+					Assert.assertEquals(values[start + i], snippet[i]);
+				}
+			}
+			Assert.assertEquals(values[n - 1], f.get(n - 1));
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		int n = 5000;
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = 1;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			LargeMappedIntFile f = new LargeMappedIntFile(raf.getChannel(), true, 0, SEGMENT_SIZE);
+			f.put(0, values, 0, n);
+		} finally {
+			raf.close();
+		}
+
+		raf = new RandomAccessFile(file, "r");
+		try {
+			LargeMappedIntFile f = new LargeMappedIntFile(raf.getChannel(), false, n, SEGMENT_SIZE);
+			// One int per page (1024 ints), plus the last one
+			Assert.assertEquals(5 + 1, f.load(100, 4200));
+			Assert.assertEquals(1 + 1, f.load(10, 5));
+			Assert.assertEquals(0, f.load(10, 0));
+			// Range beyond the end of the file is ignored
+			Assert.assertEquals(1 + 1, f.load(n - 10, 100));
+			Assert.assertEquals(0, f.load(n, 100));
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testReadBeyondEnd() throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			LargeMappedIntFile f = new LargeMappedIntFile(raf.getChannel(), true, 0, SEGMENT_SIZE);
+			f.put(0, new int[] { 1, 2, 3 }, 0, 3);
+			f.get(2, new int[2], 0, 2);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testReplaceContents() throws Exception {
+		File newFile = new File(dir, "ints.dat.new");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(newFile));
+		try {
+			for (int i = 0; i < 10; i++) {
+				out.writeInt(100 + i);
+			}
+		} finally {
+			out.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// Write (and map) more data than the new contents
+			LargeMappedIntFile f = new LargeMappedIntFile(raf.getChannel(), true, 0, SEGMENT_SIZE);
+			f.put(0, new int[100], 0, 100);
+			LargeMappedIntFile.replaceContents(raf.getChannel(), newFile);
+
+			f = new LargeMappedIntFile(raf.getChannel(), true, 10, SEGMENT_SIZE);
+			int[] test = new int[10];
+			f.get(0, test, 0, 10);
+			for (int i = 0; i < 10; i++) {
+				Assert.assertEquals(100 + i, test[i]);
+			}
+			f.put(10, new int[] { 7 }, 0, 1);
+			Assert.assertEquals(7, f.get(10));
+		} finally {
+			raf.close();
+		}
+	}
+
+}
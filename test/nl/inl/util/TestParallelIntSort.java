@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+import nl.inl.util.ParallelIntSort.IntComparator;
+
+import org.junit.Test;
+
+public class TestParallelIntSort {
+
+	/** Sort keys with many duplicates, so we can check stability */
+	private static int[] makeKeys(int n) {
+		Random random = new Random(1234);
+		int[] keys = new int[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = random.nextInt(100);
+		}
+		return keys;
+	}
+
+	private static void testSort(int n, int threads) {
+		final int[] keys = makeKeys(n);
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		ParallelIntSort.sort(order, new IntComparator() {
+			@Override
+			public int compare(int a, int b) {
+				return keys[a] - keys[b];
+			}
+		}, threads);
+		boolean[] seen = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			Assert.assertFalse(seen[order[i]]);
+			seen[order[i]] = true;
+			if (i > 0) {
+				int a = order[i - 1], b = order[i];
+				Assert.assertTrue(keys[a] <= keys[b]);
+				if (keys[a] == keys[b])
+					Assert.assertTrue(a < b); // stable
+			}
+		}
+	}
+
+	@Test
+	public void testSmall() {
+		testSort(0, 1);
+		testSort(1, 1);
+		testSort(1000, 4);
+	}
+
+	@Test
+	public void testParallel() {
+		testSort(200000, 1);
+		testSort(200000, 2);
+		testSort(200000, 3);
+		testSort(200001, 8);
+	}
+
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2010, 2012 Institute for Dutch Lexicology
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package nl.inl.util;
+
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestRegexAutomaton {
+
+	private static final String[] STRINGS = { "", "a", "b", "ab", "aab", "abc", "abab", "heid",
+			"waarheid", "vrijheden", "x1", "x12", "x123", "a-b", "a.b", "a\nb", "A", "_", "é",
+			"aaaa", "bbbb", "abba", "c", "[", "a b", "a\tb" };
+
+	private static void assertSameAsJava(String regex) {
+		RegexAutomaton automaton = RegexAutomaton.compile(regex);
+		Assert.assertNotNull("Should be supported: " + regex, automaton);
+		Pattern pattern = Pattern.compile(regex);
+		for (String s: STRINGS) {
+			Assert.assertEquals(regex + " on '" + s + "'", pattern.matcher(s).matches(),
+					automaton.matches(s));
+		}
+	}
+
+	@Test
+	public void testLiteralsAndOperators() {
+		assertSameAsJava("");
+		assertSameAsJava("ab");
+		assertSameAsJava("a|b|abc");
+		assertSameAsJava("(ab)*");
+		assertSameAsJava("(?:ab)+c?");
+		assertSameAsJava("a*b");
+		assertSameAsJava("a+?b");
+		assertSameAsJava(".*heid");
+		assertSameAsJava("^.*heid$");
+		assertSameAsJava("(a|b)*");
+		assertSameAsJava("(a*)*b");
+		assertSameAsJava("a.b");
+		assertSameAsJava("(?s)a.b");
+		assertSameAsJava("a\\.b");
+		assertSameAsJava("\\Qa.b\\E");
+	}
+
+	@Test
+	public void testClassesAndEscapes() {
+		assertSameAsJava("[ab]+");
+		assertSameAsJava("[^ab]");
+		assertSameAsJava("x[0-9]+");
+		assertSameAsJava("x\\d{2}");
+		assertSameAsJava("x\\d{1,2}");
+		assertSameAsJava("a{2,}");
+		assertSameAsJava("\\w*");
+		assertSameAsJava("\\W");
+		assertSameAsJava("a\\sb");
+		assertSameAsJava("[a\\-]+b?");
+		assertSameAsJava("[-a.]+b?");
+		assertSameAsJava("\\u00e9");
+		assertSameAsJava("\\x41|\\[");
+	}
+
+	@Test
+	public void testUnsupported() {
+		Assert.assertNull(RegexAutomaton.compile("(a)\\1"));
+		Assert.assertNull(RegexAutomaton.compile("(?i)abc"));
+		Assert.assertNull(RegexAutomaton.compile("a(?=b)"));
+		Assert.assertNull(RegexAutomaton.compile("a++"));
+		Assert.assertNull(RegexAutomaton.compile("[a[bc]]"));
+		Assert.assertNull(RegexAutomaton.compile("a^b"));
+		Assert.assertNull(RegexAutomaton.compile("(ab"));
+	}
+
+	@Test
+	public void testDeadPrefix() {
+		RegexAutomaton automaton = RegexAutomaton.compile("ab[cd].*");
+		int state = automaton.step(automaton.getInitialState(), 'a');
+		Assert.assertTrue(state != RegexAutomaton.DEAD);
+		Assert.assertEquals(RegexAutomaton.DEAD, automaton.step(state, 'c'));
+		state = automaton.step(state, 'b');
+		Assert.assertFalse(automaton.isAccepting(state));
+		Assert.assertEquals('c', automaton.nextLiveChar(state, 'a'));
+		Assert.assertEquals('d', automaton.nextLiveChar(state, 'd'));
+		Assert.assertEquals(-1, automaton.nextLiveChar(state, 'e'));
+	}
+
+	@Test
+	public void testWildcardToRegex() {
+		Assert.assertEquals("(?s)a.*b\\.c.", RegexAutomaton.wildcardToRegex("a*b.c?"));
+		Assert.assertTrue(RegexAutomaton.compile(RegexAutomaton.wildcardToRegex("a*b")).matches("a\nb"));
+		Assert.assertEquals("a\\+\\(b\\)", RegexAutomaton.escape("a+(b)"));
+	}
+
+}